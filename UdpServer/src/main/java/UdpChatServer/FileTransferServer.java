@@ -8,9 +8,11 @@ import java.net.SocketException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
@@ -21,14 +23,20 @@ import com.google.gson.JsonParser;
 
 import UdpChatServer.db.FileDAO;
 import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
+import UdpChatServer.handler.file.FileDataFrame;
 import UdpChatServer.handler.file.FileDownHandler;
 import UdpChatServer.handler.file.FileListReqHandler;
 import UdpChatServer.handler.file.FileSendDataHandler;
 import UdpChatServer.handler.file.FileSendFinHandler;
 import UdpChatServer.handler.file.FileSendInitHandler;
+import UdpChatServer.handler.file.FileTransferHandler;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.MessageSearchIndex;
+import UdpChatServer.manager.RecentMessageCache;
+import UdpChatServer.manager.RoomManager;
 import UdpChatServer.model.Constants;
 
 public class FileTransferServer {
@@ -37,8 +45,11 @@ public class FileTransferServer {
 
     private final DatagramSocket socket;
     private final ExecutorService executor;
+    private final ScheduledExecutorService uploadExpiryExecutor; // Drops idle uploads between inits
     private volatile boolean running = true;
-    private final MessageDAO messageDAO;
+    private final MessageStore messageStore;
+    private final RecentMessageCache recentMessageCache;
+    private final MessageSearchIndex searchIndex;
     private final UserDAO userDAO;
     private final RoomDAO roomDAO;
     private final FileDAO fileDAO;
@@ -47,13 +58,17 @@ public class FileTransferServer {
     private FileSendInitHandler fileSendInitHandler;
     private FileListReqHandler fileListReqHandler;
     private ClientSessionManager sessionManager;
+    private final RoomManager roomManager;
     private FileDownHandler fileDownHandler;
 
-    public FileTransferServer(Properties config, ClientSessionManager sessionManager, MessageDAO messageDAO, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO) throws SocketException {
+    public FileTransferServer(Properties config, ClientSessionManager sessionManager, RoomManager roomManager, MessageStore messageStore, RecentMessageCache recentMessageCache, MessageSearchIndex searchIndex, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO) throws SocketException {
         int port = Integer.parseInt(config.getProperty("file.server.port", String.valueOf(Constants.FILE_TRANSFER_SERVER_PORT)));
         String storageDir = config.getProperty("file.storage.dir", "server_storage");
         this.sessionManager = sessionManager;
-        this.messageDAO = messageDAO;
+        this.roomManager = roomManager;
+        this.messageStore = messageStore;
+        this.recentMessageCache = recentMessageCache;
+        this.searchIndex = searchIndex;
         this.userDAO = userDAO;
         this.roomDAO = roomDAO;
         this.fileDAO = fileDAO;
@@ -70,6 +85,25 @@ public class FileTransferServer {
             log.error("Error creating server storage directory: {}", e.getMessage());
             throw new RuntimeException("Cannot create storage directory", e);
         }
+        // Nothing is uploading yet, so every temp file found was left by a crash
+        int leftovers = FileTransferHandler.deleteLeftoverTempFiles(Paths.get(Constants.STORAGE_DIR));
+        if (leftovers > 0) {
+            log.info("Deleted {} leftover upload temp files", leftovers);
+        }
+
+        uploadExpiryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setDaemon(true);
+            t.setName("Upload-Expiry-Thread");
+            return t;
+        });
+        uploadExpiryExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                FileTransferHandler.expireIdleUploads();
+            } catch (Exception e) {
+                log.error("Error expiring idle uploads: {}", e.getMessage(), e);
+            }
+        }, Constants.FILE_UPLOAD_EXPIRY_INTERVAL_MS, Constants.FILE_UPLOAD_EXPIRY_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
     public void listen() {
@@ -80,7 +114,10 @@ public class FileTransferServer {
             try {
                 DatagramPacket receivePacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
                 socket.receive(receivePacket);
-                executor.submit(() -> handlePacket(receivePacket));
+                // The next receive overwrites receiveBuffer, so the handler gets its own copy of the bytes
+                DatagramPacket packet = new DatagramPacket(Arrays.copyOf(receiveBuffer, receivePacket.getLength()),
+                        receivePacket.getLength(), receivePacket.getAddress(), receivePacket.getPort());
+                executor.submit(() -> handlePacket(packet));
             } catch (IOException e) {
                 if (running) {
                     log.error("IOException during receive: {}", e.getMessage());
@@ -92,6 +129,7 @@ public class FileTransferServer {
     public void stop() {
         running = false;
         log.info("Stopping File Transfer Server...");
+        uploadExpiryExecutor.shutdownNow();
 
         if (executor != null) {
             executor.shutdown();
@@ -116,6 +154,10 @@ public class FileTransferServer {
         try {
             byte[] receivedData = packet.getData();
             int receivedLength = packet.getLength();
+            if (FileDataFrame.isFrame(receivedData, receivedLength)) {
+                handleFrame(packet);
+                return;
+            }
             String jsonString = new String(receivedData, 0, receivedLength, StandardCharsets.UTF_8);
             JsonObject jsonPacket = JsonParser.parseString(jsonString).getAsJsonObject();
             String action = jsonPacket.get(Constants.KEY_ACTION).getAsString();
@@ -128,23 +170,23 @@ public class FileTransferServer {
             switch (action) {
                 case Constants.ACTION_FILE_SEND_INIT:
 
-                    fileSendInitHandler = new FileSendInitHandler(messageDAO, userDAO, roomDAO, fileDAO, socket, sessionManager);
+                    fileSendInitHandler = new FileSendInitHandler(messageStore, userDAO, roomDAO, fileDAO, socket, sessionManager);
                     fileSendInitHandler.handle(jsonPacket, clientAddress, clientPort);
                     break;
                 case Constants.ACTION_FILE_SEND_DATA:
-                    fileSendDataHandler = new FileSendDataHandler(messageDAO, userDAO, roomDAO, fileDAO, socket, sessionManager);
+                    fileSendDataHandler = new FileSendDataHandler(messageStore, userDAO, roomDAO, fileDAO, socket, sessionManager);
                     fileSendDataHandler.handle(jsonPacket, clientAddress, clientPort);
                     break;
                 case Constants.ACTION_FILE_SEND_FIN:
-                    fileSendFinHandler = new FileSendFinHandler(messageDAO, userDAO, roomDAO, fileDAO, socket, sessionManager);
+                    fileSendFinHandler = new FileSendFinHandler(messageStore, userDAO, roomDAO, fileDAO, socket, sessionManager, roomManager, recentMessageCache, searchIndex);
                     fileSendFinHandler.handle(jsonPacket, clientAddress, clientPort);
                     break;
                 case Constants.ACTION_FILE_LIST_REQ:
-                    fileListReqHandler = new FileListReqHandler(messageDAO, userDAO, roomDAO, fileDAO, socket, sessionManager);
+                    fileListReqHandler = new FileListReqHandler(messageStore, userDAO, roomDAO, fileDAO, socket, sessionManager);
                     fileListReqHandler.handle(jsonPacket, clientAddress, clientPort);
                     break;
                 case Constants.ACTION_FILE_DOWN_REQ:
-                    fileDownHandler = new FileDownHandler(messageDAO, userDAO, roomDAO, fileDAO, socket, sessionManager);
+                    fileDownHandler = new FileDownHandler(messageStore, userDAO, roomDAO, fileDAO, socket, sessionManager);
                     fileDownHandler.handle(jsonPacket, clientAddress, clientPort);
                     break;
                 case Constants.ACTION_FILE_DOWN_META:
@@ -182,6 +224,26 @@ public class FileTransferServer {
         }
     }
 
+    /**
+     * Binary data frames skip the JSON parse entirely.
+     */
+    private void handleFrame(DatagramPacket packet) {
+        FileDataFrame frame;
+        try {
+            frame = FileDataFrame.decode(packet.getData(), packet.getLength());
+        } catch (IllegalArgumentException e) {
+            // Corrupt or truncated: no ack, so the client resends the chunk
+            log.warn("Dropping data frame from {}:{} - {}", packet.getAddress(), packet.getPort(), e.getMessage());
+            return;
+        }
+        if (frame.getType() == FileDataFrame.TYPE_SEND_DATA) {
+            fileSendDataHandler = new FileSendDataHandler(messageStore, userDAO, roomDAO, fileDAO, socket, sessionManager);
+            fileSendDataHandler.handleFrame(frame, packet.getAddress(), packet.getPort());
+        } else {
+            log.warn("Unexpected data frame type {} from {}:{}", frame.getType(), packet.getAddress(), packet.getPort());
+        }
+    }
+
     public static void main(String[] args) {
         Properties config = new Properties();
         // Add default config values
@@ -190,7 +252,13 @@ public class FileTransferServer {
         System.out.println("File Transfer Server started with default config:------------ " + Constants.FILE_TRANSFER_SERVER_PORT + " " + Constants.STORAGE_DIR);
 
         try {
-            FileTransferServer server = new FileTransferServer(config, new ClientSessionManager(), new MessageDAO(), new UserDAO(), new RoomDAO(), new FileDAO());
+            RoomDAO roomDAO = new RoomDAO();
+            MessageStore messageStore = new MessageDAO();
+            FileTransferServer server = new FileTransferServer(config, new ClientSessionManager(),
+                    new RoomManager(roomDAO, Constants.DEFAULT_ROOM_CACHE_MAX_ROOMS, Constants.DEFAULT_ROOM_VIEW_MAX_USERS), messageStore,
+                    new RecentMessageCache(messageStore, Constants.DEFAULT_RECENT_CACHE_MESSAGES_PER_ROOM, Constants.DEFAULT_RECENT_CACHE_MAX_BYTES),
+                    new MessageSearchIndex(messageStore, roomDAO, Paths.get(Constants.DEFAULT_SEARCH_INDEX_DIR), 0),
+                    new UserDAO(), roomDAO, new FileDAO());
 
             // Add shutdown hook
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
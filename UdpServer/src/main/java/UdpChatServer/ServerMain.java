@@ -3,26 +3,39 @@ package UdpChatServer;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketException;
-import java.sql.Connection; // Added import
-import java.sql.SQLException; // Added import
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import UdpChatServer.db.DatabaseConnectionManager;
 import UdpChatServer.db.FileDAO;
+import UdpChatServer.db.MessageArchive;
 import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
+import UdpChatServer.db.SegmentedLogMessageStore;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.MessageSearchIndex;
+import UdpChatServer.manager.RecentMessageCache;
+import UdpChatServer.manager.RetentionManager;
 import UdpChatServer.manager.RoomManager;
 import UdpChatServer.model.Constants;
+import UdpChatServer.model.RetentionPolicy;
 import UdpChatServer.net.UdpRequestHandler;
+import UdpChatServer.util.StartupTimer;
 
 /**
  * Main entry point for the UDP Chat Server application.
- * Initializes all components and starts the request handler.
+ * Starts in phases: bind the sockets (requests get a "starting" reply), warm up the database
+ * pool and caches in parallel, then mark the request handler ready. Phase timings are logged.
  */
 public class ServerMain {
 
@@ -32,69 +45,108 @@ public class ServerMain {
 
     public static void main(String[] args) {
         log.info("Starting UDP Chat Server...");
+        StartupTimer startup = new StartupTimer();
 
         // Load configuration
         Properties configProps = loadConfig();
         int serverPort = Integer.parseInt(configProps.getProperty("server.port", String.valueOf(Constants.DEFAULT_SERVER_PORT)));
+        startup.completed("config");
 
         UdpRequestHandler requestHandler = null;
 
         try {
-            // Explicitly check database connection and trigger table setup early
-            log.info("Checking database connection and ensuring tables exist...");
-            try (Connection conn = DatabaseConnectionManager.getConnection()) {
-                if (conn == null || conn.isClosed()) {
-                     throw new SQLException("Failed to get a valid database connection from the pool.");
-                }
-                log.info("Database connection successful. Pool initialized and tables checked/created.");
-                // Connection is automatically closed by try-with-resources
-            } catch (SQLException e) {
-                log.error("Database connection failed. Server cannot start.", e);
-                // Ensure pool is closed if initialization failed partially
-                DatabaseConnectionManager.closeDataSource();
-                System.exit(1); // Exit if DB connection fails
-            } catch (RuntimeException e) {
-                 log.error("Failed during database initialization (likely config or script error). Server cannot start.", e);
-                 // DatabaseConnectionManager static block might throw RuntimeException
-                 DatabaseConnectionManager.closeDataSource(); // Ensure pool is closed
-                 System.exit(1);
-            }
-
-            // Initialize Managers and DAOs
+            // Phase 1: bind the sockets and start answering at once. Nothing here touches the
+            // database; until the warm-up below finishes, requests get a "starting" reply.
             log.info("Initializing managers...");
             ClientSessionManager sessionManager = new ClientSessionManager();
-            RoomManager roomManager = new RoomManager(); // RoomDAO could be injected if needed
             UserDAO userDAO = new UserDAO();
             RoomDAO roomDAO = new RoomDAO();
-            MessageDAO messageDAO = new MessageDAO();
+            int maxCachedRooms = Integer.parseInt(configProps.getProperty("room.cache.maxRooms", String.valueOf(Constants.DEFAULT_ROOM_CACHE_MAX_ROOMS)));
+            int maxUserRoomViews = Integer.parseInt(configProps.getProperty("room.cache.maxUserViews", String.valueOf(Constants.DEFAULT_ROOM_VIEW_MAX_USERS)));
+            RoomManager roomManager = new RoomManager(roomDAO, maxCachedRooms, maxUserRoomViews); // Membership cache and room views backed by RoomDAO
+            int writeBehindMaxBatchSize = Integer.parseInt(configProps.getProperty("db.writeBehind.maxBatchSize", String.valueOf(Constants.DEFAULT_WRITE_BEHIND_MAX_BATCH_SIZE)));
+            long writeBehindMaxLingerMs = Long.parseLong(configProps.getProperty("db.writeBehind.maxLingerMs", String.valueOf(Constants.DEFAULT_WRITE_BEHIND_MAX_LINGER_MS)));
+            MessageStore messageStore = createMessageStore(configProps, writeBehindMaxBatchSize, writeBehindMaxLingerMs); // Group-commits messages on its writer thread
+            int recentMessagesPerRoom = Integer.parseInt(configProps.getProperty("cache.recent.messagesPerRoom", String.valueOf(Constants.DEFAULT_RECENT_CACHE_MESSAGES_PER_ROOM)));
+            long recentCacheMaxBytes = Long.parseLong(configProps.getProperty("cache.recent.maxBytes", String.valueOf(Constants.DEFAULT_RECENT_CACHE_MAX_BYTES)));
+            RecentMessageCache recentMessageCache = new RecentMessageCache(messageStore, recentMessagesPerRoom, recentCacheMaxBytes); // Recent history of active rooms
+            Path searchIndexDir = Paths.get(configProps.getProperty("search.index.dir", Constants.DEFAULT_SEARCH_INDEX_DIR));
+            long searchSnapshotIntervalMs = Long.parseLong(configProps.getProperty("search.snapshotIntervalMs", String.valueOf(Constants.DEFAULT_SEARCH_SNAPSHOT_INTERVAL_MS)));
+            MessageSearchIndex searchIndex = new MessageSearchIndex(messageStore, roomDAO, searchIndexDir, searchSnapshotIntervalMs); // search_messages, filled during warm-up
+            MessageArchive messageArchive = null;
+            RetentionManager retentionManager = null;
+            if (messageStore instanceof MessageDAO messageDAO) { // Retention archives rows of the messages table
+                Path archiveDir = Paths.get(configProps.getProperty("retention.archive.dir", Constants.DEFAULT_RETENTION_ARCHIVE_DIR));
+                long archiveSegmentBytes = Long.parseLong(configProps.getProperty("retention.archive.segmentBytes", String.valueOf(Constants.DEFAULT_RETENTION_ARCHIVE_SEGMENT_BYTES)));
+                messageArchive = new MessageArchive(archiveDir, archiveSegmentBytes);
+                retentionManager = createRetentionManager(configProps, messageDAO, roomDAO, messageArchive, recentMessageCache, searchIndex);
+            }
             FileDAO fileDAO = new FileDAO(); // Add FileDAO
             log.info("Managers and DAOs initialized.");
 
             // Initialize FileTransferServer
             log.info("Initializing File Transfer Server...");
-            fileTransferServer = new FileTransferServer(configProps, sessionManager, messageDAO, userDAO, roomDAO, fileDAO);
+            fileTransferServer = new FileTransferServer(configProps, sessionManager, roomManager, messageStore, recentMessageCache, searchIndex, userDAO, roomDAO, fileDAO);
             Thread fileServerThread = new Thread(() -> fileTransferServer.listen(), "File-Transfer-Server-Thread");
             fileServerThread.start();
 
             // Initialize Request Handler
             log.info("Initializing UDP Request Handler on port {}...", serverPort);
-            requestHandler = new UdpRequestHandler(serverPort, sessionManager, roomManager, userDAO, roomDAO, messageDAO);
+            requestHandler = new UdpRequestHandler(serverPort, sessionManager, roomManager, userDAO, roomDAO, messageStore, recentMessageCache, searchIndex, messageArchive, configProps);
 
             // Start the Request Handler in a new thread
             Thread handlerThread = new Thread(requestHandler, "UDP-RequestHandler-Thread");
             handlerThread.start();
-            log.info("UDP Chat Server started successfully.");
+            startup.completed("bind");
+            log.info("UDP sockets bound after {} ms. Warming up...", startup.elapsedMillis());
 
             // Add Shutdown Hook for graceful termination
             UdpRequestHandler finalRequestHandler = requestHandler; // Need final variable for lambda
+            RetentionManager finalRetentionManager = retentionManager;
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 log.info("Shutdown hook triggered. Stopping servers...");
                 finalRequestHandler.stop(); // Stop the handler loop and thread pool
                 fileTransferServer.stop();
+                if (finalRetentionManager != null) {
+                    finalRetentionManager.stop(); // Finish the batch in progress while the pool is open
+                }
+                messageStore.close(); // Commit messages still queued for write-behind
+                searchIndex.close(); // Snapshot the index, including the messages just committed
                 DatabaseConnectionManager.closeDataSource(); // Close the database connection pool
                 log.info("Servers shut down gracefully.");
             }, "Server-Shutdown-Hook"));
 
+            // Phase 2: warm up in parallel. The pool (schema check, migrations, connections) comes
+            // first for everything that reads the database (caches, the search index catching up
+            // from its snapshot); the dummy auth hash needs no database.
+            ExecutorService warmUpPool = Executors.newFixedThreadPool(3, r -> {
+                Thread t = new Thread(r, "Startup-Warmup-Thread");
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                CompletableFuture<Void> database = startup.runAsync("database", DatabaseConnectionManager::warmUp, warmUpPool);
+                CompletableFuture<Void> auth = startup.runAsync("auth", finalRequestHandler.getAuthService()::warmUp, warmUpPool);
+                CompletableFuture<Void> userDirectory = database.thenCompose(v ->
+                        startup.runAsync("user_directory", finalRequestHandler.getUserDirectory()::warmUp, warmUpPool));
+                CompletableFuture<Void> userFilter = database.thenCompose(v ->
+                        startup.runAsync("user_filter", finalRequestHandler.getUserExistenceFilter()::warmUp, warmUpPool));
+                CompletableFuture<Void> roomCache = database.thenCompose(v ->
+                        startup.runAsync("room_cache", roomManager::warmUp, warmUpPool));
+                CompletableFuture<Void> search = database.thenCompose(v ->
+                        startup.runAsync("search_index", searchIndex::warmUp, warmUpPool));
+                CompletableFuture.allOf(database, auth, userDirectory, userFilter, roomCache, search).join();
+            } finally {
+                warmUpPool.shutdown();
+            }
+
+            // Phase 3: ready
+            requestHandler.markReady();
+            if (retentionManager != null) {
+                retentionManager.start();
+            }
+            log.info("UDP Chat Server started successfully. Startup phases: {}", startup.summary());
+
             // Keep the main thread alive (optional, depends on deployment)
             // handlerThread.join(); // Or use another mechanism if needed
 
@@ -102,7 +154,9 @@ public class ServerMain {
             log.error("Failed to bind UDP socket to port {}: {}", serverPort, e.getMessage(), e);
             System.exit(1); // Exit if socket cannot be created
         } catch (Exception e) {
-            log.error("An unexpected error occurred during server startup: {}", e.getMessage(), e);
+            // A failed database warm-up (connection, config or schema script error) ends up here too
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.error("An unexpected error occurred during server startup: {}", cause.getMessage(), cause);
              // Ensure resources are cleaned up if startup fails partially
             if (requestHandler != null) {
                 requestHandler.stop();
@@ -115,6 +169,42 @@ public class ServerMain {
         }
     }
 
+    /**
+     * Creates the message store selected by message.store: the messages table (jdbc, default)
+     * or per-room log files (log).
+     */
+    private static MessageStore createMessageStore(Properties configProps, int maxBatchSize, long maxLingerMs) throws IOException {
+        String type = configProps.getProperty("message.store", Constants.MESSAGE_STORE_JDBC).trim();
+        if (Constants.MESSAGE_STORE_LOG.equalsIgnoreCase(type)) {
+            Path dir = Paths.get(configProps.getProperty("message.store.log.dir", Constants.DEFAULT_MESSAGE_LOG_DIR));
+            long segmentBytes = Long.parseLong(configProps.getProperty("message.store.log.segmentBytes", String.valueOf(Constants.DEFAULT_MESSAGE_LOG_SEGMENT_BYTES)));
+            int indexInterval = Integer.parseInt(configProps.getProperty("message.store.log.indexInterval", String.valueOf(Constants.DEFAULT_MESSAGE_LOG_INDEX_INTERVAL)));
+            boolean fsync = Boolean.parseBoolean(configProps.getProperty("message.store.log.fsync", "true"));
+            long compactionIntervalMs = Long.parseLong(configProps.getProperty("message.store.log.compactionIntervalMs", String.valueOf(Constants.DEFAULT_MESSAGE_LOG_COMPACTION_INTERVAL_MS)));
+            log.info("Using segmented log message store at {}", dir.toAbsolutePath());
+            return new SegmentedLogMessageStore(dir, segmentBytes, indexInterval, fsync, maxBatchSize, maxLingerMs, compactionIntervalMs);
+        }
+        if (!Constants.MESSAGE_STORE_JDBC.equalsIgnoreCase(type)) {
+            log.warn("Unknown message.store '{}'. Using the database.", type);
+        }
+        return new MessageDAO(maxBatchSize, maxLingerMs);
+    }
+
+    /**
+     * Creates the retention pass with the configured defaults (retention.*); per-room overrides
+     * are read from room_retention on every pass.
+     */
+    private static RetentionManager createRetentionManager(Properties configProps, MessageDAO messageDAO, RoomDAO roomDAO,
+            MessageArchive messageArchive, RecentMessageCache recentMessageCache, MessageSearchIndex searchIndex) {
+        int maxAgeDays = Integer.parseInt(configProps.getProperty("retention.maxAgeDays", String.valueOf(Constants.DEFAULT_RETENTION_MAX_AGE_DAYS)));
+        int maxMessages = Integer.parseInt(configProps.getProperty("retention.maxMessagesPerRoom", String.valueOf(Constants.DEFAULT_RETENTION_MAX_MESSAGES_PER_ROOM)));
+        long intervalMs = Long.parseLong(configProps.getProperty("retention.intervalMs", String.valueOf(Constants.DEFAULT_RETENTION_INTERVAL_MS)));
+        int batchSize = Integer.parseInt(configProps.getProperty("retention.batchSize", String.valueOf(Constants.DEFAULT_RETENTION_BATCH_SIZE)));
+        long batchPauseMs = Long.parseLong(configProps.getProperty("retention.batchPauseMs", String.valueOf(Constants.DEFAULT_RETENTION_BATCH_PAUSE_MS)));
+        return new RetentionManager(messageDAO, roomDAO, messageArchive, recentMessageCache, searchIndex,
+                new RetentionPolicy(maxAgeDays, maxMessages), intervalMs, batchSize, batchPauseMs);
+    }
+
      /**
      * Loads configuration properties from the config file in the classpath.
      *
@@ -32,6 +32,23 @@ public class CaesarCipher {
         return processText(plainText, shift);
     }
 
+    /**
+     * Encrypts plain text with an explicit shift value. Because the cipher works code point
+     * by code point, encrypting the pieces of a string separately and concatenating the results
+     * gives the same output as encrypting the whole string, which lets fanout pre-encrypt the
+     * shared parts of a message once.
+     *
+     * @param plainText The text to encrypt.
+     * @param shift The shift value (the key length).
+     * @return The encrypted cipher text.
+     */
+    public static String encryptWithShift(String plainText, int shift) {
+        if (plainText == null || plainText.isEmpty()) {
+            return plainText;
+        }
+        return processText(plainText, shift);
+    }
+
     /**
      * Decrypts cipher text using the Caesar cipher with a given key (shift value).
      * Works with all UTF-8 characters.
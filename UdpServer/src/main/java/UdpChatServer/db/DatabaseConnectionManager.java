@@ -5,11 +5,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -17,28 +21,53 @@ import org.slf4j.LoggerFactory;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import UdpChatServer.model.Constants;
+import UdpChatServer.util.Metrics;
 
 /**
  * Manages the database connection pool using HikariCP.
- * Reads configuration from config.properties.
- * Ensures database tables are created on initialization.
+ * Reads configuration from config.properties; db.profile selects the database (MySQL, or
+ * embedded H2 for machines without a MySQL server) and with it the {@link SqlDialect}.
+ * Ensures database tables are created on initialization and applies pending schema migrations.
+ *
+ * Writes always use the primary (write) pool. When db.read.url is set, a second pool connects to
+ * a read replica and DAO reads choose per method, through {@link #getReadConnection}, whether
+ * they need the primary or can be served by the replica; a {@link ReplicaLagMonitor} keeps the
+ * replica's lag measured so bounded-staleness reads fall back to the primary while it is behind.
+ * Without db.read.url every read uses the primary pool.
  */
 public class DatabaseConnectionManager {
 
     private static final Logger log = LoggerFactory.getLogger(DatabaseConnectionManager.class);
     private static final String CONFIG_FILE = "config.properties";
     private static final String DB_SETUP_SCRIPT = "db_setup.sql";
+    private static final String MIGRATION_DIR = "db/migration/";
+    // Ordered migration scripts; the array position + 1 is the version. Only ever append.
+    private static final String[] MIGRATIONS = {
+        "V1__message_seq.sql",
+        "V2__performance_indexes.sql",
+        "V3__replication_heartbeat.sql",
+        "V4__room_retention.sql",
+    };
     private static HikariDataSource dataSource;
+    private static HikariDataSource readDataSource; // null: reads use dataSource
+    private static ReplicaLagMonitor lagMonitor;
+    private static long maxStalenessMs = Constants.DEFAULT_DB_READ_MAX_STALENESS_MS;
+    private static SqlDialect dialect = SqlDialect.MYSQL;
+
+    private static final LongAdder writeAcquired = Metrics.counter("db.write.acquired");
+    private static final LongAdder readAcquired = Metrics.counter("db.read.acquired");
+    private static final LongAdder readFallbacks = Metrics.counter("db.read.fallback_to_primary");
 
     // Static initializer block to set up the connection pool on class loading
     static {
         try {
             Properties props = loadConfig();
+            dialect = SqlDialect.fromProfile(props.getProperty("db.profile"));
             HikariConfig config = new HikariConfig();
-
-            config.setJdbcUrl(props.getProperty("db.url"));
-            config.setUsername(props.getProperty("db.username"));
-            config.setPassword(props.getProperty("db.password"));
+            dialect.configure(config, props); // URL, credentials and driver settings of the profile
 
             // Pool settings from properties file
             config.setMaximumPoolSize(Integer.parseInt(props.getProperty("db.pool.maximumPoolSize", "10")));
@@ -46,26 +75,18 @@ public class DatabaseConnectionManager {
             config.setIdleTimeout(Long.parseLong(props.getProperty("db.pool.idleTimeout", "600000")));
             config.setMaxLifetime(Long.parseLong(props.getProperty("db.pool.maxLifetime", "1800000")));
 
-            // Recommended settings for MySQL
-            config.addDataSourceProperty("cachePrepStmts", "true");
-            config.addDataSourceProperty("prepStmtCacheSize", "250");
-            config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
-            config.addDataSourceProperty("useServerPrepStmts", "true");
-            config.addDataSourceProperty("useLocalSessionState", "true");
-            config.addDataSourceProperty("rewriteBatchedStatements", "true");
-            config.addDataSourceProperty("cacheResultSetMetadata", "true");
-            config.addDataSourceProperty("cacheServerConfiguration", "true");
-            config.addDataSourceProperty("elideSetAutoCommits", "true");
-            config.addDataSourceProperty("maintainTimeStats", "false");
-
-            // Set Driver class name explicitly if needed (usually auto-detected)
-            // config.setDriverClassName("com.mysql.cj.jdbc.Driver");
+            config.setPoolName("write-pool");
 
             dataSource = new HikariDataSource(config);
-            log.info("HikariCP DataSource initialized successfully for URL: {}", config.getJdbcUrl());
+            log.info("HikariCP DataSource initialized successfully for URL: {} (profile: {})", config.getJdbcUrl(), dialect);
+            registerPoolGauges("db.write", dataSource);
 
             // Ensure database tables exist by running setup script
             ensureTablesExist();
+            // Apply versioned schema changes not yet recorded in schema_version
+            runMigrations();
+
+            initReadPool(props, config);
 
         } catch (IOException e) {
             log.error("Failed to load database configuration file: {}", CONFIG_FILE, e);
@@ -82,6 +103,53 @@ public class DatabaseConnectionManager {
         }
     }
 
+    /**
+     * Starts the read pool if db.read.url is set. It takes the primary's driver settings and
+     * timeouts, its own URL and credentials (the primary's credentials if db.read.username is
+     * unset) and db.read.pool.maximumPoolSize connections. A replica that can't be reached is not
+     * fatal: reads then use the primary pool.
+     */
+    private static void initReadPool(Properties props, HikariConfig writeConfig) {
+        String readUrl = props.getProperty("db.read.url");
+        if (readUrl == null || readUrl.isBlank()) {
+            log.info("No read replica configured (db.read.url); reads use the primary pool.");
+            return;
+        }
+        HikariConfig config = new HikariConfig();
+        writeConfig.copyStateTo(config);
+        config.setPoolName("read-pool");
+        config.setJdbcUrl(readUrl.trim());
+        config.setUsername(props.getProperty("db.read.username", writeConfig.getUsername()));
+        config.setPassword(props.getProperty("db.read.password", writeConfig.getPassword()));
+        int maximumPoolSize = Integer.parseInt(props.getProperty("db.read.pool.maximumPoolSize",
+                String.valueOf(writeConfig.getMaximumPoolSize())));
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setMinimumIdle(maximumPoolSize); // A fixed-size pool, like the write pool
+        maxStalenessMs = Long.parseLong(props.getProperty("db.read.maxStalenessMs",
+                String.valueOf(Constants.DEFAULT_DB_READ_MAX_STALENESS_MS)));
+        long lagCheckIntervalMs = Long.parseLong(props.getProperty("db.read.lagCheckIntervalMs",
+                String.valueOf(Constants.DEFAULT_DB_READ_LAG_CHECK_INTERVAL_MS)));
+        try {
+            readDataSource = new HikariDataSource(config);
+        } catch (RuntimeException e) {
+            log.error("Could not start the read pool for URL: {}; reads use the primary pool. Cause: {}", readUrl, e.getMessage());
+            return;
+        }
+        log.info("Read pool initialized for URL: {} (max staleness: {} ms)", readUrl, maxStalenessMs);
+        registerPoolGauges("db.read", readDataSource);
+        ReplicaLagMonitor monitor = new ReplicaLagMonitor(dataSource, readDataSource, lagCheckIntervalMs);
+        lagMonitor = monitor;
+        Metrics.gauge("db.read.lag_ms", () -> monitor.getLagMs() == ReplicaLagMonitor.UNKNOWN_LAG ? -1 : monitor.getLagMs()); // -1: unknown
+    }
+
+    private static void registerPoolGauges(String prefix, HikariDataSource pool) {
+        HikariPoolMXBean bean = pool.getHikariPoolMXBean();
+        Metrics.gauge(prefix + ".active", bean::getActiveConnections);
+        Metrics.gauge(prefix + ".idle", bean::getIdleConnections);
+        Metrics.gauge(prefix + ".total", bean::getTotalConnections);
+        Metrics.gauge(prefix + ".waiting", bean::getThreadsAwaitingConnection);
+    }
+
     /**
      * Loads configuration properties from the config file in the classpath.
      *
@@ -141,8 +209,7 @@ public class DatabaseConnectionManager {
                  return; // Exit the method, don't run the script
             }
         } catch (SQLException e) {
-            // MySQL specific error code for "Table doesn't exist" is 1146, SQLState is '42S02'
-            if ("42S02".equals(e.getSQLState()) || e.getErrorCode() == 1146) {
+            if (dialect.isTableMissing(e)) {
                 log.info("Key table 'users' not found (SQLState: {}, ErrorCode: {}). Proceeding with database setup script.", e.getSQLState(), e.getErrorCode());
                 // Proceed to execute the script below
             } else {
@@ -206,9 +273,9 @@ public class DatabaseConnectionManager {
                     executedCount++;
                     log.info("Successfully executed SQL statement #{}", statementIndex);
                 } catch (SQLException e) {
-                    if (e.getErrorCode() == 1050) { // MySQL: Table already exists
+                    if (dialect.isAlreadyApplied(e)) { // Table already exists
                          log.warn("Table already exists (skipped execution for statement #{}): {}", statementIndex, processedSql.length() > 100 ? processedSql.substring(0, 100) + "..." : processedSql);
-                    } else if (e.getErrorCode() == 1062) { // MySQL: Duplicate entry for key
+                    } else if (dialect.isDuplicateKey(e)) { // Duplicate entry for key
                          log.warn("Duplicate entry detected (skipped execution for statement #{}): {}", statementIndex, processedSql.length() > 100 ? processedSql.substring(0, 100) + "..." : processedSql);
                     }
                     else {
@@ -231,7 +298,89 @@ public class DatabaseConnectionManager {
     }
 
     /**
-     * Gets a connection from the connection pool.
+     * Applies pending versioned migrations, in order, recording each in schema_version.
+     *
+     * Migrations are the scripts listed in {@link #MIGRATIONS}; a database at version N runs the
+     * scripts numbered above N. MySQL and H2 commit DDL implicitly, so a migration is not atomic: its
+     * statements must be safe to re-run, and "already exists" errors (a column or index added by
+     * an earlier partial run or by hand) are logged and skipped. Any other error stops startup
+     * without recording the version, so the migration is retried on the next start.
+     */
+    private static void runMigrations() {
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version ("
+                    + "version INT PRIMARY KEY, "
+                    + "script VARCHAR(255) NOT NULL, "
+                    + "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+
+            int currentVersion = 0;
+            try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+                if (rs.next()) {
+                    currentVersion = rs.getInt(1);
+                }
+            }
+            log.info("Database schema version: {} (latest: {}).", currentVersion, MIGRATIONS.length);
+
+            for (int i = currentVersion; i < MIGRATIONS.length; i++) {
+                int version = i + 1;
+                String script = MIGRATIONS[i];
+                log.info("Applying migration V{}: {}", version, script);
+                for (String sql : splitSqlStatements(loadSqlScript(MIGRATION_DIR + script))) {
+                    try {
+                        stmt.execute(sql);
+                    } catch (SQLException e) {
+                        if (dialect.isAlreadyApplied(e)) {
+                            log.warn("Migration V{} statement already applied, skipping (ErrorCode: {}): {}", version, e.getErrorCode(), abbreviate(sql, 100));
+                        } else {
+                            throw e;
+                        }
+                    }
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement("INSERT INTO schema_version (version, script) VALUES (?, ?)")) {
+                    pstmt.setInt(1, version);
+                    pstmt.setString(2, script);
+                    pstmt.executeUpdate();
+                }
+                log.info("Migration V{} applied.", version);
+            }
+        } catch (SQLException e) {
+            log.error("Database migration failed. SQLState: {}, ErrorCode: {}, Message: {}", e.getSQLState(), e.getErrorCode(), e.getMessage(), e);
+            throw new RuntimeException("Database migration failed", e);
+        } catch (IOException e) {
+            log.error("Failed to load a migration script from '{}'.", MIGRATION_DIR, e);
+            throw new RuntimeException("Failed to load migration script", e);
+        }
+    }
+
+    /**
+     * Splits a script into statements on ';', dropping comment lines, blank statements and the
+     * CREATE DATABASE / USE statements (the pool is already bound to the configured database).
+     */
+    private static List<String> splitSqlStatements(String scriptContent) {
+        List<String> statements = new ArrayList<>();
+        for (String sql : scriptContent.split(";")) {
+            String processedSql = Arrays.stream(sql.split("\\r?\\n")) // Split into lines
+                                        .map(String::trim) // Trim each line
+                                        .filter(line -> !line.startsWith("--") && !line.isEmpty()) // Filter out comments and empty lines
+                                        .collect(Collectors.joining("\n")) // Join back with newlines
+                                        .trim(); // Trim the final result
+            String upper = processedSql.toUpperCase();
+            if (processedSql.isEmpty() || upper.startsWith("CREATE DATABASE") || upper.startsWith("USE")) {
+                continue;
+            }
+            statements.add(processedSql);
+        }
+        return statements;
+    }
+
+    private static String abbreviate(String sql, int maxLength) {
+        String oneLine = sql.replace('\n', ' ').replace('\r', ' ').trim();
+        return oneLine.length() > maxLength ? oneLine.substring(0, maxLength) + "..." : oneLine;
+    }
+
+    /**
+     * Gets a connection from the primary (write) pool.
      *
      * @return A database connection.
      * @throws SQLException if a database access error occurs.
@@ -241,7 +390,73 @@ public class DatabaseConnectionManager {
              log.error("HikariCP DataSource is not initialized!");
              throw new SQLException("DataSource is not initialized.");
         }
-        return dataSource.getConnection();
+        Connection conn = dataSource.getConnection();
+        writeAcquired.increment();
+        return conn;
+    }
+
+    /**
+     * Gets a connection for a read that tolerates the given consistency: the read pool for
+     * {@link ReadConsistency#BOUNDED_STALENESS} while the replica's measured lag is within
+     * db.read.maxStalenessMs, the primary pool otherwise or if no read pool is configured.
+     *
+     * @param consistency What the calling DAO method needs.
+     * @return A database connection.
+     * @throws SQLException if a database access error occurs.
+     */
+    public static Connection getReadConnection(ReadConsistency consistency) throws SQLException {
+        HikariDataSource replica = readDataSource;
+        ReplicaLagMonitor monitor = lagMonitor;
+        if (replica == null || monitor == null || consistency == ReadConsistency.PRIMARY) {
+            return getConnection();
+        }
+        if (monitor.getLagMs() > maxStalenessMs) {
+            readFallbacks.increment();
+            return getConnection();
+        }
+        Connection conn = replica.getConnection();
+        readAcquired.increment();
+        return conn;
+    }
+
+    /**
+     * Initializes the pools (on first use of this class: schema check and migrations), then opens
+     * their connections, so the first requests after startup don't each pay for a connection setup.
+     *
+     * @return The number of connections opened.
+     */
+    public static int warmUp() throws SQLException {
+        if (dataSource == null) {
+            throw new SQLException("DataSource is not initialized.");
+        }
+        int opened = warmUp(dataSource);
+        if (readDataSource != null) {
+            opened += warmUp(readDataSource);
+        }
+        return opened;
+    }
+
+    private static int warmUp(HikariDataSource pool) throws SQLException {
+        int target = Math.min(pool.getMinimumIdle(), pool.getMaximumPoolSize());
+        List<Connection> connections = new ArrayList<>(target);
+        try {
+            for (int i = 0; i < target; i++) {
+                connections.add(pool.getConnection());
+            }
+        } finally {
+            for (Connection conn : connections) {
+                conn.close();
+            }
+        }
+        log.info("Connection pool {} warmed up with {} connections.", pool.getPoolName(), connections.size());
+        return connections.size();
+    }
+
+    /**
+     * The dialect of the configured database, for DAOs that classify SQL errors.
+     */
+    public static SqlDialect getDialect() {
+        return dialect;
     }
 
     /**
@@ -257,6 +472,14 @@ public class DatabaseConnectionManager {
      * Used during initialization failure cleanup.
      */
     private static void closeDataSourceInternal() {
+        if (lagMonitor != null) {
+            lagMonitor.stop();
+            lagMonitor = null;
+        }
+        if (readDataSource != null && !readDataSource.isClosed()) {
+            readDataSource.close();
+        }
+        readDataSource = null;
         if (dataSource != null && !dataSource.isClosed()) {
             dataSource.close();
             dataSource = null;
@@ -82,7 +82,7 @@ public class FileDAO {
         String sql = "SELECT file_id, room_id, sender_chatid, file_path, file_type, timestamp "
                 + "FROM files WHERE room_id = ? ORDER BY timestamp ASC";
 
-        try (Connection conn = DatabaseConnectionManager.getConnection(); 
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.BOUNDED_STALENESS); 
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, roomId);
@@ -125,7 +125,7 @@ public class FileDAO {
         String sql = "SELECT file_id, room_id, sender_chatid, file_path, file_type, timestamp "
                 + "FROM files WHERE room_id = ? AND sender_chatid = ? ORDER BY timestamp ASC";
 
-        try (Connection conn = DatabaseConnectionManager.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.BOUNDED_STALENESS); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, roomId);
             pstmt.setString(2, senderChatid);
@@ -0,0 +1,519 @@
+package UdpChatServer.db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.model.Message;
+
+/**
+ * One append-only file of a room's message log, named after the seq of its first message.
+ *
+ * Each record is {@code [payload length][CRC32C of payload][payload]}, the payload holding
+ * message_id, seq, timestamp, sender and content. Only the writer thread appends; records become
+ * visible to readers when {@link #publish} moves the published size past them, after they were
+ * synced. Readers find records through a sparse index (every {@code indexInterval}-th record's
+ * seq, message_id and offset) and read them from a read-only memory mapping once the segment is
+ * sealed, or through a read channel while it is still active.
+ *
+ * A segment is reference counted: the room's segment list holds one reference and every reader
+ * pins the segments it scans, so a file that compaction merged away is only deleted once the
+ * last reader is done with it.
+ */
+final class LogSegment {
+
+    private static final Logger log = LoggerFactory.getLogger(LogSegment.class);
+
+    static final String SUFFIX = ".log";
+    static final int HEADER_BYTES = 8;
+    private static final int INDEX_STRIDE = 3; // seq, message_id, offset
+    private static final int MAX_SENDER_BYTES = 0xFFFF;
+
+    private final Path file;
+    private final long baseSeq;
+    private final int indexInterval;
+
+    private FileChannel channel; // Open for appends while active; null once sealed. Writer thread only.
+    private long writePosition; // Bytes written, published or not. Writer thread only.
+    private final List<long[]> pendingEntries = new ArrayList<>(); // {seq, id, offset, timestamp} written but not published
+
+    private volatile long size; // Published bytes
+    private volatile long firstSeq;
+    private volatile long lastSeq;
+    private volatile long firstId;
+    private volatile long lastId;
+    private volatile long lastTimestamp;
+    private volatile int count;
+    private volatile long[] index = new long[INDEX_STRIDE * 16];
+    private volatile int indexEntries;
+    private volatile boolean sealed;
+
+    private volatile ByteBuffer mapped; // The whole segment, mapped once when it is sealed
+    private FileChannel readChannel; // Reads of the active segment; guarded by 'this'
+
+    private final AtomicInteger refs = new AtomicInteger(1); // The room's segment list, plus one per reader
+    private volatile boolean deleteWhenReleased;
+
+    private LogSegment(Path file, long baseSeq, int indexInterval) {
+        this.file = file;
+        this.baseSeq = baseSeq;
+        this.indexInterval = Math.max(1, indexInterval);
+    }
+
+    static String fileName(long baseSeq) {
+        return String.format("%020d%s", baseSeq, SUFFIX);
+    }
+
+    /**
+     * Creates an empty, active segment for appends.
+     */
+    static LogSegment create(Path dir, long baseSeq, int indexInterval) throws IOException {
+        LogSegment segment = new LogSegment(dir.resolve(fileName(baseSeq)), baseSeq, indexInterval);
+        segment.channel = FileChannel.open(segment.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        segment.writePosition = segment.channel.size();
+        return segment;
+    }
+
+    /**
+     * Result of scanning an existing file at startup.
+     */
+    static final class Recovery {
+        final LogSegment segment; // null if the file held nothing usable
+        final boolean duplicate; // Starts below the expected seq: left over from an interrupted compaction
+        final boolean truncated; // Had to be cut short; later files no longer follow on
+
+        private Recovery(LogSegment segment, boolean duplicate, boolean truncated) {
+            this.segment = segment;
+            this.duplicate = duplicate;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     * Scans an existing segment, rebuilding its index. Records must carry consecutive seqs starting
+     * at {@code expectedSeq}; the file is truncated at the first torn, corrupt or out-of-order
+     * record (a crash mid-append), and the result is sealed (and mapped).
+     */
+    static Recovery recover(Path file, long baseSeq, long expectedSeq, int indexInterval) throws IOException {
+        LogSegment segment = new LogSegment(file, baseSeq, indexInterval);
+        long validBytes = 0;
+        boolean truncated = false;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long fileSize = ch.size();
+            ByteBuffer buf = fileSize == 0 ? ByteBuffer.allocate(0) : ch.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            long nextSeq = expectedSeq;
+            while (buf.remaining() >= HEADER_BYTES) {
+                int start = buf.position();
+                int length = buf.getInt();
+                int crc = buf.getInt();
+                if (length <= 0 || length > buf.remaining()) {
+                    break; // Torn write
+                }
+                ByteBuffer payload = buf.slice(buf.position(), length);
+                if (crc32c(payload) != crc) {
+                    log.warn("CRC mismatch in {} at offset {}.", file, start);
+                    break;
+                }
+                long seq = payload.getLong(8);
+                if (seq != nextSeq) {
+                    if (start == 0 && seq < expectedSeq) {
+                        return new Recovery(null, true, false);
+                    }
+                    log.warn("Out-of-order seq {} (expected {}) in {} at offset {}.", seq, nextSeq, file, start);
+                    break;
+                }
+                buf.position(buf.position() + length);
+                segment.addPending(seq, payload.getLong(0), start, payload.getLong(16));
+                nextSeq++;
+                validBytes = buf.position();
+            }
+            if (validBytes < fileSize) {
+                log.warn("Truncating {} from {} to {} bytes (incomplete or corrupt tail).", file, fileSize, validBytes);
+                ch.truncate(validBytes);
+                truncated = true;
+                ch.force(true);
+            }
+        }
+        segment.writePosition = validBytes;
+        segment.publish();
+        if (segment.count == 0) {
+            return new Recovery(null, false, truncated);
+        }
+        segment.seal();
+        return new Recovery(segment, false, truncated);
+    }
+
+    /**
+     * Appends a record (not yet visible to readers). Writer thread only.
+     */
+    void append(Message message, ByteBuffer record) throws IOException {
+        long offset = writePosition;
+        while (record.hasRemaining()) {
+            writePosition += channel.write(record, writePosition);
+        }
+        addPending(message.getSeq(), message.getMessageId(), offset, message.getTimestamp().getTime());
+    }
+
+    /**
+     * Forces appended records to disk. Writer thread only.
+     */
+    void sync() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Makes every appended record visible to readers. Writer (or recovering) thread only.
+     */
+    void publish() {
+        // Size first: a reader that sees an index entry then also sees a size covering its offset
+        size = writePosition;
+        for (long[] entry : pendingEntries) {
+            int n = count;
+            if (n == 0) {
+                firstSeq = entry[0];
+                firstId = entry[1];
+            }
+            if (n % indexInterval == 0) {
+                addIndexEntry(entry[0], entry[1], entry[2]);
+            }
+            lastSeq = entry[0];
+            lastId = entry[1];
+            lastTimestamp = entry[3];
+            count = n + 1;
+        }
+        pendingEntries.clear();
+    }
+
+    /**
+     * Drops appended but unpublished records. Writer thread only.
+     */
+    void rollback() throws IOException {
+        pendingEntries.clear();
+        writePosition = size;
+        if (channel != null) {
+            channel.truncate(size);
+        }
+    }
+
+    /**
+     * Stops appends to this segment; its records stay readable.
+     */
+    void seal() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        synchronized (this) {
+            long published = size;
+            if (published == 0) {
+                mapped = ByteBuffer.allocate(0);
+            } else {
+                // Mapped once, at its final size; the mapping stays valid even if a compaction later deletes the file
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, published);
+                }
+            }
+            sealed = true;
+            closeReadChannel(); // Readers still in it retry on the mapping
+        }
+    }
+
+    /**
+     * Closes the append channel without sealing (shutdown).
+     */
+    void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Error closing {}: {}", file, e.getMessage());
+            }
+            channel = null;
+        }
+        synchronized (this) {
+            closeReadChannel();
+        }
+    }
+
+    private void closeReadChannel() {
+        if (readChannel != null) {
+            try {
+                readChannel.close();
+            } catch (IOException e) {
+                log.warn("Error closing {}: {}", file, e.getMessage());
+            }
+            readChannel = null;
+        }
+    }
+
+    /**
+     * Pins the segment for a reader; every successful call must be paired with {@link #release}.
+     *
+     * @return false if the segment was retired and every reader already released it.
+     */
+    boolean retain() {
+        int n;
+        do {
+            n = refs.get();
+            if (n == 0) {
+                return false;
+            }
+        } while (!refs.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0 && deleteWhenReleased) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Recovery drops it at the next start: its records are already in the merged segment
+                log.warn("Could not delete retired segment {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops the segment list's reference after compaction replaced the segment. With
+     * {@code deleteFile} its file is deleted once no reader holds the segment any more.
+     */
+    void retire(boolean deleteFile) {
+        deleteWhenReleased = deleteFile;
+        release();
+    }
+
+    long writePosition() {
+        return writePosition;
+    }
+
+    /**
+     * Read-only view of the published bytes, positioned at 0.
+     */
+    ByteBuffer view() throws IOException {
+        return read(0, size);
+    }
+
+    /**
+     * The bytes from offset {@code from} to {@code to} (both within the published size), as a
+     * buffer positioned at 0. A sealed segment hands out a slice of its mapping; the active one,
+     * which grows with every commit, is read through a channel instead of being remapped.
+     */
+    ByteBuffer read(long from, long to) throws IOException {
+        int length = (int) (to - from);
+        for (int attempt = 0; ; attempt++) {
+            ByteBuffer map = mapped;
+            if (map != null) {
+                return map.slice((int) from, length);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            try {
+                FileChannel ch = readChannel();
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, from + buf.position()) < 0) {
+                        throw new EOFException("Unexpected end of " + file);
+                    }
+                }
+                return buf.flip();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // Sealed (or shut down) while reading: the mapping, or a reopened channel, serves the retry
+                if (attempt >= 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private synchronized FileChannel readChannel() throws IOException {
+        if (mapped != null) {
+            throw new ClosedChannelException(); // Sealed since the caller looked
+        }
+        if (readChannel == null || !readChannel.isOpen()) {
+            readChannel = FileChannel.open(file, StandardOpenOption.READ);
+        }
+        return readChannel;
+    }
+
+    /**
+     * Offset of the last indexed record with a seq at or below {@code seq} (0 if none).
+     */
+    long floorOffsetBySeq(long seq) {
+        return floorOffset(seq, 0);
+    }
+
+    /**
+     * Offset of the last indexed record with a message_id at or below {@code messageId} (0 if none).
+     */
+    long floorOffsetById(long messageId) {
+        return floorOffset(messageId, 1);
+    }
+
+    private long floorOffset(long key, int field) {
+        int entries = indexEntries;
+        long[] idx = index; // Read after the count: at least 'entries' entries long
+        int low = 0;
+        int high = entries - 1;
+        long offset = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (idx[mid * INDEX_STRIDE + field] <= key) {
+                offset = idx[mid * INDEX_STRIDE + 2];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Offsets of the indexed records, ascending: each starts a block of up to indexInterval records.
+     */
+    long[] blockOffsets() {
+        int entries = indexEntries;
+        long[] idx = index;
+        long[] offsets = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            offsets[i] = idx[i * INDEX_STRIDE + 2];
+        }
+        return offsets;
+    }
+
+    /**
+     * message_id of the first record of each block, matching {@link #blockOffsets}.
+     */
+    long[] blockFirstIds() {
+        int entries = indexEntries;
+        long[] idx = index;
+        long[] ids = new long[entries];
+        for (int i = 0; i < entries; i++) {
+            ids[i] = idx[i * INDEX_STRIDE + 1];
+        }
+        return ids;
+    }
+
+    private void addIndexEntry(long seq, long messageId, long offset) {
+        int entries = indexEntries;
+        long[] idx = index;
+        if ((entries + 1) * INDEX_STRIDE > idx.length) {
+            long[] grown = new long[idx.length * 2];
+            System.arraycopy(idx, 0, grown, 0, entries * INDEX_STRIDE);
+            idx = grown;
+        }
+        idx[entries * INDEX_STRIDE] = seq;
+        idx[entries * INDEX_STRIDE + 1] = messageId;
+        idx[entries * INDEX_STRIDE + 2] = offset;
+        index = idx; // Publish the array before the count
+        indexEntries = entries + 1;
+    }
+
+    private void addPending(long seq, long messageId, long offset, long timestamp) {
+        pendingEntries.add(new long[] {seq, messageId, offset, timestamp});
+    }
+
+    Path file() {
+        return file;
+    }
+
+    long baseSeq() {
+        return baseSeq;
+    }
+
+    long size() {
+        return size;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long firstSeq() {
+        return firstSeq;
+    }
+
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    long firstId() {
+        return firstId;
+    }
+
+    long lastId() {
+        return lastId;
+    }
+
+    long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    // --- Record encoding ---
+
+    static ByteBuffer encode(Message message) {
+        byte[] sender = message.getSenderChatid().getBytes(StandardCharsets.UTF_8);
+        byte[] content = message.getContent().getBytes(StandardCharsets.UTF_8);
+        if (sender.length > MAX_SENDER_BYTES) {
+            throw new IllegalArgumentException("Sender id too long: " + sender.length + " bytes");
+        }
+        int payloadLength = 8 + 8 + 8 + 2 + sender.length + 4 + content.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payloadLength);
+        record.putInt(payloadLength);
+        record.putInt(0); // CRC, filled in below
+        record.putLong(message.getMessageId());
+        record.putLong(message.getSeq());
+        record.putLong(message.getTimestamp().getTime());
+        record.putShort((short) sender.length);
+        record.put(sender);
+        record.putInt(content.length);
+        record.put(content);
+        record.putInt(4, crc32c(record.slice(HEADER_BYTES, payloadLength)));
+        return record.flip();
+    }
+
+    /**
+     * Decodes the record at the buffer's position and advances past it.
+     */
+    static Message decode(String roomId, ByteBuffer buf) {
+        int length = buf.getInt();
+        buf.getInt(); // CRC, checked at recovery
+        int end = buf.position() + length;
+        long messageId = buf.getLong();
+        long seq = buf.getLong();
+        long timestamp = buf.getLong();
+        byte[] sender = new byte[buf.getShort() & 0xFFFF];
+        buf.get(sender);
+        byte[] content = new byte[buf.getInt()];
+        buf.get(content);
+        buf.position(end);
+        return new Message(messageId, roomId, new String(sender, StandardCharsets.UTF_8),
+                new String(content, StandardCharsets.UTF_8), new Timestamp(timestamp), seq);
+    }
+
+    private static int crc32c(ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+}
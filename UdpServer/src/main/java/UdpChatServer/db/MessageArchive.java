@@ -0,0 +1,374 @@
+package UdpChatServer.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.model.Message;
+
+/**
+ * Cold storage for messages expired from the messages table by retention.
+ *
+ * Every room has a directory of archive segments holding compressed blocks: each block is one
+ * retention batch of consecutive messages, encoded like {@link LogSegment} records and deflated
+ * as a whole. A per-room index file lists every block with its message_id and seq range and its
+ * position, so a page of archived history inflates only the blocks it needs.
+ *
+ * A block is written and forced to disk before its index entry, and the index entry before the
+ * messages are deleted from the table: a crash leaves at worst an unindexed block (never read;
+ * the next block is written after it) or a batch archived but not yet deleted (skipped on the
+ * next run by its message_id).
+ */
+public class MessageArchive {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageArchive.class);
+    private static final HexFormat HEX = HexFormat.of();
+    private static final String INDEX_FILE = "archive.idx";
+    private static final String SEGMENT_SUFFIX = ".arc";
+    // firstId, lastId, firstSeq, lastSeq, segmentId, offset (longs), length, count (ints)
+    private static final int INDEX_ENTRY_BYTES = 6 * 8 + 2 * 4;
+    private static final int BLOCK_HEADER_BYTES = 12; // compressed length, CRC32C, raw length
+
+    private final Path baseDir;
+    private final long segmentBytes;
+    private final Map<String, RoomArchive> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * @param segmentBytes Size past which a room's next block starts a new segment file.
+     */
+    public MessageArchive(Path baseDir, long segmentBytes) throws IOException {
+        this.baseDir = baseDir;
+        this.segmentBytes = Math.max(1, segmentBytes);
+        Files.createDirectories(baseDir);
+    }
+
+    /**
+     * Appends messages of one room, ascending by message_id, as one compressed block, and
+     * forces it to disk. Messages at or below the room's last archived message_id (a batch
+     * archived before a crash but not deleted) are skipped.
+     *
+     * @return The message_id of the last archived message of the room after the append.
+     */
+    public long append(String roomId, List<Message> messages) throws IOException {
+        RoomArchive room = room(roomId);
+        synchronized (room) {
+            room.load();
+            List<Message> fresh = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                if (message.getMessageId() > room.lastId()) {
+                    fresh.add(message);
+                }
+            }
+            if (!fresh.isEmpty()) {
+                room.appendBlock(fresh);
+            }
+            return room.lastId();
+        }
+    }
+
+    /**
+     * The largest archived message_id of a room, or 0 if nothing is archived.
+     */
+    public long lastArchivedId(String roomId) {
+        RoomArchive room = rooms.get(roomId);
+        if (room == null && !Files.isDirectory(roomDir(roomId))) {
+            return 0;
+        }
+        room = room(roomId);
+        synchronized (room) {
+            try {
+                room.load();
+            } catch (IOException e) {
+                log.error("Error reading the archive index of room '{}': {}", roomId, e.getMessage(), e);
+                return 0;
+            }
+            return room.lastId();
+        }
+    }
+
+    /**
+     * Reads one keyset page of a room's archived history; same contract as
+     * {@link MessageStore#streamMessagesPage}.
+     */
+    public boolean streamMessagesPage(String roomId, Long cursorId, boolean newestFirst, int pageSize, MessageStore.MessageRowHandler handler) {
+        if (pageSize <= 0 || lastArchivedId(roomId) == 0) {
+            return false;
+        }
+        RoomArchive room = room(roomId);
+        List<IndexEntry> blocks;
+        synchronized (room) {
+            blocks = new ArrayList<>(room.blocks);
+        }
+        int delivered = 0;
+        try {
+            for (int b = 0; b < blocks.size(); b++) {
+                IndexEntry block = blocks.get(newestFirst ? blocks.size() - 1 - b : b);
+                if (cursorId != null && (newestFirst ? block.firstId >= cursorId : block.lastId <= cursorId)) {
+                    continue;
+                }
+                List<Message> messages = room.readBlock(block);
+                for (int i = 0; i < messages.size(); i++) {
+                    Message message = messages.get(newestFirst ? messages.size() - 1 - i : i);
+                    if (cursorId != null && (newestFirst ? message.getMessageId() >= cursorId : message.getMessageId() <= cursorId)) {
+                        continue;
+                    }
+                    if (delivered == pageSize || !handler.onMessage(message)) {
+                        return true;
+                    }
+                    delivered++;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Error reading archived history of room '{}' (cursor {}, newestFirst {}): {}", roomId, cursorId, newestFirst, e.getMessage(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Room ids with an archive directory, for removing the archives of deleted rooms.
+     */
+    public List<String> archivedRoomIds() throws IOException {
+        List<String> roomIds = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, Files::isDirectory)) {
+            for (Path dir : stream) {
+                try {
+                    roomIds.add(new String(HEX.parseHex(dir.getFileName().toString()), StandardCharsets.UTF_8));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring unexpected directory {} in message archive.", dir);
+                }
+            }
+        }
+        return roomIds;
+    }
+
+    /**
+     * Deletes the archive of a room.
+     */
+    public void deleteRoom(String roomId) throws IOException {
+        RoomArchive room = rooms.remove(roomId);
+        Path dir = roomDir(roomId);
+        if (room != null) {
+            synchronized (room) {
+                room.blocks.clear();
+            }
+        }
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            log.info("Deleted message archive of room '{}'.", roomId);
+        }
+    }
+
+    private RoomArchive room(String roomId) {
+        return rooms.computeIfAbsent(roomId, id -> new RoomArchive(id, roomDir(id)));
+    }
+
+    private Path roomDir(String roomId) {
+        return baseDir.resolve(HEX.formatHex(roomId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static final class IndexEntry {
+        final long firstId, lastId, firstSeq, lastSeq, segmentId, offset;
+        final int length, count;
+
+        IndexEntry(long firstId, long lastId, long firstSeq, long lastSeq, long segmentId, long offset, int length, int count) {
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+        }
+    }
+
+    /**
+     * The block index of one room, loaded on first use. Guarded by its own monitor; reads of
+     * blocks already indexed need no lock (blocks are never rewritten).
+     */
+    private final class RoomArchive {
+        private final String roomId;
+        private final Path dir;
+        final List<IndexEntry> blocks = new ArrayList<>();
+        private boolean loaded;
+
+        RoomArchive(String roomId, Path dir) {
+            this.roomId = roomId;
+            this.dir = dir;
+        }
+
+        long lastId() {
+            return blocks.isEmpty() ? 0 : blocks.get(blocks.size() - 1).lastId;
+        }
+
+        void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            byte[] index;
+            try {
+                index = Files.readAllBytes(dir.resolve(INDEX_FILE));
+            } catch (NoSuchFileException e) {
+                loaded = true;
+                return;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(index);
+            while (buf.remaining() >= INDEX_ENTRY_BYTES) { // A torn last entry (crash mid-write) is ignored
+                blocks.add(new IndexEntry(buf.getLong(), buf.getLong(), buf.getLong(), buf.getLong(),
+                        buf.getLong(), buf.getLong(), buf.getInt(), buf.getInt()));
+            }
+            if (buf.remaining() > 0) {
+                log.warn("Ignoring a torn entry at the end of the archive index of room '{}'.", roomId);
+                try (FileChannel channel = FileChannel.open(dir.resolve(INDEX_FILE), StandardOpenOption.WRITE)) {
+                    channel.truncate(index.length - buf.remaining());
+                }
+            }
+            loaded = true;
+        }
+
+        void appendBlock(List<Message> messages) throws IOException {
+            Files.createDirectories(dir);
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            for (Message message : messages) {
+                ByteBuffer record = LogSegment.encode(message);
+                raw.write(record.array(), record.arrayOffset(), record.remaining());
+            }
+            byte[] rawBytes = raw.toByteArray();
+            byte[] compressed = deflate(rawBytes);
+            CRC32C crc = new CRC32C();
+            crc.update(compressed);
+
+            IndexEntry last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+            long segmentId = last != null ? last.segmentId : messages.get(0).getMessageId();
+            Path segment = dir.resolve(segmentName(segmentId));
+            long offset = Files.exists(segment) ? Files.size(segment) : 0;
+            if (last != null && offset >= segmentBytes) {
+                segmentId = messages.get(0).getMessageId();
+                segment = dir.resolve(segmentName(segmentId));
+                offset = Files.exists(segment) ? Files.size(segment) : 0;
+            }
+
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER_BYTES + compressed.length);
+            block.putInt(compressed.length).putInt((int) crc.getValue()).putInt(rawBytes.length).put(compressed).flip();
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.position(offset);
+                while (block.hasRemaining()) {
+                    channel.write(block);
+                }
+                channel.force(true);
+            }
+
+            Message first = messages.get(0);
+            Message lastMessage = messages.get(messages.size() - 1);
+            IndexEntry entry = new IndexEntry(first.getMessageId(), lastMessage.getMessageId(), first.getSeq(), lastMessage.getSeq(),
+                    segmentId, offset, BLOCK_HEADER_BYTES + compressed.length, messages.size());
+            ByteBuffer indexRecord = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+            indexRecord.putLong(entry.firstId).putLong(entry.lastId).putLong(entry.firstSeq).putLong(entry.lastSeq)
+                    .putLong(entry.segmentId).putLong(entry.offset).putInt(entry.length).putInt(entry.count).flip();
+            try (FileChannel channel = FileChannel.open(dir.resolve(INDEX_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (indexRecord.hasRemaining()) {
+                    channel.write(indexRecord);
+                }
+                channel.force(true);
+            }
+            blocks.add(entry);
+            log.debug("Archived {} messages of room '{}' ({} -> {} bytes).", messages.size(), roomId, rawBytes.length, compressed.length);
+        }
+
+        List<Message> readBlock(IndexEntry entry) throws IOException {
+            ByteBuffer block = ByteBuffer.allocate(entry.length);
+            try (FileChannel channel = FileChannel.open(dir.resolve(segmentName(entry.segmentId)), StandardOpenOption.READ)) {
+                while (block.hasRemaining()) {
+                    if (channel.read(block, entry.offset + block.position()) < 0) {
+                        throw new IOException("Archive block of room '" + roomId + "' truncated at offset " + entry.offset);
+                    }
+                }
+            }
+            block.flip();
+            int compressedLength = block.getInt();
+            int checksum = block.getInt();
+            byte[] rawBytes = new byte[block.getInt()];
+            byte[] compressed = new byte[compressedLength];
+            block.get(compressed);
+            CRC32C crc = new CRC32C();
+            crc.update(compressed);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Corrupt archive block of room '" + roomId + "' at offset " + entry.offset);
+            }
+            inflate(compressed, rawBytes);
+            ByteBuffer records = ByteBuffer.wrap(rawBytes);
+            List<Message> messages = new ArrayList<>(entry.count);
+            while (records.hasRemaining()) {
+                messages.add(LogSegment.decode(roomId, records));
+            }
+            return messages;
+        }
+    }
+
+    private static String segmentName(long segmentId) {
+        return String.format("%020d%s", segmentId, SEGMENT_SUFFIX);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 3));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void inflate(byte[] compressed, byte[] raw) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != raw.length) {
+                throw new IOException("Archive block inflated to " + n + " bytes, expected " + raw.length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt archive block: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -4,92 +4,236 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import UdpChatServer.model.Constants;
 import UdpChatServer.model.Message;
 
 
 /**
- * Data Access Object for Message related operations.
+ * Data Access Object for Message related operations: the JDBC {@link MessageStore}, keeping
+ * messages in the messages table.
  */
-public class MessageDAO {
+public class MessageDAO implements MessageStore {
 
     private static final Logger log = LoggerFactory.getLogger(MessageDAO.class);
 
+    private static final String MESSAGE_COLUMNS = "message_id, room_id, sender_chatid, content, timestamp, seq";
+    private static final String INSERT_SQL = "INSERT INTO messages (room_id, sender_chatid, content, timestamp, seq) VALUES (?, ?, ?, ?, ?)";
+
+    private final RoomSequencer sequencer = new RoomSequencer(); // Only used on the writer thread
+    private final MessageWriteBehind writeBehind;
+
+    public MessageDAO() {
+        this(Constants.DEFAULT_WRITE_BEHIND_MAX_BATCH_SIZE, Constants.DEFAULT_WRITE_BEHIND_MAX_LINGER_MS);
+    }
+
+    /**
+     * @param maxBatchSize Maximum number of messages persisted in one group commit.
+     * @param maxLingerMs How long the writer waits for more messages before committing a partial batch.
+     */
+    public MessageDAO(int maxBatchSize, long maxLingerMs) {
+        this.writeBehind = new MessageWriteBehind(this::insertBatch, maxBatchSize, maxLingerMs);
+    }
+
     /**
-     * Saves a message to the database.
+     * Queues a message for the write-behind writer, which assigns the next seq of its room and
+     * persists it together with other queued messages in one batched INSERT and commit.
      *
      * @param message The Message object containing roomId, senderChatid, and content.
-     *                The timestamp from the object will be used if provided, otherwise DB default.
-     * @return true if the message was saved successfully, false otherwise.
+     * @return A future completed once the message is committed, with the saved message (message_id
+     *         and seq filled in), or with null if the message could not be saved.
      */
-    public boolean saveMessage(Message message) {
+    @Override
+    public CompletableFuture<Message> saveMessageAsync(Message message) {
         if (message == null || message.getRoomId() == null || message.getSenderChatid() == null || message.getContent() == null) {
             log.warn("Attempted to save invalid message object: {}", message);
-            return false;
+            return CompletableFuture.completedFuture(null);
         }
+        if (message.getTimestamp() == null) {
+            message = new Message(null, message.getRoomId(), message.getSenderChatid(), message.getContent(),
+                    new Timestamp(System.currentTimeMillis()));
+        }
+        return writeBehind.enqueue(message);
+    }
 
-        String sql = "INSERT INTO messages (room_id, sender_chatid, content, timestamp) VALUES (?, ?, ?, ?)";
-        try (Connection conn = DatabaseConnectionManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    /**
+     * Stops the write-behind writer after committing every queued message.
+     * Should be called on shutdown, before the connection pool is closed.
+     */
+    @Override
+    public void close() {
+        writeBehind.close();
+    }
+
+    /**
+     * Persists a batch as one multi-row INSERT (rewriteBatchedStatements) in a single transaction.
+     * If the group commit fails, the messages are retried one by one so a single bad message (e.g.
+     * a room deleted meanwhile) doesn't fail the others. Called on the writer thread only.
+     *
+     * @return The saved messages in batch order, with null for messages that could not be saved.
+     */
+    List<Message> insertBatch(List<Message> batch) {
+        List<Message> saved = null;
+        try (Connection conn = DatabaseConnectionManager.getConnection()) {
+            saved = groupCommit(conn, batch);
+            if (saved == null) {
+                saved = new ArrayList<>(batch.size());
+                for (Message message : batch) {
+                    saved.add(insertOne(conn, message));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("SQL error saving a batch of {} messages: {}", batch.size(), e.getMessage(), e);
+        }
+        return saved != null ? saved : new ArrayList<>(Collections.nCopies(batch.size(), (Message) null));
+    }
 
-            pstmt.setString(1, message.getRoomId());
-            pstmt.setString(2, message.getSenderChatid());
-            pstmt.setString(3, message.getContent());
-            // Use the timestamp from the message object if available, otherwise let DB handle default
-            pstmt.setTimestamp(4, message.getTimestamp() != null ? message.getTimestamp() : new Timestamp(System.currentTimeMillis()));
+    /**
+     * One multi-row INSERT and commit for the whole batch.
+     *
+     * @return The saved messages in batch order, or null if the batch was rolled back.
+     */
+    private List<Message> groupCommit(Connection conn, List<Message> batch) throws SQLException {
+        List<Message> saved = new ArrayList<>(batch.size());
+        Map<String, Long> nextSeqByRoom = new HashMap<>();
+        conn.setAutoCommit(false);
+        try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+            for (Message message : batch) {
+                Long seq = nextSeqByRoom.get(message.getRoomId());
+                if (seq == null) {
+                    seq = sequencer.counterFor(message.getRoomId()).nextSeq(conn);
+                }
+                nextSeqByRoom.put(message.getRoomId(), seq + 1);
+                bindInsert(pstmt, message, seq);
+                pstmt.addBatch();
+                saved.add(new Message(null, message.getRoomId(), message.getSenderChatid(), message.getContent(), message.getTimestamp(), seq));
+            }
+            pstmt.executeBatch();
+            List<Long> ids = new ArrayList<>(batch.size());
+            try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                while (keys.next()) {
+                    ids.add(keys.getLong(1));
+                }
+            }
+            conn.commit();
 
+            for (int i = 0; i < saved.size(); i++) {
+                Message message = saved.get(i);
+                Long messageId = i < ids.size() ? ids.get(i) : null;
+                saved.set(i, new Message(messageId, message.getRoomId(), message.getSenderChatid(), message.getContent(), message.getTimestamp(), message.getSeq()));
+            }
+            for (Map.Entry<String, Long> entry : nextSeqByRoom.entrySet()) {
+                sequencer.counterFor(entry.getKey()).committed(entry.getValue() - 1);
+            }
+            log.info("Group commit saved {} messages in {} rooms.", saved.size(), nextSeqByRoom.size());
+            return saved;
+        } catch (SQLException e) {
+            log.warn("Group commit of {} messages failed ({}). Saving them one by one.", batch.size(), e.getMessage());
+            conn.rollback();
+            for (String roomId : nextSeqByRoom.keySet()) {
+                sequencer.counterFor(roomId).invalidate();
+            }
+            return null;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
 
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows > 0) {
-                log.info("Message saved successfully from '{}' in room '{}'.", message.getSenderChatid(), message.getRoomId());
-                return true;
-            } else {
-                log.warn("Failed to save message from '{}' in room '{}'. No rows affected.", message.getSenderChatid(), message.getRoomId());
-                return false;
+    /**
+     * Saves one message with autocommit, assigning the next seq of its room. A duplicate
+     * (room_id, seq) reloads the room's counter and retries once.
+     *
+     * @return The saved message, or null if it could not be saved.
+     */
+    private Message insertOne(Connection conn, Message message) {
+        RoomSequencer.RoomCounter counter = sequencer.counterFor(message.getRoomId());
+        try {
+            for (int attempt = 1; ; attempt++) {
+                long seq = counter.nextSeq(conn);
+                try (PreparedStatement pstmt = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                    bindInsert(pstmt, message, seq);
+                    int affectedRows = pstmt.executeUpdate();
+                    if (affectedRows == 0) {
+                        log.warn("Failed to save message from '{}' in room '{}'. No rows affected.", message.getSenderChatid(), message.getRoomId());
+                        return null;
+                    }
+                    counter.committed(seq);
+                    Long messageId = null;
+                    try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                        if (keys.next()) {
+                            messageId = keys.getLong(1);
+                        }
+                    }
+                    if (messageId == null) {
+                        log.warn("Message from '{}' in room '{}' saved but no generated key was returned.", message.getSenderChatid(), message.getRoomId());
+                    } else {
+                        log.info("Message {} (seq {}) saved successfully from '{}' in room '{}'.", messageId, seq, message.getSenderChatid(), message.getRoomId());
+                    }
+                    return new Message(messageId, message.getRoomId(), message.getSenderChatid(), message.getContent(), message.getTimestamp(), seq);
+                } catch (SQLException e) {
+                    if (DatabaseConnectionManager.getDialect().isDuplicateKey(e) && attempt == 1) {
+                        // Duplicate (room_id, seq): another writer used this seq, resync the counter once
+                        log.warn("Seq {} already taken in room '{}'. Reloading the room's sequence counter.", seq, message.getRoomId());
+                        counter.invalidate();
+                        continue;
+                    }
+                    throw e;
+                }
             }
         } catch (SQLException e) {
              // Check for foreign key constraint violation (e.g., room or sender doesn't exist)
-            if ("23000".equals(e.getSQLState())) {
+            if (DatabaseConnectionManager.getDialect().isForeignKeyViolation(e)) {
                  log.warn("Failed to save message: Room '{}' or Sender '{}' does not exist.", message.getRoomId(), message.getSenderChatid());
             } else {
                 log.error("SQL error saving message from '{}' in room '{}': {}", message.getSenderChatid(), message.getRoomId(), e.getMessage(), e);
             }
-            return false;
-        } catch (Exception e) {
-            log.error("Unexpected error saving message from '{}' in room '{}': {}", message.getSenderChatid(), message.getRoomId(), e.getMessage(), e);
-            return false;
+            counter.invalidate();
+            return null;
         }
     }
 
+    private static void bindInsert(PreparedStatement pstmt, Message message, long seq) throws SQLException {
+        pstmt.setString(1, message.getRoomId());
+        pstmt.setString(2, message.getSenderChatid());
+        pstmt.setString(3, message.getContent());
+        pstmt.setTimestamp(4, message.getTimestamp());
+        pstmt.setLong(5, seq);
+    }
+
     /**
-     * Retrieves a list of messages for a specific room, ordered by timestamp.
+     * Retrieves a list of messages for a specific room, ordered by seq. Read from the primary:
+     * the recent-message cache installs the result as the room's tail and serves it until the
+     * next append, so a lagging replica's tail would stay stale.
      *
      * @param roomId The ID of the room.
-     * @param limit  The maximum number of messages to retrieve (e.g., for recent history). Use 0 or negative for no limit.
+     * @param limit  The maximum number of most recent messages to retrieve. Use 0 or negative for no limit.
      * @return A List of Message objects, or an empty list if none are found or on error.
      */
+    @Override
     public List<Message> getMessagesByRoom(String roomId, int limit) {
         if (roomId == null) return Collections.emptyList();
 
         List<Message> messages = new ArrayList<>();
-        // Order by timestamp ascending (older messages first)
-        String sql = "SELECT message_id, room_id, sender_chatid, content, timestamp FROM messages WHERE room_id = ? ORDER BY timestamp ASC";
+        // Order by seq ascending (older messages first)
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE room_id = ? ORDER BY seq ASC";
         if (limit > 0) {
-            // If a limit is provided, adjust the query (syntax might vary slightly by DB)
-            // For retrieving the *latest* N messages, you'd ORDER BY timestamp DESC LIMIT N, then reverse the list in Java.
-            // This example gets the *oldest* N messages. Adjust if you need latest.
-             sql = "SELECT message_id, room_id, sender_chatid, content, timestamp FROM messages WHERE room_id = ? ORDER BY timestamp ASC LIMIT ?";
+            // The *latest* N messages: read newest first, then reverse into chronological order below
+            sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE room_id = ? ORDER BY seq DESC LIMIT ?";
         }
 
 
-        try (Connection conn = DatabaseConnectionManager.getConnection();
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.PRIMARY);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, roomId);
@@ -99,16 +243,13 @@ public class MessageDAO {
 
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    Message message = new Message(
-                            rs.getLong("message_id"), // Autoboxing handles long -> Long
-                            rs.getString("room_id"),
-                            rs.getString("sender_chatid"),
-                            rs.getString("content"),
-                            rs.getTimestamp("timestamp")
-                    );
+                    Message message = mapMessage(rs);
                     messages.add(message);
                 }
             }
+            if (limit > 0) {
+                Collections.reverse(messages);
+            }
         } catch (SQLException e) {
             log.error("SQL error retrieving messages for room '{}': {}", roomId, e.getMessage(), e);
             // Return empty list on error
@@ -118,17 +259,6 @@ public class MessageDAO {
         return messages;
     }
 
-     /**
-     * Retrieves all messages for a specific room, ordered by timestamp.
-     * Convenience method calling getMessagesByRoom with no limit.
-     *
-     * @param roomId The ID of the room.
-     * @return A List of Message objects, or an empty list if none are found or on error.
-     */
-    public List<Message> getAllMessagesByRoom(String roomId) {
-        return getMessagesByRoom(roomId, 0); // 0 or negative means no limit
-    }
-
     /**
      * Lấy tất cả tin nhắn của một room từ một thời điểm cụ thể đến hiện tại.
      *
@@ -136,16 +266,17 @@ public class MessageDAO {
      * @param fromTime Timestamp bắt đầu lấy tin nhắn.
      * @return Danh sách tin nhắn, hoặc danh sách rỗng nếu không tìm thấy hoặc có lỗi.
      */
+    @Override
     public List<Message> getMessagesFromTime(String roomId, Timestamp fromTime) {
         if (roomId == null || fromTime == null) return Collections.emptyList();
 
         List<Message> messages = new ArrayList<>();
-        String sql = "SELECT message_id, room_id, sender_chatid, content, timestamp " +
+        String sql = "SELECT " + MESSAGE_COLUMNS + " " +
                     "FROM messages " +
                     "WHERE room_id = ? AND timestamp >= ? " +
-                    "ORDER BY timestamp ASC";
+                    "ORDER BY seq ASC";
 
-        try (Connection conn = DatabaseConnectionManager.getConnection();
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.BOUNDED_STALENESS);
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
 
             pstmt.setString(1, roomId);
@@ -153,13 +284,7 @@ public class MessageDAO {
 
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    Message message = new Message(
-                            rs.getLong("message_id"), // Autoboxing handles long -> Long
-                            rs.getString("room_id"),
-                            rs.getString("sender_chatid"),
-                            rs.getString("content"),
-                        rs.getTimestamp("timestamp")
-                    );
+                    Message message = mapMessage(rs);
                     messages.add(message);
                 }
             }
@@ -172,4 +297,242 @@ public class MessageDAO {
         }
         return messages;
     }
+
+    /**
+     * Retrieves up to {@code limit} messages of a room with a seq greater than {@code afterSeq},
+     * oldest first. Served by the (room_id, seq) unique index; used by clients syncing exactly the
+     * messages they are missing. Read from the primary: clients sync right after a room_update
+     * hint for a just-committed message, which a lagging replica may not have yet.
+     *
+     * @param roomId The ID of the room.
+     * @param afterSeq Only messages with a larger seq are returned (0 for the start of the room).
+     * @param limit The maximum number of messages to return.
+     * @return A List of Message objects, or an empty list if none are found or on error.
+     */
+    @Override
+    public List<Message> getMessagesAfterSeq(String roomId, long afterSeq, int limit) {
+        if (roomId == null || limit <= 0) return Collections.emptyList();
+
+        List<Message> messages = new ArrayList<>();
+        String sql = "SELECT " + MESSAGE_COLUMNS + " " +
+                     "FROM messages " +
+                     "WHERE room_id = ? AND seq > ? " +
+                     "ORDER BY seq ASC LIMIT ?";
+
+        try (Connection conn = DatabaseConnectionManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, roomId);
+            pstmt.setLong(2, afterSeq);
+            pstmt.setInt(3, limit);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(mapMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("SQL error retrieving messages after seq {} for room '{}': {}", afterSeq, roomId, e.getMessage(), e);
+        } catch (Exception e) {
+            log.error("Unexpected error retrieving messages after seq {} for room '{}': {}", afterSeq, roomId, e.getMessage(), e);
+        }
+        return messages;
+    }
+
+    /**
+     * Reads one keyset page of a room's history, handing each row to {@code handler} as it is read
+     * instead of collecting the page into a list. Served by the (room_id, message_id) index, so the
+     * cost depends on the page size, not on how deep in the history the page is.
+     *
+     * @param roomId The ID of the room.
+     * @param cursorId Exclusive message_id bound: older messages than this when {@code newestFirst},
+     *                 newer ones otherwise. Null starts at the newest (or oldest) message.
+     * @param newestFirst true to page backward (message_id descending), false to page forward.
+     * @param pageSize Maximum number of rows handed to the handler.
+     * @param handler Receives the rows in page order; may stop early.
+     * @return true if more messages exist beyond this page in the same direction.
+     */
+    @Override
+    public boolean streamMessagesPage(String roomId, Long cursorId, boolean newestFirst, int pageSize, MessageRowHandler handler) {
+        if (roomId == null || pageSize <= 0) return false;
+
+        StringBuilder sql = new StringBuilder("SELECT ").append(MESSAGE_COLUMNS).append(" FROM messages WHERE room_id = ?");
+        if (cursorId != null) {
+            sql.append(newestFirst ? " AND message_id < ?" : " AND message_id > ?");
+        }
+        sql.append(newestFirst ? " ORDER BY message_id DESC" : " ORDER BY message_id ASC");
+        sql.append(" LIMIT ?"); // One extra row tells whether another page follows
+
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.BOUNDED_STALENESS);
+             PreparedStatement pstmt = conn.prepareStatement(sql.toString())) {
+
+            int index = 1;
+            pstmt.setString(index++, roomId);
+            if (cursorId != null) {
+                pstmt.setLong(index++, cursorId);
+            }
+            pstmt.setInt(index, pageSize + 1);
+
+            try (ResultSet rs = pstmt.executeQuery()) {
+                int delivered = 0;
+                while (rs.next()) {
+                    if (delivered == pageSize || !handler.onMessage(mapMessage(rs))) {
+                        return true;
+                    }
+                    delivered++;
+                }
+            }
+        } catch (SQLException e) {
+            log.error("SQL error reading history page of room '{}' (cursor {}, newestFirst {}): {}", roomId, cursorId, newestFirst, e.getMessage(), e);
+        } catch (Exception e) {
+            log.error("Unexpected error reading history page of room '{}' (cursor {}, newestFirst {}): {}", roomId, cursorId, newestFirst, e.getMessage(), e);
+        }
+        return false;
+    }
+
+    /**
+     * Reads the messages with one IN query on the primary key. Reads the primary: the ids come
+     * from the search index, which holds messages just committed that a lagging replica would
+     * silently leave out.
+     */
+    @Override
+    public List<Message> getMessagesByIds(String roomId, List<Long> messageIds) {
+        if (roomId == null || messageIds.isEmpty()) return Collections.emptyList();
+
+        String placeholders = String.join(", ", Collections.nCopies(messageIds.size(), "?"));
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE room_id = ? AND message_id IN (" + placeholders + ")";
+        Map<Long, Message> byId = new HashMap<>();
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.PRIMARY);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, roomId);
+            int index = 2;
+            for (Long messageId : messageIds) {
+                pstmt.setLong(index++, messageId);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    Message message = mapMessage(rs);
+                    byId.put(message.getMessageId(), message);
+                }
+            }
+        } catch (SQLException e) {
+            log.error("SQL error retrieving {} messages by id for room '{}': {}", messageIds.size(), roomId, e.getMessage(), e);
+            return Collections.emptyList();
+        }
+        List<Message> messages = new ArrayList<>(byId.size());
+        for (Long messageId : messageIds) {
+            Message message = byId.get(messageId);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Finds the message_id up to which a room's messages have expired: the newest message older
+     * than {@code maxAge}, or the newest one beyond the latest {@code maxMessages}, whichever is
+     * later. The room's newest message never expires, so its seq counter and summary survive.
+     * Read from the primary, like the rest of the retention pass.
+     *
+     * @param roomId The ID of the room.
+     * @param olderThan Messages with an earlier timestamp expire; null for no age limit.
+     * @param maxMessages Messages beyond the newest N expire; 0 or negative for no count limit.
+     * @return The expired message_id bound (inclusive), or 0 if nothing has expired or on error.
+     */
+    public long getRetentionCutoffId(String roomId, Timestamp olderThan, int maxMessages) {
+        if (roomId == null) return 0;
+        try (Connection conn = DatabaseConnectionManager.getConnection()) {
+            long cutoff = 0;
+            if (olderThan != null) {
+                try (PreparedStatement pstmt = conn.prepareStatement("SELECT MAX(message_id) FROM messages WHERE room_id = ? AND timestamp < ?")) {
+                    pstmt.setString(1, roomId);
+                    pstmt.setTimestamp(2, olderThan);
+                    cutoff = Math.max(cutoff, queryLong(pstmt));
+                }
+            }
+            if (maxMessages > 0) {
+                try (PreparedStatement pstmt = conn.prepareStatement("SELECT message_id FROM messages WHERE room_id = ? ORDER BY message_id DESC LIMIT 1 OFFSET ?")) {
+                    pstmt.setString(1, roomId);
+                    pstmt.setInt(2, maxMessages);
+                    cutoff = Math.max(cutoff, queryLong(pstmt));
+                }
+            }
+            if (cutoff == 0) {
+                return 0;
+            }
+            try (PreparedStatement pstmt = conn.prepareStatement("SELECT MAX(message_id) FROM messages WHERE room_id = ?")) {
+                pstmt.setString(1, roomId);
+                return Math.min(cutoff, queryLong(pstmt) - 1);
+            }
+        } catch (SQLException e) {
+            log.error("SQL error computing the retention cutoff of room '{}': {}", roomId, e.getMessage(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Retrieves up to {@code limit} of a room's oldest messages with a message_id of at most
+     * {@code upToId}, oldest first. Read from the primary: the batch is deleted right after.
+     *
+     * @return A List of Message objects, or an empty list if none are found or on error.
+     */
+    public List<Message> getOldestMessagesUpTo(String roomId, long upToId, int limit) {
+        if (roomId == null || limit <= 0) return Collections.emptyList();
+
+        List<Message> messages = new ArrayList<>();
+        String sql = "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE room_id = ? AND message_id <= ? ORDER BY message_id ASC LIMIT ?";
+        try (Connection conn = DatabaseConnectionManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, roomId);
+            pstmt.setLong(2, upToId);
+            pstmt.setInt(3, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(mapMessage(rs));
+                }
+            }
+        } catch (SQLException e) {
+            log.error("SQL error retrieving messages up to {} of room '{}': {}", upToId, roomId, e.getMessage(), e);
+            return Collections.emptyList();
+        }
+        return messages;
+    }
+
+    /**
+     * Deletes a room's messages with a message_id of at most {@code upToId}, in one statement.
+     * Callers keep the range to one retention batch so the delete holds its locks briefly.
+     *
+     * @return The number of deleted messages, or -1 on error.
+     */
+    public int deleteMessagesUpTo(String roomId, long upToId) {
+        if (roomId == null) return -1;
+        try (Connection conn = DatabaseConnectionManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement("DELETE FROM messages WHERE room_id = ? AND message_id <= ?")) {
+            pstmt.setString(1, roomId);
+            pstmt.setLong(2, upToId);
+            return pstmt.executeUpdate();
+        } catch (SQLException e) {
+            log.error("SQL error deleting messages up to {} of room '{}': {}", upToId, roomId, e.getMessage(), e);
+            return -1;
+        }
+    }
+
+    private static long queryLong(PreparedStatement pstmt) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0; // NULL (no rows) reads as 0
+        }
+    }
+
+    private static Message mapMessage(ResultSet rs) throws SQLException {
+        return new Message(
+                rs.getLong("message_id"),
+                rs.getString("room_id"),
+                rs.getString("sender_chatid"),
+                rs.getString("content"),
+                rs.getTimestamp("timestamp"),
+                rs.getLong("seq")
+        );
+    }
 }
@@ -0,0 +1,140 @@
+package UdpChatServer.db;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import UdpChatServer.model.Message;
+import UdpChatServer.model.RoomSummary;
+
+/**
+ * Persistence of chat messages.
+ *
+ * Implementations assign each saved message a message_id and the next seq of its room, in
+ * the same order (within a room, a larger seq always has a larger message_id), and make a
+ * message visible to readers only once it is durable. Saves are asynchronous so callers can
+ * share a group commit.
+ *
+ * {@link MessageDAO} stores messages in the messages table; {@link SegmentedLogMessageStore}
+ * in per-room append-only log files, for deployments without a database server for messages.
+ */
+public interface MessageStore {
+
+    /**
+     * Queues a message to be saved with the next seq of its room.
+     *
+     * @param message The Message object containing roomId, senderChatid, and content.
+     *                The timestamp from the object will be used if provided, otherwise the current time.
+     * @return A future completed once the message is durable, with the saved message (message_id
+     *         and seq filled in), or with null if the message could not be saved.
+     */
+    CompletableFuture<Message> saveMessageAsync(Message message);
+
+    /**
+     * Saves a message, waiting until it is durable.
+     *
+     * @return The saved message with its message_id and seq, or null if it could not be saved.
+     */
+    default Message saveMessageAndGet(Message message) {
+        return saveMessageAsync(message).join();
+    }
+
+    /**
+     * Saves a message, waiting until it is durable.
+     *
+     * @return true if the message was saved successfully, false otherwise.
+     */
+    default boolean saveMessage(Message message) {
+        return saveMessageAndGet(message) != null;
+    }
+
+    /**
+     * The most recent messages of a room, oldest first.
+     *
+     * @param limit The maximum number of most recent messages to retrieve. Use 0 or negative for no limit.
+     * @return A List of Message objects, or an empty list if none are found or on error.
+     */
+    List<Message> getMessagesByRoom(String roomId, int limit);
+
+    /**
+     * Every message of a room, oldest first.
+     */
+    default List<Message> getAllMessagesByRoom(String roomId) {
+        return getMessagesByRoom(roomId, 0);
+    }
+
+    /**
+     * The messages of a room sent at or after {@code fromTime}, oldest first.
+     */
+    List<Message> getMessagesFromTime(String roomId, Timestamp fromTime);
+
+    /**
+     * Up to {@code limit} messages of a room with a seq greater than {@code afterSeq}, oldest first.
+     */
+    List<Message> getMessagesAfterSeq(String roomId, long afterSeq, int limit);
+
+    /**
+     * Reads one keyset page of a room's history, handing each message to {@code handler} as it
+     * is read.
+     *
+     * @param cursorId Exclusive message_id bound: older messages than this when {@code newestFirst},
+     *                 newer ones otherwise. Null starts at the newest (or oldest) message.
+     * @param newestFirst true to page backward (message_id descending), false to page forward.
+     * @param pageSize Maximum number of messages handed to the handler.
+     * @param handler Receives the messages in page order; may stop early.
+     * @return true if more messages exist beyond this page in the same direction.
+     */
+    boolean streamMessagesPage(String roomId, Long cursorId, boolean newestFirst, int pageSize, MessageRowHandler handler);
+
+    /**
+     * The messages of a room with the given message_ids, in the order of {@code messageIds};
+     * ids that don't exist (anymore) are left out. By default each message is read as a
+     * one-message keyset page.
+     */
+    default List<Message> getMessagesByIds(String roomId, List<Long> messageIds) {
+        List<Message> messages = new ArrayList<>(messageIds.size());
+        for (long messageId : messageIds) {
+            streamMessagesPage(roomId, messageId + 1, true, 1, message -> {
+                if (message.getMessageId() == messageId) {
+                    messages.add(message);
+                }
+                return false;
+            });
+        }
+        return messages;
+    }
+
+    /**
+     * Fills in the latest message_id and seq of each room summary. Summaries read by RoomDAO
+     * already carry them when messages live in the same database, so by default they are
+     * returned as is.
+     */
+    default List<RoomSummary> withLatestMessages(List<RoomSummary> summaries) {
+        return summaries;
+    }
+
+    /**
+     * Drops the messages of a deleted room. The messages table cascades room deletion, so by
+     * default there is nothing to do.
+     */
+    default void deleteRoomMessages(String roomId) {
+    }
+
+    /**
+     * Stops accepting messages after making every queued message durable.
+     * Should be called on shutdown.
+     */
+    void close();
+
+    /**
+     * Receives the messages of a history page as they are read.
+     */
+    @FunctionalInterface
+    interface MessageRowHandler {
+        /**
+         * @return false to stop reading (the message is not part of the page), true to continue.
+         */
+        boolean onMessage(Message message);
+    }
+}
@@ -0,0 +1,171 @@
+package UdpChatServer.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.model.Message;
+
+/**
+ * Write-behind queue for chat messages with group commit.
+ *
+ * Request threads append messages and get a future back. A single writer thread takes the first
+ * queued message, keeps collecting until the batch holds {@code maxBatchSize} messages or
+ * {@code maxLingerMs} has passed, and persists the batch as one multi-row INSERT in one
+ * transaction (or one append and sync, for the log store). Every future of the batch completes
+ * after that commit, with the saved message (message_id and seq filled in), or with null if the
+ * message could not be saved.
+ *
+ * Being the only thread that inserts messages, the writer also owns the per-room seq counters.
+ */
+final class MessageWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageWriteBehind.class);
+    private static final long IDLE_POLL_MS = 100; // How often an idle writer re-checks for shutdown
+
+    private final BatchWriter batchWriter;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    MessageWriteBehind(BatchWriter batchWriter, int maxBatchSize, long maxLingerMs) {
+        this.batchWriter = batchWriter;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLingerMs));
+        this.writerThread = new Thread(this::runWriter, "Message-Writer-Thread");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        log.info("Message write-behind started (max batch size: {}, max linger: {} ms)", this.maxBatchSize, Math.max(0, maxLingerMs));
+    }
+
+    /**
+     * Queues a message for the next group commit.
+     *
+     * @return A future completed after the commit with the saved message, or null on failure.
+     */
+    CompletableFuture<Message> enqueue(Message message) {
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        if (!running) {
+            log.warn("Message write-behind is stopped. Dropping message from '{}' in room '{}'.", message.getSenderChatid(), message.getRoomId());
+            result.complete(null);
+            return result;
+        }
+        queue.add(new PendingWrite(message, result));
+        return result;
+    }
+
+    /**
+     * Stops accepting messages and waits for the writer to commit everything already queued.
+     */
+    void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+            if (writerThread.isAlive()) {
+                log.warn("Message writer did not finish within 10 seconds; {} messages still queued.", queue.size());
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for the message writer to finish.", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        List<PendingWrite> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - batch.size());
+
+                // Linger briefly so concurrent senders share the commit
+                long deadline = System.nanoTime() + maxLingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                log.warn("Message writer interrupted. Committing the current batch and stopping.");
+                writeBatch(batch);
+                running = false;
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        // Anything appended while stopping is failed rather than left hanging
+        List<PendingWrite> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        for (PendingWrite pending : leftovers) {
+            pending.result.complete(null);
+        }
+        log.info("Message writer stopped ({} queued messages not saved).", leftovers.size());
+    }
+
+    private void writeBatch(List<PendingWrite> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (PendingWrite pending : batch) {
+            messages.add(pending.message);
+        }
+        try {
+            List<Message> saved = batchWriter.write(messages);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result.complete(saved.get(i));
+            }
+        } catch (Exception e) {
+            log.error("Unexpected error writing a batch of {} messages: {}", batch.size(), e.getMessage(), e);
+            for (PendingWrite pending : batch) {
+                pending.result.complete(null); // No-op for futures already completed
+            }
+        }
+    }
+
+    /**
+     * Persists a batch on the writer thread.
+     */
+    @FunctionalInterface
+    interface BatchWriter {
+        /**
+         * @return The saved messages in batch order, with null for messages that could not be saved.
+         */
+        List<Message> write(List<Message> batch);
+    }
+
+    private static final class PendingWrite {
+        private final Message message;
+        private final CompletableFuture<Message> result;
+
+        private PendingWrite(Message message, CompletableFuture<Message> result) {
+            this.message = message;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package UdpChatServer.db;
+
+/**
+ * Which pool a DAO read may use, chosen per method by what the caller can tolerate.
+ * See {@link DatabaseConnectionManager#getReadConnection}.
+ */
+public enum ReadConsistency {
+
+    /**
+     * The write pool: sees every committed write. For reads that decide access (membership,
+     * ownership, passwords) or seed counters.
+     */
+    PRIMARY,
+
+    /**
+     * The read pool while its replication lag is within db.read.maxStalenessMs, otherwise the
+     * write pool. For history and list reads, where missing the last moment of writes is fine.
+     */
+    BOUNDED_STALENESS
+}
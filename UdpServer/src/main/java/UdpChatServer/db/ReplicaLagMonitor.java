@@ -0,0 +1,89 @@
+package UdpChatServer.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how far the read pool's database lags behind the write pool's.
+ *
+ * Every interval the monitor writes the current time into replication_heartbeat through the
+ * write pool and reads it back through the read pool: the difference between the last beat
+ * written and the beat the replica returns is its lag. If the replica can't be read the lag is
+ * unknown, which counts as too stale.
+ */
+final class ReplicaLagMonitor {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaLagMonitor.class);
+    static final long UNKNOWN_LAG = Long.MAX_VALUE;
+
+    private final DataSource writeSource;
+    private final DataSource readSource;
+    private final ScheduledExecutorService scheduler;
+    private volatile long lagMs = UNKNOWN_LAG;
+    private boolean firstCheck = true; // Monitor thread only
+
+    ReplicaLagMonitor(DataSource writeSource, DataSource readSource, long intervalMs) {
+        this.writeSource = writeSource;
+        this.readSource = readSource;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Replica-Lag-Monitor");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = Math.max(100, intervalMs);
+        scheduler.scheduleWithFixedDelay(this::check, 0, interval, TimeUnit.MILLISECONDS);
+        log.info("Replica lag monitor started (interval: {} ms)", interval);
+    }
+
+    /**
+     * The lag measured by the last check, or {@link #UNKNOWN_LAG}.
+     */
+    long getLagMs() {
+        return lagMs;
+    }
+
+    private void check() {
+        long beat = System.currentTimeMillis();
+        long lag;
+        String failure = null;
+        try {
+            try (Connection conn = writeSource.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement("UPDATE replication_heartbeat SET beat = ? WHERE id = 1")) {
+                pstmt.setLong(1, beat);
+                pstmt.executeUpdate();
+            }
+            try (Connection conn = readSource.getConnection();
+                 PreparedStatement pstmt = conn.prepareStatement("SELECT beat FROM replication_heartbeat WHERE id = 1");
+                 ResultSet rs = pstmt.executeQuery()) {
+                lag = rs.next() ? Math.max(0, beat - rs.getLong(1)) : UNKNOWN_LAG;
+                if (lag == UNKNOWN_LAG) {
+                    failure = "no heartbeat row on the replica";
+                }
+            }
+        } catch (SQLException e) {
+            lag = UNKNOWN_LAG;
+            failure = e.getMessage();
+        }
+        if (failure != null && (lagMs != UNKNOWN_LAG || firstCheck)) {
+            log.warn("Replica lag check failed; treating the replica as stale until it succeeds: {}", failure);
+        } else if (failure == null && lagMs == UNKNOWN_LAG && !firstCheck) {
+            log.info("Replica lag check succeeded again (lag: {} ms).", lag);
+        }
+        firstCheck = false;
+        lagMs = lag;
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+}
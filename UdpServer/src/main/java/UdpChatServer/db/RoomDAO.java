@@ -5,6 +5,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -15,6 +16,9 @@ import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import UdpChatServer.model.RetentionPolicy;
+import UdpChatServer.model.RoomSummary;
+
 /**
  * Data Access Object for Room related operations.
  * Includes owner checks for management actions.
@@ -22,6 +26,7 @@ import org.slf4j.LoggerFactory;
 public class RoomDAO {
 
     private static final Logger log = LoggerFactory.getLogger(RoomDAO.class);
+    private static final int MAX_ROOM_MATES_IN_LIST = 500; // Users per IN list in getRoomMatesOfUsers
 
     /**
      * Creates a new room in the database if it doesn't exist, setting the owner.
@@ -61,7 +66,7 @@ public class RoomDAO {
 
         } catch (SQLException e) {
              // Check for foreign key constraint violation (e.g., owner user doesn't exist)
-            if ("23000".equals(e.getSQLState()) && e.getMessage().contains("FOREIGN KEY (`owner`)")) {
+            if (DatabaseConnectionManager.getDialect().isForeignKeyViolation(e)) {
                  log.warn("Failed to create room '{}': Owner user '{}' does not exist.", roomId, ownerChatId);
             } else {
                 log.error("SQL error while creating room '{}' with name '{}' and owner '{}': {}", roomId, roomName, ownerChatId, e.getMessage(), e);
@@ -73,6 +78,97 @@ public class RoomDAO {
         }
     }
 
+    /**
+     * Creates a room with all its participants in one transaction: checks that every participant
+     * exists with one IN query, inserts the room (or renames an existing one, like
+     * {@link #createRoomIfNotExists}) and inserts the participants as one batch. Nothing is
+     * written unless everything succeeds, so a failure never leaves a half-created room.
+     *
+     * @param roomId The unique ID for the room.
+     * @param roomName The display name for the room.
+     * @param ownerChatId The chat ID of the user creating the room (the owner).
+     * @param participants All members of the room, owner included.
+     * @return true if the room and all participants were committed, false if a participant does
+     *         not exist or on error.
+     */
+    public boolean createRoomWithParticipants(String roomId, String roomName, String ownerChatId, Set<String> participants) {
+        if (roomId == null || roomId.trim().isEmpty() ||
+            roomName == null || roomName.trim().isEmpty() ||
+            ownerChatId == null || ownerChatId.trim().isEmpty() ||
+            participants == null || !participants.contains(ownerChatId)) {
+            log.warn("Attempted to create room '{}' with null or empty ID, name, owner or participants.", roomId);
+            return false;
+        }
+
+        String placeholders = String.join(", ", Collections.nCopies(participants.size(), "?"));
+        String checkSql = "SELECT chatid FROM users WHERE chatid IN (" + placeholders + ")";
+        String roomSql = "INSERT IGNORE INTO rooms (room_id, name, owner) VALUES (?, ?, ?)";
+        String renameSql = "UPDATE rooms SET name = ? WHERE room_id = ? AND name <> ?";
+        String participantSql = "INSERT IGNORE INTO room_participants (room_id, chatid) VALUES (?, ?)";
+
+        try (Connection conn = DatabaseConnectionManager.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Set<String> missing = new HashSet<>(participants);
+                try (PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
+                    int index = 1;
+                    for (String chatid : participants) {
+                        pstmt.setString(index++, chatid);
+                    }
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            missing.remove(rs.getString("chatid"));
+                        }
+                    }
+                }
+                if (!missing.isEmpty()) {
+                    conn.rollback();
+                    log.warn("Failed to create room '{}': participants {} do not exist.", roomId, missing);
+                    return false;
+                }
+
+                boolean created;
+                try (PreparedStatement pstmt = conn.prepareStatement(roomSql)) {
+                    pstmt.setString(1, roomId);
+                    pstmt.setString(2, roomName);
+                    pstmt.setString(3, ownerChatId);
+                    created = pstmt.executeUpdate() > 0;
+                }
+                if (!created) {
+                    // Room already existed (owner remains the original one); keep its name current
+                    try (PreparedStatement pstmt = conn.prepareStatement(renameSql)) {
+                        pstmt.setString(1, roomName);
+                        pstmt.setString(2, roomId);
+                        pstmt.setString(3, roomName);
+                        pstmt.executeUpdate();
+                    }
+                }
+
+                try (PreparedStatement pstmt = conn.prepareStatement(participantSql)) {
+                    for (String chatid : participants) {
+                        pstmt.setString(1, roomId);
+                        pstmt.setString(2, chatid);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                }
+                conn.commit();
+                log.info("Room '{}' with name '{}' and owner '{}' {} with {} participants.",
+                        roomId, roomName, ownerChatId, created ? "created" : "updated", participants.size());
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.error("SQL error creating room '{}' with name '{}', owner '{}' and {} participants: {}",
+                    roomId, roomName, ownerChatId, participants.size(), e.getMessage(), e);
+            return false;
+        }
+    }
+
     /**
      * Updates a room's name if it already exists and the name is different.
      * Does not change the owner.
@@ -144,7 +240,7 @@ public class RoomDAO {
 
         } catch (SQLException e) {
              // Check for foreign key constraint violation (e.g., room or user doesn't exist)
-            if ("23000".equals(e.getSQLState())) {
+            if (DatabaseConnectionManager.getDialect().isForeignKeyViolation(e)) {
                  log.warn("Failed to add participant '{}' to room '{}': Room or User does not exist.", chatid, roomId);
             } else {
                 log.error("SQL error adding participant '{}' to room '{}': {}", chatid, roomId, e.getMessage(), e);
@@ -367,7 +463,9 @@ public class RoomDAO {
     }
 
     /**
-     * Retrieves a list of room IDs that a specific user participates in.
+     * Retrieves a list of room IDs that a specific user participates in. Read from the primary:
+     * RoomManager caches the result as the user's room view until the user's membership changes,
+     * so a lagging replica would pin a stale list.
      *
      * @param chatid The ID of the user.
      * @return A List of room IDs, or an empty list if none are found or on error.
@@ -393,6 +491,126 @@ public class RoomDAO {
         return roomIds;
     }
 
+    /**
+     * Retrieves the IDs of all rooms, for rebuilding per-room state at startup.
+     *
+     * @return A List of room IDs, or an empty list on error.
+     */
+    public List<String> getAllRoomIds() {
+        List<String> roomIds = new ArrayList<>();
+        String sql = "SELECT room_id FROM rooms";
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.BOUNDED_STALENESS);
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                roomIds.add(rs.getString("room_id"));
+            }
+        } catch (SQLException e) {
+            log.error("SQL error retrieving all room IDs: {}", e.getMessage(), e);
+            return new ArrayList<>();
+        }
+        return roomIds;
+    }
+
+    /**
+     * Retrieves the per-room retention overrides (rows of room_retention), keyed by room id.
+     *
+     * @return The overrides, or an empty map if there are none or on error.
+     */
+    public Map<String, RetentionPolicy> getRetentionPolicies() {
+        Map<String, RetentionPolicy> policies = new HashMap<>();
+        String sql = "SELECT room_id, max_age_days, max_messages FROM room_retention";
+        try (Connection conn = DatabaseConnectionManager.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                policies.put(rs.getString("room_id"), new RetentionPolicy(
+                        rs.getObject("max_age_days", Integer.class), rs.getObject("max_messages", Integer.class)));
+            }
+        } catch (SQLException e) {
+            log.error("SQL error retrieving room retention policies: {}", e.getMessage(), e);
+            return new HashMap<>();
+        }
+        return policies;
+    }
+
+    /**
+     * Retrieves id, name, owner, member count and latest message id/seq for every room the user
+     * participates in, using a single query (instead of one getRoomName call per room). Read from
+     * the primary: login decides from last_seq whether a room needs an after_seq sync at all, and
+     * get_rooms caches the names, so a lagging replica would hide messages or keep old names.
+     *
+     * @param chatid The chat ID of the user.
+     * @return A List of RoomSummary ordered by room id, or an empty list if none are found or on error.
+     */
+    public List<RoomSummary> getRoomSummariesByUser(String chatid) {
+        if (chatid == null) return Collections.emptyList();
+        List<RoomSummary> summaries = new ArrayList<>();
+        String sql = "SELECT r.room_id, r.name, r.owner, " +
+                     "(SELECT COUNT(*) FROM room_participants rp_all WHERE rp_all.room_id = r.room_id) AS member_count, " +
+                     "(SELECT MAX(m.message_id) FROM messages m WHERE m.room_id = r.room_id) AS last_message_id, " +
+                     "(SELECT MAX(m.seq) FROM messages m WHERE m.room_id = r.room_id) AS last_seq " +
+                     "FROM rooms r " +
+                     "JOIN room_participants rp_user ON r.room_id = rp_user.room_id " +
+                     "WHERE rp_user.chatid = ? " +
+                     "ORDER BY r.room_id";
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.PRIMARY);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, chatid);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    summaries.add(new RoomSummary(
+                            rs.getString("room_id"),
+                            rs.getString("name"),
+                            rs.getString("owner"),
+                            rs.getInt("member_count"),
+                            rs.getLong("last_message_id"), // NULL (no messages) reads as 0
+                            rs.getLong("last_seq")
+                    ));
+                }
+            }
+            log.info("Retrieved {} room summaries for user '{}'.", summaries.size(), chatid);
+        } catch (SQLException e) {
+            log.error("SQL error retrieving room summaries for user '{}': {}", chatid, e.getMessage(), e);
+            return Collections.emptyList();
+        } catch (Exception e) {
+            log.error("Unexpected error retrieving room summaries for user '{}': {}", chatid, e.getMessage(), e);
+            return Collections.emptyList();
+        }
+        return summaries;
+    }
+
+    /**
+     * Participants of the most recently active rooms (latest message first, then newest rooms),
+     * for filling the membership cache at startup.
+     *
+     * @param maxRooms The maximum number of rooms to return.
+     * @return roomId -> participants, or an empty map on error.
+     */
+    public Map<String, Set<String>> getMembershipsOfRecentRooms(int maxRooms) {
+        Map<String, Set<String>> memberships = new HashMap<>();
+        if (maxRooms <= 0) return memberships;
+        String sql = "SELECT rp.room_id, rp.chatid FROM (" +
+                     "SELECT r.room_id FROM rooms r " +
+                     "ORDER BY (SELECT MAX(m.message_id) FROM messages m WHERE m.room_id = r.room_id) DESC, r.created_at DESC " +
+                     "LIMIT ?) recent " +
+                     "JOIN room_participants rp ON rp.room_id = recent.room_id";
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.BOUNDED_STALENESS);
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, maxRooms);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    memberships.computeIfAbsent(rs.getString("room_id"), k -> new HashSet<>()).add(rs.getString("chatid"));
+                }
+            }
+            log.info("Retrieved memberships of {} recently active rooms.", memberships.size());
+        } catch (SQLException e) {
+            log.error("SQL error retrieving memberships of recent rooms: {}", e.getMessage(), e);
+            return new HashMap<>();
+        }
+        return memberships;
+    }
+
     /**
      * Retrieves all participants for a given room from the database.
      *
@@ -419,6 +637,46 @@ public class RoomDAO {
         return participants;
     }
 
+    /**
+     * Retrieves the room-mates of many users at once (one self-join per chunk of
+     * MAX_ROOM_MATES_IN_LIST users instead of one query per user).
+     *
+     * @param chatids The users to look up.
+     * @return A map chatid -> room-mates (excluding the user); users without room-mates are absent. Empty on error.
+     */
+    public Map<String, Set<String>> getRoomMatesOfUsers(Collection<String> chatids) {
+        Map<String, Set<String>> roomMates = new HashMap<>();
+        if (chatids == null || chatids.isEmpty()) return roomMates;
+        List<String> ids = new ArrayList<>(chatids);
+        try (Connection conn = DatabaseConnectionManager.getReadConnection(ReadConsistency.BOUNDED_STALENESS)) {
+            for (int from = 0; from < ids.size(); from += MAX_ROOM_MATES_IN_LIST) {
+                List<String> chunk = ids.subList(from, Math.min(ids.size(), from + MAX_ROOM_MATES_IN_LIST));
+                String sql = "SELECT DISTINCT rp_user.chatid AS subject, rp_all.chatid AS mate FROM room_participants rp_user " +
+                             "JOIN room_participants rp_all ON rp_user.room_id = rp_all.room_id " +
+                             "WHERE rp_user.chatid IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ") " +
+                             "AND rp_all.chatid <> rp_user.chatid";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    int index = 1;
+                    for (String chatid : chunk) {
+                        pstmt.setString(index++, chatid);
+                    }
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        while (rs.next()) {
+                            roomMates.computeIfAbsent(rs.getString("subject"), k -> new HashSet<>()).add(rs.getString("mate"));
+                        }
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.error("SQL error retrieving room-mates for {} users: {}", ids.size(), e.getMessage(), e);
+            return new HashMap<>();
+        } catch (Exception e) {
+            log.error("Unexpected error retrieving room-mates for {} users: {}", ids.size(), e.getMessage(), e);
+            return new HashMap<>();
+        }
+        return roomMates;
+    }
+
     /**
      * Retrieves a room name from its ID
      *
@@ -474,72 +732,4 @@ public class RoomDAO {
             return false;
         }
     }
-
-    /**
-     * Retrieves a list of rooms a specific user is a participant in, along with the members of each room.
-     *
-     * @param chatid The ID of the user.
-     * @return A List of Maps, where each map represents a room and contains 'id', 'name', and 'members' (a List of chatids). Returns an empty list if the user is in no rooms or on error.
-     */
-    public List<Map<String, Object>> getRoomsAndMembersByUser(String chatid) {
-        List<Map<String, Object>> userRooms = new ArrayList<>();
-        if (chatid == null || chatid.trim().isEmpty()) {
-            log.warn("Attempted to get rooms for null or empty chatid.");
-            return userRooms; // Return empty list
-        }
-
-        // SQL query to get rooms the user is in and their names
-        // We also join with room_participants again to fetch all members of those rooms
-        String sql = "SELECT r.room_id, r.name, rp_all.chatid AS member_id " +
-                     "FROM rooms r " +
-                     "JOIN room_participants rp_user ON r.room_id = rp_user.room_id " +
-                     "JOIN room_participants rp_all ON r.room_id = rp_all.room_id " +
-                     "WHERE rp_user.chatid = ? " +
-                     "ORDER BY r.room_id, rp_all.chatid"; // Order to easily group members by room
-
-        Map<String, Map<String, Object>> roomDataMap = new HashMap<>();
-
-        try (Connection conn = DatabaseConnectionManager.getConnection();
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
-            pstmt.setString(1, chatid);
-
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    String roomId = rs.getString("room_id");
-                    String roomName = rs.getString("name");
-                    String memberId = rs.getString("member_id");
-
-                    // Check if we've already started processing this room
-                    Map<String, Object> roomInfo = roomDataMap.get(roomId);
-                    if (roomInfo == null) {
-                        // First time seeing this room for the user
-                        roomInfo = new HashMap<>();
-                        roomInfo.put("id", roomId);
-                        roomInfo.put("name", roomName);
-                        roomInfo.put("members", new ArrayList<String>());
-                        roomDataMap.put(roomId, roomInfo);
-                        userRooms.add(roomInfo); // Add to the final list
-                    }
-
-                    // Add the current member to the list for this room
-                    @SuppressWarnings("unchecked") // Safe cast due to initialization
-                    List<String> members = (List<String>) roomInfo.get("members");
-                    if (memberId != null && !members.contains(memberId)) { // Avoid duplicates if query returns multiple rows for same member
-                         members.add(memberId);
-                    }
-                }
-            }
-            log.info("Retrieved {} rooms and their members for user '{}'.", userRooms.size(), chatid);
-
-        } catch (SQLException e) {
-            log.error("SQL error retrieving rooms and members for user '{}': {}", chatid, e.getMessage(), e);
-            return Collections.emptyList(); // Return empty list on error
-        } catch (Exception e) {
-            log.error("Unexpected error retrieving rooms and members for user '{}': {}", chatid, e.getMessage(), e);
-            return Collections.emptyList(); // Return empty list on error
-        }
-
-        return userRooms;
-    }
 }
@@ -0,0 +1,448 @@
+package UdpChatServer.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.model.Message;
+
+/**
+ * The message log of one room: a directory of {@link LogSegment}s, oldest first.
+ *
+ * Appends, commits and rollbacks happen on the message writer thread while holding the room's
+ * lock; compaction and deletion take the same lock. Readers work on the current segment list
+ * (replaced, never modified) without locking and only ever see published records; they pin its
+ * segments while scanning, so compaction defers deleting merged files until they are done.
+ * A commit publishes its segments one after another and only then raises lastSeq, so a scan
+ * reads lastSeq before the segment list and stops there: it never sees the end of a batch in a
+ * new segment while missing its start in the previous one.
+ */
+final class RoomLog {
+
+    private static final Logger log = LoggerFactory.getLogger(RoomLog.class);
+    private static final String COMPACTING_SUFFIX = ".compacting";
+
+    private final String roomId;
+    private final Path dir;
+    private final long segmentBytes;
+    private final int indexInterval;
+
+    private volatile List<LogSegment> segments = Collections.emptyList(); // Replaced under the lock
+    private volatile long lastSeq; // Published
+    private volatile long lastId; // Published
+    private volatile boolean deleted;
+
+    // Writer state, guarded by 'this'
+    private LogSegment active; // null until the first append after opening
+    private final List<LogSegment> dirty = new ArrayList<>(); // Segments with unpublished appends
+    private long nextSeq;
+
+    private RoomLog(String roomId, Path dir, long segmentBytes, int indexInterval) {
+        this.roomId = roomId;
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+    }
+
+    /**
+     * Opens a room directory, recovering its segments (see {@link LogSegment#recover}). Files
+     * after a truncated segment, and files left over from an interrupted compaction, are deleted.
+     */
+    static RoomLog open(String roomId, Path dir, long segmentBytes, int indexInterval) throws IOException {
+        RoomLog room = new RoomLog(roomId, dir, segmentBytes, indexInterval);
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(COMPACTING_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(LogSegment.SUFFIX)) {
+                    try {
+                        files.put(Long.parseLong(name.substring(0, name.length() - LogSegment.SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring unexpected file {} in message log.", file);
+                    }
+                }
+            }
+        }
+
+        List<LogSegment> recovered = new ArrayList<>();
+        long expectedSeq = 1;
+        boolean truncated = false;
+        for (var entry : files.entrySet()) {
+            if (truncated) {
+                log.warn("Deleting {}: it follows a truncated segment.", entry.getValue());
+                Files.delete(entry.getValue());
+                continue;
+            }
+            LogSegment.Recovery recovery = LogSegment.recover(entry.getValue(), entry.getKey(), expectedSeq, indexInterval);
+            if (recovery.duplicate) {
+                log.warn("Deleting {}: its records were already merged by compaction.", entry.getValue());
+                Files.delete(entry.getValue());
+                continue;
+            }
+            truncated = recovery.truncated;
+            if (recovery.segment == null) {
+                Files.delete(entry.getValue()); // Nothing valid, e.g. the empty active segment of the previous run
+                continue;
+            }
+            recovered.add(recovery.segment);
+            expectedSeq = recovery.segment.lastSeq() + 1;
+            room.lastId = recovery.segment.lastId();
+        }
+        room.segments = Collections.unmodifiableList(recovered);
+        room.lastSeq = expectedSeq - 1;
+        room.nextSeq = expectedSeq;
+        return room;
+    }
+
+    /**
+     * Creates the directory of a room that has no log yet.
+     */
+    static RoomLog create(String roomId, Path dir, long segmentBytes, int indexInterval) throws IOException {
+        Files.createDirectories(dir);
+        RoomLog room = new RoomLog(roomId, dir, segmentBytes, indexInterval);
+        room.nextSeq = 1;
+        return room;
+    }
+
+    // --- Writer side (message writer thread, holding the lock) ---
+
+    /**
+     * Appends a message with the next seq of the room; visible to readers after {@link #commit}.
+     */
+    synchronized Message append(Message message, long messageId) throws IOException {
+        Message saved = new Message(messageId, roomId, message.getSenderChatid(), message.getContent(),
+                message.getTimestamp() != null ? message.getTimestamp() : new Timestamp(System.currentTimeMillis()), nextSeq);
+        ByteBuffer record = LogSegment.encode(saved);
+        if (active == null || (active.writePosition() > 0 && active.writePosition() + record.remaining() > segmentBytes)) {
+            roll();
+        }
+        active.append(saved, record);
+        if (!dirty.contains(active)) {
+            dirty.add(active);
+        }
+        nextSeq++;
+        return saved;
+    }
+
+    /**
+     * Makes the appended messages durable (if {@code sync}) and visible, sealing segments that
+     * filled up during the batch.
+     */
+    synchronized void commit(boolean sync) throws IOException {
+        if (sync) {
+            for (LogSegment segment : dirty) {
+                segment.sync();
+            }
+        }
+        for (LogSegment segment : dirty) {
+            segment.publish();
+            if (segment != active) {
+                segment.seal();
+            }
+        }
+        dirty.clear();
+        if (active != null && active.count() > 0) {
+            lastSeq = active.lastSeq();
+            lastId = active.lastId();
+        }
+    }
+
+    /**
+     * Discards the appended messages after a failed append or commit.
+     */
+    synchronized void rollback() {
+        for (LogSegment segment : dirty) {
+            try {
+                segment.rollback();
+                if (segment != active) {
+                    segment.seal(); // Filled up earlier in the failed batch
+                }
+            } catch (IOException e) {
+                log.error("Could not truncate {} after a failed write: {}", segment.file(), e.getMessage());
+            }
+        }
+        dirty.clear();
+        nextSeq = lastSeq + 1;
+    }
+
+    private void roll() throws IOException {
+        if (active != null && !dirty.contains(active)) {
+            active.seal(); // Full with messages of earlier batches
+        }
+        LogSegment segment = LogSegment.create(dir, nextSeq, indexInterval);
+        List<LogSegment> updated = new ArrayList<>(segments);
+        updated.add(segment);
+        segments = Collections.unmodifiableList(updated);
+        active = segment;
+    }
+
+    /**
+     * Closes the append channel (shutdown).
+     */
+    synchronized void close() {
+        if (active != null) {
+            active.closeChannel();
+        }
+    }
+
+    /**
+     * Deletes every file of the room. Later appends for the room go to a new RoomLog.
+     */
+    synchronized void delete() throws IOException {
+        deleted = true;
+        close();
+        segments = Collections.emptyList();
+        if (Files.exists(dir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path file : stream) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    boolean isDeleted() {
+        return deleted;
+    }
+
+    // --- Compaction ---
+
+    /**
+     * Merges runs of adjacent sealed segments whose combined size fits in one segment.
+     *
+     * Records are copied byte for byte into a temporary file that then atomically replaces the
+     * first segment of the run; since the merged file starts with that segment's bytes, readers
+     * still holding the old segment read the same records. The other files of the run are
+     * retired: each is deleted when the last reader that pinned it releases it (recovery drops
+     * them if a crash comes first).
+     *
+     * @return The number of segment files removed.
+     */
+    int compact() throws IOException {
+        List<LogSegment> snapshot = segments;
+        int removed = 0;
+        int i = 0;
+        while (i < snapshot.size()) {
+            int end = i;
+            long total = 0;
+            while (end < snapshot.size() && snapshot.get(end).isSealed() && total + snapshot.get(end).size() <= segmentBytes) {
+                total += snapshot.get(end).size();
+                end++;
+            }
+            if (end - i >= 2) {
+                if (!merge(snapshot.subList(i, end))) {
+                    return removed;
+                }
+                removed += end - i - 1;
+                i = end;
+            } else {
+                i = Math.max(end, i + 1);
+            }
+        }
+        return removed;
+    }
+
+    private boolean merge(List<LogSegment> run) throws IOException {
+        LogSegment first = run.get(0);
+        Path temp = dir.resolve(first.file().getFileName() + COMPACTING_SUFFIX);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (LogSegment segment : run) {
+                ByteBuffer bytes = segment.view();
+                while (bytes.hasRemaining()) {
+                    out.write(bytes);
+                }
+            }
+            out.force(true);
+        }
+
+        synchronized (this) {
+            if (deleted) {
+                Files.deleteIfExists(temp);
+                return false;
+            }
+            Files.move(temp, first.file(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            LogSegment.Recovery recovery = LogSegment.recover(first.file(), first.baseSeq(), first.firstSeq(), indexInterval);
+            List<LogSegment> updated = new ArrayList<>(segments);
+            int at = updated.indexOf(first);
+            updated.subList(at, at + run.size()).clear();
+            updated.add(at, recovery.segment);
+            segments = Collections.unmodifiableList(updated);
+        }
+        first.retire(false); // Its file is now the merged segment
+        for (LogSegment segment : run.subList(1, run.size())) {
+            segment.retire(true);
+        }
+        log.debug("Merged {} segments of room '{}' into {}.", run.size(), roomId, first.file().getFileName());
+        return true;
+    }
+
+    // --- Reader side ---
+
+    /**
+     * The current segments, each pinned until {@link #release(List)}. Retries if compaction
+     * retired one of them between reading the list and pinning it.
+     */
+    List<LogSegment> acquireSegments() {
+        while (true) {
+            List<LogSegment> snapshot = segments;
+            int pinned = 0;
+            while (pinned < snapshot.size() && snapshot.get(pinned).retain()) {
+                pinned++;
+            }
+            if (pinned == snapshot.size()) {
+                return snapshot;
+            }
+            release(snapshot.subList(0, pinned));
+        }
+    }
+
+    static void release(List<LogSegment> pinned) {
+        for (LogSegment segment : pinned) {
+            segment.release();
+        }
+    }
+
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    long lastId() {
+        return lastId;
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Hands the messages with a seq greater than {@code afterSeq} to {@code handler}, oldest first.
+     */
+    void scanAfterSeq(long afterSeq, MessageStore.MessageRowHandler handler) throws IOException {
+        long upToSeq = lastSeq; // Read before the segments, see the class comment
+        List<LogSegment> snapshot = acquireSegments();
+        try {
+            for (LogSegment segment : snapshot) {
+                if (segment.count() == 0 || segment.lastSeq() <= afterSeq) {
+                    continue;
+                }
+                long from = segment.floorOffsetBySeq(afterSeq + 1);
+                if (!scanForward(segment, from, upToSeq, message -> message.getSeq() <= afterSeq || handler.onMessage(message))) {
+                    return;
+                }
+            }
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    /**
+     * Hands the messages with a message_id greater than {@code afterId} to {@code handler}, oldest first.
+     */
+    void scanAfterId(long afterId, MessageStore.MessageRowHandler handler) throws IOException {
+        long upToSeq = lastSeq; // Read before the segments, see the class comment
+        List<LogSegment> snapshot = acquireSegments();
+        try {
+            for (LogSegment segment : snapshot) {
+                if (segment.count() == 0 || segment.lastId() <= afterId) {
+                    continue;
+                }
+                long from = segment.floorOffsetById(afterId + 1);
+                if (!scanForward(segment, from, upToSeq, message -> message.getMessageId() <= afterId || handler.onMessage(message))) {
+                    return;
+                }
+            }
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    /**
+     * Hands a segment's records from offset {@code from} up to seq {@code upToSeq} to
+     * {@code handler}, one index block at a time: the active segment is read in small pieces,
+     * and a page that fills up early doesn't read the rest.
+     *
+     * @return false if the handler stopped the scan or {@code upToSeq} was reached.
+     */
+    private boolean scanForward(LogSegment segment, long from, long upToSeq, MessageStore.MessageRowHandler handler) throws IOException {
+        // The index is read before the size, so every block offset lies within it (see LogSegment#publish)
+        long[] offsets = segment.blockOffsets();
+        long size = segment.size();
+        int next = Arrays.binarySearch(offsets, from);
+        next = next >= 0 ? next + 1 : -next - 1; // First block starting after 'from'
+        for (long start = from; start < size; ) {
+            long end = next < offsets.length ? offsets[next++] : size;
+            ByteBuffer buf = segment.read(start, end);
+            while (buf.hasRemaining()) {
+                Message message = LogSegment.decode(roomId, buf);
+                if (message.getSeq() > upToSeq || !handler.onMessage(message)) {
+                    return false;
+                }
+            }
+            start = end;
+        }
+        return true;
+    }
+
+    /**
+     * Hands the messages with a message_id below {@code beforeId} (all if null) to
+     * {@code handler}, newest first. Segments are read backward one index block at a time.
+     */
+    void scanBackward(Long beforeId, MessageStore.MessageRowHandler handler) throws IOException {
+        long upToSeq = lastSeq; // Read before the segments, see the class comment
+        List<LogSegment> snapshot = acquireSegments();
+        try {
+            scanBackward(snapshot, upToSeq, beforeId, handler);
+        } finally {
+            release(snapshot);
+        }
+    }
+
+    private void scanBackward(List<LogSegment> snapshot, long upToSeq, Long beforeId, MessageStore.MessageRowHandler handler) throws IOException {
+        List<Message> block = new ArrayList<>();
+        for (int s = snapshot.size() - 1; s >= 0; s--) {
+            LogSegment segment = snapshot.get(s);
+            if (segment.count() == 0 || (beforeId != null && segment.firstId() >= beforeId)) {
+                continue;
+            }
+            // The index is read before the size, so every block offset lies within it
+            long[] offsets = segment.blockOffsets();
+            long[] firstIds = segment.blockFirstIds();
+            long size = segment.size();
+            for (int b = offsets.length - 1; b >= 0; b--) {
+                if (beforeId != null && firstIds[b] >= beforeId) {
+                    continue;
+                }
+                long end = b + 1 < offsets.length ? offsets[b + 1] : size;
+                ByteBuffer buf = segment.read(offsets[b], end);
+                block.clear();
+                while (buf.hasRemaining()) {
+                    block.add(LogSegment.decode(roomId, buf));
+                }
+                for (int m = block.size() - 1; m >= 0; m--) {
+                    Message message = block.get(m);
+                    if (message.getSeq() <= upToSeq && (beforeId == null || message.getMessageId() < beforeId) && !handler.onMessage(message)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package UdpChatServer.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory per-room message sequence counters, persisted through messages.seq.
+ *
+ * A room's counter is loaded from MAX(seq) the first time the room is written to. Only the
+ * message writer thread ({@link MessageWriteBehind}) assigns seqs, and it advances a counter only
+ * after the INSERT carrying the seq has committed, so a room's seqs are both assigned and made
+ * visible in order: a client that has seen seq N can ask for "after_seq N" without ever missing a
+ * message that commits later with a smaller seq. Not thread-safe by design.
+ */
+final class RoomSequencer {
+
+    private final Map<String, RoomCounter> counters = new HashMap<>();
+
+    RoomCounter counterFor(String roomId) {
+        return counters.computeIfAbsent(roomId, RoomCounter::new);
+    }
+
+    static final class RoomCounter {
+        private final String roomId;
+        private long lastSeq = -1; // -1 until loaded from the database
+
+        private RoomCounter(String roomId) {
+            this.roomId = roomId;
+        }
+
+        /**
+         * The seq the next message of the room should get. Does not advance the counter;
+         * call {@link #committed} once the message is saved.
+         */
+        long nextSeq(Connection conn) throws SQLException {
+            if (lastSeq < 0) {
+                reload(conn);
+            }
+            return lastSeq + 1;
+        }
+
+        void committed(long seq) {
+            lastSeq = Math.max(lastSeq, seq);
+        }
+
+        /**
+         * Forgets the cached value so the next {@link #nextSeq} re-reads MAX(seq), e.g. after a
+         * failed commit or a duplicate key showing another writer used the same seq.
+         */
+        void invalidate() {
+            lastSeq = -1;
+        }
+
+        private void reload(Connection conn) throws SQLException {
+            try (PreparedStatement pstmt = conn.prepareStatement(
+                    "SELECT COALESCE(MAX(seq), 0) FROM messages WHERE room_id = ?")) {
+                pstmt.setString(1, roomId);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    lastSeq = rs.next() ? rs.getLong(1) : 0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package UdpChatServer.db;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.model.Message;
+import UdpChatServer.model.RoomSummary;
+import UdpChatServer.util.Metrics;
+
+/**
+ * MessageStore that keeps each room's messages in append-only log files on local disk instead
+ * of the messages table.
+ *
+ * Every room has a directory of segments ({@link LogSegment}) holding checksummed records in seq
+ * order. Saves go through the same write-behind queue as {@link MessageDAO}: the writer thread
+ * appends a whole batch, syncs each touched room once and only then publishes the records to
+ * readers and completes the futures. Reads go through a sparse per-segment index, from memory-mapped
+ * sealed segments or the active segment's file, so keyset pages and after_seq syncs never scan a
+ * room from the start.
+ *
+ * At startup every room is recovered: torn or corrupt tails left by a crash are truncated. A
+ * background compactor merges small sealed segments so rooms with sporadic traffic don't
+ * accumulate files.
+ */
+public class SegmentedLogMessageStore implements MessageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentedLogMessageStore.class);
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path baseDir;
+    private final long segmentBytes;
+    private final int indexInterval;
+    private final boolean fsync;
+    private final Map<String, RoomLog> rooms = new ConcurrentHashMap<>();
+    private final MessageWriteBehind writeBehind;
+    private final ScheduledExecutorService compactor;
+    private long lastMessageId; // Writer thread only after startup
+
+    private final LongAdder syncs = Metrics.counter("message_log.syncs");
+    private final LongAdder compactedSegments = Metrics.counter("message_log.compacted_segments");
+
+    /**
+     * Opens (recovering) or creates the log under {@code baseDir}.
+     *
+     * @param segmentBytes Size at which a room's active segment is sealed and a new one started.
+     * @param indexInterval Every how many records a segment index entry is kept.
+     * @param fsync Whether a batch is forced to disk before its futures complete.
+     * @param compactionIntervalMs How often small segments are merged; 0 or negative disables compaction.
+     */
+    public SegmentedLogMessageStore(Path baseDir, long segmentBytes, int indexInterval, boolean fsync,
+            int maxBatchSize, long maxLingerMs, long compactionIntervalMs) throws IOException {
+        this.baseDir = baseDir;
+        this.segmentBytes = Math.max(LogSegment.HEADER_BYTES, Math.min(segmentBytes, Integer.MAX_VALUE));
+        this.indexInterval = Math.max(1, indexInterval);
+        this.fsync = fsync;
+        recover();
+        Metrics.gauge("message_log.rooms", rooms::size);
+        Metrics.gauge("message_log.segments", this::segmentCount);
+        this.writeBehind = new MessageWriteBehind(this::appendBatch, maxBatchSize, maxLingerMs);
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Message-Log-Compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        if (compactionIntervalMs > 0) {
+            compactor.scheduleWithFixedDelay(this::compact, compactionIntervalMs, compactionIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void recover() throws IOException {
+        Files.createDirectories(baseDir);
+        long started = System.currentTimeMillis();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, Files::isDirectory)) {
+            for (Path dir : stream) {
+                String roomId;
+                try {
+                    roomId = new String(HEX.parseHex(dir.getFileName().toString()), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring unexpected directory {} in message log.", dir);
+                    continue;
+                }
+                RoomLog room = RoomLog.open(roomId, dir, segmentBytes, indexInterval);
+                rooms.put(roomId, room);
+                lastMessageId = Math.max(lastMessageId, room.lastId());
+            }
+        }
+        log.info("Message log at {} recovered: {} rooms, {} segments, last message_id {} ({} ms)",
+                baseDir.toAbsolutePath(), rooms.size(), segmentCount(), lastMessageId, System.currentTimeMillis() - started);
+    }
+
+    @Override
+    public CompletableFuture<Message> saveMessageAsync(Message message) {
+        if (message == null || message.getRoomId() == null || message.getSenderChatid() == null || message.getContent() == null) {
+            log.warn("Attempted to save message with null fields.");
+            return CompletableFuture.completedFuture(null);
+        }
+        return writeBehind.enqueue(message);
+    }
+
+    /**
+     * Appends a batch on the writer thread, room by room: each room's messages are appended,
+     * synced once and published together. A room whose append or sync fails is rolled back and
+     * its messages reported as not saved; other rooms are unaffected.
+     */
+    private List<Message> appendBatch(List<Message> batch) {
+        Map<String, List<Integer>> byRoom = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            byRoom.computeIfAbsent(batch.get(i).getRoomId(), k -> new ArrayList<>()).add(i);
+        }
+        List<Message> saved = new ArrayList<>(Collections.nCopies(batch.size(), null));
+        for (Map.Entry<String, List<Integer>> entry : byRoom.entrySet()) {
+            String roomId = entry.getKey();
+            try {
+                while (true) {
+                    RoomLog room = rooms.computeIfAbsent(roomId, this::createRoom);
+                    synchronized (room) {
+                        if (room.isDeleted()) {
+                            rooms.remove(roomId, room);
+                            continue; // Deleted since it was looked up; start a fresh log
+                        }
+                        appendRoom(room, batch, entry.getValue(), saved);
+                        break;
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                log.error("Could not create the message log of room '{}': {}", roomId, e.getCause().getMessage());
+            }
+        }
+        return saved;
+    }
+
+    private void appendRoom(RoomLog room, List<Message> batch, List<Integer> indexes, List<Message> saved) {
+        try {
+            for (int i : indexes) {
+                saved.set(i, room.append(batch.get(i), ++lastMessageId));
+            }
+            room.commit(fsync);
+            if (fsync) {
+                syncs.increment();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Error appending {} messages to the log of room '{}': {}", indexes.size(), batch.get(indexes.get(0)).getRoomId(), e.getMessage());
+            room.rollback();
+            for (int i : indexes) {
+                saved.set(i, null);
+            }
+        }
+    }
+
+    private RoomLog createRoom(String roomId) {
+        try {
+            return RoomLog.create(roomId, roomDir(roomId), segmentBytes, indexInterval);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path roomDir(String roomId) {
+        return baseDir.resolve(HEX.formatHex(roomId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public List<Message> getMessagesByRoom(String roomId, int limit) {
+        List<Message> messages = new ArrayList<>();
+        RoomLog room = rooms.get(roomId);
+        if (room == null) {
+            return messages;
+        }
+        try {
+            if (limit <= 0) {
+                room.scanAfterSeq(0, messages::add);
+            } else {
+                room.scanBackward(null, message -> messages.add(message) && messages.size() < limit);
+                Collections.reverse(messages);
+            }
+        } catch (IOException e) {
+            log.error("Error reading messages for room '{}': {}", roomId, e.getMessage(), e);
+            return new ArrayList<>();
+        }
+        log.debug("Retrieved {} messages for room '{}' (limit {}).", messages.size(), roomId, limit);
+        return messages;
+    }
+
+    @Override
+    public List<Message> getMessagesFromTime(String roomId, Timestamp fromTime) {
+        List<Message> messages = new ArrayList<>();
+        RoomLog room = rooms.get(roomId);
+        if (room == null || fromTime == null) {
+            return messages;
+        }
+        try {
+            room.scanAfterSeq(0, message -> {
+                if (!message.getTimestamp().before(fromTime)) {
+                    messages.add(message);
+                }
+                return true;
+            });
+        } catch (IOException e) {
+            log.error("Error reading messages for room '{}' from time {}: {}", roomId, fromTime, e.getMessage(), e);
+            return new ArrayList<>();
+        }
+        return messages;
+    }
+
+    @Override
+    public List<Message> getMessagesAfterSeq(String roomId, long afterSeq, int limit) {
+        List<Message> messages = new ArrayList<>();
+        RoomLog room = rooms.get(roomId);
+        if (room == null || limit <= 0 || afterSeq >= room.lastSeq()) {
+            return messages;
+        }
+        try {
+            room.scanAfterSeq(afterSeq, message -> messages.add(message) && messages.size() < limit);
+        } catch (IOException e) {
+            log.error("Error reading messages for room '{}' after seq {}: {}", roomId, afterSeq, e.getMessage(), e);
+            return new ArrayList<>();
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean streamMessagesPage(String roomId, Long cursorId, boolean newestFirst, int pageSize, MessageRowHandler handler) {
+        RoomLog room = rooms.get(roomId);
+        if (room == null || pageSize <= 0) {
+            return false;
+        }
+        // Read one message past the page to know whether another page follows
+        boolean[] more = new boolean[1];
+        int[] read = new int[1];
+        MessageRowHandler pageHandler = message -> {
+            if (read[0] == pageSize) {
+                more[0] = true;
+                return false;
+            }
+            read[0]++;
+            return handler.onMessage(message);
+        };
+        try {
+            if (newestFirst) {
+                room.scanBackward(cursorId, pageHandler);
+            } else {
+                room.scanAfterId(cursorId != null ? cursorId : 0, pageHandler);
+            }
+        } catch (IOException e) {
+            log.error("Error streaming messages page for room '{}': {}", roomId, e.getMessage(), e);
+            return false;
+        }
+        return more[0];
+    }
+
+    /**
+     * RoomDAO finds no messages in the database for rooms whose history lives here, so the
+     * latest message_id and seq come from the room logs.
+     */
+    @Override
+    public List<RoomSummary> withLatestMessages(List<RoomSummary> summaries) {
+        List<RoomSummary> result = new ArrayList<>(summaries.size());
+        for (RoomSummary summary : summaries) {
+            RoomLog room = rooms.get(summary.getRoomId());
+            result.add(new RoomSummary(summary.getRoomId(), summary.getName(), summary.getOwner(), summary.getMemberCount(),
+                    room != null ? room.lastId() : 0, room != null ? room.lastSeq() : 0));
+        }
+        return result;
+    }
+
+    @Override
+    public void deleteRoomMessages(String roomId) {
+        RoomLog room = rooms.remove(roomId);
+        if (room == null) {
+            return;
+        }
+        try {
+            room.delete();
+            log.info("Deleted message log of room '{}'.", roomId);
+        } catch (IOException e) {
+            log.error("Error deleting message log of room '{}': {}", roomId, e.getMessage(), e);
+        }
+    }
+
+    private void compact() {
+        for (RoomLog room : rooms.values()) {
+            try {
+                compactedSegments.add(room.compact());
+            } catch (IOException | RuntimeException e) {
+                log.error("Error compacting a message log: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private int segmentCount() {
+        int count = 0;
+        for (RoomLog room : rooms.values()) {
+            count += room.segmentCount();
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        writeBehind.close();
+        compactor.shutdownNow();
+        for (RoomLog room : rooms.values()) {
+            room.close();
+        }
+    }
+}
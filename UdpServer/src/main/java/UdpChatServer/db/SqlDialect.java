@@ -0,0 +1,146 @@
+package UdpChatServer.db;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+import com.zaxxer.hikari.HikariConfig;
+
+/**
+ * What differs between the supported databases, selected by db.profile.
+ *
+ * The schema scripts and DAO queries are written for MySQL; the embedded H2 profile runs H2 in
+ * MySQL compatibility mode (with case-insensitive VARCHARs, like MySQL's default collation), so
+ * the same SQL works on both. What remains dialect-specific is the connection setup and how
+ * errors are recognized: MySQL reports vendor error codes under SQLState 23000, H2 standard
+ * SQLStates.
+ */
+public enum SqlDialect {
+
+    MYSQL {
+        @Override
+        void configure(HikariConfig config, Properties props) {
+            config.setJdbcUrl(props.getProperty("db.url"));
+            config.setUsername(props.getProperty("db.username"));
+            config.setPassword(props.getProperty("db.password"));
+
+            // Recommended settings for MySQL
+            config.addDataSourceProperty("cachePrepStmts", "true");
+            config.addDataSourceProperty("prepStmtCacheSize", "250");
+            config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+            config.addDataSourceProperty("useServerPrepStmts", "true");
+            config.addDataSourceProperty("useLocalSessionState", "true");
+            config.addDataSourceProperty("rewriteBatchedStatements", "true");
+            config.addDataSourceProperty("cacheResultSetMetadata", "true");
+            config.addDataSourceProperty("cacheServerConfiguration", "true");
+            config.addDataSourceProperty("elideSetAutoCommits", "true");
+            config.addDataSourceProperty("maintainTimeStats", "false");
+        }
+
+        @Override
+        public boolean isDuplicateKey(SQLException e) {
+            return e.getErrorCode() == 1062;
+        }
+
+        @Override
+        public boolean isForeignKeyViolation(SQLException e) {
+            return e.getErrorCode() == 1452 || e.getErrorCode() == 1216;
+        }
+
+        @Override
+        boolean isTableMissing(SQLException e) {
+            return "42S02".equals(e.getSQLState()) || e.getErrorCode() == 1146;
+        }
+
+        @Override
+        boolean isAlreadyApplied(SQLException e) {
+            return e.getErrorCode() == 1050  // Table already exists
+                || e.getErrorCode() == 1060  // Duplicate column name
+                || e.getErrorCode() == 1061; // Duplicate key (index) name
+        }
+    },
+
+    H2 {
+        @Override
+        void configure(HikariConfig config, Properties props) {
+            config.setJdbcUrl(props.getProperty("db.h2.url", DEFAULT_H2_URL));
+            config.setUsername(props.getProperty("db.h2.username", "sa"));
+            config.setPassword(props.getProperty("db.h2.password", ""));
+        }
+
+        @Override
+        public boolean isDuplicateKey(SQLException e) {
+            return "23505".equals(e.getSQLState());
+        }
+
+        @Override
+        public boolean isForeignKeyViolation(SQLException e) {
+            return "23506".equals(e.getSQLState()) || "23503".equals(e.getSQLState());
+        }
+
+        @Override
+        boolean isTableMissing(SQLException e) {
+            return "42S02".equals(e.getSQLState()) || "42S04".equals(e.getSQLState())
+                || e.getErrorCode() == 42102 || e.getErrorCode() == 42104;
+        }
+
+        @Override
+        boolean isAlreadyApplied(SQLException e) {
+            return e.getErrorCode() == 42101  // Table already exists
+                || e.getErrorCode() == 42121  // Duplicate column name
+                || e.getErrorCode() == 42111  // Index already exists
+                || e.getErrorCode() == 90045; // Constraint already exists
+        }
+    };
+
+    /**
+     * In-memory database kept for the life of the JVM; a file URL
+     * (jdbc:h2:file:./data/udp_chat_db;...) keeps the data across restarts.
+     */
+    static final String DEFAULT_H2_URL = "jdbc:h2:mem:udp_chat_db;MODE=MySQL;DATABASE_TO_LOWER=TRUE;IGNORECASE=TRUE;DB_CLOSE_DELAY=-1";
+
+    /**
+     * The dialect named by db.profile (mysql, h2); MySQL if unset.
+     */
+    static SqlDialect fromProfile(String profile) {
+        if (profile == null || profile.isBlank()) {
+            return MYSQL;
+        }
+        try {
+            return valueOf(profile.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown db.profile '" + profile + "' (expected mysql or h2)", e);
+        }
+    }
+
+    /**
+     * Sets the JDBC URL, credentials and driver properties of the pool.
+     */
+    abstract void configure(HikariConfig config, Properties props);
+
+    /**
+     * A unique or primary key already holds the inserted value.
+     */
+    public abstract boolean isDuplicateKey(SQLException e);
+
+    /**
+     * A referenced row (room, owner, sender) does not exist.
+     */
+    public abstract boolean isForeignKeyViolation(SQLException e);
+
+    /**
+     * Any integrity constraint violation (duplicate key, foreign key, NOT NULL, ...).
+     */
+    public boolean isConstraintViolation(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    /**
+     * The queried table does not exist (empty database).
+     */
+    abstract boolean isTableMissing(SQLException e);
+
+    /**
+     * A migration statement failed because its table, column or index already exists.
+     */
+    abstract boolean isAlreadyApplied(SQLException e);
+}
@@ -18,54 +18,48 @@ public class UserDAO {
     private static final Logger log = LoggerFactory.getLogger(UserDAO.class);
 
     /**
-     * Authenticates a user based on chatid and password. IMPORTANT: In a real
-     * application, passwords should be hashed and salted. This implementation
-     * uses plain text comparison for simplicity based on the initial setup.
+     * Gets the stored password of a user: a PBKDF2 hash, or plaintext for rows created before
+     * passwords were hashed. Verification is done by AuthService.
      *
      * @param chatid The user's chat ID.
-     * @param password The user's plain text password.
-     * @return true if authentication is successful, false otherwise.
+     * @return The stored value, or null if the user doesn't exist or on error.
      */
-    public boolean authenticateUser(String chatid, String password) {
-        // Input validation
-        if (chatid == null || chatid.trim().isEmpty() || password == null) {
-            log.warn("Authentication attempt with invalid input (chatid: {})", chatid);
-            return false;
-        }
-
+    public String getStoredPassword(String chatid) {
         String sql = "SELECT password FROM users WHERE chatid = ?";
-        boolean authenticated = false;
-
-        // Use try-with-resources for automatic resource management
         try (Connection conn = DatabaseConnectionManager.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
             pstmt.setString(1, chatid);
-
             try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    String storedPassword = rs.getString("password");
-                    // !! SECURITY WARNING !!
-                    // !! Comparing plain text passwords is highly insecure. !!
-                    // !! In a production environment, use a strong hashing algorithm (e.g., bcrypt) !!
-                    // !! Example with hashing: passwordEncoder.matches(password, storedPasswordHash) !!
-                    if (password.equals(storedPassword)) {
-                        authenticated = true;
-                        log.info("User '{}' authenticated successfully.", chatid);
-                    } else {
-                        log.warn("Authentication failed for user '{}' due to incorrect password.", chatid);
-                    }
-                } else {
-                    log.warn("Authentication failed: User '{}' not found.", chatid);
-                }
+                return rs.next() ? rs.getString("password") : null;
             }
         } catch (SQLException e) {
-            log.error("SQL error during authentication for user '{}': {}", chatid, e.getMessage(), e);
-            // Depending on the error, you might want to throw a custom exception
+            log.error("SQL error reading password of user '{}': {}", chatid, e.getMessage(), e);
+            return null;
         } catch (Exception e) {
-            log.error("Unexpected error during authentication for user '{}': {}", chatid, e.getMessage(), e);
+            log.error("Unexpected error reading password of user '{}': {}", chatid, e.getMessage(), e);
+            return null;
         }
+    }
 
-        return authenticated;
+    /**
+     * Replaces a user's stored password (e.g. upgrading a legacy plaintext row to a hash).
+     *
+     * @param chatid The user's chat ID.
+     * @param hashedPassword The new hashed password.
+     * @return true if the row was updated, false otherwise.
+     */
+    public boolean updatePassword(String chatid, String hashedPassword) {
+        String sql = "UPDATE users SET password = ? WHERE chatid = ?";
+        try (Connection conn = DatabaseConnectionManager.getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, hashedPassword);
+            pstmt.setString(2, chatid);
+            return pstmt.executeUpdate() > 0;
+        } catch (SQLException e) {
+            log.error("SQL error updating password of user '{}': {}", chatid, e.getMessage(), e);
+            return false;
+        } catch (Exception e) {
+            log.error("Unexpected error updating password of user '{}': {}", chatid, e.getMessage(), e);
+            return false;
+        }
     }
 
     /**
@@ -94,8 +88,8 @@ public class UserDAO {
     }
 
     /**
-     * Adds a new user to the database. IMPORTANT: Ensure the password is
-     * properly hashed before calling this method in a real app.
+     * Adds a new user to the database. The password must already be hashed
+     * (see AuthService.hashPassword).
      *
      * @param chatid The user's chat ID.
      * @param hashedPassword The hashed password.
@@ -121,8 +115,8 @@ public class UserDAO {
                 return false;
             }
         } catch (SQLException e) {
-            // Handle potential duplicate entry errors (e.g., SQLState "23000")
-            if ("23000".equals(e.getSQLState())) {
+            // Handle duplicate entry errors (the chatid is taken)
+            if (DatabaseConnectionManager.getDialect().isDuplicateKey(e)) {
                 log.warn("Failed to add user '{}': User already exists.", chatid);
             } else {
                 log.error("SQL error while adding user '{}': {}", chatid, e.getMessage(), e);
@@ -136,9 +130,17 @@ public class UserDAO {
 
     // Lấy danh sách tất cả chatid
     public List<String> getAllChatIds() {
+        return getAllChatIds(ReadConsistency.BOUNDED_STALENESS);
+    }
+
+    /**
+     * All chatids, read with the given consistency (PRIMARY for a set that must not miss a
+     * just-registered user).
+     */
+    public List<String> getAllChatIds(ReadConsistency consistency) {
     String sql = "SELECT chatid FROM users"; // Thay query bằng sql cho đồng bộ với code hiện tại
     List<String> chatIds = new ArrayList<>();
-    try (Connection conn = DatabaseConnectionManager.getConnection();
+    try (Connection conn = DatabaseConnectionManager.getReadConnection(consistency);
          PreparedStatement pstmt = conn.prepareStatement(sql);
          ResultSet rs = pstmt.executeQuery()) {
         while (rs.next()) {
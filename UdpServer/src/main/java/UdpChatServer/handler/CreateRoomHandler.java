@@ -16,6 +16,7 @@ import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
 import UdpChatServer.manager.RoomManager;
+import UdpChatServer.manager.UserExistenceFilter;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.PendingMessageInfo;
 import UdpChatServer.model.SessionInfo;
@@ -33,14 +34,16 @@ public class CreateRoomHandler {
     private final RoomManager roomManager;
     private final RoomDAO roomDAO;
     private final UserDAO userDAO;
+    private final UserExistenceFilter userExistenceFilter; // Rejects mistyped chatids without a query
     private final UdpSender udpSender;
 
     public CreateRoomHandler(ClientSessionManager sessionManager, RoomManager roomManager,
-                           RoomDAO roomDAO, UserDAO userDAO, DatagramSocket socket, UdpSender udpSender) {
+                           RoomDAO roomDAO, UserDAO userDAO, UserExistenceFilter userExistenceFilter, DatagramSocket socket, UdpSender udpSender) {
         this.sessionManager = sessionManager;
         this.roomManager = roomManager;
         this.roomDAO = roomDAO;
         this.userDAO = userDAO;
+        this.userExistenceFilter = userExistenceFilter;
         this.udpSender = udpSender; 
     }
 
@@ -81,11 +84,11 @@ public class CreateRoomHandler {
                 return false;
             }
 
-            // 2. Verify all participants exist (using UserDAO)
+            // 2. Chatids the filter has never seen don't exist: reject without touching the database
             for (String chatId : participants) {
-                if (!sessionManager.isOnline(chatId) && !userDAO.userExists(chatId)) {
-                     log.warn("Participant '{}' not found during confirmed create_room for transaction {}", chatId, transactionId);
-                     return false;
+                if (!userExistenceFilter.mightExist(chatId)) {
+                    log.warn("Participant '{}' not found during confirmed create_room for transaction {}", chatId, transactionId);
+                    return false;
                 }
             }
 
@@ -104,35 +107,19 @@ public class CreateRoomHandler {
                 }
             }
 
-            // 5. Create room in database with name and set the creator as owner
-            // *** MODIFIED LINE: Pass creatorChatId as the third argument ***
-            if (!roomDAO.createRoomIfNotExists(roomId, roomName, creatorChatId)) {
-                log.error("Failed to create room '{}' with name '{}' and owner '{}' in DB for transaction {}",
-                          roomId, roomName, creatorChatId, transactionId); // Added owner to log message
+            // 5. Check that every participant exists, then create the room and add them in one
+            // transaction; on failure nothing is written
+            if (!roomDAO.createRoomWithParticipants(roomId, roomName, creatorChatId, participants)) {
+                log.error("Failed to create room '{}' with name '{}', owner '{}' and participants {} in DB for transaction {}",
+                          roomId, roomName, creatorChatId, participants, transactionId);
                 return false;
             }
 
-            // 6. Add all participants to room in DB
-            boolean allAdded = true;
-            participants.add(creatorChatId);
-            for (String chatId : participants) {
-                if (!roomDAO.addParticipantToRoom(roomId, chatId)) {
-                    allAdded = false;
-                    log.error("Failed to add participant {} to room {} in DB for transaction {}",
-                              chatId, roomId, transactionId);
-                }
-            }
-
-            if (!allAdded) {
-                log.error("Failed to add all participants to room '{}' in DB for transaction {}", roomId, transactionId);
-                // Consider rolling back room creation or participant additions if critical
-                return false;
-            }
-
-            // 7. Update in-memory room manager
+            // 6. Update in-memory room manager (membership and name metadata), only after the commit
             roomManager.createOrJoinRoom(roomId, participants);
+            roomManager.updateRoomName(roomId, roomName);
 
-            // 8. Success! UdpRequestHandler will send ACK(success)
+            // 7. Success! UdpRequestHandler will send ACK(success)
             log.info("Room {} with name '{}' created successfully by {} for transaction {}",
                      roomId, roomName, creatorChatId, transactionId);
             forwardRoomToUser(roomId, roomName, creatorChatId, participants);
@@ -141,7 +128,6 @@ public class CreateRoomHandler {
         } catch (Exception e) {
             log.error("Error processing confirmed create_room from {} (Transaction ID: {}): {}",
                      creatorChatId, transactionId, e.getMessage(), e);
-            // Consider more specific error handling or rollback
             return false;
         }
     }
@@ -156,7 +142,7 @@ public class CreateRoomHandler {
         log.info("Attempting to create default bot room for new user '{}'", userChatId);
 
         // 1. Check if bot user exists
-        if (!userDAO.userExists(Constants.GEMINI_BOT_CHAT_ID)) {
+        if (!userExistenceFilter.mightExist(Constants.GEMINI_BOT_CHAT_ID) || !userDAO.userExists(Constants.GEMINI_BOT_CHAT_ID)) {
             log.error("Cannot create default room: Bot user '{}' does not exist in the database.", Constants.GEMINI_BOT_CHAT_ID);
             return false;
         }
@@ -171,25 +157,16 @@ public class CreateRoomHandler {
         String roomName = Constants.DEFAULT_BOT_ROOM_NAME;
 
         try {
-            // 4. Create room in DB (user is the owner)
-            if (!roomDAO.createRoomIfNotExists(roomId, roomName, userChatId)) {
+            // 4. Create room and add both participants in one transaction (user is the owner)
+            if (!roomDAO.createRoomWithParticipants(roomId, roomName, userChatId, participants)) {
                 log.error("Failed to create default bot room '{}' with owner '{}' in DB.", roomId, userChatId);
-                // Room might already exist, proceed to add participants if needed, but log error
-            }
-
-            // 5. Add participants to room in DB
-            boolean userAdded = roomDAO.addParticipantToRoom(roomId, userChatId);
-            boolean botAdded = roomDAO.addParticipantToRoom(roomId, Constants.GEMINI_BOT_CHAT_ID);
-
-            if (!userAdded || !botAdded) {
-                log.warn("Failed to add one or both participants ('{}', '{}') to default bot room '{}' in DB. Proceeding...", userChatId, Constants.GEMINI_BOT_CHAT_ID, roomId);
-                // Continue even if adding fails, maybe they already exist
+                return false;
             }
 
-            // 6. Update in-memory room manager
+            // 5. Update in-memory room manager, only after the commit
             roomManager.createOrJoinRoom(roomId, participants);
 
-            // 7. Notify the new user about the room creation (S2C flow)
+            // 6. Notify the new user about the room creation (S2C flow)
             log.info("Default bot room {} created/joined for user {}. Notifying user.", roomId, userChatId);
             // Pass the userChatId as the 'creator' here, as they are the one receiving the notification
             forwardRoomToUser(roomId, roomName, userChatId, participants);
@@ -10,6 +10,7 @@ package UdpChatServer.handler;
  */
 import java.net.InetAddress;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,8 +18,10 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
-import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.PresenceManager;
+import UdpChatServer.manager.PresenceManager.PresenceState;
+import UdpChatServer.manager.UserDirectory;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.PendingMessageInfo;
 import UdpChatServer.net.UdpSender;
@@ -26,12 +29,14 @@ import UdpChatServer.net.UdpSender;
 public class GetUsersHandler {
     private static final Logger log = LoggerFactory.getLogger(GetUsersHandler.class);
     private final ClientSessionManager sessionManager;
-    private final UserDAO userDAO;
+    private final UserDirectory userDirectory;
+    private final PresenceManager presenceManager;
     private final UdpSender udpSender;
 
-    public GetUsersHandler(ClientSessionManager sessionManager, UserDAO userDAO, UdpSender udpSender) {
+    public GetUsersHandler(ClientSessionManager sessionManager, UserDirectory userDirectory, PresenceManager presenceManager, UdpSender udpSender) {
         this.sessionManager = sessionManager;
-        this.userDAO = userDAO;
+        this.userDirectory = userDirectory;
+        this.presenceManager = presenceManager;
         this.udpSender = udpSender;
     }
 
@@ -54,22 +59,48 @@ public class GetUsersHandler {
         }
 
         try {
-            List<String> users = userDAO.getAllChatIds();
-            if (users == null || users.isEmpty()) {
-                log.info("No users found in the system.");
+            JsonObject requestData = pendingInfo.getOriginalMessageJson().getAsJsonObject(Constants.KEY_DATA);
+            JsonObject responseData = new JsonObject();
+            List<String> users;
+
+            if (requestData.has(Constants.KEY_PREFIX)) {
+                // Prefix lookup, one page at a time; pass next_cursor back as "after"
+                String prefix = requestData.get(Constants.KEY_PREFIX).getAsString();
+                String after = requestData.has(Constants.KEY_AFTER) ? requestData.get(Constants.KEY_AFTER).getAsString() : null;
+                int limit = requestData.has(Constants.KEY_LIMIT) ? requestData.get(Constants.KEY_LIMIT).getAsInt() : Constants.DEFAULT_USERS_PAGE_LIMIT;
+                limit = Math.max(1, Math.min(limit, Constants.MAX_USERS_PAGE_LIMIT));
+
+                List<String> matches = userDirectory.search(prefix, after, limit);
+                boolean hasMore = matches.size() > limit;
+                users = hasMore ? matches.subList(0, limit) : matches;
+                responseData.add("users", toJsonArray(users));
+                responseData.addProperty(Constants.KEY_PREFIX, prefix);
+                responseData.addProperty(Constants.KEY_HAS_MORE, hasMore);
+                if (hasMore) {
+                    responseData.addProperty(Constants.KEY_NEXT_CURSOR, users.get(users.size() - 1));
+                }
+                log.info("Found {} users with prefix '{}' for {} (has more: {}).", users.size(), prefix, chatid, hasMore);
             } else {
-                log.info("Found {} users in the system.", users.size());
+                // Versioned directory: nothing, the users added since the client's version, or everyone
+                Long knownVersion = requestData.has(Constants.KEY_USERS_VERSION) ? requestData.get(Constants.KEY_USERS_VERSION).getAsLong() : null;
+                UserDirectory.Changes changes = userDirectory.changesSince(knownVersion);
+                users = changes.getUsers();
+                responseData.addProperty(Constants.KEY_USERS_VERSION, changes.getVersion());
+                switch (changes.getKind()) {
+                    case NOT_MODIFIED -> responseData.addProperty(Constants.KEY_NOT_MODIFIED, true);
+                    case DELTA -> responseData.add(Constants.KEY_ADDED, toJsonArray(users));
+                    case FULL -> responseData.add("users", toJsonArray(users));
+                }
+                log.info("get_users for {}: known version {}, current {} ({}, {} users).",
+                        chatid, knownVersion, changes.getVersion(), changes.getKind(), users.size());
             }
 
-            JsonObject responseData = new JsonObject();
-            JsonArray usersArray = new JsonArray();
-            // Add null check before iterating
-            if (users != null) {
-                for (String user : users) {
-                    usersArray.add(user);
-                }
+            // Presence of every listed user (online / idle / offline)
+            JsonObject presenceObject = new JsonObject();
+            for (Map.Entry<String, PresenceState> entry : presenceManager.getPresence(users).entrySet()) {
+                presenceObject.addProperty(entry.getKey(), entry.getValue().getWireValue());
             }
-            responseData.add("users", usersArray);
+            responseData.add(Constants.KEY_PRESENCE, presenceObject);
 
             JsonObject responseJson = new JsonObject();
             responseJson.addProperty(Constants.KEY_ACTION, Constants.ACTION_USERS_LIST); // Dùng hằng số
@@ -85,4 +116,12 @@ public class GetUsersHandler {
             return false;
         }
     }
+
+    private static JsonArray toJsonArray(List<String> users) {
+        JsonArray array = new JsonArray();
+        for (String user : users) {
+            array.add(user);
+        }
+        return array;
+    }
 }
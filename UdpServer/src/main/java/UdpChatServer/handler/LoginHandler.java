@@ -1,23 +1,32 @@
 package UdpChatServer.handler;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 import UdpChatServer.crypto.KeyGenerator;
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
-import UdpChatServer.db.UserDAO;
+import UdpChatServer.manager.AuthService;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.RecentMessageCache;
 import UdpChatServer.model.Constants;
+import UdpChatServer.model.Message;
 import UdpChatServer.model.PendingMessageInfo;
+import UdpChatServer.model.RoomSummary;
 import UdpChatServer.net.UdpSender;
 import UdpChatServer.util.JsonHelper;
 
@@ -27,140 +36,245 @@ import UdpChatServer.util.JsonHelper;
 public class LoginHandler {
 
     private static final Logger log = LoggerFactory.getLogger(LoginHandler.class);
-    private static final Gson gson = new Gson();
+    // after_seq, unread_count, has_more and the "messages" key, added to a room after it is reserved
+    private static final int ROOM_SYNC_FIELDS_BYTES = 96;
 
-    private final UserDAO userDAO;
+    private final AuthService authService; // Password checks run on its own bounded executor
     private final RoomDAO roomDAO;
-    private final MessageDAO messageDAO;
+    private final MessageStore messageStore; // Latest seq of each room
+    private final RecentMessageCache recentMessageCache; // Serves the missed messages of the login sync
     private final ClientSessionManager sessionManager;
     private final UdpSender udpSender;
+    private final int messagesPerRoom; // Missed messages sent per room at login; the rest is pulled with get_messages
+    private final Executor deliveryExecutor; // Builds the session and login sync once authenticated
 
-    public LoginHandler(UserDAO userDAO, RoomDAO roomDAO, MessageDAO messageDAO, ClientSessionManager sessionManager, UdpSender udpSender) {
-        this.userDAO = userDAO;
+    public LoginHandler(AuthService authService, RoomDAO roomDAO, MessageStore messageStore, RecentMessageCache recentMessageCache, ClientSessionManager sessionManager, UdpSender udpSender, int messagesPerRoom, Executor deliveryExecutor) {
+        this.authService = authService;
         this.roomDAO = roomDAO;
-        this.messageDAO = messageDAO;
+        this.messageStore = messageStore;
+        this.recentMessageCache = recentMessageCache;
         this.sessionManager = sessionManager;
         this.udpSender = udpSender;
+        this.messagesPerRoom = Math.max(1, Math.min(messagesPerRoom, Constants.MAX_MESSAGES_PAGE_LIMIT));
+        this.deliveryExecutor = deliveryExecutor;
     }
 
-    public boolean processConfirmedLogin(PendingMessageInfo pendingInfo) {
+    /**
+     * Authenticates on the auth executor, then builds the session and the login sync on
+     * {@code deliveryExecutor}.
+     *
+     * @return A future completed with true once login_success was sent, false on failure.
+     */
+    public CompletableFuture<Boolean> processConfirmedLogin(PendingMessageInfo pendingInfo) {
         if (pendingInfo == null || pendingInfo.getDirection() != PendingMessageInfo.Direction.CLIENT_TO_SERVER ||
             !Constants.ACTION_LOGIN.equals(pendingInfo.getOriginalAction())) {
             log.error("Invalid pending info passed to processConfirmedLogin: {}", pendingInfo);
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        JsonObject originalRequest = pendingInfo.getOriginalMessageJson();
-        JsonObject requestData = originalRequest.getAsJsonObject(Constants.KEY_DATA);
+        JsonObject requestData = pendingInfo.getOriginalMessageJson().getAsJsonObject(Constants.KEY_DATA);
         InetAddress clientAddress = pendingInfo.getPartnerAddress();
         int clientPort = pendingInfo.getPartnerPort();
-        String chatid = null;
-
+        String chatid;
+        String password;
         try {
             // 1. Extract credentials
             chatid = requestData.get(Constants.KEY_CHAT_ID).getAsString();
-            String password = requestData.get(Constants.KEY_PASSWORD).getAsString();
-
-            log.info("Processing confirmed login request for user '{}' from {}:{} (Transaction ID: {})",
-                     chatid, clientAddress.getHostAddress(), clientPort, pendingInfo.getTransactionId());
-
-            // 2. Authenticate user via UserDAO
-            boolean isAuthenticated = userDAO.authenticateUser(chatid, password);
-
-            if (isAuthenticated) {
-                log.info("User '{}' authenticated successfully.", chatid);
-
-                // 3. Generate session key
-                String newSessionKey = KeyGenerator.generateKey();
-
-                // 4. Add session to ClientSessionManager
-                sessionManager.addSession(chatid, clientAddress, clientPort, newSessionKey);
-                log.info("Session created for user '{}' with key ending in ...{}", chatid, newSessionKey.length() > 4 ? newSessionKey.substring(newSessionKey.length() - 4) : newSessionKey);
-
-                // 5. Fetch user's room list
-                log.info("Fetching room list for user '{}' after successful login.", chatid);
-                List<Map<String, Object>> userRoomsData = roomDAO.getRoomsAndMembersByUser(chatid);
-                System.out.println("---------------------------------------"+userRoomsData);
-                JsonArray roomsJsonArray = gson.toJsonTree(userRoomsData).getAsJsonArray();
-                System.out.println("------------------------s---------------"+roomsJsonArray);
-                log.info("Retrieved {} rooms for user '{}'.", roomsJsonArray.size(), chatid);
-
-                // 6. Fetch all users list
-                log.info("Fetching list of all users.");
-                List<String> allUserIds = userDAO.getAllChatIds();
-                System.out.println("------------------------s---------------"+allUserIds);
-                JsonArray allUsersJsonArray = gson.toJsonTree(allUserIds).getAsJsonArray();
-                System.out.println("------------------------s---------------"+allUsersJsonArray);
-                log.info("Retrieved {} total users.", allUsersJsonArray.size());
-
-                // 7. Fetch all messages for user's rooms (POTENTIALLY VERY LARGE) - ADDING BACK
-                log.warn("Fetching ALL messages for ALL {} rooms of user '{}'. This might be slow and generate large response!", userRoomsData.size(), chatid);
-                JsonObject allMessagesByRoomJson = new JsonObject();
-                int totalMessagesFetched = 0;
-                for (Map<String, Object> roomInfo : userRoomsData) {
-                    String currentRoomId = (String) roomInfo.get("id");
-                    if (currentRoomId != null) {
-                        log.debug("Fetching messages for room ID: {}", currentRoomId);
-                        List<UdpChatServer.model.Message> messagesInRoom = messageDAO.getAllMessagesByRoom(currentRoomId);
-                        JsonArray messagesJsonArray = new JsonArray();
-                        for (UdpChatServer.model.Message msg : messagesInRoom) {
-                            JsonObject msgJson = new JsonObject();
-                            msgJson.addProperty("message_id", msg.getMessageId());
-                            msgJson.addProperty("sender_chatid", msg.getSenderChatid());
-                            msgJson.addProperty("content", msg.getContent());
-                            msgJson.addProperty("timestamp", msg.getTimestamp().toInstant().toString());
-                            messagesJsonArray.add(msgJson);
-                        }
-                        allMessagesByRoomJson.add(currentRoomId, messagesJsonArray);
-                        totalMessagesFetched += messagesInRoom.size();
-                        log.debug("Fetched {} messages for room {}", messagesInRoom.size(), currentRoomId);
-                    }
-                }
-                System.out.println("------------------------s---------------"+allMessagesByRoomJson);
-                log.warn("Finished fetching messages. Total messages fetched: {}. Adding to response.", totalMessagesFetched);
-
-                // 8. Prepare login_success reply JSON data
-                JsonObject replyData = new JsonObject();
-                replyData.addProperty(Constants.KEY_CHAT_ID, chatid);
-                replyData.addProperty(Constants.KEY_SESSION_KEY, newSessionKey); // SECURITY RISK
-                replyData.add("rooms", roomsJsonArray);
-                replyData.add("all_users", allUsersJsonArray);
-                replyData.add("all_messages", allMessagesByRoomJson); // <-- Add all messages back
-
-                // Create the final JSON structure to be sent in ACK message
-                JsonObject replyJson = JsonHelper.createReply(
-                    Constants.ACTION_LOGIN_SUCCESS, // Still use LOGIN_SUCCESS action type conceptually
-                    Constants.STATUS_SUCCESS,
-                    "Login successful. Room list, all users, and all messages included.", // Updated message
-                    replyData
-                );
-
-                // Log the JSON being sent via ACK message
-                log.debug("Sending ACTION_LOGIN_SUCCESS JSON via ACK message (INSECURE): {}", replyJson.toString());
-
-                // 9. Send the entire replyJson as the message in the ACK packet
-                log.warn("Sending login success data including session key via ACK message using fixed key - SECURITY RISK!");
-                udpSender.sendAck(
-                    clientAddress,                  // Use clientAddress from pendingInfo
-                    clientPort,                   // Use clientPort from pendingInfo
-                    pendingInfo.getTransactionId(), // Use the original C2S transaction ID
-                    true,                           // Success status
-                    replyJson.toString(),           // Embed the full JSON response as the message string
-                    pendingInfo.getTransactionKey() // Use the key from the original C2S flow (fixed key)
-                );
-
-                return true;
+            password = requestData.get(Constants.KEY_PASSWORD).getAsString();
+        } catch (Exception e) {
+            log.error("Invalid login request from {}:{}: {}", clientAddress.getHostAddress(), clientPort, e.getMessage());
+            return CompletableFuture.completedFuture(false);
+        }
 
-            } else {
+        log.info("Processing confirmed login request for user '{}' from {}:{} (Transaction ID: {})",
+                 chatid, clientAddress.getHostAddress(), clientPort, pendingInfo.getTransactionId());
+
+        // 2. Authenticate off the request pool; a full auth queue fails the login at once
+        return authService.authenticate(chatid, password).handleAsync((isAuthenticated, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof RejectedExecutionException) {
+                    log.warn("Login of user '{}' rejected: authentication queue is full.", chatid);
+                } else {
+                    log.error("Error authenticating user '{}': {}", chatid, cause.getMessage(), cause);
+                }
+                return false;
+            }
+            if (!Boolean.TRUE.equals(isAuthenticated)) {
                 log.warn("Confirmed login failed for user '{}' from {}:{}. Invalid credentials.", chatid, clientAddress.getHostAddress(), clientPort);
                 return false;
             }
+            log.info("User '{}' authenticated successfully.", chatid);
+            return completeLogin(pendingInfo, requestData, chatid);
+        }, deliveryExecutor);
+    }
+
+    /**
+     * Creates the session of an authenticated user and sends login_success with the sync data.
+     */
+    private boolean completeLogin(PendingMessageInfo pendingInfo, JsonObject requestData, String chatid) {
+        InetAddress clientAddress = pendingInfo.getPartnerAddress();
+        int clientPort = pendingInfo.getPartnerPort();
+        try {
+            // 3. Generate session key
+            String newSessionKey = KeyGenerator.generateKey();
+
+            // 4. Add session to ClientSessionManager
+            sessionManager.addSession(chatid, clientAddress, clientPort, newSessionKey);
+            log.info("Session created for user '{}' with key ending in ...{}", chatid, newSessionKey.length() > 4 ? newSessionKey.substring(newSessionKey.length() - 4) : newSessionKey);
+
+            // 5. Room summaries (id, name, owner, member count, last seq) in one query
+            List<RoomSummary> summaries = new ArrayList<>(messageStore.withLatestMessages(roomDAO.getRoomSummariesByUser(chatid)));
+            summaries.sort(RoomSummary.BY_ROOM_ID); // The order rooms_cursor continues in
+            log.info("Retrieved {} rooms for user '{}'.", summaries.size(), chatid);
+
+            // 6. Incremental sync: only the messages the client is missing, per its high-water marks
+            Map<String, Long> highWaterMarks = readHighWaterMarks(requestData);
+            MessagePageWriter page = new MessagePageWriter(Constants.MAX_MESSAGES_PAGE_BYTES);
+            JsonArray roomsJsonArray = new JsonArray();
+            int totalMessagesSynced = 0;
+            String roomsCursor = null;
+            boolean roomsHasMore = false;
+            for (RoomSummary summary : summaries) {
+                // Room summaries share the datagram budget with the messages
+                JsonObject roomJson = roomSummaryJson(summary);
+                if (!page.tryReserve(roomJson, ROOM_SYNC_FIELDS_BYTES)) {
+                    roomsHasMore = true; // The rest comes from get_rooms with rooms_cursor
+                    break;
+                }
+                page.startPage();
+                syncRoom(roomJson, summary, highWaterMarks.get(summary.getRoomId()), page);
+                totalMessagesSynced += page.getMessages().size();
+                roomsJsonArray.add(roomJson);
+                roomsCursor = summary.getRoomId();
+            }
+            log.info("Login sync for user '{}': {} of {} rooms, {} with high-water marks, {} messages included.",
+                    chatid, roomsJsonArray.size(), summaries.size(), highWaterMarks.size(), totalMessagesSynced);
+
+            // 7. Prepare login_success reply JSON data
+            JsonObject replyData = new JsonObject();
+            replyData.addProperty(Constants.KEY_CHAT_ID, chatid);
+            replyData.addProperty(Constants.KEY_SESSION_KEY, newSessionKey); // SECURITY RISK
+            replyData.add("rooms", roomsJsonArray);
+            replyData.addProperty(Constants.KEY_ROOMS_HAS_MORE, roomsHasMore);
+            if (roomsHasMore) {
+                replyData.addProperty(Constants.KEY_ROOMS_CURSOR, roomsCursor);
+            }
+
+            // Create the final JSON structure to be sent in ACK message
+            JsonObject replyJson = JsonHelper.createReply(
+                Constants.ACTION_LOGIN_SUCCESS, // Still use LOGIN_SUCCESS action type conceptually
+                Constants.STATUS_SUCCESS,
+                "Login successful. Room summaries and missed messages included.",
+                replyData
+            );
 
+            // Log the JSON being sent via ACK message
+            log.debug("Sending ACTION_LOGIN_SUCCESS JSON via ACK message (INSECURE): {}", replyJson.toString());
+
+            // 8. Send the entire replyJson as the message in the ACK packet
+            log.warn("Sending login success data including session key via ACK message using fixed key - SECURITY RISK!");
+            udpSender.sendAck(
+                clientAddress,                  // Use clientAddress from pendingInfo
+                clientPort,                   // Use clientPort from pendingInfo
+                pendingInfo.getTransactionId(), // Use the original C2S transaction ID
+                true,                           // Success status
+                replyJson.toString(),           // Embed the full JSON response as the message string
+                pendingInfo.getTransactionKey() // Use the key from the original C2S flow (fixed key)
+            );
+
+            return true;
         } catch (Exception e) {
             log.error("Error processing confirmed login for user '{}' from {}:{}: {}",
-                      (chatid != null ? chatid : "UNKNOWN"), clientAddress.getHostAddress(), clientPort, e.getMessage(), e);
+                      chatid, clientAddress.getHostAddress(), clientPort, e.getMessage(), e);
             return false;
         }
     }
-    
+
+    private static JsonObject roomSummaryJson(RoomSummary summary) {
+        JsonObject roomJson = new JsonObject();
+        roomJson.addProperty("id", summary.getRoomId());
+        roomJson.addProperty("name", summary.getName());
+        roomJson.addProperty("owner", summary.getOwner());
+        roomJson.addProperty("member_count", summary.getMemberCount());
+        roomJson.addProperty("last_message_id", summary.getLastMessageId());
+        roomJson.addProperty("last_seq", summary.getLastSeq());
+        return roomJson;
+    }
+
+    /**
+     * Adds the sync state of one room to its summary, the messages the client is missing going into {@code page}.
+     *
+     * With a high-water mark, the messages after it (up to the per-room limit); a room whose
+     * last seq is at or below the mark costs no query. Without one (a room the client has never
+     * synced), the newest page. Rooms that don't fit get has_more; the client continues with
+     * get_messages (after_seq, or before_id for older history).
+     */
+    private void syncRoom(JsonObject roomJson, RoomSummary summary, Long highWaterMark, MessagePageWriter page) {
+        String roomId = summary.getRoomId();
+
+        long unread = 0;
+        boolean hasMore = false;
+        if (highWaterMark == null) {
+            if (summary.getLastSeq() > 0) {
+                if (page.isFull()) {
+                    hasMore = true;
+                } else {
+                    // Newest first from the cache; reversed below so the client gets them in order
+                    hasMore = recentMessageCache.streamMessagesPage(roomId, null, true, messagesPerRoom, page::tryAppend);
+                    reverse(page.getMessages());
+                }
+            }
+        } else if (summary.getLastSeq() > highWaterMark) {
+            // Exact count when everything missed fits; otherwise estimated from the seq distance
+            unread = summary.getLastSeq() - highWaterMark;
+            if (page.isFull()) {
+                hasMore = true;
+            } else {
+                List<Message> missed = recentMessageCache.getMessagesAfterSeq(roomId, highWaterMark, messagesPerRoom + 1);
+                hasMore = missed.size() > messagesPerRoom;
+                if (!hasMore) {
+                    unread = missed.size();
+                }
+                for (Message message : missed.subList(0, Math.min(messagesPerRoom, missed.size()))) {
+                    if (!page.tryAppend(message)) {
+                        hasMore = true;
+                        break;
+                    }
+                }
+            }
+            roomJson.addProperty(Constants.KEY_AFTER_SEQ, highWaterMark);
+        }
+        roomJson.addProperty(Constants.KEY_UNREAD_COUNT, unread);
+        roomJson.addProperty(Constants.KEY_HAS_MORE, hasMore);
+        if (!page.getMessages().isEmpty()) {
+            roomJson.add("messages", page.getMessages());
+        }
+    }
+
+    /**
+     * The client's last seen seq per room ("high_water_marks": {"room_id": seq, ...}), or an
+     * empty map for a client that sends none.
+     */
+    private static Map<String, Long> readHighWaterMarks(JsonObject requestData) {
+        Map<String, Long> marks = new HashMap<>();
+        if (requestData.has(Constants.KEY_HIGH_WATER_MARKS) && requestData.get(Constants.KEY_HIGH_WATER_MARKS).isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : requestData.getAsJsonObject(Constants.KEY_HIGH_WATER_MARKS).entrySet()) {
+                try {
+                    marks.put(entry.getKey(), Math.max(0, entry.getValue().getAsLong()));
+                } catch (RuntimeException e) {
+                    log.warn("Ignoring invalid high-water mark for room '{}': {}", entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return marks;
+    }
+
+    private static void reverse(JsonArray array) {
+        for (int i = 0, j = array.size() - 1; i < j; i++, j--) {
+            JsonElement tmp = array.get(i);
+            array.set(i, array.get(j));
+            array.set(j, tmp);
+        }
+    }
 }
@@ -0,0 +1,86 @@
+package UdpChatServer.handler;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import UdpChatServer.model.Constants;
+import UdpChatServer.model.Message;
+import UdpChatServer.util.JsonHelper;
+
+/**
+ * Builds the messages arrays of a response, refusing rows once they would no longer fit in
+ * one datagram. The byte budget is shared by every page started on the writer (e.g. one page
+ * per room in the login sync) and by the other objects reserved on it (the room summaries).
+ * The first row is always accepted so paging can progress.
+ */
+final class MessagePageWriter {
+    private final int maxBytes;
+    private int bytes;
+    private boolean full; // A row has been refused
+    private JsonArray messages = new JsonArray();
+    private Long lastMessageId;
+
+    MessagePageWriter(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    boolean tryAppend(Message message) {
+        JsonObject messageObj = new JsonObject();
+        messageObj.addProperty("message_id", message.getMessageId());
+        messageObj.addProperty(Constants.KEY_SEQ, message.getSeq());
+        messageObj.addProperty("sender_chatid", message.getSenderChatid());
+        messageObj.addProperty("content", message.getContent());
+        messageObj.addProperty("timestamp", message.getTimestamp().toInstant().toString());
+
+        int size = JsonHelper.toWireString(messageObj).getBytes(StandardCharsets.UTF_8).length + 1; // +1 for the comma
+        if (bytes > 0 && bytes + size > maxBytes) {
+            full = true;
+            return false;
+        }
+        bytes += size;
+        messages.add(messageObj);
+        lastMessageId = message.getMessageId();
+        return true;
+    }
+
+    /**
+     * Counts an object written next to the messages (e.g. a room summary) against the budget,
+     * plus extraBytes for fields added to it later.
+     *
+     * @return false if it doesn't fit; it must then be left out of the response.
+     */
+    boolean tryReserve(JsonObject object, int extraBytes) {
+        int size = JsonHelper.toWireString(object).getBytes(StandardCharsets.UTF_8).length + extraBytes + 1; // +1 for the comma
+        if (bytes > 0 && bytes + size > maxBytes) {
+            full = true;
+            return false;
+        }
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * Starts a new, empty page; the byte budget keeps counting.
+     */
+    void startPage() {
+        messages = new JsonArray();
+        lastMessageId = null;
+    }
+
+    /**
+     * Whether the budget is spent: a later page would only be refused.
+     */
+    boolean isFull() {
+        return full || bytes >= maxBytes;
+    }
+
+    JsonArray getMessages() {
+        return messages;
+    }
+
+    Long getLastMessageId() {
+        return lastMessageId;
+    }
+}
@@ -9,20 +9,29 @@ package UdpChatServer.handler;
  * @author nguye
  */
 import java.net.InetAddress;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import UdpChatServer.db.UserDAO;
+import UdpChatServer.manager.AuthService;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.UserDirectory;
+import UdpChatServer.manager.UserExistenceFilter;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.PendingMessageInfo;
 import UdpChatServer.model.SessionInfo;
+import UdpChatServer.net.FanoutExecutor;
 import UdpChatServer.net.UdpSender;
 import UdpChatServer.util.JsonHelper;
 
@@ -30,17 +39,32 @@ public class RegisterHandler {
     private static final Logger log = LoggerFactory.getLogger(RegisterHandler.class);
     private final UserDAO userDAO;
     private final UdpSender udpSender;
+    private final FanoutExecutor fanoutExecutor;
     private final ClientSessionManager sessionManager;
     private final CreateRoomHandler createRoomHandler;
+    private final UserDirectory userDirectory;
+    private final UserExistenceFilter userExistenceFilter; // A free chatid is usually known free without a lookup
+    private final AuthService authService; // Hashes passwords on its own bounded executor
+    private final Executor deliveryExecutor; // Stores the user once the password is hashed
 
-    public RegisterHandler(UserDAO userDAO, UdpSender udpSender, ClientSessionManager sessionManager, CreateRoomHandler createRoomHandler) {
+    public RegisterHandler(UserDAO userDAO, UserDirectory userDirectory, UserExistenceFilter userExistenceFilter, AuthService authService, UdpSender udpSender, FanoutExecutor fanoutExecutor, ClientSessionManager sessionManager, CreateRoomHandler createRoomHandler, Executor deliveryExecutor) {
         this.userDAO = userDAO;
+        this.authService = authService;
+        this.deliveryExecutor = deliveryExecutor;
+        this.userDirectory = userDirectory;
+        this.userExistenceFilter = userExistenceFilter;
         this.udpSender = udpSender;
+        this.fanoutExecutor = fanoutExecutor;
         this.sessionManager = sessionManager;
         this.createRoomHandler = createRoomHandler;
     }
 
-    public boolean processConfirmedRegister(PendingMessageInfo pendingInfo) {
+    /**
+     * Hashes the password on the auth executor, then stores the user on {@code deliveryExecutor}.
+     *
+     * @return A future completed with true once the user is registered, false on failure.
+     */
+    public CompletableFuture<Boolean> processConfirmedRegister(PendingMessageInfo pendingInfo) {
         InetAddress clientAddress = pendingInfo.getPartnerAddress();
         int clientPort = pendingInfo.getPartnerPort();
         JsonObject data = pendingInfo.getOriginalMessageJson().getAsJsonObject(Constants.KEY_DATA);
@@ -52,14 +76,38 @@ public class RegisterHandler {
         log.info("Processing confirmed register request for {} from {}:{}", chatid, clientAddress.getHostAddress(), clientPort);
 
         try {
-            if (userDAO.userExists(chatid)) {
+            if (userExistenceFilter.mightExist(chatid) && (userDirectory.contains(chatid) || userDAO.userExists(chatid))) {
                 log.warn("Chatid {} already exists.", chatid);
                 udpSender.sendAck(clientAddress, clientPort, pendingInfo.getTransactionId(), false,
                         "Chatid already exists.", transactionKey);
+                return CompletableFuture.completedFuture(false);
+            }
+        } catch (Exception e) {
+            log.error("Error processing register for {}: {}", chatid, e.getMessage(), e);
+            udpSender.sendAck(clientAddress, clientPort, pendingInfo.getTransactionId(), false,
+                    "Failed to register: " + e.getMessage(), transactionKey);
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return authService.hashPassword(password).handleAsync((hashedPassword, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                boolean busy = cause instanceof RejectedExecutionException;
+                log.error("Failed to hash password for {}: {}", chatid, busy ? "authentication queue is full" : cause.getMessage());
+                udpSender.sendAck(clientAddress, clientPort, pendingInfo.getTransactionId(), false,
+                        busy ? "Server busy, please try again." : "Failed to register: " + cause.getMessage(), transactionKey);
                 return false;
             }
+            return completeRegister(pendingInfo, chatid, hashedPassword);
+        }, deliveryExecutor);
+    }
 
-            boolean success = userDAO.addUser(chatid, password);
+    private boolean completeRegister(PendingMessageInfo pendingInfo, String chatid, String hashedPassword) {
+        InetAddress clientAddress = pendingInfo.getPartnerAddress();
+        int clientPort = pendingInfo.getPartnerPort();
+        String transactionKey = pendingInfo.getTransactionKey();
+        try {
+            boolean success = userDAO.addUser(chatid, hashedPassword);
             if (!success) {
                 log.error("Failed to add user {} to database.", chatid);
                 udpSender.sendAck(clientAddress, clientPort, pendingInfo.getTransactionId(), false,
@@ -67,6 +115,9 @@ public class RegisterHandler {
                 return false;
             }
 
+            long usersVersion = userDirectory.addUser(chatid);
+            userExistenceFilter.add(chatid);
+
             boolean botRoomCreated = createRoomHandler.createRoomWithBot(chatid);
             if (!botRoomCreated) {
                 log.error("Failed to create default bot room for user '{}', but registration succeeded.", chatid);
@@ -83,9 +134,7 @@ public class RegisterHandler {
             udpSender.initiateServerToClientFlow(Constants.ACTION_REGISTER_SUCCESS, responseJson, clientAddress, clientPort, transactionKey);
             log.info("User {} registered successfully.", chatid);
 
-            List<String> allUserIds = userDAO.getAllChatIds();
-            Set<String> userIdSet = new HashSet<>(allUserIds);
-            forwardUserListUpdate(userIdSet, chatid);
+            forwardUserListUpdate(chatid, usersVersion);
             return true;
 
         } catch (Exception e) {
@@ -96,16 +145,16 @@ public class RegisterHandler {
         }
     }
 
-    private void forwardUserListUpdate(Set<String> allParticipants, String newUserChatId) {
-        Set<String> participants = allParticipants;
-
-        if (participants.isEmpty()) {
-            log.warn("No users found to forward user list update.");
-            return;
-        }
-
+    /**
+     * Pushes the directory change (the new user and the new version) to every online user.
+     * A client whose version isn't the one before should re-sync with get_users.
+     */
+    private void forwardUserListUpdate(String newUserChatId, long usersVersion) {
         JsonObject data = new JsonObject();
-        data.add(Constants.KEY_PARTICIPANTS, JsonHelper.convertSetToJsonArray(participants));
+        JsonArray added = new JsonArray();
+        added.add(newUserChatId);
+        data.add(Constants.KEY_ADDED, added);
+        data.addProperty(Constants.KEY_USERS_VERSION, usersVersion);
         JsonObject messageJson = JsonHelper.createReply(
             Constants.ACTION_RECIEVE_LISTUSER,
             Constants.STATUS_SUCCESS,
@@ -113,23 +162,17 @@ public class RegisterHandler {
             data
         );
 
-        log.info("Forwarding updated user list to online users (excluding new user '{}').", newUserChatId);
-        for (String recipientChatId : participants) {
-            if (!recipientChatId.equals(newUserChatId)) {
-                SessionInfo recipientSession = sessionManager.getSessionInfo(recipientChatId);
-                if (recipientSession != null && recipientSession.getKey() != null) {
-                    udpSender.initiateServerToClientFlow(
-                        Constants.ACTION_RECIEVE_LISTUSER,
-                        messageJson,
-                        recipientSession.getIpAddress(),
-                        recipientSession.getPort(),
-                        recipientSession.getKey()
-                    );
-                    log.debug("Sent updated user list to online user '{}'", recipientChatId);
-                } else {
-                    log.trace("User '{}' is offline or session key missing. Skipping user list update.", recipientChatId);
-                }
+        List<SessionInfo> recipients = new ArrayList<>();
+        for (Map.Entry<String, SessionInfo> entry : sessionManager.getSessionsSnapshot().entrySet()) {
+            if (!entry.getKey().equals(newUserChatId) && entry.getValue().getKey() != null) {
+                recipients.add(entry.getValue());
             }
         }
+        if (recipients.isEmpty()) {
+            log.debug("No online users to forward user list update to.");
+            return;
+        }
+        log.info("Forwarding new user '{}' (users version {}) to {} online users.", newUserChatId, usersVersion, recipients.size());
+        fanoutExecutor.submit(Constants.ACTION_RECIEVE_LISTUSER, Constants.ACTION_RECIEVE_LISTUSER, messageJson, recipients);
     }
 }
@@ -9,6 +9,8 @@ import com.google.gson.JsonObject;
 
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.MessageSearchIndex;
+import UdpChatServer.manager.RecentMessageCache;
 import UdpChatServer.manager.RoomManager;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.PendingMessageInfo;
@@ -25,13 +27,17 @@ public class RoomManagementHandler {
     private final ClientSessionManager sessionManager;
     private final RoomManager roomManager;
     private final RoomDAO roomDAO;
+    private final RecentMessageCache recentMessageCache; // Drops a deleted room's history
+    private final MessageSearchIndex searchIndex; // Drops a deleted room's search index
     private final UdpSender udpSender;
     
     public RoomManagementHandler(ClientSessionManager sessionManager, RoomManager roomManager, 
-                                 RoomDAO roomDAO, UdpSender udpSender) {
+                                 RoomDAO roomDAO, RecentMessageCache recentMessageCache, MessageSearchIndex searchIndex, UdpSender udpSender) {
         this.sessionManager = sessionManager;
         this.roomManager = roomManager;
         this.roomDAO = roomDAO;
+        this.recentMessageCache = recentMessageCache;
+        this.searchIndex = searchIndex;
         this.udpSender = udpSender;
     }
     
@@ -206,6 +212,8 @@ public class RoomManagementHandler {
         if (success) {
             // Also remove from in-memory representation - this should cascade to removing all users from room
             roomManager.removeRoom(roomId);
+            recentMessageCache.deleteRoom(roomId); // Cached window and, for the log store, the room's log files
+            searchIndex.deleteRoom(roomId);
             
             // Send success response
             JsonObject responseData = new JsonObject();
@@ -268,6 +276,9 @@ public class RoomManagementHandler {
         boolean success = roomDAO.renameRoom(roomId, newName, requestingUser);
         
         if (success) {
+            // Also update the room metadata cache
+            roomManager.updateRoomName(roomId, newName.trim());
+
             // Send success response
             JsonObject responseData = new JsonObject();
             responseData.addProperty(Constants.KEY_ROOM_ID, roomId);
@@ -2,6 +2,7 @@ package UdpChatServer.handler;
 
 import java.net.DatagramSocket;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -11,13 +12,16 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageArchive;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.RecentMessageCache;
 import UdpChatServer.manager.RoomManager;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.Message;
 import UdpChatServer.model.PendingMessageInfo;
+import UdpChatServer.model.RoomSummary;
 import UdpChatServer.net.UdpSender;
 import UdpChatServer.util.JsonHelper;
 
@@ -34,17 +38,21 @@ public class RoomMessageHandler {
     //     dateFormat.setTimeZone(TimeZone.getTimeZone("UTC")); // Consider using UTC for consistency
     // }
 
-    @SuppressWarnings("unused") private final RoomManager roomManager; // Keep reference if needed later
+    private final RoomManager roomManager; // Membership cache for participation checks
     private final RoomDAO roomDAO;
-    private final MessageDAO messageDAO;
+    private final MessageStore messageStore;
+    private final RecentMessageCache recentMessageCache; // Serves after_seq sync and keyset pages near the tail
+    private final MessageArchive messageArchive; // Messages moved out by retention; null without retention
     private final DatagramSocket socket; // Keep for potential direct error replies
     private final UdpSender udpSender; // Changed from requestHandler
 
     public RoomMessageHandler(ClientSessionManager sessionManager, RoomManager roomManager,
-                            RoomDAO roomDAO, MessageDAO messageDAO, DatagramSocket socket, UdpSender udpSender) { // Changed parameter
+                            RoomDAO roomDAO, MessageStore messageStore, RecentMessageCache recentMessageCache, MessageArchive messageArchive, DatagramSocket socket, UdpSender udpSender) { // Changed parameter
         this.roomManager = roomManager;
         this.roomDAO = roomDAO;
-        this.messageDAO = messageDAO;
+        this.messageStore = messageStore;
+        this.recentMessageCache = recentMessageCache;
+        this.messageArchive = messageArchive;
         this.socket = socket;
         this.udpSender = udpSender; // Changed from requestHandler
     }
@@ -74,45 +82,77 @@ public class RoomMessageHandler {
 
         try {
             // Kiểm tra user có trong room không
-            if (!roomDAO.isUserInRoom(roomId, chatid)) {
+            if (!roomManager.isUserInRoom(roomId, chatid)) {
                 log.warn("User {} không nằm trong room {} khi xử lý get_messages đã xác nhận.", chatid, roomId);
                 return false;
             }
 
-            List<Message> messages;
+            JsonObject data = new JsonObject();
+            MessagePageWriter page = new MessagePageWriter(Constants.MAX_MESSAGES_PAGE_BYTES);
             Timestamp fromTime = null;
 
-            // Nếu có thời gian trong request data, lấy tin nhắn từ thời gian đó
-            if (requestData.has("from_time")) {
+            // Seq-based sync: exactly the messages after the client's last seen seq, one page at a time
+            if (requestData.has(Constants.KEY_AFTER_SEQ)) {
+                long afterSeq = Math.max(0, requestData.get(Constants.KEY_AFTER_SEQ).getAsLong());
+                int limit = readPageSize(requestData, Constants.KEY_LIMIT);
+                // Fetch one extra row to know whether another page follows
+                List<Message> messages = recentMessageCache.getMessagesAfterSeq(roomId, afterSeq, limit + 1);
+                boolean hasMore = messages.size() > limit;
+                for (Message message : messages.subList(0, Math.min(limit, messages.size()))) {
+                    if (!page.tryAppend(message)) {
+                        hasMore = true;
+                        break;
+                    }
+                }
+                data.addProperty(Constants.KEY_AFTER_SEQ, afterSeq);
+                data.addProperty(Constants.KEY_HAS_MORE, hasMore);
+                log.info("Lấy tối đa {} tin nhắn cho room {} sau seq {}", limit, roomId, afterSeq);
+            // Nếu có thời gian trong request data (và không phân trang), lấy tin nhắn từ thời gian đó
+            } else if (requestData.has("from_time") && !isKeysetRequest(requestData)) {
                 String fromTimeStr = requestData.get("from_time").getAsString();
                 try {
                     fromTime = Timestamp.from(java.time.Instant.parse(fromTimeStr));
-                    messages = messageDAO.getMessagesFromTime(roomId, fromTime);
-                    log.info("Lấy tin nhắn cho room {} từ thời điểm {}", roomId, fromTime);
                 } catch (java.time.format.DateTimeParseException e) {
                     log.warn("Định dạng from_time không hợp lệ '{}' từ user {}", fromTimeStr, chatid);
                     return false;
                 }
+                boolean truncated = false;
+                for (Message message : messageStore.getMessagesFromTime(roomId, fromTime)) {
+                    if (!page.tryAppend(message)) {
+                        truncated = true;
+                        break;
+                    }
+                }
+                data.addProperty(Constants.KEY_HAS_MORE, truncated);
+                log.info("Lấy tin nhắn cho room {} từ thời điểm {}", roomId, fromTime);
             } else {
-                // Nếu không có thời gian, lấy tất cả tin nhắn
-                messages = messageDAO.getAllMessagesByRoom(roomId);
-                log.info("Lấy tất cả tin nhắn cho room {}", roomId);
-            }
-
-            // Tạo response JSON
-            JsonObject data = new JsonObject();
-            JsonArray messagesArray = new JsonArray();
-
-            for (Message message : messages) {
-                JsonObject messageObj = new JsonObject();
-                messageObj.addProperty("message_id", message.getMessageId());
-                messageObj.addProperty("sender_chatid", message.getSenderChatid());
-                messageObj.addProperty("content", message.getContent());
-                messageObj.addProperty("timestamp", message.getTimestamp().toInstant().toString());
-                messagesArray.add(messageObj);
+                // Keyset page: before_id pages backward (older), after_id forward (newer).
+                // Without a cursor, "direction" picks the newest (default) or the oldest page.
+                Long beforeId = requestData.has(Constants.KEY_BEFORE_ID) ? requestData.get(Constants.KEY_BEFORE_ID).getAsLong() : null;
+                Long afterId = requestData.has(Constants.KEY_AFTER_ID) ? requestData.get(Constants.KEY_AFTER_ID).getAsLong() : null;
+                String direction = requestData.has(Constants.KEY_DIRECTION) ? requestData.get(Constants.KEY_DIRECTION).getAsString() : null;
+                boolean backward = beforeId != null || (afterId == null && !Constants.DIRECTION_FORWARD.equals(direction));
+                Long cursor = backward ? beforeId : afterId;
+                int pageSize = readPageSize(requestData, Constants.KEY_PAGE_SIZE);
+
+                // Rows go straight from the ResultSet (or archive block) into the response array
+                boolean hasMore = streamHistoryPage(roomId, cursor, backward, pageSize, page::tryAppend);
+
+                data.addProperty(Constants.KEY_DIRECTION, backward ? Constants.DIRECTION_BACKWARD : Constants.DIRECTION_FORWARD);
+                if (cursor != null) {
+                    data.addProperty(backward ? Constants.KEY_BEFORE_ID : Constants.KEY_AFTER_ID, cursor);
+                }
+                data.addProperty(Constants.KEY_PAGE_SIZE, pageSize);
+                data.addProperty(Constants.KEY_HAS_MORE, hasMore);
+                if (page.getLastMessageId() != null) {
+                    // Pass back as before_id (backward) or after_id (forward) for the next page
+                    data.addProperty(Constants.KEY_NEXT_CURSOR, page.getLastMessageId());
+                }
+                log.info("Lấy trang tin nhắn cho room {} (direction {}, cursor {}, page size {})",
+                        roomId, backward ? Constants.DIRECTION_BACKWARD : Constants.DIRECTION_FORWARD, cursor, pageSize);
             }
 
-            data.add("messages", messagesArray);
+            data.add("messages", page.getMessages());
             data.addProperty("room_id", roomId);
             if (fromTime != null) {
                 data.addProperty("retrieved_from_time", fromTime.toInstant().toString());
@@ -127,7 +167,7 @@ public class RoomMessageHandler {
 
             // Gửi response qua S2C flow
             log.info("Lấy được {} tin nhắn cho user '{}' trong room '{}'. Bắt đầu luồng S2C.", 
-                    messages.size(), chatid, roomId);
+                    page.getMessages().size(), chatid, roomId);
             udpSender.initiateServerToClientFlow( // Changed from requestHandler
                 Constants.ACTION_MESSAGES_LIST,
                 response,
@@ -145,6 +185,69 @@ public class RoomMessageHandler {
         }
     }
 
+    /**
+     * One keyset page across the hot history and the archive, with the contract of
+     * {@link MessageStore#streamMessagesPage}. Archived messages are all older than the hot ones:
+     * a backward page continues into the archive where the hot history ends, a forward page
+     * starting before the end of the archive continues into the hot history. Cursors are
+     * clamped so a batch that is both archived and not yet deleted is returned once.
+     */
+    private boolean streamHistoryPage(String roomId, Long cursor, boolean backward, int pageSize, MessageStore.MessageRowHandler handler) {
+        long lastArchivedId = messageArchive != null ? messageArchive.lastArchivedId(roomId) : 0;
+        if (lastArchivedId == 0) {
+            return recentMessageCache.streamMessagesPage(roomId, cursor, backward, pageSize, handler);
+        }
+        int[] delivered = {0};
+        long[] edgeId = {0}; // Oldest (backward) or newest (forward) message delivered so far
+        MessageStore.MessageRowHandler counting = message -> {
+            if (!handler.onMessage(message)) {
+                return false;
+            }
+            delivered[0]++;
+            edgeId[0] = message.getMessageId();
+            return true;
+        };
+        if (backward) {
+            if (recentMessageCache.streamMessagesPage(roomId, cursor, true, pageSize, counting)) {
+                return true;
+            }
+            Long archiveCursor = delivered[0] > 0 ? Long.valueOf(edgeId[0]) : cursor;
+            return continuePage(messageArchive::streamMessagesPage, roomId, archiveCursor, true, pageSize - delivered[0], counting);
+        }
+        if (cursor == null || cursor < lastArchivedId) {
+            if (messageArchive.streamMessagesPage(roomId, cursor, false, pageSize, counting)) {
+                return true;
+            }
+        }
+        long hotCursor = Math.max(cursor != null ? cursor : 0, lastArchivedId);
+        return continuePage(recentMessageCache::streamMessagesPage, roomId, hotCursor, false, pageSize - delivered[0], counting);
+    }
+
+    /**
+     * Fills the rest of a page from a second source; with no room left, only probes it for more.
+     */
+    private static boolean continuePage(PageSource source, String roomId, Long cursor, boolean backward, int remaining, MessageStore.MessageRowHandler handler) {
+        if (remaining <= 0) {
+            return source.streamMessagesPage(roomId, cursor, backward, 1, message -> false);
+        }
+        return source.streamMessagesPage(roomId, cursor, backward, remaining, handler);
+    }
+
+    @FunctionalInterface
+    private interface PageSource {
+        boolean streamMessagesPage(String roomId, Long cursorId, boolean newestFirst, int pageSize, MessageStore.MessageRowHandler handler);
+    }
+
+    private static boolean isKeysetRequest(JsonObject requestData) {
+        return requestData.has(Constants.KEY_BEFORE_ID) || requestData.has(Constants.KEY_AFTER_ID)
+                || requestData.has(Constants.KEY_PAGE_SIZE) || requestData.has(Constants.KEY_DIRECTION);
+    }
+
+    private static int readPageSize(JsonObject requestData, String key) {
+        int pageSize = requestData.has(key) ? requestData.get(key).getAsInt() : Constants.DEFAULT_MESSAGES_PAGE_LIMIT;
+        return Math.max(1, Math.min(pageSize, Constants.MAX_MESSAGES_PAGE_LIMIT));
+    }
+
     /**
      * Processes the confirmed get_rooms request.
      * Called by UdpRequestHandler.handleConfirmCount when client confirms character count.
@@ -167,23 +270,48 @@ public class RoomMessageHandler {
         log.info("Xử lý get_rooms được xác nhận từ user '{}' (Transaction ID: {})", chatid, transactionId);
 
         try {
-            // Lấy danh sách room từ database 
-            List<String> roomIds = roomDAO.getRoomsByUser(chatid);
+            // Lấy danh sách room (id, name, owner, số thành viên, tin nhắn cuối) bằng một truy vấn
+            long generationBeforeRead = roomManager.getMutationGeneration();
+            List<RoomSummary> summaries = new ArrayList<>(messageStore.withLatestMessages(roomDAO.getRoomSummariesByUser(chatid)));
+            roomManager.cacheRoomSummaries(summaries, generationBeforeRead);
+            summaries.sort(RoomSummary.BY_ROOM_ID);
             
             // Tạo response JSON
             JsonObject data = new JsonObject();
             JsonArray roomsArray = new JsonArray();
+            // Continue after the rooms an earlier login_success/rooms_list already carried (in room id order)
+            String roomsCursor = requestData.has(Constants.KEY_ROOMS_CURSOR) && !requestData.get(Constants.KEY_ROOMS_CURSOR).isJsonNull()
+                    ? requestData.get(Constants.KEY_ROOMS_CURSOR).getAsString() : null;
+            MessagePageWriter page = new MessagePageWriter(Constants.MAX_MESSAGES_PAGE_BYTES);
+            String lastRoomId = null;
+            boolean roomsHasMore = false;
             
             // Create detailed room info objects with both id and name
-            for (String roomId : roomIds) {
+            for (RoomSummary summary : summaries) {
+                if (roomsCursor != null && summary.getRoomId().compareTo(roomsCursor) <= 0) {
+                    continue;
+                }
                 JsonObject roomInfo = new JsonObject();
-                roomInfo.addProperty("id", roomId);
-                roomInfo.addProperty("name", roomDAO.getRoomName(roomId));
+                roomInfo.addProperty("id", summary.getRoomId());
+                roomInfo.addProperty("name", summary.getName());
+                roomInfo.addProperty("owner", summary.getOwner());
+                roomInfo.addProperty("member_count", summary.getMemberCount());
+                roomInfo.addProperty("last_message_id", summary.getLastMessageId());
+                roomInfo.addProperty("last_seq", summary.getLastSeq());
+                if (!page.tryReserve(roomInfo, 0)) {
+                    roomsHasMore = true; // Doesn't fit the datagram; the client asks again from the cursor
+                    break;
+                }
                 roomsArray.add(roomInfo);
-                log.debug("Added room to response: id={}, name={}", roomId, roomDAO.getRoomName(roomId));
+                lastRoomId = summary.getRoomId();
+                log.debug("Added room to response: {}", summary);
             }
             
             data.add("rooms", roomsArray);
+            data.addProperty(Constants.KEY_ROOMS_HAS_MORE, roomsHasMore);
+            if (roomsHasMore) {
+                data.addProperty(Constants.KEY_ROOMS_CURSOR, lastRoomId);
+            }
 
             JsonObject response = JsonHelper.createReply(
                 Constants.ACTION_ROOMS_LIST,
@@ -193,7 +321,7 @@ public class RoomMessageHandler {
             );
 
             // Gửi response qua S2C flow
-            log.info("Lấy được {} phòng chat cho user '{}'. Bắt đầu luồng S2C.", roomIds.size(), chatid);
+            log.info("Lấy được {} phòng chat cho user '{}'. Bắt đầu luồng S2C.", summaries.size(), chatid);
             udpSender.initiateServerToClientFlow(
                 Constants.ACTION_ROOMS_LIST,
                 response,
@@ -236,7 +364,7 @@ public class RoomMessageHandler {
 
         try {
             // Check if the user is part of the room
-            if (!roomDAO.isUserInRoom(roomId, chatid)) {
+            if (!roomManager.isUserInRoom(roomId, chatid)) {
                 log.warn("User '{}' tried to get users for room '{}' but is not a participant", chatid, roomId);
                 
                 JsonObject errorResponse = JsonHelper.createErrorReply(
@@ -256,8 +384,8 @@ public class RoomMessageHandler {
                 return false;
             }
 
-            // Get users from database
-            Set<String> users = roomDAO.getParticipantsInRoom(roomId);
+            // Get users from the membership cache
+            Set<String> users = roomManager.getUsersInRoom(roomId);
             
             // Create response JSON
             JsonObject data = new JsonObject();
@@ -270,7 +398,7 @@ public class RoomMessageHandler {
             
             data.add("users", usersArray);
             data.addProperty(Constants.KEY_ROOM_ID, roomId);
-            data.addProperty("room_name", roomDAO.getRoomName(roomId));
+            data.addProperty("room_name", roomManager.getRoomName(roomId));
 
             JsonObject response = JsonHelper.createReply(
                 Constants.ACTION_ROOM_USERS_LIST,
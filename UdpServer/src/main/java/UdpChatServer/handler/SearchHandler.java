@@ -0,0 +1,126 @@
+package UdpChatServer.handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import UdpChatServer.manager.MessageSearchIndex;
+import UdpChatServer.manager.RoomManager;
+import UdpChatServer.model.Constants;
+import UdpChatServer.model.Message;
+import UdpChatServer.model.PendingMessageInfo;
+import UdpChatServer.model.SearchHit;
+import UdpChatServer.net.UdpSender;
+import UdpChatServer.util.JsonHelper;
+
+/**
+ * Handles search_messages: finds the messages of a room containing every word of a query and
+ * answers with one page of message IDs and snippets, so clients don't download whole histories
+ * to find something.
+ */
+public class SearchHandler {
+    private static final Logger log = LoggerFactory.getLogger(SearchHandler.class);
+
+    private final RoomManager roomManager; // Membership cache for participation checks
+    private final MessageSearchIndex searchIndex;
+    private final UdpSender udpSender;
+
+    public SearchHandler(RoomManager roomManager, MessageSearchIndex searchIndex, UdpSender udpSender) {
+        this.roomManager = roomManager;
+        this.searchIndex = searchIndex;
+        this.udpSender = udpSender;
+    }
+
+    /**
+     * Processes the confirmed search_messages request.
+     * Called by UdpRequestHandler.handleConfirmCount when client confirms character count.
+     *
+     * @param pendingInfo Information about the confirmed search_messages transaction
+     * @return true if the search was answered, false otherwise
+     */
+    public boolean processConfirmedSearchMessages(PendingMessageInfo pendingInfo) {
+        if (pendingInfo == null || pendingInfo.getDirection() != PendingMessageInfo.Direction.CLIENT_TO_SERVER ||
+            !Constants.ACTION_SEARCH_MESSAGES.equals(pendingInfo.getOriginalAction())) {
+            log.error("Invalid pending info passed to processConfirmedSearchMessages: {}", pendingInfo);
+            return false;
+        }
+
+        JsonObject requestData = pendingInfo.getOriginalMessageJson().getAsJsonObject(Constants.KEY_DATA);
+        String chatid = requestData.get(Constants.KEY_CHAT_ID).getAsString();
+        String transactionId = pendingInfo.getTransactionId();
+        if (!requestData.has(Constants.KEY_ROOM_ID) || !requestData.has(Constants.KEY_QUERY)) {
+            log.warn("search_messages từ user '{}' thiếu room_id hoặc query (Transaction ID: {})", chatid, transactionId);
+            return false;
+        }
+        String roomId = requestData.get(Constants.KEY_ROOM_ID).getAsString();
+        String query = requestData.get(Constants.KEY_QUERY).getAsString();
+        if (query.isBlank() || query.length() > Constants.MAX_SEARCH_QUERY_LENGTH) {
+            log.warn("Query không hợp lệ từ user '{}' cho room '{}' (độ dài {})", chatid, roomId, query.length());
+            return false;
+        }
+
+        try {
+            if (!roomManager.isUserInRoom(roomId, chatid)) {
+                log.warn("User {} không nằm trong room {} khi tìm kiếm tin nhắn.", chatid, roomId);
+                return false;
+            }
+
+            Long beforeId = requestData.has(Constants.KEY_BEFORE_ID) ? requestData.get(Constants.KEY_BEFORE_ID).getAsLong() : null;
+            int pageSize = requestData.has(Constants.KEY_PAGE_SIZE) ? requestData.get(Constants.KEY_PAGE_SIZE).getAsInt() : Constants.DEFAULT_SEARCH_PAGE_SIZE;
+            pageSize = Math.max(1, Math.min(pageSize, Constants.MAX_SEARCH_PAGE_SIZE));
+
+            MessageSearchIndex.Page page = searchIndex.search(roomId, query, beforeId, pageSize);
+
+            JsonArray results = new JsonArray();
+            for (SearchHit hit : page.getHits()) {
+                Message message = hit.getMessage();
+                JsonObject result = new JsonObject();
+                result.addProperty(Constants.KEY_MESSAGE_ID, message.getMessageId());
+                result.addProperty(Constants.KEY_SEQ, message.getSeq());
+                result.addProperty("sender_chatid", message.getSenderChatid());
+                result.addProperty("timestamp", message.getTimestamp().toInstant().toString());
+                result.addProperty(Constants.KEY_SNIPPET, hit.getSnippet());
+                results.add(result);
+            }
+
+            JsonObject data = new JsonObject();
+            data.addProperty(Constants.KEY_ROOM_ID, roomId);
+            data.addProperty(Constants.KEY_QUERY, query);
+            if (beforeId != null) {
+                data.addProperty(Constants.KEY_BEFORE_ID, beforeId);
+            }
+            data.addProperty(Constants.KEY_PAGE_SIZE, pageSize);
+            data.add(Constants.KEY_RESULTS, results);
+            data.addProperty(Constants.KEY_TOTAL_MATCHES, page.getTotalMatches());
+            data.addProperty(Constants.KEY_HAS_MORE, page.hasMore());
+            if (page.hasMore()) {
+                data.addProperty(Constants.KEY_NEXT_CURSOR, page.getNextBeforeId()); // Pass back as before_id
+            }
+
+            JsonObject response = JsonHelper.createReply(
+                Constants.ACTION_SEARCH_RESULTS,
+                Constants.STATUS_SUCCESS,
+                "Tìm kiếm tin nhắn thành công.",
+                data
+            );
+
+            log.info("Tìm thấy {} tin nhắn (trang {}) cho user '{}' trong room '{}'. Bắt đầu luồng S2C.",
+                    page.getTotalMatches(), results.size(), chatid, roomId);
+            udpSender.initiateServerToClientFlow(
+                Constants.ACTION_SEARCH_RESULTS,
+                response,
+                pendingInfo.getPartnerAddress(),
+                pendingInfo.getPartnerPort(),
+                pendingInfo.getTransactionKey()
+            );
+            return true;
+
+        } catch (Exception e) {
+            log.error("Lỗi khi xử lý search_messages từ user '{}' cho room '{}' (Transaction ID: {}): {}",
+                      chatid, roomId, transactionId, e.getMessage(), e);
+            return false;
+        }
+    }
+}
@@ -1,22 +1,31 @@
 package UdpChatServer.handler;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonObject;
 
-import UdpChatServer.db.MessageDAO;
-import UdpChatServer.db.RoomDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.MessageSearchIndex;
+import UdpChatServer.manager.RecentMessageCache;
 import UdpChatServer.manager.RoomManager;
+import UdpChatServer.manager.RoomUpdateNotifier;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.Message;
 import UdpChatServer.model.PendingMessageInfo;
 import UdpChatServer.model.SessionInfo;
-import UdpChatServer.net.UdpSender;
+import UdpChatServer.net.FanoutExecutor;
 import UdpChatServer.util.JsonHelper;
 
 /**
@@ -28,30 +37,44 @@ public class SendMessageHandler {
     private static final Logger log = LoggerFactory.getLogger(SendMessageHandler.class);
 
     private final ClientSessionManager sessionManager;
-    private final MessageDAO messageDAO; // Needed to save the message
-    private final RoomDAO roomDAO;       // Needed to check participation
-    private final UdpSender udpSender;   // Changed from requestHandler
-
-    public SendMessageHandler(ClientSessionManager sessionManager, RoomManager roomManager, MessageDAO messageDAO, RoomDAO roomDAO, UdpSender udpSender) { // Changed parameter
+    private final MessageStore messageStore; // Needed to save the message
+    private final RecentMessageCache recentMessageCache; // Committed messages are appended for history reads
+    private final MessageSearchIndex searchIndex; // Committed messages are indexed for search_messages
+    private final RoomManager roomManager; // Membership cache for participation checks and fanout
+    private final FanoutExecutor fanoutExecutor; // Delivers to recipients inline or in parallel batches
+    private final RoomUpdateNotifier roomUpdateNotifier; // Notify-then-pull for large rooms
+    private final Executor deliveryExecutor; // Runs forwarding and the ACK once a message is committed
+
+    // roomId -> completion of the last forward queued for that room. Forwards of a room run one
+    // after the other in commit order, so they reach the fanout executor in seq order.
+    private final Map<String, CompletableFuture<Void>> forwardTails = new ConcurrentHashMap<>();
+
+    public SendMessageHandler(ClientSessionManager sessionManager, RoomManager roomManager, MessageStore messageStore, FanoutExecutor fanoutExecutor, RoomUpdateNotifier roomUpdateNotifier, Executor deliveryExecutor, RecentMessageCache recentMessageCache, MessageSearchIndex searchIndex) {
         this.sessionManager = sessionManager;
-        this.messageDAO = messageDAO;
-        this.roomDAO = roomDAO;
-        this.udpSender = udpSender; // Changed from requestHandler
+        this.messageStore = messageStore;
+        this.recentMessageCache = recentMessageCache;
+        this.searchIndex = searchIndex;
+        this.roomManager = roomManager;
+        this.fanoutExecutor = fanoutExecutor;
+        this.roomUpdateNotifier = roomUpdateNotifier;
+        this.deliveryExecutor = deliveryExecutor;
     }
 
     /**
      * Processes the send_message action AFTER the client has confirmed via CONFIRM_COUNT.
-     * Saves the message to the database and forwards it to other participants using the S2C flow.
-     * This method is called by UdpRequestHandler.handleConfirmCount.
+     * Queues the message for group commit and, once it is durably saved, forwards it to other
+     * participants using the S2C flow. The request thread doesn't wait for the commit.
+     * This method is called by UdpRequestHandler.processConfirmedAction.
      *
      * @param pendingInfo Information about the confirmed message transaction.
-     * @return true if the message was saved and forwarding was initiated successfully, false otherwise.
+     * @return A future completing with true once the message was saved (forwarding queued),
+     *         false otherwise. UdpRequestHandler sends the sender's ACK when it completes.
      */
-    public boolean processConfirmedSendMessage(PendingMessageInfo pendingInfo) {
+    public CompletableFuture<Boolean> processConfirmedSendMessage(PendingMessageInfo pendingInfo) {
         if (pendingInfo == null || pendingInfo.getDirection() != PendingMessageInfo.Direction.CLIENT_TO_SERVER ||
             !Constants.ACTION_SEND_MESSAGE.equals(pendingInfo.getOriginalAction())) {
             log.error("Invalid pending info passed to processConfirmedSendMessage: {}", pendingInfo);
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
         JsonObject originalRequest = pendingInfo.getOriginalMessageJson(); // Outer JSON {action: ..., data: {...}}
@@ -61,66 +84,114 @@ public class SendMessageHandler {
         String content = messageData.get(Constants.KEY_CONTENT).getAsString(); // Read from 'data'
         // String sessionKey = pendingInfo.getSessionKey(); // Key of the sender - Use getTransactionKey now
         String transactionKey = pendingInfo.getTransactionKey(); // Get the key used for this transaction
+        String transactionId = pendingInfo.getTransactionId();
 
-        log.info("Processing confirmed send_message from '{}' to room '{}' (Transaction ID: {}) using key type: {}", senderChatId, roomId, pendingInfo.getTransactionId(), transactionKey.equals(Constants.FIXED_LOGIN_KEY_STRING) ? "Fixed" : "Session");
+        log.info("Processing confirmed send_message from '{}' to room '{}' (Transaction ID: {}) using key type: {}", senderChatId, roomId, transactionId, transactionKey.equals(Constants.FIXED_LOGIN_KEY_STRING) ? "Fixed" : "Session");
 
         try {
             // 0. Double-check if user is still in the room (optional, but good practice)
-            if (!roomDAO.isUserInRoom(roomId, senderChatId)) {
+            if (!roomManager.isUserInRoom(roomId, senderChatId)) {
                  log.warn("User '{}' is no longer a participant in room '{}' when processing confirmed message.", senderChatId, roomId);
                  // Don't send error back here, UdpRequestHandler will send ACK(failure)
-                 return false;
+                 return CompletableFuture.completedFuture(false);
             }
 
-            // 1. Save message to DB
-            // Create a new Message object to save
+            // 1. Queue the message for group commit
             Timestamp timestamp = new Timestamp(System.currentTimeMillis()); // Generate timestamp now
             Message messageToSave = new Message(null, roomId, senderChatId, content, timestamp);
-            boolean saved = messageDAO.saveMessage(messageToSave);
 
-            if (saved) {
-                log.info("Message from '{}' to room '{}' saved successfully.", senderChatId, roomId);
-                // 2. Forward message to other online participants using S2C flow
-                forwardMessageToRoom(senderChatId, roomId, content, timestamp);
+            // 2. After the commit, forward to other online participants (off the writer thread)
+            //    The cache append and the forward are queued on the writer thread, so a room's
+            //    messages reach them in seq order; only the ACK hops onto the pool on its own
+            return messageStore.saveMessageAsync(messageToSave).thenApply(savedMessage -> {
+                if (savedMessage != null) {
+                    recentMessageCache.append(savedMessage);
+                    searchIndex.enqueue(savedMessage); // Indexed on the indexer thread
+                    queueForward(savedMessage);
+                }
+                return savedMessage;
+            }).thenApplyAsync(savedMessage -> {
+                if (savedMessage == null) {
+                    log.error("Failed to save confirmed message from '{}' to DB for transaction {}.", senderChatId, transactionId);
+                    // Return failure - UdpRequestHandler will send ACK(failure)
+                    return false;
+                }
+                log.info("Message {} (seq {}) from '{}' to room '{}' saved successfully.", savedMessage.getMessageId(), savedMessage.getSeq(), senderChatId, roomId);
                 // 3. Return success - UdpRequestHandler will send the final ACK to the sender
                 return true;
-            } else {
-                log.error("Failed to save confirmed message from '{}' to DB for transaction {}.", senderChatId, pendingInfo.getTransactionId());
-                // Return failure - UdpRequestHandler will send ACK(failure)
-                return false;
-            }
+            }, deliveryExecutor);
         } catch (Exception e) {
             log.error("Error processing confirmed send_message from '{}' for room '{}' (Transaction ID: {}): {}",
-                      senderChatId, roomId, pendingInfo.getTransactionId(), e.getMessage(), e);
+                      senderChatId, roomId, transactionId, e.getMessage(), e);
             // Return failure - UdpRequestHandler will send ACK(failure)
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
     }
 
 
+    /**
+     * Chains the forward of a committed message behind the previous forward of its room, on the
+     * delivery executor. Called on the writer thread, so the chain follows commit order.
+     */
+    private void queueForward(Message message) {
+        String roomId = message.getRoomId();
+        Runnable forward = () -> {
+            try {
+                forwardMessageToRoom(message);
+            } catch (Exception e) {
+                // The message is saved; recipients will get it via get_messages
+                log.error("Error forwarding message {} in room '{}': {}", message.getMessageId(), roomId, e.getMessage(), e);
+            }
+        };
+        try {
+            CompletableFuture<Void> mine = forwardTails.compute(roomId, (key, previous) ->
+                    previous == null || previous.isDone()
+                            ? CompletableFuture.runAsync(forward, deliveryExecutor)
+                            : previous.handle((r, e) -> null).thenRunAsync(forward, deliveryExecutor));
+            mine.whenComplete((r, e) -> forwardTails.remove(roomId, mine));
+        } catch (RejectedExecutionException e) {
+            // Shutting down: the message is saved, recipients will get it via get_messages
+            log.warn("Delivery executor rejected the forward of message {} in room '{}'.", message.getMessageId(), roomId);
+        }
+    }
+
     /**
      * Forwards a confirmed and saved message to all other *online* participants in the room
      * by initiating the Server -> Client confirmation flow for each recipient.
+     * Rooms above the pull threshold only get a coalesced room_update hint; members then pull
+     * the content with get_messages + after_seq.
      */
-    private void forwardMessageToRoom(String senderChatId, String roomId, String content, Timestamp timestamp) {
-        // Get participants from RoomDAO for persistence, or RoomManager for in-memory state
-        // Using RoomDAO might be slightly safer if RoomManager state could be inconsistent
-        Set<String> participants = roomDAO.getParticipantsInRoom(roomId);
-        // Set<String> participants = roomManager.getUsersInRoom(roomId); // Alternative using in-memory state
+    private void forwardMessageToRoom(Message message) {
+        String senderChatId = message.getSenderChatid();
+        String roomId = message.getRoomId();
+        // RoomManager is the write-through membership cache (loads from RoomDAO on a miss)
+        Set<String> participants = roomManager.getUsersInRoom(roomId);
 
         if (participants.isEmpty()) {
              log.warn("No participants found in RoomDAO/RoomManager for room '{}' to forward message.", roomId);
              return;
         }
 
+        if (roomUpdateNotifier.usesPullDelivery(participants.size())) {
+            for (String recipientChatId : participants) {
+                if (!recipientChatId.equals(senderChatId) && sessionManager.isOnline(recipientChatId)) {
+                    roomUpdateNotifier.queueHint(recipientChatId, roomId, message.getSeq());
+                }
+            }
+            log.debug("Room '{}' has {} participants; queued room_update hints instead of full push.", roomId, participants.size());
+            return;
+        }
+
         log.debug("Forwarding message in room '{}' from '{}' to participants: {}", roomId, senderChatId, participants);
 
         JsonObject data = new JsonObject();
         data.addProperty(Constants.KEY_ROOM_ID, roomId);
+        data.addProperty(Constants.KEY_MESSAGE_ID, message.getMessageId());
+        data.addProperty(Constants.KEY_SEQ, message.getSeq()); // Lets clients resume with get_messages + after_seq
         data.addProperty(Constants.KEY_SENDER_CHAT_ID, senderChatId);
-        data.addProperty(Constants.KEY_CONTENT, content);
+        data.addProperty(Constants.KEY_CONTENT, message.getContent());
         // Format timestamp consistently, e.g., using ISO 8601 or a defined format
-        data.addProperty(Constants.KEY_TIMESTAMP, timestamp.toInstant().toString()); // Example: ISO 8601 UTC
+        data.addProperty(Constants.KEY_TIMESTAMP, message.getTimestamp().toInstant().toString()); // Example: ISO 8601 UTC
 
         JsonObject messageJson = JsonHelper.createReply(
             Constants.ACTION_RECEIVE_MESSAGE,
@@ -128,28 +199,23 @@ public class SendMessageHandler {
             "New message received.",
             data
         );
-        participants.remove(senderChatId);
-        // participants.add(senderChatId); // Include sender in the list to avoid missing ACKs
+        List<SessionInfo> recipients = new ArrayList<>();
         for (String recipientChatId : participants) {
-
-                SessionInfo recipientSession = sessionManager.getSessionInfo(recipientChatId);
-
-                if (recipientSession != null && recipientSession.getKey() != null) {
-                    // Initiate S2C flow for this recipient
-                    System.out.println("Recipient session: " + recipientSession);
-                    log.debug("Initiating S2C flow to forward message from {} to {} in room {}", senderChatId, recipientChatId, roomId);
-                    udpSender.initiateServerToClientFlow( // Changed from requestHandler
-                        Constants.ACTION_RECEIVE_MESSAGE,
-                        messageJson,
-                        recipientSession.getIpAddress(),
-                        recipientSession.getPort(),
-                        recipientSession.getKey() // Use recipient's session key
-                    );
-                } else {
-                    log.debug("Recipient '{}' in room '{}' is offline or key missing. Message saved in DB, not forwarded in real-time.", recipientChatId, roomId);
-                    // Message is already saved, so offline users will get it later via get_messages
-                }
+            if (recipientChatId.equals(senderChatId)) {
+                continue; // Don't echo the message back to the sender
+            }
+            SessionInfo recipientSession = sessionManager.peekSessionInfo(recipientChatId); // Receiving isn't user activity
+            if (recipientSession != null && recipientSession.getKey() != null) {
+                recipients.add(recipientSession);
+            } else {
+                log.debug("Recipient '{}' in room '{}' is offline or key missing. Message saved in DB, not forwarded in real-time.", recipientChatId, roomId);
+                // Message is already saved, so offline users will get it later via get_messages
+            }
         }
+
+        // Serialized once; large rooms are delivered in parallel batches without delaying the sender's ACK.
+        // Keyed by room so recipients see the room's messages in order.
+        fanoutExecutor.submit(roomId, Constants.ACTION_RECEIVE_MESSAGE, messageJson, recipients);
     }
 
 }
@@ -2,36 +2,35 @@ package UdpChatServer.handler;
 
 import java.net.InetAddress;
 import java.util.List;
-import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
-import UdpChatServer.db.RoomDAO;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.RoomManager;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.PendingMessageInfo;
+import UdpChatServer.model.RoomView;
 import UdpChatServer.net.UdpSender;
 import UdpChatServer.util.JsonHelper;
 
 /**
- * Handles requests for fetching the list of rooms a user is part of.
+ * Handles requests for fetching the list of rooms a user is part of, with their members.
+ * Served from the room views of RoomManager.
  */
 public class UserRoomListHandler {
     private static final Logger log = LoggerFactory.getLogger(UserRoomListHandler.class);
-    private static final Gson gson = new Gson(); // For converting List<Map> to JSON
 
     private final ClientSessionManager sessionManager;
-    private final RoomDAO roomDAO;
+    private final RoomManager roomManager; // Room views (rooms of a user with names and members)
     private final UdpSender udpSender;
 
-    public UserRoomListHandler(ClientSessionManager sessionManager, RoomDAO roomDAO, UdpSender udpSender) {
+    public UserRoomListHandler(ClientSessionManager sessionManager, RoomManager roomManager, UdpSender udpSender) {
         this.sessionManager = sessionManager;
-        this.roomDAO = roomDAO;
+        this.roomManager = roomManager;
         this.udpSender = udpSender;
     }
 
@@ -67,11 +66,21 @@ public class UserRoomListHandler {
             return false;
         }
 
-        // Fetch rooms and members from DAO
-        List<Map<String, Object>> userRoomsData = roomDAO.getRoomsAndMembersByUser(requestingUser);
-
-        // Convert the list of maps to a JsonArray
-        JsonArray roomsJsonArray = gson.toJsonTree(userRoomsData).getAsJsonArray();
+        // Fetch rooms and members from the room views
+        List<RoomView> rooms = roomManager.getRoomViewsOfUser(requestingUser);
+
+        JsonArray roomsJsonArray = new JsonArray();
+        for (RoomView room : rooms) {
+            JsonObject roomJson = new JsonObject();
+            roomJson.addProperty("id", room.getRoomId());
+            roomJson.addProperty("name", room.getName());
+            JsonArray members = new JsonArray();
+            for (String member : room.getMembers()) {
+                members.add(member);
+            }
+            roomJson.add("members", members);
+            roomsJsonArray.add(roomJson);
+        }
 
         // Send success response with the room list
         JsonObject responseData = new JsonObject();
@@ -87,7 +96,7 @@ public class UserRoomListHandler {
         udpSender.sendAck(clientAddress, clientPort, pendingInfo.getTransactionId(), true,
                 response.toString(), transactionKey);
 
-        log.info("Successfully sent room list to user '{}'", requestingUser);
+        log.info("Successfully sent room list ({} rooms) to user '{}'", rooms.size(), requestingUser);
         return true;
     }
 } 
@@ -0,0 +1,112 @@
+package UdpChatServer.handler.file;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary frame for file chunks and their acks, sent instead of Base64 inside JSON:
+ * {@code [magic 0xFD][type][transfer id, 8 bytes][sequence number][payload length][CRC32C of payload][payload]},
+ * big-endian. The magic byte can never start a JSON packet, so data frames and JSON control
+ * packets share a socket. The transfer id is handed out in the init/meta packet.
+ */
+public final class FileDataFrame {
+
+    public static final byte MAGIC = (byte) 0xFD;
+    public static final byte TYPE_SEND_DATA = 1; // Client -> Server, one upload chunk
+    public static final byte TYPE_SEND_ACK = 2; // Server -> Client, chunk written (or already received)
+    public static final byte TYPE_SEND_NACK = 3; // Server -> Client, chunk rejected: unknown transfer, bad size or CRC
+    public static final byte TYPE_DOWN_DATA = 4; // Server -> Client, one download chunk
+    public static final int HEADER_BYTES = 22;
+
+    private final byte type;
+    private final long transferId;
+    private final int sequenceNumber;
+    private final ByteBuffer payload;
+
+    private FileDataFrame(byte type, long transferId, int sequenceNumber, ByteBuffer payload) {
+        this.type = type;
+        this.transferId = transferId;
+        this.sequenceNumber = sequenceNumber;
+        this.payload = payload;
+    }
+
+    public static boolean isFrame(byte[] packet, int length) {
+        return length > 0 && packet[0] == MAGIC;
+    }
+
+    /**
+     * Parses a frame without copying: the payload is a view of the packet bytes.
+     *
+     * @throws IllegalArgumentException If the frame is truncated or its CRC doesn't match.
+     */
+    public static FileDataFrame decode(byte[] packet, int length) {
+        if (length < HEADER_BYTES || packet[0] != MAGIC) {
+            throw new IllegalArgumentException("Not a file data frame (" + length + " bytes)");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(packet, 0, length);
+        buf.position(1);
+        byte type = buf.get();
+        long transferId = buf.getLong();
+        int sequenceNumber = buf.getInt();
+        int payloadLength = buf.getInt();
+        int crc = buf.getInt();
+        if (payloadLength < 0 || payloadLength != length - HEADER_BYTES) {
+            throw new IllegalArgumentException("Frame payload length " + payloadLength + " doesn't match " + (length - HEADER_BYTES) + " bytes received");
+        }
+        if (crc32c(packet, HEADER_BYTES, payloadLength) != crc) {
+            throw new IllegalArgumentException("CRC mismatch in chunk " + sequenceNumber + " of transfer " + transferId);
+        }
+        return new FileDataFrame(type, transferId, sequenceNumber, ByteBuffer.wrap(packet, HEADER_BYTES, payloadLength).slice());
+    }
+
+    /**
+     * Fills in the header of a frame whose payload was already placed at HEADER_BYTES, so a
+     * chunk can be read straight into the packet buffer.
+     *
+     * @return The frame length.
+     */
+    public static int writeHeader(byte[] frame, byte type, long transferId, int sequenceNumber, int payloadLength) {
+        ByteBuffer.wrap(frame, 0, HEADER_BYTES)
+                .put(MAGIC)
+                .put(type)
+                .putLong(transferId)
+                .putInt(sequenceNumber)
+                .putInt(payloadLength)
+                .putInt(crc32c(frame, HEADER_BYTES, payloadLength));
+        return HEADER_BYTES + payloadLength;
+    }
+
+    /**
+     * A frame without payload (ack/nack).
+     */
+    public static byte[] control(byte type, long transferId, int sequenceNumber) {
+        byte[] frame = new byte[HEADER_BYTES];
+        writeHeader(frame, type, transferId, sequenceNumber, 0);
+        return frame;
+    }
+
+    private static int crc32c(byte[] bytes, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * A read-only view of the chunk bytes (position 0, limit = length).
+     */
+    public ByteBuffer getPayload() {
+        return payload.asReadOnlyBuffer();
+    }
+}
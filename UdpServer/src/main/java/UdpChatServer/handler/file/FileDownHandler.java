@@ -1,21 +1,22 @@
 package UdpChatServer.handler.file;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.Base64;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.google.gson.JsonObject;
 
 import UdpChatServer.db.FileDAO;
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
@@ -26,10 +27,10 @@ public class FileDownHandler extends FileTransferHandler {
     // MAX_RETRIES không còn cần thiết ở đây vì việc gửi không cần đợi ACK từ client
     // trong mô hình đơn giản này. Client sẽ tự xử lý việc thiếu gói tin nếu cần.
     String chat_id =null;
-    public FileDownHandler(MessageDAO messageDAO, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO,
+    public FileDownHandler(MessageStore messageStore, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO,
             DatagramSocket socket, ClientSessionManager sessionManager) {
         // Gọi constructor của lớp cha với đầy đủ tham số
-        super(sessionManager, messageDAO, userDAO, roomDAO, fileDAO, socket);
+        super(sessionManager, messageStore, userDAO, roomDAO, fileDAO, socket);
     }
 
     /**
@@ -99,8 +100,9 @@ public class FileDownHandler extends FileTransferHandler {
      */
     private void sendFileToClient(String chat_id, FileState fileState, String roomId, Path filePath, InetAddress clientAddress, int clientPort) {
         String filename = fileState.getFilePath(); // Lấy tên file gốc
-        try (FileInputStream fis = new FileInputStream(filePath.toFile())) {
-            long fileSize = Files.size(filePath); // Lấy kích thước file thực tế
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long fileSize = channel.size(); // Lấy kích thước file thực tế
+            long transferId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
             int totalPackets = (int) Math.ceil((double) fileSize / Constants.DATA_CHUNK_SIZE);
             // Xử lý trường hợp file 0 byte
             if (fileSize == 0) {
@@ -114,35 +116,37 @@ public class FileDownHandler extends FileTransferHandler {
             metaDataJson.addProperty("file_path", filename);
             metaDataJson.addProperty("file_size", fileSize);
             metaDataJson.addProperty("total_packets", totalPackets);
+            metaDataJson.addProperty("transfer_id", transferId); // DATA packets are binary frames carrying this id
+            metaDataJson.addProperty("chunk_size", Constants.DATA_CHUNK_SIZE);
             JsonObject metaJsonPacket = createJsonPacket(Constants.ACTION_FILE_DOWN_META, null, null, metaDataJson);
             sendPacket(metaJsonPacket, clientAddress, clientPort);
             System.out.println("Sent META for " + filename + " to " + clientAddress + ":" + clientPort +
                     " (Size: " + fileSize + ", Packets: " + totalPackets + ")");
             Thread.sleep(10); // Delay nhỏ để client kịp xử lý META
 
-            // --- 2. Send DATA Packets ---
-            byte[] dataBuffer = new byte[Constants.DATA_CHUNK_SIZE];
-            int bytesRead;
+            // --- 2. Send DATA Packets (binary frames) ---
+            // Chunks are read straight into the frame after its header, no Base64 or JSON
+            byte[] frame = new byte[FileDataFrame.HEADER_BYTES + Constants.DATA_CHUNK_SIZE];
+            ByteBuffer chunk = ByteBuffer.wrap(frame, FileDataFrame.HEADER_BYTES, Constants.DATA_CHUNK_SIZE);
             int sequenceNumber = 0;
 
-            while ((bytesRead = fis.read(dataBuffer)) != -1) {
+            for (long position = 0; position < fileSize; position += chunk.position() - FileDataFrame.HEADER_BYTES) {
                 sequenceNumber++; // Bắt đầu từ 1
-
-                // Chỉ mã hóa Base64 phần dữ liệu thực sự đọc được
-                String base64Data = Base64.getEncoder().encodeToString(Arrays.copyOf(dataBuffer, bytesRead));
-
-                JsonObject dataJson = new JsonObject();
-                dataJson.addProperty("chat_id", chat_id); 
-                dataJson.addProperty("room_id", roomId);
-                dataJson.addProperty("file_name", filename);
-                dataJson.addProperty("sequence_number", sequenceNumber);
-                dataJson.addProperty("chunk_size", bytesRead); // Kích thước thực tế của chunk này
-                dataJson.addProperty("file_data", base64Data);
-
-                JsonObject dataJsonPacket = createJsonPacket(Constants.ACTION_FILE_DOWN_DATA, null, null, dataJson);
+                chunk.clear().position(FileDataFrame.HEADER_BYTES);
+                while (chunk.hasRemaining()) {
+                    int read = channel.read(chunk, position + chunk.position() - FileDataFrame.HEADER_BYTES);
+                    if (read < 0) {
+                        break;
+                    }
+                }
+                int bytesRead = chunk.position() - FileDataFrame.HEADER_BYTES;
+                if (bytesRead == 0) {
+                    throw new IOException("File shrank during download at byte " + position);
+                }
 
                 // Gửi gói DATA
-                sendPacket(dataJsonPacket, clientAddress, clientPort);
+                int frameLength = FileDataFrame.writeHeader(frame, FileDataFrame.TYPE_DOWN_DATA, transferId, sequenceNumber, bytesRead);
+                sendFrame(frame, frameLength, clientAddress, clientPort);
 
                 // In log tiến trình (tùy chọn, có thể giảm tần suất in)
                 if (sequenceNumber % 50 == 0 || sequenceNumber == totalPackets) {
@@ -7,7 +7,7 @@ import java.util.List;
 import com.google.gson.JsonObject;
 
 import UdpChatServer.db.FileDAO;
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
@@ -15,8 +15,8 @@ import UdpChatServer.model.Constants;
 import UdpChatServer.model.FileState;
 
 public class FileListReqHandler extends FileTransferHandler {
-    public FileListReqHandler(MessageDAO messageDAO, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO, DatagramSocket socket, ClientSessionManager sessionManager) {
-        super(sessionManager, messageDAO, userDAO, roomDAO, fileDAO, socket);
+    public FileListReqHandler(MessageStore messageStore, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO, DatagramSocket socket, ClientSessionManager sessionManager) {
+        super(sessionManager, messageStore, userDAO, roomDAO, fileDAO, socket);
     } 
 
     public void handle(JsonObject jsonPacket, InetAddress clientAddress, int clientPort) {
@@ -3,12 +3,11 @@ package UdpChatServer.handler.file;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.Base64;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 import com.google.gson.JsonObject;
 
 import UdpChatServer.db.FileDAO;
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
@@ -17,8 +16,33 @@ import UdpChatServer.model.Constants;
 public class FileSendDataHandler extends FileTransferHandler {
     private JsonObject dataJson;
 
-    public FileSendDataHandler(MessageDAO messageDAO, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO, DatagramSocket socket, ClientSessionManager sessionManager) {
-        super(sessionManager, messageDAO, userDAO, roomDAO, fileDAO, socket);
+    public FileSendDataHandler(MessageStore messageStore, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO, DatagramSocket socket, ClientSessionManager sessionManager) {
+        super(sessionManager, messageStore, userDAO, roomDAO, fileDAO, socket);
+    }
+
+    /**
+     * Handles a binary data frame: the chunk is written from the packet bytes without JSON or
+     * Base64, and answered with an ack or nack frame.
+     */
+    public void handleFrame(FileDataFrame frame, InetAddress clientAddress, int clientPort) {
+        long transferId = frame.getTransferId();
+        int sequenceNumber = frame.getSequenceNumber();
+        byte reply = FileDataFrame.TYPE_SEND_NACK;
+        IncomingUpload upload = uploadsByTransferId.get(transferId);
+        if (upload == null) {
+            log.warn("Data frame for unknown transfer {} from {}:{}", transferId, clientAddress, clientPort);
+        } else {
+            try {
+                upload.write(sequenceNumber, frame.getPayload());
+                reply = FileDataFrame.TYPE_SEND_ACK;
+            } catch (IllegalArgumentException e) {
+                log.warn("Rejected chunk of transfer {}: {}", transferId, e.getMessage());
+            } catch (Exception e) {
+                log.error("Error writing chunk {} of transfer {}: {}", sequenceNumber, transferId, e.getMessage());
+            }
+        }
+        byte[] replyFrame = FileDataFrame.control(reply, transferId, sequenceNumber);
+        sendFrame(replyFrame, replyFrame.length, clientAddress, clientPort);
     }
 
     public void handle(JsonObject jsonPacket, InetAddress clientAddress, int clientPort) {
@@ -33,20 +57,17 @@ public class FileSendDataHandler extends FileTransferHandler {
             byte[] dataChunk = Base64.getDecoder().decode(base64Data);
             
             String fileIdentifier = senderChatId + "_" + roomId + "_" + filePath;
-            
-            //System.out.println(incomingFileChunks.get(fileIdentifier));
 
-            ConcurrentSkipListMap<Integer, byte[]> chunks = incomingFileChunks.get(fileIdentifier);
-            if (chunks != null) {
+            IncomingUpload upload = incomingUploads.get(fileIdentifier);
+            if (upload != null) {
                 JsonObject dataRepons= jsonPacket.getAsJsonObject(Constants.KEY_DATA);
                 dataRepons.addProperty("sequence_number", sequenceNumber);
                 dataRepons.addProperty("chat_id", senderChatId);
                 dataRepons.addProperty("room_id", roomId);
                 dataRepons.addProperty("file_path", filePath);
 
-                incomingFileChunks.get(fileIdentifier).put(sequenceNumber, dataChunk);
-                System.out.println("Received chunk " + sequenceNumber + " for " + fileIdentifier + 
-                    " (size: " + dataChunk.length + " bytes)");
+                upload.write(sequenceNumber, dataChunk);
+                log.debug("Received chunk {} for {} (size: {} bytes)", sequenceNumber, fileIdentifier, dataChunk.length);
                 JsonObject responJsonObject = createJsonPacket(Constants.ACTION_FILE_SEND_DATA, Constants.STATUS_SUCCESS, "Send file data: File chunk " + sequenceNumber + "received.",dataRepons);
                 sendPacket(responJsonObject, clientAddress, clientPort);
             } else {
@@ -54,7 +75,10 @@ public class FileSendDataHandler extends FileTransferHandler {
                 JsonObject responJsonPacket = createJsonPacket(Constants.ACTION_FILE_SEND_DATA, Constants.STATUS_FAILURE, "Send file data: File transfer not initialized.", dataJson);
                 sendPacket(responJsonPacket, clientAddress, clientPort);
             }
-            System.out.println(" ----------------------------: "+ incomingFileChunks.get(fileIdentifier).size() + "----------------------------: "+ incomingFileChunks.get(fileIdentifier).values());
+        } catch (IllegalArgumentException e) {
+            log.warn("Send file data: Invalid chunk: {}", e.getMessage());
+            JsonObject responJsonPacket = createJsonPacket(Constants.ACTION_FILE_SEND_DATA, Constants.STATUS_FAILURE, "Send file data: Invalid chunk.", dataJson);
+                sendPacket(responJsonPacket, clientAddress, clientPort);
         } catch (ArrayIndexOutOfBoundsException e) {
             System.err.println("Send file data: Array index out of bounds: " + e.getMessage());
             JsonObject responJsonPacket = createJsonPacket(Constants.ACTION_FILE_SEND_DATA, Constants.STATUS_ERROR, "Send file data: Array index out of bounds.", dataJson);
@@ -1,24 +1,24 @@
 package UdpChatServer.handler.file;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.google.gson.JsonObject;
 
 import UdpChatServer.db.FileDAO;
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.MessageSearchIndex;
+import UdpChatServer.manager.RecentMessageCache;
+import UdpChatServer.manager.RoomManager;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.FileMetaData;
 import UdpChatServer.model.FileState;
@@ -26,8 +26,15 @@ import UdpChatServer.model.Message;
 import UdpChatServer.model.SessionInfo;
 
 public class FileSendFinHandler extends FileTransferHandler {
-    public FileSendFinHandler(MessageDAO messageDAO, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO, DatagramSocket socket, ClientSessionManager sessionManager) {
-        super(sessionManager, messageDAO, userDAO, roomDAO, fileDAO, socket);
+    private final RoomManager roomManager;
+    private final RecentMessageCache recentMessageCache;
+    private final MessageSearchIndex searchIndex;
+
+    public FileSendFinHandler(MessageStore messageStore, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO, DatagramSocket socket, ClientSessionManager sessionManager, RoomManager roomManager, RecentMessageCache recentMessageCache, MessageSearchIndex searchIndex) {
+        super(sessionManager, messageStore, userDAO, roomDAO, fileDAO, socket);
+        this.roomManager = roomManager;
+        this.recentMessageCache = recentMessageCache;
+        this.searchIndex = searchIndex;
     }
 
     public void handle(JsonObject jsonPacket, InetAddress clientAddress, int clientPort) {
@@ -41,8 +48,8 @@ public class FileSendFinHandler extends FileTransferHandler {
             filePath = cleanFilePath(filePath);
 
             System.out.println("Received FIN for file '" + filePath + "' from " + senderChatId + " for " + roomId);
-            ConcurrentSkipListMap<Integer, byte[]> chunks = incomingFileChunks.remove(fileIdentifier);
-            if (chunks == null) {
+            IncomingUpload upload = incomingUploads.get(fileIdentifier);
+            if (upload == null) {
 
                 System.out
                         .println("No chunks found for file '" + filePath + "' from " + senderChatId + " for " + roomId);
@@ -52,19 +59,24 @@ public class FileSendFinHandler extends FileTransferHandler {
 
                 return;
             }
-           
-            // Assemble the file
-            Files.createDirectories(Paths.get(Constants.STORAGE_DIR + "/" + roomId));
+            int missing = upload.missingCount();
+            if (missing > 0) {
+                // Keep the upload: the client can resend the missing chunks and FIN again
+                log.info("File '{}' from {} is missing {} chunks", filePath, senderChatId, missing);
+                JsonObject responJsonPacket = createJsonPacket(Constants.ACTION_FILE_SEND_FIN, Constants.STATUS_FAILURE,
+                        "File incomplete: " + missing + " chunks missing", dataJson);
+                sendPacket(responJsonPacket, clientAddress, clientPort);
+                return;
+            }
+            if (!removeUpload(fileIdentifier, upload)) {
+                return; // A concurrent FIN (retransmit) or a new INIT took it
+            }
+
+            // The chunks are already in place: move the temp file to its final name
             Path storagePath = Paths.get(Constants.STORAGE_DIR + "/" + roomId, filePath);
-            long totalBytesWritten = 0;
-            System.out.println("Storage path:----------------------- " + storagePath.toString());
-            try (FileOutputStream fos = new FileOutputStream(storagePath.toFile())) {
-                System.out.println(" ------------9-----------------(*( --------------------))");
-                for (byte[] chunk : chunks.values()) {
-                    fos.write(chunk);
-                    totalBytesWritten += chunk.length;
-                }
-                fos.flush();
+            long totalBytesWritten = upload.getFileSize();
+            try {
+                upload.complete(storagePath);
                 System.out.println("File '" + filePath + "' assembled successfully (" + totalBytesWritten
                         + " bytes) in " + Constants.STORAGE_DIR);
 
@@ -83,13 +95,15 @@ public class FileSendFinHandler extends FileTransferHandler {
                 System.err.println("Error writing assembled file '" + filePath + "': "
                         + e.getMessage());
                 try {
-                    Files.deleteIfExists(storagePath);
+                    upload.abort();
                 } catch (IOException ex) {
                     System.err.println("Error deleting partial file: " + ex.getMessage());
                 }
+                fileTypes.remove(fileIdentifier);
                 JsonObject responJsonPacket = createJsonPacket(Constants.ACTION_FILE_SEND_FIN, Constants.STATUS_ERROR,
                         "Error writing assembled file '" + filePath, null);
                 sendPacket(responJsonPacket, clientAddress, clientPort);
+                return;
             }
 
             String fileType = fileTypes.remove(fileIdentifier); // Remove after use
@@ -103,7 +117,14 @@ public class FileSendFinHandler extends FileTransferHandler {
             // TODO: Change message format
             String fileMessage = "file_path " + filePath + " chat_id " + senderChatId + " room_id " + roomId + " file_type " + fileType;
             Message messageToSave = new Message(null, roomId, senderChatId, fileMessage, timestamp);
-            messageDAO.saveMessage(messageToSave);
+            // Append to the cache on the writer thread, in seq order with the room's other messages
+            messageStore.saveMessageAsync(messageToSave).thenApply(savedMessage -> {
+                if (savedMessage != null) {
+                    recentMessageCache.append(savedMessage);
+                    searchIndex.enqueue(savedMessage); // Indexed on the indexer thread
+                }
+                return savedMessage;
+            }).join();
 
             forwardFileNotiToRoom(senderChatId, roomId, fileMessage, timestamp);
         } catch (Exception e) {
@@ -128,10 +149,8 @@ public class FileSendFinHandler extends FileTransferHandler {
 
 
     private void forwardFileNotiToRoom(String senderChatId, String roomId, String fileMessage, Timestamp timestamp) {
-        // Get participants from RoomDAO for persistence, or RoomManager for in-memory state
-        // Using RoomDAO might be slightly safer if RoomManager state could be inconsistent
-        Set<String> participants = roomDAO.getParticipantsInRoom(roomId);
-        // Set<String> participants = roomManager.getUsersInRoom(roomId); // Alternative using in-memory state
+        // RoomManager is the write-through membership cache (loads from RoomDAO on a miss)
+        Set<String> participants = roomManager.getUsersInRoom(roomId);
 
 
         if (participants.isEmpty()) {
@@ -154,8 +173,7 @@ public class FileSendFinHandler extends FileTransferHandler {
 
             if (!recipientChatId.equals(senderChatId)) {
                 SessionInfo recipientSession = sessionManager.getSessionInfo(recipientChatId);
-                System.out.println(recipientSession.getIpAddress());                
-                if (recipientSession.getKey() != null) {
+                if (recipientSession != null && recipientSession.getKey() != null) {
                     // Initiate S2C flow for this recipient
                     log.debug("-------------------------------Initiating S2C flow to forward message from {} to {} in room {} , {}", senderChatId, recipientChatId, roomId,recipientSession.getPort());
                     
@@ -2,21 +2,21 @@ package UdpChatServer.handler.file;
 
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.nio.file.Paths;
 
 import com.google.gson.JsonObject;
 
 import UdpChatServer.db.FileDAO;
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
 import UdpChatServer.model.Constants;
 
 public class FileSendInitHandler extends FileTransferHandler {
-    public FileSendInitHandler(MessageDAO messageDAO, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO,
+    public FileSendInitHandler(MessageStore messageStore, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO,
             DatagramSocket socket, ClientSessionManager sessionManager) {
-        super(sessionManager, messageDAO, userDAO, roomDAO, fileDAO, socket);
+        super(sessionManager, messageStore, userDAO, roomDAO, fileDAO, socket);
     }
 
     public void handle(JsonObject jsonPacket, InetAddress clientAddress, int clientPort) {
@@ -40,10 +40,39 @@ public class FileSendInitHandler extends FileTransferHandler {
                 return;
             }
 
-            fileTypes.put(fileIdentifier, localFileType);
-            incomingFileChunks.put(fileIdentifier, new ConcurrentSkipListMap<>()); // Prepare to receive chunks
+            if (fileSize > Constants.MAX_UPLOAD_FILE_SIZE) {
+                log.warn("Send file init: {} bytes from {} exceed the upload limit of {}", fileSize, senderChatId, Constants.MAX_UPLOAD_FILE_SIZE);
+                JsonObject responJsonPacket = createJsonPacket(Constants.ACTION_FILE_SEND_INIT, Constants.STATUS_FAILURE,
+                        "Send file init: File too large (max " + Constants.MAX_UPLOAD_FILE_SIZE + " bytes).", null);
+                sendPacket(responJsonPacket, clientAddress, clientPort);
+                return;
+            }
 
-            System.out.println(incomingFileChunks.get(fileIdentifier));
+            if (totalPackets != IncomingUpload.packetsFor(fileSize)) {
+                log.warn("Send file init: {} packets don't match {} bytes in chunks of {}", totalPackets, fileSize, Constants.DATA_CHUNK_SIZE);
+                JsonObject responJsonPacket = createJsonPacket(Constants.ACTION_FILE_SEND_INIT, Constants.STATUS_FAILURE,
+                        "Send file init: Total packets don't match the file size.", null);
+                sendPacket(responJsonPacket, clientAddress, clientPort);
+                return;
+            }
+
+            expireIdleUploads(); // Between timer runs, frees the slots of abandoned uploads first
+            if (!hasUploadCapacity(fileIdentifier)) {
+                log.warn("Send file init: {} uploads in progress, rejecting '{}' from {}", Constants.MAX_CONCURRENT_UPLOADS, filePath, senderChatId);
+                sendBusy(clientAddress, clientPort);
+                return;
+            }
+            // Prepare to receive chunks: a temp file of the full size in the room's storage directory
+            IncomingUpload upload = IncomingUpload.create(newTransferId(), Paths.get(Constants.STORAGE_DIR + "/" + roomId), fileSize, totalPackets);
+            if (!registerUpload(fileIdentifier, upload)) {
+                // Another init took the last slot since the check above
+                sendBusy(clientAddress, clientPort);
+                return;
+            }
+            fileTypes.put(fileIdentifier, localFileType);
+            // Chunks are sent as binary frames (FileDataFrame) carrying this id
+            dataJson.addProperty("transfer_id", upload.getTransferId());
+            dataJson.addProperty("chunk_size", Constants.DATA_CHUNK_SIZE);
 
             System.out.println("Receiving file '" + filePath + "' from " + senderChatId + " for " + roomId + " ("
                     + fileSize + " bytes, " + totalPackets + " packets)");
@@ -64,4 +93,10 @@ public class FileSendInitHandler extends FileTransferHandler {
             sendPacket(responJsonPacket, clientAddress, clientPort);
         }
     }
+
+    private void sendBusy(InetAddress clientAddress, int clientPort) {
+        JsonObject responJsonPacket = createJsonPacket(Constants.ACTION_FILE_SEND_INIT, Constants.STATUS_FAILURE,
+                "Send file init: Too many uploads in progress, try again later.", null);
+        sendPacket(responJsonPacket, clientAddress, clientPort);
+    }
 }
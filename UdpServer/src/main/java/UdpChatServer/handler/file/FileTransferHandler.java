@@ -1,14 +1,19 @@
 package UdpChatServer.handler.file;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,7 +21,7 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.JsonObject;
 
 import UdpChatServer.db.FileDAO;
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.manager.ClientSessionManager;
@@ -35,7 +40,7 @@ public class FileTransferHandler {
     protected UserDAO userDAO;
     protected RoomDAO roomDAO;
     protected FileDAO fileDAO;
-    protected MessageDAO messageDAO;
+    protected MessageStore messageStore;
     protected DatagramSocket socket;
     protected ClientSessionManager sessionManager;
 
@@ -44,11 +49,14 @@ public class FileTransferHandler {
     // Stores metadata about files available for download for each client
     protected static ConcurrentMap<String, List<FileMetaData>> filesForClients = new ConcurrentHashMap<>();
 
-    // Temporarily stores incoming file chunks during upload
-    protected static ConcurrentMap<String, ConcurrentSkipListMap<Integer, byte[]>> incomingFileChunks = new ConcurrentHashMap<>();
+    // Uploads in progress: chunks go to a temp file, only the received-chunk bitmap is kept here
+    protected static ConcurrentMap<String, IncomingUpload> incomingUploads = new ConcurrentHashMap<>();
 
-    public FileTransferHandler(ClientSessionManager sessionManager, MessageDAO messageDAO, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO, DatagramSocket socket) {
-        this.messageDAO = messageDAO;
+    // The same uploads by transfer id, for binary data frames
+    protected static ConcurrentMap<Long, IncomingUpload> uploadsByTransferId = new ConcurrentHashMap<>();
+
+    public FileTransferHandler(ClientSessionManager sessionManager, MessageStore messageStore, UserDAO userDAO, RoomDAO roomDAO, FileDAO fileDAO, DatagramSocket socket) {
+        this.messageStore = messageStore;
         this.socket = socket;
         this.userDAO = userDAO;
         this.roomDAO = roomDAO;
@@ -56,6 +64,115 @@ public class FileTransferHandler {
         this.sessionManager = sessionManager;
     }
 
+    /**
+     * A random transfer id not used by an upload in progress (random, so a client can't write
+     * into another client's upload by counting).
+     */
+    protected static long newTransferId() {
+        long transferId;
+        do {
+            transferId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        } while (transferId == 0 || uploadsByTransferId.containsKey(transferId));
+        return transferId;
+    }
+
+    /**
+     * Whether a new upload of the file would fit within MAX_CONCURRENT_UPLOADS. A restart of an
+     * upload in progress always fits, as it replaces the old one.
+     */
+    protected static boolean hasUploadCapacity(String fileIdentifier) {
+        return incomingUploads.size() < Constants.MAX_CONCURRENT_UPLOADS || incomingUploads.containsKey(fileIdentifier);
+    }
+
+    /**
+     * Registers a new upload, dropping an earlier one of the same file (the client restarted it).
+     *
+     * @return false (and the upload is aborted) if MAX_CONCURRENT_UPLOADS are already in progress.
+     */
+    protected static boolean registerUpload(String fileIdentifier, IncomingUpload upload) {
+        IncomingUpload previous = null;
+        boolean registered = false;
+        synchronized (incomingUploads) { // Makes the capacity check and the insert one step
+            if (hasUploadCapacity(fileIdentifier)) {
+                uploadsByTransferId.put(upload.getTransferId(), upload);
+                previous = incomingUploads.put(fileIdentifier, upload);
+                registered = true;
+            }
+        }
+        if (!registered) {
+            abort(fileIdentifier, upload);
+            return false;
+        }
+        if (previous != null) {
+            uploadsByTransferId.remove(previous.getTransferId(), previous);
+            abort(fileIdentifier, previous);
+        }
+        return true;
+    }
+
+    /**
+     * Unregisters the upload if it is still the current one for the file.
+     *
+     * @return false if a concurrent FIN or a new INIT already took it.
+     */
+    protected static boolean removeUpload(String fileIdentifier, IncomingUpload upload) {
+        if (!incomingUploads.remove(fileIdentifier, upload)) {
+            return false;
+        }
+        uploadsByTransferId.remove(upload.getTransferId(), upload);
+        return true;
+    }
+
+    /**
+     * Drops uploads that have not received a chunk within FILE_UPLOAD_IDLE_TIMEOUT_MS, so
+     * abandoned transfers don't keep their temp files and open channels. Runs on a timer of the
+     * file server.
+     */
+    public static void expireIdleUploads() {
+        long cutoff = System.currentTimeMillis() - Constants.FILE_UPLOAD_IDLE_TIMEOUT_MS;
+        for (Map.Entry<String, IncomingUpload> entry : incomingUploads.entrySet()) {
+            if (entry.getValue().getLastActivityMs() < cutoff && removeUpload(entry.getKey(), entry.getValue())) {
+                log.info("Dropping idle upload {}", entry.getKey());
+                abort(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Deletes upload temp files left under the storage directory by a crash or kill. Only call
+     * before the server accepts uploads: every temp file found is taken as orphaned.
+     *
+     * @return The number of files deleted.
+     */
+    public static int deleteLeftoverTempFiles(Path storageDir) {
+        if (!Files.isDirectory(storageDir)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (Stream<Path> files = Files.walk(storageDir)) {
+            for (Path file : (Iterable<Path>) files.filter(IncomingUpload::isTempFile)::iterator) {
+                try {
+                    if (Files.deleteIfExists(file)) {
+                        deleted++;
+                    }
+                } catch (IOException e) {
+                    log.warn("Could not delete leftover upload file {}: {}", file, e.getMessage());
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            log.warn("Could not scan {} for leftover upload files: {}", storageDir, e.getMessage());
+        }
+        return deleted;
+    }
+
+    private static void abort(String fileIdentifier, IncomingUpload upload) {
+        try {
+            upload.abort();
+        } catch (IOException e) {
+            log.warn("Could not delete the temp file of upload {}: {}", fileIdentifier, e.getMessage());
+        }
+    }
+
     public JsonObject createJsonPacket(String action, String status, String message, JsonObject dataJson) {
         JsonObject jsonPacket = new JsonObject();
         jsonPacket.addProperty(Constants.KEY_ACTION, action);
@@ -84,4 +201,12 @@ public class FileTransferHandler {
             System.err.println("Error sending packet to " + address + ":" + port + ": " + e.getMessage()); 
         }
     }
+
+    public void sendFrame(byte[] frame, int length, InetAddress address, int port) {
+        try {
+            socket.send(new DatagramPacket(frame, length, address, port));
+        } catch (IOException e) {
+            log.warn("Error sending data frame to {}:{}: {}", address, port, e.getMessage());
+        }
+    }
 }
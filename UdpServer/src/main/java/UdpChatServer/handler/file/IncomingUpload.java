@@ -0,0 +1,191 @@
+package UdpChatServer.handler.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+import UdpChatServer.model.Constants;
+
+/**
+ * A file being uploaded: chunks are written straight to their offset in a temp file next to
+ * the final one, and only a bitmap of the received sequence numbers stays on the heap. On FIN
+ * the temp file is renamed over the final name, so a reader never sees a partial file. Binary
+ * data frames find the upload by its transfer id.
+ *
+ * Sequence numbers start at 1 (as the client sends them): chunk n lands at
+ * (n - 1) * DATA_CHUNK_SIZE, and every chunk but the last is exactly DATA_CHUNK_SIZE bytes.
+ */
+final class IncomingUpload {
+
+    private static final String TEMP_PREFIX = ".upload-";
+    private static final String TEMP_SUFFIX = ".part";
+
+    private final long transferId;
+    private final Path tempPath;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int totalPackets;
+    private final BitSet received; // guarded by 'this'
+    private int receivedCount; // guarded by 'this'
+    private boolean closed; // guarded by 'this'
+    private volatile long lastActivityMs = System.currentTimeMillis();
+
+    private IncomingUpload(long transferId, Path tempPath, FileChannel channel, long fileSize, int totalPackets) {
+        this.transferId = transferId;
+        this.tempPath = tempPath;
+        this.channel = channel;
+        this.fileSize = fileSize;
+        this.totalPackets = totalPackets;
+        this.received = new BitSet(totalPackets);
+    }
+
+    /**
+     * Creates the temp file in the given directory, extended to the full file size (sparse
+     * where the file system allows it).
+     */
+    static IncomingUpload create(long transferId, Path directory, long fileSize, int totalPackets) throws IOException {
+        if (fileSize <= 0 || fileSize > Constants.MAX_UPLOAD_FILE_SIZE) {
+            throw new IllegalArgumentException("File size " + fileSize + " outside 1.." + Constants.MAX_UPLOAD_FILE_SIZE);
+        }
+        if (totalPackets != packetsFor(fileSize)) {
+            throw new IllegalArgumentException("Expected " + packetsFor(fileSize) + " packets for " + fileSize + " bytes, got " + totalPackets);
+        }
+        Files.createDirectories(directory);
+        Path tempPath = Files.createTempFile(directory, TEMP_PREFIX, TEMP_SUFFIX);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(tempPath, StandardOpenOption.WRITE);
+            channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            return new IncomingUpload(transferId, tempPath, channel, fileSize, totalPackets);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+    }
+
+    /**
+     * Whether the file is one of the temp files created by {@link #create}.
+     */
+    static boolean isTempFile(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+    }
+
+    static int packetsFor(long fileSize) {
+        return (int) ((fileSize + Constants.DATA_CHUNK_SIZE - 1) / Constants.DATA_CHUNK_SIZE);
+    }
+
+    /**
+     * Writes one chunk at its offset. Retransmitted chunks are acknowledged again without
+     * being rewritten.
+     *
+     * @return false if the chunk was already received.
+     */
+    boolean write(int sequenceNumber, byte[] data) throws IOException {
+        return write(sequenceNumber, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Writes one chunk (the buffer's remaining bytes) at its offset.
+     *
+     * @return false if the chunk was already received.
+     */
+    boolean write(int sequenceNumber, ByteBuffer data) throws IOException {
+        if (sequenceNumber < 1 || sequenceNumber > totalPackets) {
+            throw new IllegalArgumentException("Sequence number " + sequenceNumber + " outside 1.." + totalPackets);
+        }
+        long offset = (long) (sequenceNumber - 1) * Constants.DATA_CHUNK_SIZE;
+        long expectedLength = Math.min(Constants.DATA_CHUNK_SIZE, fileSize - offset);
+        if (data.remaining() != expectedLength) {
+            throw new IllegalArgumentException("Chunk " + sequenceNumber + " has " + data.remaining() + " bytes, expected " + expectedLength);
+        }
+        lastActivityMs = System.currentTimeMillis();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Upload already finished");
+            }
+            if (received.get(sequenceNumber - 1)) {
+                return false;
+            }
+        }
+        // Positional writes don't share a file position, so chunks of one upload can be written concurrently
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        synchronized (this) {
+            if (!received.get(sequenceNumber - 1)) {
+                received.set(sequenceNumber - 1);
+                receivedCount++;
+            }
+        }
+        return true;
+    }
+
+    synchronized int missingCount() {
+        return totalPackets - receivedCount;
+    }
+
+    long getTransferId() {
+        return transferId;
+    }
+
+    long getFileSize() {
+        return fileSize;
+    }
+
+    long getLastActivityMs() {
+        return lastActivityMs;
+    }
+
+    /**
+     * Forces the temp file to disk and renames it to the target (replacing an older upload of
+     * the same name). Only valid once every chunk has arrived.
+     */
+    synchronized void complete(Path target) throws IOException {
+        if (closed) {
+            throw new IOException("Upload already finished");
+        }
+        if (receivedCount != totalPackets) {
+            throw new IllegalStateException((totalPackets - receivedCount) + " chunks missing");
+        }
+        closed = true;
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        try {
+            Files.move(tempPath, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Drops an upload that will not complete (replaced, abandoned or failed): closes and
+     * deletes the temp file.
+     */
+    void abort() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package UdpChatServer.manager;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.crypto.PasswordHasher;
+import UdpChatServer.db.UserDAO;
+import UdpChatServer.util.Metrics;
+
+/**
+ * Password verification and hashing on a dedicated, bounded executor.
+ *
+ * PBKDF2 is deliberately CPU-heavy, so it never runs on the request pool that processes chat
+ * messages: a fixed number of auth threads take work from a bounded queue, and work beyond the
+ * queue is rejected at once (the login or registration fails) instead of piling up. A login storm
+ * therefore costs at most {@code threads} cores and never delays message delivery.
+ *
+ * Legacy plaintext passwords (and hashes with fewer iterations than configured) are re-hashed on
+ * the first successful login.
+ */
+public class AuthService {
+
+    private static final Logger log = LoggerFactory.getLogger(AuthService.class);
+
+    private final UserDAO userDAO;
+    private final PasswordHasher passwordHasher;
+    private final ThreadPoolExecutor executor;
+    private volatile String dummyHash; // Verified against for unknown users, so they take as long as known ones
+
+    private final LongAdder completed = Metrics.counter("auth.completed");
+    private final LongAdder rejected = Metrics.counter("auth.rejected");
+    private final LongAdder upgraded = Metrics.counter("auth.upgraded");
+    private final LongAdder queueWaitMicros = new LongAdder();
+    private final LongAdder runMicros = new LongAdder();
+
+    public AuthService(UserDAO userDAO, PasswordHasher passwordHasher, int threads, int queueCapacity) {
+        this.userDAO = userDAO;
+        this.passwordHasher = passwordHasher;
+        int poolSize = Math.max(1, threads);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+                    Thread t = new Thread(r, "Auth-Worker-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+
+        Metrics.gauge("auth.queue_depth", () -> executor.getQueue().size());
+        Metrics.gauge("auth.active", executor::getActiveCount);
+        Metrics.gauge("auth.avg_queue_wait_ms", () -> average(queueWaitMicros));
+        Metrics.gauge("auth.avg_run_ms", () -> average(runMicros));
+        log.info("Auth service started ({} threads, queue capacity {})", poolSize, Math.max(1, queueCapacity));
+    }
+
+    /**
+     * Checks a user's password, upgrading a legacy stored value after a successful check.
+     *
+     * @return A future completed with the result, or exceptionally with a
+     *         {@link RejectedExecutionException} if the auth queue is full.
+     */
+    public CompletableFuture<Boolean> authenticate(String chatid, String password) {
+        return submit(() -> {
+            if (chatid == null || chatid.trim().isEmpty() || password == null) {
+                log.warn("Authentication attempt with invalid input (chatid: {})", chatid);
+                return false;
+            }
+            String stored = userDAO.getStoredPassword(chatid);
+            if (stored == null) {
+                passwordHasher.verify(password, dummyHash());
+                log.warn("Authentication failed: User '{}' not found.", chatid);
+                return false;
+            }
+            if (!passwordHasher.verify(password, stored)) {
+                log.warn("Authentication failed for user '{}' due to incorrect password.", chatid);
+                return false;
+            }
+            if (passwordHasher.needsRehash(stored)) {
+                // Best effort: a failed upgrade leaves the old value, retried on the next login
+                if (userDAO.updatePassword(chatid, passwordHasher.hash(password))) {
+                    upgraded.increment();
+                    log.info("Upgraded stored password of user '{}' to {}.", chatid,
+                            PasswordHasher.isHashed(stored) ? "more PBKDF2 iterations" : "a PBKDF2 hash");
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Hashes a new user's password for storage.
+     *
+     * @return A future completed with the encoded hash, or exceptionally with a
+     *         {@link RejectedExecutionException} if the auth queue is full.
+     */
+    public CompletableFuture<String> hashPassword(String password) {
+        return submit(() -> passwordHasher.hash(password));
+    }
+
+    /**
+     * Computes the dummy hash ahead of the first login (startup warm-up), so that login doesn't
+     * pay for an extra PBKDF2 run.
+     */
+    public void warmUp() {
+        dummyHash();
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        long queuedAt = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long startedAt = System.nanoTime();
+                queueWaitMicros.add((startedAt - queuedAt) / 1000);
+                try {
+                    return task.get();
+                } finally {
+                    runMicros.add((System.nanoTime() - startedAt) / 1000);
+                    completed.increment();
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("Auth queue full ({} waiting). Rejecting request.", executor.getQueue().size());
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private String dummyHash() {
+        String hash = dummyHash;
+        if (hash == null) {
+            hash = passwordHasher.hash("dummy-password"); // A race only costs a redundant hash
+            dummyHash = hash;
+        }
+        return hash;
+    }
+
+    private double average(LongAdder totalMicros) {
+        long count = completed.sum();
+        return count == 0 ? 0.0 : totalMicros.sum() / 1000.0 / count;
+    }
+}
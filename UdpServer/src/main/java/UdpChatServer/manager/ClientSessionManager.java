@@ -1,6 +1,7 @@
 package UdpChatServer.manager;
 
 import java.net.InetAddress;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -103,6 +104,15 @@ public class ClientSessionManager {
         return sessionInfo;
     }
 
+    /**
+     * Gets session information for a given client by chatid WITHOUT updating the last
+     * activity time. Use this when the server is sending to the client rather than
+     * handling something the client did (e.g. fanout), so presence idle detection isn't skewed.
+     */
+    public SessionInfo peekSessionInfo(String chatid) {
+        return sessionsByChatId.get(chatid);
+    }
+
     /**
      * Gets session information for a client based on their address and port.
      */
@@ -118,6 +128,15 @@ public class ClientSessionManager {
         return sessionsByChatId.containsKey(chatid);
     }
 
+    /**
+     * Returns a point-in-time copy of all active sessions keyed by chatid.
+     * Unlike getSessionInfo, this does NOT update the last activity time, so it is
+     * safe to use from background tasks (e.g. presence tracking).
+     */
+    public Map<String, SessionInfo> getSessionsSnapshot() {
+        return new HashMap<>(sessionsByChatId);
+    }
+
     /**
      * Gets the network address (IP and Port) for a specific client.
      */
@@ -0,0 +1,644 @@
+package UdpChatServer.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.db.MessageStore;
+import UdpChatServer.db.RoomDAO;
+import UdpChatServer.model.Message;
+import UdpChatServer.model.SearchHit;
+import UdpChatServer.util.Metrics;
+import UdpChatServer.util.TextFolding;
+
+/**
+ * In-memory inverted index of each room's message history, for the search_messages action.
+ *
+ * Every room maps each folded word ({@link TextFolding}) to the ascending message_ids of the
+ * messages containing it, stored as a delta-encoded varint posting list (typically one or two
+ * bytes per occurrence). Committed messages are queued to a single indexer thread in commit
+ * order, keeping tokenizing off the group-commit writer; a search intersects the
+ * posting lists of its words and reads only the page of matching messages from the store, for
+ * their snippets.
+ *
+ * The index is written to a snapshot file periodically and on shutdown. At startup the snapshot
+ * is loaded and every room is caught up from the MessageStore with the messages after the last
+ * one it indexed, so without a snapshot (or with a damaged one) the index is rebuilt entirely.
+ */
+public class MessageSearchIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageSearchIndex.class);
+    private static final String SNAPSHOT_FILE = "search_index.bin";
+    private static final int SNAPSHOT_MAGIC = 0x53494458; // "SIDX"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int REBUILD_PAGE_SIZE = 500;
+    private static final int SNIPPET_CONTEXT_CHARS = 40; // Characters kept on each side of the match
+
+    private final MessageStore messageStore;
+    private final RoomDAO roomDAO;
+    private final Path snapshotFile;
+    private final Map<String, RoomIndex> rooms = new ConcurrentHashMap<>();
+    private final AtomicLong changes = new AtomicLong(); // Bumped on every update, to skip unchanged snapshots
+    private long snapshotChanges; // Value of 'changes' at the last snapshot; guarded by 'this'
+    private final ScheduledExecutorService snapshotter;
+    private final ExecutorService indexer; // Single thread, so messages are indexed in the order they were queued
+
+    private final LongAdder indexed = Metrics.counter("search.indexed_messages");
+    private final LongAdder queries = Metrics.counter("search.queries");
+
+    /**
+     * @param snapshotDir Directory of the snapshot file.
+     * @param snapshotIntervalMs How often a changed index is written; 0 or negative only writes on close.
+     */
+    public MessageSearchIndex(MessageStore messageStore, RoomDAO roomDAO, Path snapshotDir, long snapshotIntervalMs) {
+        this.messageStore = messageStore;
+        this.roomDAO = roomDAO;
+        this.snapshotFile = snapshotDir.resolve(SNAPSHOT_FILE);
+        Metrics.gauge("search.rooms", rooms::size);
+        Metrics.gauge("search.posting_bytes", this::postingBytes);
+        this.snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Search-Index-Snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        this.indexer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Search-Indexer-Thread");
+            t.setDaemon(true);
+            return t;
+        });
+        if (snapshotIntervalMs > 0) {
+            snapshotter.scheduleWithFixedDelay(this::snapshotIfChanged, snapshotIntervalMs, snapshotIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Loads the snapshot, then catches every room up with the messages saved after it.
+     * Rooms that no longer exist are dropped; a room whose indexed messages are newer than its
+     * stored history (a store reset since the snapshot) is re-indexed from scratch.
+     */
+    public void warmUp() {
+        long started = System.currentTimeMillis();
+        loadSnapshot();
+        List<String> roomIds = roomDAO.getAllRoomIds();
+        rooms.keySet().retainAll(new HashSet<>(roomIds));
+        long before = indexed.sum();
+        for (String roomId : roomIds) {
+            catchUp(roomId);
+        }
+        log.info("Search index ready: {} rooms, {} messages indexed since the snapshot, {} posting bytes ({} ms)",
+                rooms.size(), indexed.sum() - before, postingBytes(), System.currentTimeMillis() - started);
+    }
+
+    private void catchUp(String roomId) {
+        RoomIndex room = rooms.get(roomId);
+        long[] latest = new long[1];
+        messageStore.streamMessagesPage(roomId, null, true, 1, message -> {
+            latest[0] = message.getMessageId();
+            return false;
+        });
+        if (room != null && room.lastIndexedId() > latest[0]) {
+            log.warn("Search index of room '{}' is ahead of its history (message_id {} > {}); re-indexing.", roomId, room.lastIndexedId(), latest[0]);
+            rooms.remove(roomId);
+            room = null;
+        }
+        if (latest[0] == 0) {
+            return;
+        }
+        long cursor = room != null ? room.lastIndexedId() : 0;
+        boolean more = cursor < latest[0];
+        while (more) {
+            long[] last = {cursor};
+            more = messageStore.streamMessagesPage(roomId, cursor, false, REBUILD_PAGE_SIZE, message -> {
+                add(message);
+                last[0] = message.getMessageId();
+                return true;
+            });
+            if (last[0] == cursor) {
+                break; // Read error: the store logged it
+            }
+            cursor = last[0];
+        }
+    }
+
+    /**
+     * Indexes a just-committed message.
+     */
+    public void add(Message message) {
+        if (message == null || message.getMessageId() == null || message.getContent() == null) {
+            return;
+        }
+        Set<String> tokens = TextFolding.tokens(message.getContent());
+        while (true) {
+            RoomIndex room = rooms.computeIfAbsent(message.getRoomId(), k -> new RoomIndex());
+            synchronized (room) {
+                if (room.deleted) {
+                    rooms.remove(message.getRoomId(), room);
+                    continue; // Deleted since it was looked up
+                }
+                room.add(message.getMessageId(), tokens);
+            }
+            break;
+        }
+        indexed.increment();
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Queues a committed message for indexing on the indexer thread. Cheap enough for the
+     * group-commit writer: call it there, so each room's messages are queued in commit order.
+     */
+    public void enqueue(Message message) {
+        try {
+            indexer.execute(() -> {
+                try {
+                    add(message);
+                } catch (RuntimeException e) {
+                    log.error("Error indexing message {}: {}", message.getMessageId(), e.getMessage(), e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down: the next start catches the room up from the message store
+            log.debug("Search indexer stopped; message {} will be indexed at the next start.", message.getMessageId());
+        }
+    }
+
+    /**
+     * Drops the index of a deleted room.
+     */
+    public void deleteRoom(String roomId) {
+        RoomIndex room = rooms.remove(roomId);
+        if (room != null) {
+            synchronized (room) {
+                room.deleted = true;
+            }
+            changes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forgets the messages of a room up to a message_id, once retention has moved them out of
+     * the message store; search covers the hot history only. Only raises the room's floor
+     * (searches filter below it), so it is O(1) under the room's lock however many batches
+     * retention moves; the posting lists are compacted when the index is snapshotted.
+     */
+    public void dropMessagesUpTo(String roomId, long upToId) {
+        RoomIndex room = rooms.get(roomId);
+        if (room == null) {
+            return;
+        }
+        synchronized (room) {
+            room.floorId = Math.max(room.floorId, upToId);
+        }
+        changes.incrementAndGet();
+    }
+
+    /**
+     * One page of search results, newest match first.
+     */
+    public static final class Page {
+        private final List<SearchHit> hits;
+        private final boolean hasMore;
+        private final Long nextBeforeId;
+        private final int totalMatches;
+
+        Page(List<SearchHit> hits, boolean hasMore, Long nextBeforeId, int totalMatches) {
+            this.hits = hits;
+            this.hasMore = hasMore;
+            this.nextBeforeId = nextBeforeId;
+            this.totalMatches = totalMatches;
+        }
+
+        public List<SearchHit> getHits() {
+            return hits;
+        }
+
+        /**
+         * Whether older matches follow.
+         */
+        public boolean hasMore() {
+            return hasMore;
+        }
+
+        /**
+         * The before_id of the next page, or null if this page is empty.
+         */
+        public Long getNextBeforeId() {
+            return nextBeforeId;
+        }
+
+        /**
+         * Matches in the whole room, all pages together.
+         */
+        public int getTotalMatches() {
+            return totalMatches;
+        }
+    }
+
+    /**
+     * Finds the messages of a room containing every word of {@code query} (folded, so accents
+     * and case don't matter).
+     *
+     * @param beforeId Exclusive message_id bound for paging back; null for the newest matches.
+     * @param pageSize Maximum number of hits.
+     */
+    public Page search(String roomId, String query, Long beforeId, int pageSize) {
+        queries.increment();
+        List<String> terms = TextFolding.queryTerms(query);
+        RoomIndex room = rooms.get(roomId);
+        if (terms.isEmpty() || room == null || pageSize <= 0) {
+            return new Page(Collections.emptyList(), false, null, 0);
+        }
+        long[] matches;
+        synchronized (room) {
+            matches = room.match(terms);
+        }
+        int end = matches.length;
+        if (beforeId != null) {
+            int pos = Arrays.binarySearch(matches, beforeId);
+            end = pos >= 0 ? pos : -pos - 1;
+        }
+        int start = Math.max(0, end - pageSize);
+        List<Long> ids = new ArrayList<>(end - start);
+        for (int i = end - 1; i >= start; i--) {
+            ids.add(matches[i]);
+        }
+
+        List<SearchHit> hits = new ArrayList<>(ids.size());
+        for (Message message : messageStore.getMessagesByIds(roomId, ids)) {
+            hits.add(new SearchHit(message, snippet(message.getContent(), terms)));
+        }
+        // A match whose message is gone from the store is skipped, but still moves the cursor
+        return new Page(hits, start > 0, ids.isEmpty() ? null : ids.get(ids.size() - 1), matches.length);
+    }
+
+    /**
+     * The content around the first word matching a query term, cut at word boundaries and
+     * marked with ellipses where cut.
+     */
+    static String snippet(String content, List<String> terms) {
+        String text = TextFolding.normalize(content);
+        Set<String> wanted = new HashSet<>(terms);
+        int[] match = {-1, -1};
+        TextFolding.forEachToken(TextFolding.fold(text), (token, start, end) -> {
+            if (match[0] < 0 && wanted.contains(token)) {
+                match[0] = start;
+                match[1] = end;
+            }
+        });
+        if (match[0] < 0) {
+            match[0] = 0;
+            match[1] = 0;
+        }
+        int from = Math.max(0, match[0] - SNIPPET_CONTEXT_CHARS);
+        int to = Math.min(text.length(), match[1] + SNIPPET_CONTEXT_CHARS);
+        while (from > 0 && !Character.isWhitespace(text.charAt(from - 1)) && from < match[0]) {
+            from++;
+        }
+        while (to < text.length() && !Character.isWhitespace(text.charAt(to)) && to > match[1]) {
+            to--;
+        }
+        StringBuilder snippet = new StringBuilder();
+        if (from > 0) {
+            snippet.append('…');
+        }
+        snippet.append(text, from, to);
+        if (to < text.length()) {
+            snippet.append('…');
+        }
+        return snippet.toString().trim();
+    }
+
+    private long postingBytes() {
+        long bytes = 0;
+        for (RoomIndex room : rooms.values()) {
+            synchronized (room) {
+                bytes += room.postingBytes();
+            }
+        }
+        return bytes;
+    }
+
+    private void loadSnapshot() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                log.warn("Ignoring search index snapshot {} of another format; rebuilding.", snapshotFile);
+                return;
+            }
+            Map<String, RoomIndex> loaded = new HashMap<>();
+            int roomCount = in.readInt();
+            for (int r = 0; r < roomCount; r++) {
+                String roomId = in.readUTF();
+                RoomIndex room = new RoomIndex();
+                room.lastIndexedId = in.readLong();
+                int termCount = in.readInt();
+                for (int t = 0; t < termCount; t++) {
+                    String term = in.readUTF();
+                    room.postings.put(term, PostingList.read(in));
+                }
+                loaded.put(roomId, room);
+            }
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("missing end marker");
+            }
+            rooms.putAll(loaded);
+            log.info("Loaded search index snapshot: {} rooms.", loaded.size());
+        } catch (NoSuchFileException e) {
+            log.info("No search index snapshot at {}; building the index from the message store.", snapshotFile.toAbsolutePath());
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not read search index snapshot {} ({}); rebuilding.", snapshotFile, e.getMessage());
+        }
+    }
+
+    private synchronized void snapshotIfChanged() {
+        long current = changes.get();
+        if (current == snapshotChanges) {
+            return;
+        }
+        try {
+            writeSnapshot();
+            snapshotChanges = current;
+        } catch (IOException | RuntimeException e) {
+            log.error("Error writing search index snapshot {}: {}", snapshotFile, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes every room to a temporary file and moves it over the snapshot, so a crash leaves
+     * either the old or the new snapshot. Rooms are copied one at a time under their lock, after
+     * dropping the ids retention has moved below the room's floor.
+     */
+    private void writeSnapshot() throws IOException {
+        Files.createDirectories(snapshotFile.getParent());
+        Path tmp = snapshotFile.resolveSibling(SNAPSHOT_FILE + ".tmp");
+        List<Map.Entry<String, RoomIndex>> entries = new ArrayList<>(rooms.entrySet());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, RoomIndex> entry : entries) {
+                RoomIndex room = entry.getValue();
+                synchronized (room) {
+                    room.compact();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(room.lastIndexedId);
+                    out.writeInt(room.postings.size());
+                    for (Map.Entry<String, PostingList> posting : room.postings.entrySet()) {
+                        out.writeUTF(posting.getKey());
+                        posting.getValue().write(out);
+                    }
+                }
+            }
+            out.writeInt(SNAPSHOT_MAGIC);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Search index snapshot written: {} rooms.", entries.size());
+    }
+
+    /**
+     * Stops periodic snapshots and writes a final one. Should be called on shutdown, after the
+     * message store has committed its queue.
+     */
+    public void close() {
+        indexer.shutdown();
+        try {
+            if (!indexer.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Search indexer did not drain in time; the rest is caught up at the next start.");
+                indexer.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            indexer.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        snapshotter.shutdownNow();
+        snapshotIfChanged();
+    }
+
+    /**
+     * Posting lists of one room. Guarded by its own monitor.
+     */
+    private static final class RoomIndex {
+        final Map<String, PostingList> postings = new HashMap<>();
+        long lastIndexedId;
+        long floorId; // Messages up to here were archived; filtered on search, dropped by compact()
+        long compactedFloorId; // Floor the posting lists were last compacted to
+        boolean deleted;
+
+        void add(long messageId, Set<String> tokens) {
+            if (messageId <= floorId) {
+                return; // Already archived
+            }
+            for (String token : tokens) {
+                postings.computeIfAbsent(token, k -> new PostingList()).add(messageId);
+            }
+            lastIndexedId = Math.max(lastIndexedId, messageId);
+        }
+
+        void compact() {
+            if (floorId <= compactedFloorId) {
+                return;
+            }
+            Iterator<PostingList> it = postings.values().iterator();
+            while (it.hasNext()) {
+                PostingList list = it.next();
+                list.dropUpTo(floorId);
+                if (list.size() == 0) {
+                    it.remove();
+                }
+            }
+            compactedFloorId = floorId;
+        }
+
+        long lastIndexedId() {
+            synchronized (this) {
+                return lastIndexedId;
+            }
+        }
+
+        /**
+         * The ascending ids of the messages containing every term: the rarest list is decoded
+         * first and narrowed by the others.
+         */
+        long[] match(List<String> terms) {
+            List<PostingList> lists = new ArrayList<>(terms.size());
+            for (String term : terms) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    return new long[0];
+                }
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(PostingList::size));
+            long[] result = lists.get(0).toArray();
+            for (int i = 1; i < lists.size() && result.length > 0; i++) {
+                result = intersect(result, lists.get(i).toArray());
+            }
+            if (floorId > compactedFloorId) {
+                int pos = Arrays.binarySearch(result, floorId);
+                int from = pos >= 0 ? pos + 1 : -pos - 1;
+                if (from > 0) {
+                    result = Arrays.copyOfRange(result, from, result.length);
+                }
+            }
+            return result;
+        }
+
+        long postingBytes() {
+            long bytes = 0;
+            for (PostingList list : postings.values()) {
+                bytes += list.byteSize();
+            }
+            return bytes;
+        }
+
+        private static long[] intersect(long[] a, long[] b) {
+            long[] out = new long[Math.min(a.length, b.length)];
+            int i = 0, j = 0, n = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    out[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+    }
+
+    /**
+     * Ascending message_ids, each stored as a varint of its difference to the previous one.
+     * Appending a larger id is O(1); an id that arrives late (saves complete on several threads)
+     * is inserted by re-encoding the list.
+     */
+    static final class PostingList {
+        private byte[] bytes = new byte[4];
+        private int length;
+        private int count;
+        private long lastId;
+
+        void add(long id) {
+            if (id > lastId) {
+                writeVarLong(id - lastId);
+                lastId = id;
+                count++;
+                return;
+            }
+            long[] ids = toArray();
+            int pos = Arrays.binarySearch(ids, id);
+            if (pos >= 0) {
+                return; // Already indexed
+            }
+            int insertAt = -pos - 1;
+            long[] merged = new long[ids.length + 1];
+            System.arraycopy(ids, 0, merged, 0, insertAt);
+            merged[insertAt] = id;
+            System.arraycopy(ids, insertAt, merged, insertAt + 1, ids.length - insertAt);
+            length = 0;
+            count = 0;
+            lastId = 0;
+            for (long value : merged) {
+                add(value);
+            }
+        }
+
+        void dropUpTo(long upToId) {
+            long[] ids = toArray();
+            int pos = Arrays.binarySearch(ids, upToId);
+            int from = pos >= 0 ? pos + 1 : -pos - 1;
+            if (from == 0) {
+                return;
+            }
+            length = 0;
+            count = 0;
+            lastId = 0;
+            for (int i = from; i < ids.length; i++) {
+                add(ids[i]);
+            }
+        }
+
+        int size() {
+            return count;
+        }
+
+        int byteSize() {
+            return length;
+        }
+
+        long[] toArray() {
+            long[] ids = new long[count];
+            long value = 0;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                ids[i] = value;
+            }
+            return ids;
+        }
+
+        private void writeVarLong(long value) {
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 10));
+            }
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            out.writeLong(lastId);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+        }
+
+        static PostingList read(DataInputStream in) throws IOException {
+            PostingList list = new PostingList();
+            list.count = in.readInt();
+            list.lastId = in.readLong();
+            list.length = in.readInt();
+            list.bytes = new byte[Math.max(4, list.length)];
+            in.readFully(list.bytes, 0, list.length);
+            return list;
+        }
+    }
+}
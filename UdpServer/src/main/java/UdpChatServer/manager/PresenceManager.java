@@ -0,0 +1,190 @@
+package UdpChatServer.manager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import UdpChatServer.db.RoomDAO;
+import UdpChatServer.model.Constants;
+import UdpChatServer.model.SessionInfo;
+import UdpChatServer.net.UdpSender;
+
+/**
+ * Tracks online / idle / offline presence on top of ClientSessionManager and pushes
+ * presence changes to users who share a room with the changed user.
+ *
+ * Changes are not sent as they happen. Each call to {@link #flush()} diffs the current
+ * sessions against the last published state, coalesces every change per recipient and
+ * sends ONE presence_update per recipient (split only if it would not fit in a packet).
+ * A login storm of N users therefore costs O(N) packets per flush instead of O(N^2).
+ */
+public class PresenceManager {
+
+    private static final Logger log = LoggerFactory.getLogger(PresenceManager.class);
+
+    public enum PresenceState {
+        ONLINE(Constants.PRESENCE_ONLINE),
+        IDLE(Constants.PRESENCE_IDLE),
+        OFFLINE(Constants.PRESENCE_OFFLINE);
+
+        private final String wireValue;
+
+        PresenceState(String wireValue) {
+            this.wireValue = wireValue;
+        }
+
+        public String getWireValue() {
+            return wireValue;
+        }
+    }
+
+    private final ClientSessionManager sessionManager;
+    private final RoomDAO roomDAO;
+    private final UdpSender udpSender;
+    private final long idleThresholdMs;
+    private final int maxEntriesPerPacket;
+
+    // chatid -> state last published to room-mates (absent == OFFLINE). Guarded by flushLock.
+    private final Map<String, PresenceState> publishedStates = new HashMap<>();
+    private final Object flushLock = new Object();
+
+    public PresenceManager(ClientSessionManager sessionManager, RoomDAO roomDAO, UdpSender udpSender,
+            long idleThresholdMs, int maxEntriesPerPacket) {
+        this.sessionManager = sessionManager;
+        this.roomDAO = roomDAO;
+        this.udpSender = udpSender;
+        this.idleThresholdMs = idleThresholdMs;
+        this.maxEntriesPerPacket = Math.max(1, maxEntriesPerPacket);
+    }
+
+    /**
+     * Computes the live presence state of a session without touching its activity time.
+     */
+    private PresenceState stateOf(SessionInfo session, long now) {
+        if (session == null) {
+            return PresenceState.OFFLINE;
+        }
+        return (now - session.getLastActivityTime()) > idleThresholdMs ? PresenceState.IDLE : PresenceState.ONLINE;
+    }
+
+    /**
+     * Returns the current presence of each requested user (users without a session are offline).
+     *
+     * @param chatids The users to look up.
+     * @return An insertion-ordered map chatid -> presence state.
+     */
+    public Map<String, PresenceState> getPresence(Collection<String> chatids) {
+        Map<String, SessionInfo> sessions = sessionManager.getSessionsSnapshot();
+        long now = System.currentTimeMillis();
+        Map<String, PresenceState> result = new LinkedHashMap<>();
+        for (String chatid : chatids) {
+            result.put(chatid, stateOf(sessions.get(chatid), now));
+        }
+        return result;
+    }
+
+    /**
+     * Diffs current sessions against the last published state and sends the coalesced
+     * presence deltas. Intended to be run periodically from its own scheduler thread, since a
+     * flush after a login storm does real work (room-mates query, many packets).
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, SessionInfo> sessions = sessionManager.getSessionsSnapshot();
+            long now = System.currentTimeMillis();
+
+            // 1. Detect transitions since the last flush
+            Map<String, PresenceState> changes = new HashMap<>();
+            for (Map.Entry<String, SessionInfo> entry : sessions.entrySet()) {
+                PresenceState current = stateOf(entry.getValue(), now);
+                if (publishedStates.get(entry.getKey()) != current) {
+                    changes.put(entry.getKey(), current);
+                }
+            }
+            for (String chatid : publishedStates.keySet()) {
+                if (!sessions.containsKey(chatid)) {
+                    changes.put(chatid, PresenceState.OFFLINE);
+                }
+            }
+            if (changes.isEmpty()) {
+                return;
+            }
+
+            // 2. Coalesce per recipient: recipient -> (subject -> state)
+            // One bulk query for all changed users rather than a self-join per user
+            Map<String, Set<String>> roomMatesBySubject = roomDAO.getRoomMatesOfUsers(changes.keySet());
+            Map<String, Map<String, PresenceState>> outbox = new HashMap<>();
+            for (Map.Entry<String, PresenceState> change : changes.entrySet()) {
+                String subject = change.getKey();
+                PresenceState newState = change.getValue();
+                boolean cameOnline = !publishedStates.containsKey(subject) && newState != PresenceState.OFFLINE;
+
+                Set<String> roomMates = roomMatesBySubject.getOrDefault(subject, Collections.emptySet());
+                for (String mate : roomMates) {
+                    SessionInfo mateSession = sessions.get(mate);
+                    if (mateSession == null) {
+                        continue; // Offline users learn presence from get_users on their next login
+                    }
+                    outbox.computeIfAbsent(mate, k -> new HashMap<>()).put(subject, newState);
+                    if (cameOnline) {
+                        // Give the newly online user a snapshot of their online room-mates
+                        outbox.computeIfAbsent(subject, k -> new HashMap<>()).put(mate, stateOf(mateSession, now));
+                    }
+                }
+
+                if (newState == PresenceState.OFFLINE) {
+                    publishedStates.remove(subject);
+                } else {
+                    publishedStates.put(subject, newState);
+                }
+            }
+
+            // 3. One (or a few, if large) presence_update per recipient
+            int packets = 0;
+            for (Map.Entry<String, Map<String, PresenceState>> entry : outbox.entrySet()) {
+                SessionInfo recipient = sessions.get(entry.getKey());
+                if (recipient == null) {
+                    continue;
+                }
+                for (JsonObject presenceChunk : toChunks(entry.getValue())) {
+                    JsonObject data = new JsonObject();
+                    data.add(Constants.KEY_PRESENCE, presenceChunk);
+                    JsonObject messageJson = new JsonObject();
+                    messageJson.addProperty(Constants.KEY_ACTION, Constants.ACTION_PRESENCE_UPDATE);
+                    messageJson.add(Constants.KEY_DATA, data);
+                    udpSender.initiateServerToClientFlow(Constants.ACTION_PRESENCE_UPDATE, messageJson,
+                            recipient.getIpAddress(), recipient.getPort(), recipient.getKey());
+                    packets++;
+                }
+            }
+            log.info("Presence flush: {} changes coalesced into {} packets for {} recipients.",
+                    changes.size(), packets, outbox.size());
+        }
+    }
+
+    private List<JsonObject> toChunks(Map<String, PresenceState> deltas) {
+        List<JsonObject> chunks = new ArrayList<>();
+        JsonObject current = new JsonObject();
+        for (Map.Entry<String, PresenceState> delta : deltas.entrySet()) {
+            if (current.size() >= maxEntriesPerPacket) {
+                chunks.add(current);
+                current = new JsonObject();
+            }
+            current.addProperty(delta.getKey(), delta.getValue().getWireValue());
+        }
+        if (current.size() > 0) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+}
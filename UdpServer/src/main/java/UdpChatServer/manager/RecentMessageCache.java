@@ -0,0 +1,376 @@
+package UdpChatServer.manager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.db.MessageStore;
+import UdpChatServer.model.Message;
+import UdpChatServer.util.Metrics;
+
+/**
+ * Read-through cache of the most recent messages of each room, in front of the MessageStore.
+ *
+ * Each cached room holds a ring buffer of its last {@code messagesPerRoom} messages: the room's
+ * true tail, with no holes. Saved messages are appended as they are committed; a room that isn't
+ * cached is loaded from the database on the first read that needs it. All rooms share one memory
+ * budget ({@code maxBytes}, estimated); the least recently used rooms are evicted past it.
+ *
+ * History reads answerable from a room's window (after_seq sync, keyset pages, the login
+ * snapshot) never touch the database. Hits and misses are exported through {@link Metrics}.
+ */
+public class RecentMessageCache {
+
+    private static final Logger log = LoggerFactory.getLogger(RecentMessageCache.class);
+    private static final int MESSAGE_OVERHEAD_BYTES = 160; // Object headers, Timestamp, boxed id, strings
+
+    private final MessageStore messageStore;
+    private final int messagesPerRoom;
+    private final long maxBytes;
+
+    // roomId -> window of recent messages. Access-ordered for LRU eviction; guarded by 'this'.
+    private final LinkedHashMap<String, RoomWindow> windows = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes; // guarded by 'this'
+    // Bumped on every eviction so a DB load can't reinstall a tail that missed an append meanwhile
+    private long evictionGeneration; // guarded by 'this'
+
+    private final LongAdder hits = Metrics.counter("recent_cache.hits");
+    private final LongAdder misses = Metrics.counter("recent_cache.misses");
+
+    public RecentMessageCache(MessageStore messageStore, int messagesPerRoom, long maxBytes) {
+        this.messageStore = messageStore;
+        this.messagesPerRoom = Math.max(1, messagesPerRoom);
+        this.maxBytes = Math.max(0, maxBytes);
+        Metrics.gauge("recent_cache.hit_ratio", () -> Metrics.ratio(hits, misses));
+        Metrics.gauge("recent_cache.rooms", this::cachedRoomCount);
+        Metrics.gauge("recent_cache.bytes", this::cachedBytes);
+        log.info("Recent message cache initialized ({} messages per room, {} bytes budget)", this.messagesPerRoom, this.maxBytes);
+    }
+
+    /**
+     * Records a just-committed message. Messages of a room normally arrive in seq order; one that
+     * arrives after a later seq of its room is dropped, and a gap restarts the room's window at the
+     * new message, so a window never has holes.
+     */
+    public synchronized void append(Message message) {
+        if (message == null || message.getSeq() <= 0 || message.getMessageId() == null) {
+            return; // Not a committed message; a later append will restart the window
+        }
+        RoomWindow window = windows.get(message.getRoomId());
+        if (window == null) {
+            window = new RoomWindow(messagesPerRoom, false);
+            windows.put(message.getRoomId(), window);
+        }
+        long before = window.bytes;
+        window.offer(message);
+        totalBytes += window.bytes - before;
+        evictOverBudget(message.getRoomId());
+    }
+
+    /**
+     * Same contract as {@link MessageStore#getMessagesAfterSeq}.
+     */
+    public List<Message> getMessagesAfterSeq(String roomId, long afterSeq, int limit) {
+        List<Message> cached = readAfterSeq(roomId, afterSeq, limit);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        if (loadIfAbsent(roomId)) {
+            cached = readAfterSeq(roomId, afterSeq, limit);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        return messageStore.getMessagesAfterSeq(roomId, afterSeq, limit);
+    }
+
+    /**
+     * Same contract as {@link MessageStore#streamMessagesPage}.
+     */
+    public boolean streamMessagesPage(String roomId, Long cursorId, boolean newestFirst, int pageSize, MessageStore.MessageRowHandler handler) {
+        List<Message> page = readPage(roomId, cursorId, newestFirst, pageSize);
+        if (page != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            if (loadIfAbsent(roomId)) {
+                page = readPage(roomId, cursorId, newestFirst, pageSize);
+            }
+            if (page == null) {
+                return messageStore.streamMessagesPage(roomId, cursorId, newestFirst, pageSize, handler);
+            }
+        }
+        // readPage returns one extra row when more messages follow the page
+        for (int i = 0; i < page.size(); i++) {
+            if (i == pageSize || !handler.onMessage(page.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The room's recent messages (up to {@code messagesPerRoom}), oldest first.
+     */
+    public List<Message> getRecentMessages(String roomId) {
+        List<Message> cached = readRecent(roomId);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        if (loadIfAbsent(roomId)) {
+            cached = readRecent(roomId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        return messageStore.getMessagesByRoom(roomId, messagesPerRoom);
+    }
+
+    private synchronized List<Message> readAfterSeq(String roomId, long afterSeq, int limit) {
+        RoomWindow window = windows.get(roomId);
+        if (window == null || !window.coversAfterSeq(afterSeq)) {
+            return null;
+        }
+        List<Message> result = new ArrayList<>();
+        for (int i = 0; i < window.size && result.size() < limit; i++) {
+            Message message = window.get(i);
+            if (message.getSeq() > afterSeq) {
+                result.add(message);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The page plus one extra message if more follow, or null if the window can't answer.
+     */
+    private synchronized List<Message> readPage(String roomId, Long cursorId, boolean newestFirst, int pageSize) {
+        RoomWindow window = windows.get(roomId);
+        if (window == null || (window.size == 0 && !window.complete)) {
+            return null;
+        }
+        List<Message> page = new ArrayList<>(pageSize + 1);
+        if (newestFirst) {
+            for (int i = window.size - 1; i >= 0 && page.size() <= pageSize; i--) {
+                Message message = window.get(i);
+                if (cursorId == null || message.getMessageId() < cursorId) {
+                    page.add(message);
+                }
+            }
+            // Fewer rows than asked for only proves the page complete if the window holds the whole room
+            if (page.size() <= pageSize && !window.complete) {
+                return null;
+            }
+        } else {
+            // Forward pages need the window to reach back to the cursor
+            if (!window.complete && (cursorId == null || window.size == 0 || cursorId < window.get(0).getMessageId())) {
+                return null;
+            }
+            for (int i = 0; i < window.size && page.size() <= pageSize; i++) {
+                Message message = window.get(i);
+                if (cursorId == null || message.getMessageId() > cursorId) {
+                    page.add(message);
+                }
+            }
+        }
+        return page;
+    }
+
+    private synchronized List<Message> readRecent(String roomId) {
+        RoomWindow window = windows.get(roomId);
+        if (window == null || (window.size < messagesPerRoom && !window.complete)) {
+            return null;
+        }
+        List<Message> result = new ArrayList<>(window.size);
+        for (int i = 0; i < window.size; i++) {
+            result.add(window.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Loads the room's tail from the database unless the room already has a full window.
+     *
+     * @return true if a window was installed.
+     */
+    private boolean loadIfAbsent(String roomId) {
+        long generation;
+        synchronized (this) {
+            RoomWindow existing = windows.get(roomId);
+            if (existing != null && (existing.complete || existing.size == messagesPerRoom)) {
+                return false; // Already as full as a load would make it
+            }
+            generation = evictionGeneration;
+        }
+
+        // Query outside the lock; newest N, oldest first
+        List<Message> tail = messageStore.getMessagesByRoom(roomId, messagesPerRoom);
+
+        synchronized (this) {
+            if (generation != evictionGeneration) {
+                log.debug("Recent messages of room '{}' not cached: evictions happened during the load.", roomId);
+                return false;
+            }
+            RoomWindow loaded = new RoomWindow(messagesPerRoom, tail.size() < messagesPerRoom);
+            for (Message message : tail) {
+                loaded.addLoaded(message);
+            }
+            // Keep messages appended while the query ran
+            RoomWindow existing = windows.remove(roomId);
+            if (existing != null) {
+                totalBytes -= existing.bytes;
+                for (int i = 0; i < existing.size; i++) {
+                    loaded.offer(existing.get(i));
+                }
+            }
+            windows.put(roomId, loaded);
+            totalBytes += loaded.bytes;
+            evictOverBudget(roomId);
+            log.debug("Loaded {} recent messages of room '{}' into cache.", loaded.size, roomId);
+            return windows.containsKey(roomId);
+        }
+    }
+
+    /**
+     * Forgets a room's window if it holds messages up to {@code upToId}, which retention has
+     * moved out of the store; the next read reloads the room's tail.
+     */
+    public synchronized void dropMessagesUpTo(String roomId, long upToId) {
+        RoomWindow window = windows.get(roomId);
+        if (window != null && (window.complete || (window.size > 0 && window.get(0).getMessageId() <= upToId))) {
+            windows.remove(roomId);
+            totalBytes -= window.bytes;
+        }
+        evictionGeneration++; // A load in flight may have read the deleted messages
+    }
+
+    /**
+     * Forgets a deleted room and drops its messages from the store.
+     */
+    public void deleteRoom(String roomId) {
+        synchronized (this) {
+            RoomWindow window = windows.remove(roomId);
+            if (window != null) {
+                totalBytes -= window.bytes;
+            }
+            evictionGeneration++; // A load in flight must not reinstall the room
+        }
+        messageStore.deleteRoomMessages(roomId);
+    }
+
+    private void evictOverBudget(String keepRoomId) {
+        Iterator<Map.Entry<String, RoomWindow>> it = windows.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, RoomWindow> eldest = it.next();
+            if (eldest.getKey().equals(keepRoomId)) {
+                continue; // The room being written or loaded stays, even alone over budget
+            }
+            totalBytes -= eldest.getValue().bytes;
+            it.remove();
+            evictionGeneration++;
+            log.debug("Evicted cold room '{}' from recent message cache.", eldest.getKey());
+        }
+    }
+
+    private synchronized int cachedRoomCount() {
+        return windows.size();
+    }
+
+    private synchronized long cachedBytes() {
+        return totalBytes;
+    }
+
+    private static long estimateBytes(Message message) {
+        return MESSAGE_OVERHEAD_BYTES + 2L * (message.getContent().length() + message.getSenderChatid().length());
+    }
+
+    /**
+     * The last messages of one room, oldest first, in a fixed-size ring.
+     */
+    private static final class RoomWindow {
+        private final Message[] ring;
+        private int head; // Index of the oldest message
+        private int size;
+        private long bytes;
+        private boolean complete; // Holds every message of the room
+
+        RoomWindow(int capacity, boolean complete) {
+            this.ring = new Message[capacity];
+            this.complete = complete;
+        }
+
+        Message get(int i) {
+            return ring[(head + i) % ring.length];
+        }
+
+        long lastSeq() {
+            return size == 0 ? 0 : get(size - 1).getSeq();
+        }
+
+        /**
+         * Appends a just-committed message of the room, keeping the window hole-free.
+         */
+        void offer(Message message) {
+            long seq = message.getSeq();
+            if (size > 0 && seq <= lastSeq()) {
+                return; // Already here, or older than the tail
+            }
+            if (size > 0 && seq != lastSeq() + 1) {
+                clear(); // Skipped seqs may still be in flight; restart at this message
+            }
+            push(message);
+        }
+
+        /**
+         * Appends a message read from the database. A DB snapshot has no holes even where seqs
+         * skip values (rows backfilled with seq = message_id), so only the order is checked.
+         */
+        void addLoaded(Message message) {
+            if (size == 0 || message.getSeq() > lastSeq()) {
+                push(message);
+            }
+        }
+
+        private void push(Message message) {
+            if (size == ring.length) {
+                bytes -= estimateBytes(ring[head]);
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+                complete = false;
+            }
+            ring[(head + size) % ring.length] = message;
+            size++;
+            bytes += estimateBytes(message);
+        }
+
+        /**
+         * Whether every message with a seq above {@code afterSeq} is in the window.
+         */
+        boolean coversAfterSeq(long afterSeq) {
+            if (complete) {
+                return true;
+            }
+            return size > 0 && afterSeq >= get(0).getSeq() - 1;
+        }
+
+        private void clear() {
+            Arrays.fill(ring, null);
+            head = 0;
+            size = 0;
+            bytes = 0;
+            complete = false;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package UdpChatServer.manager;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.db.MessageArchive;
+import UdpChatServer.db.MessageDAO;
+import UdpChatServer.db.RoomDAO;
+import UdpChatServer.model.Message;
+import UdpChatServer.model.RetentionPolicy;
+import UdpChatServer.util.Metrics;
+
+/**
+ * Moves expired messages out of the messages table into the {@link MessageArchive}.
+ *
+ * Every interval a pass walks all rooms, finds each room's cutoff from its retention policy and
+ * moves the messages up to it in batches: read a batch, append it to the archive (forced to
+ * disk), then delete exactly those rows in one short statement and pause, so history reads and
+ * inserts are never queued behind one long delete. The archives of deleted rooms are removed.
+ */
+public class RetentionManager {
+
+    private static final Logger log = LoggerFactory.getLogger(RetentionManager.class);
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    private final MessageDAO messageDAO;
+    private final RoomDAO roomDAO;
+    private final MessageArchive archive;
+    private final RecentMessageCache recentMessageCache;
+    private final MessageSearchIndex searchIndex;
+    private final RetentionPolicy defaults;
+    private final long intervalMs;
+    private final int batchSize;
+    private final long batchPauseMs;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean running = true;
+
+    private final LongAdder runs = Metrics.counter("retention.runs");
+    private final LongAdder archivedMessages = Metrics.counter("retention.archived_messages");
+    private final LongAdder batches = Metrics.counter("retention.batches");
+    private final LongAdder failures = Metrics.counter("retention.failures");
+
+    public RetentionManager(MessageDAO messageDAO, RoomDAO roomDAO, MessageArchive archive, RecentMessageCache recentMessageCache,
+                            MessageSearchIndex searchIndex, RetentionPolicy defaults, long intervalMs, int batchSize, long batchPauseMs) {
+        this.messageDAO = messageDAO;
+        this.roomDAO = roomDAO;
+        this.archive = archive;
+        this.recentMessageCache = recentMessageCache;
+        this.searchIndex = searchIndex;
+        this.defaults = defaults;
+        this.intervalMs = Math.max(1000, intervalMs);
+        this.batchSize = Math.max(1, batchSize);
+        this.batchPauseMs = Math.max(0, batchPauseMs);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Message-Retention-Thread");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Schedules the retention pass: the first one right away, then every interval.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::runOnce, 0, intervalMs, TimeUnit.MILLISECONDS);
+        log.info("Message retention started (defaults: {}, interval: {} ms, batch: {} messages)", defaults, intervalMs, batchSize);
+    }
+
+    /**
+     * Stops after the batch in progress; call before the connection pool is closed.
+     */
+    public void stop() {
+        running = false;
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runOnce() {
+        long started = System.currentTimeMillis();
+        runs.increment();
+        long before = archivedMessages.sum();
+        try {
+            List<String> roomIds = roomDAO.getAllRoomIds();
+            Map<String, RetentionPolicy> overrides = roomDAO.getRetentionPolicies();
+            for (String roomId : roomIds) {
+                if (!running) {
+                    return;
+                }
+                RetentionPolicy override = overrides.get(roomId);
+                RetentionPolicy policy = override != null ? override.orElse(defaults) : defaults;
+                if (policy.isEnabled()) {
+                    expireRoom(roomId, policy);
+                }
+            }
+            removeDeletedRoomArchives(roomIds);
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            log.error("Message retention pass failed: {}", e.getMessage(), e);
+        }
+        long moved = archivedMessages.sum() - before;
+        if (moved > 0) {
+            log.info("Message retention archived {} messages ({} ms).", moved, System.currentTimeMillis() - started);
+        }
+    }
+
+    private void expireRoom(String roomId, RetentionPolicy policy) throws IOException {
+        int maxAgeDays = policy.getMaxAgeDays() != null ? policy.getMaxAgeDays() : 0;
+        int maxMessages = policy.getMaxMessages() != null ? policy.getMaxMessages() : 0;
+        Timestamp olderThan = maxAgeDays > 0 ? new Timestamp(System.currentTimeMillis() - maxAgeDays * DAY_MS) : null;
+        long cutoffId = messageDAO.getRetentionCutoffId(roomId, olderThan, maxMessages);
+        while (running && cutoffId > 0) {
+            List<Message> batch = messageDAO.getOldestMessagesUpTo(roomId, cutoffId, batchSize);
+            if (batch.isEmpty()) {
+                return;
+            }
+            long lastId = batch.get(batch.size() - 1).getMessageId();
+            archive.append(roomId, batch);
+            // Only after the archive is on disk; a failed delete is retried next pass (the archive skips the duplicates)
+            int deleted = messageDAO.deleteMessagesUpTo(roomId, lastId);
+            if (deleted < 0) {
+                failures.increment();
+                return;
+            }
+            recentMessageCache.dropMessagesUpTo(roomId, lastId);
+            searchIndex.dropMessagesUpTo(roomId, lastId);
+            archivedMessages.add(deleted);
+            batches.increment();
+            log.debug("Archived {} messages of room '{}' up to message_id {}.", deleted, roomId, lastId);
+            if (batch.size() < batchSize) {
+                return;
+            }
+            pause();
+        }
+    }
+
+    private void removeDeletedRoomArchives(List<String> roomIds) throws IOException {
+        Set<String> existing = new HashSet<>(roomIds);
+        for (String roomId : archive.archivedRoomIds()) {
+            if (!existing.contains(roomId)) {
+                archive.deleteRoom(roomId);
+            }
+        }
+    }
+
+    private void pause() {
+        if (batchPauseMs == 0) {
+            return;
+        }
+        try {
+            Thread.sleep(batchPauseMs);
+        } catch (InterruptedException e) {
+            running = false;
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,27 +1,99 @@
 package UdpChatServer.manager;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.db.RoomDAO;
+import UdpChatServer.model.RoomSummary;
+import UdpChatServer.model.RoomView;
+import UdpChatServer.util.Metrics;
+
 /**
- * Manages chat rooms and their participants in memory in a thread-safe manner.
- * Note: This manager primarily handles the in-memory state of active rooms and users.
- * Persistence (creating/fetching rooms from DB) should be handled by RoomDAO.
+ * Authoritative in-memory cache of room membership, used for fanout and permission checks.
+ * Rooms are loaded lazily from RoomDAO on first access and kept in an access-ordered map
+ * bounded by {@code maxCachedRooms}; the least recently used (idle) rooms are evicted.
+ * Handlers write membership changes to the database first and then through to this cache.
+ *
+ * It also keeps each user's room list (get_user_rooms) as room views: per user, the sorted IDs
+ * of their rooms; per room, an immutable {@link RoomView} with name and sorted members, built
+ * from the membership cache and shared by all members. The write-through methods drop exactly
+ * the views they change, so listing a user's rooms is a few map lookups.
  */
 public class RoomManager {
 
-    // Map: roomId -> Set<chatid> of participants currently in the room (in memory)
-    // Use ConcurrentHashMap for the outer map and thread-safe sets for the inner values.
-    private final Map<String, Set<String>> rooms = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(RoomManager.class);
+
+    private final RoomDAO roomDAO;
+    private final int maxCachedRooms;
+
+    // Map: roomId -> Set<chatid> of participants. Access-ordered for LRU eviction; guarded by 'this'.
+    private final LinkedHashMap<String, Set<String>> rooms;
+
+    // Bumped on every write (membership or name) so a DB load that raced with a write is not installed over newer state.
+    private long mutationGeneration = 0;
+
+    // Map: roomId -> room name (metadata cache). Same LRU bound; guarded by 'this'.
+    // Filled by get_rooms summaries and on-demand lookups, updated on rename, dropped on delete.
+    private final LinkedHashMap<String, String> roomNames;
+
+    // Map: chatid -> sorted IDs of the user's rooms. LRU bounded by maxUserViews; guarded by 'this'.
+    private final LinkedHashMap<String, String[]> userRoomIds;
 
-    // Optional: Reference to RoomDAO if needed for persistence checks/operations directly here
-    // private final RoomDAO roomDAO;
-    // public RoomManager(RoomDAO roomDAO) { this.roomDAO = roomDAO; }
+    // Map: roomId -> view (name, sorted members). Same LRU bound as rooms; guarded by 'this'.
+    private final LinkedHashMap<String, RoomView> roomViews;
+
+    // Bumped whenever a view is dropped so a view built meanwhile is not installed.
+    private long viewGeneration = 0;
+
+    private final LongAdder viewHits = Metrics.counter("room_views.hits");
+    private final LongAdder viewMisses = Metrics.counter("room_views.misses");
+
+    public RoomManager(RoomDAO roomDAO, int maxCachedRooms, int maxUserViews) {
+        this.roomDAO = roomDAO;
+        this.maxCachedRooms = Math.max(1, maxCachedRooms);
+        int maxUsers = Math.max(1, maxUserViews);
+        this.rooms = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+                boolean evict = size() > RoomManager.this.maxCachedRooms;
+                if (evict) {
+                    log.debug("Evicting idle room '{}' from membership cache.", eldest.getKey());
+                }
+                return evict;
+            }
+        };
+        this.roomNames = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > RoomManager.this.maxCachedRooms;
+            }
+        };
+        this.userRoomIds = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                return size() > maxUsers;
+            }
+        };
+        this.roomViews = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RoomView> eldest) {
+                return size() > RoomManager.this.maxCachedRooms;
+            }
+        };
+        Metrics.gauge("room_views.hit_ratio", () -> Metrics.ratio(viewHits, viewMisses));
+    }
 
     /**
      * Generates a deterministic room ID based on a set of participant chat IDs.
@@ -57,113 +129,359 @@ public class RoomManager {
     }
 
     /**
-     * Creates a new room in memory with the given participants.
-     * If the room already exists, it ensures all specified participants are in it.
-     * Note: Actual room creation in the DB should be handled by RoomDAO.
+     * Returns the cached participant set for a room, loading it from the database on a miss.
+     * Must NOT be called while holding the monitor (the DB load happens outside of it).
+     *
+     * @return The live participant set (caller must hold the monitor to read it), or null if
+     *         the room has no participants in the database.
+     */
+    private Set<String> loadIfAbsent(String roomId) {
+        long generationBeforeLoad;
+        synchronized (this) {
+            Set<String> cached = rooms.get(roomId);
+            if (cached != null) {
+                return cached;
+            }
+            generationBeforeLoad = mutationGeneration;
+        }
+
+        Set<String> loaded = roomDAO.getParticipantsInRoom(roomId);
+        if (loaded.isEmpty()) {
+            return null; // Unknown room (or DB error) - don't cache, try again next time
+        }
+
+        synchronized (this) {
+            Set<String> cached = rooms.get(roomId);
+            if (cached != null) {
+                return cached; // Another thread loaded or created it meanwhile
+            }
+            if (generationBeforeLoad != mutationGeneration) {
+                // A write happened while we were loading; our snapshot may be stale, so don't install it
+                log.debug("Membership of room '{}' changed during load; serving uncached result.", roomId);
+                return loaded;
+            }
+            Set<String> participants = new HashSet<>(loaded);
+            rooms.put(roomId, participants);
+            log.debug("Loaded room '{}' into membership cache ({} participants).", roomId, participants.size());
+            return participants;
+        }
+    }
+
+    /**
+     * Records a room and its participants after it has been created/joined in the database.
+     * If the room is already cached, the participants are merged into it. An uncached room is
+     * not installed from the given set, since the database may hold members added earlier; it
+     * is loaded in full on next access.
      *
      * @param roomId The unique ID of the room.
-     * @param initialParticipants The initial set of participants.
-     * @return true if a new room was created in memory, false if it already existed.
+     * @param initialParticipants The participants just written to the database.
+     * @return true if the participants were merged into a cached room, false if the room will be loaded on next access.
      */
-    public boolean createOrJoinRoom(String roomId, Set<String> initialParticipants) {
-         // Create a thread-safe set for participants
-        Set<String> participants = rooms.computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet());
-        boolean created = participants.isEmpty(); // Check if it was newly created by computeIfAbsent
-        participants.addAll(initialParticipants); // Add all initial participants
-        System.out.println("Room '" + roomId + "' accessed/created in memory. Participants: " + participants);
-        return created;
+    public synchronized boolean createOrJoinRoom(String roomId, Set<String> initialParticipants) {
+        mutationGeneration++;
+        dropRoomView(roomId);
+        for (String chatid : initialParticipants) {
+            dropUserView(chatid);
+        }
+        Set<String> participants = rooms.get(roomId);
+        if (participants == null) {
+            log.debug("Room '{}' not cached; its membership will be loaded on next access.", roomId);
+            return false;
+        }
+        participants.addAll(initialParticipants);
+        log.info("Room '{}' joined in membership cache. Participants: {}", roomId, participants);
+        return true;
     }
 
-     /**
-     * Adds a user to an existing room in memory.
+    /**
+     * Writes through a membership addition that has already been persisted.
+     * If the room is not cached it will be loaded (with the new member) on next access.
      *
      * @param roomId The ID of the room.
      * @param chatid The ID of the user to add.
-     * @return true if the user was added, false if the room doesn't exist or the user was already present.
+     * @return true if the user was added to a cached room, false otherwise.
      */
-    public boolean addUserToRoom(String roomId, String chatid) {
+    public synchronized boolean addUserToRoom(String roomId, String chatid) {
+        mutationGeneration++;
+        dropRoomView(roomId);
+        dropUserView(chatid);
         Set<String> participants = rooms.get(roomId);
         if (participants != null) {
             boolean added = participants.add(chatid);
-            if(added) System.out.println("User '" + chatid + "' added to room '" + roomId + "' in memory.");
+            if (added) log.info("User '{}' added to room '{}' in membership cache.", chatid, roomId);
             return added;
         }
-        System.err.println("Attempted to add user '" + chatid + "' to non-existent room '" + roomId + "' in memory.");
-        return false; // Room doesn't exist in memory
+        log.debug("Room '{}' not cached; user '{}' will be picked up on next load.", roomId, chatid);
+        return false;
     }
 
     /**
-     * Removes a user from a room in memory.
-     * If the room becomes empty after removal, the room itself might be removed from memory (optional).
+     * Writes through a membership removal that has already been persisted.
      *
      * @param roomId The ID of the room.
      * @param chatid The ID of the user to remove.
-     * @return true if the user was removed, false if the room or user wasn't found.
+     * @return true if the user was removed from a cached room, false otherwise.
      */
-    public boolean removeUserFromRoom(String roomId, String chatid) {
+    public synchronized boolean removeUserFromRoom(String roomId, String chatid) {
+        mutationGeneration++;
+        dropRoomView(roomId);
+        dropUserView(chatid);
         Set<String> participants = rooms.get(roomId);
         if (participants != null) {
             boolean removed = participants.remove(chatid);
-            if (removed) {
-                System.out.println("User '" + chatid + "' removed from room '" + roomId + "' in memory.");
-                // Optional: Remove the room from memory if it becomes empty
-                // if (participants.isEmpty()) {
-                //     rooms.remove(roomId);
-                //     System.out.println("Room '" + roomId + "' removed from memory as it became empty.");
-                // }
-            }
+            if (removed) log.info("User '{}' removed from room '{}' in membership cache.", chatid, roomId);
             return removed;
         }
-         System.err.println("Attempted to remove user '" + chatid + "' from non-existent room '" + roomId + "' in memory.");
-        return false; // Room or user not found
+        log.debug("Room '{}' not cached; nothing to remove for user '{}'.", roomId, chatid);
+        return false;
     }
 
     /**
-     * Gets the set of participants currently in a specific room (in memory).
+     * Gets the set of participants of a room, loading it from the database on a cache miss.
      *
      * @param roomId The ID of the room.
-     * @return An unmodifiable set of participant chat IDs, or an empty set if the room doesn't exist in memory.
+     * @return An unmodifiable copy of the participant chat IDs, or an empty set if the room is unknown.
      */
     public Set<String> getUsersInRoom(String roomId) {
-        Set<String> participants = rooms.get(roomId);
-        // Return an unmodifiable view or a copy to prevent external modification
-        return (participants != null) ? Collections.unmodifiableSet(new HashSet<>(participants)) : Collections.emptySet();
+        if (roomId == null) return Collections.emptySet();
+        Set<String> participants = loadIfAbsent(roomId);
+        if (participants == null) {
+            return Collections.emptySet();
+        }
+        synchronized (this) {
+            return Collections.unmodifiableSet(new HashSet<>(participants));
+        }
     }
 
     /**
-     * Checks if a specific user is currently listed as being in a specific room (in memory).
+     * Checks whether a user is a participant of a room, loading the room on a cache miss.
      *
      * @param roomId The ID of the room.
      * @param chatid The ID of the user.
-     * @return true if the user is in the room's participant list in memory, false otherwise.
+     * @return true if the user is a participant of the room, false otherwise.
      */
     public boolean isUserInRoom(String roomId, String chatid) {
-        Set<String> participants = rooms.get(roomId);
-        return participants != null && participants.contains(chatid);
+        if (roomId == null || chatid == null) return false;
+        Set<String> participants = loadIfAbsent(roomId);
+        if (participants == null) {
+            return false;
+        }
+        synchronized (this) {
+            return participants.contains(chatid);
+        }
     }
 
-     /**
-     * Gets all room IDs currently managed in memory.
+    /**
+     * Fills the membership cache with the most recently active rooms, up to its capacity, so
+     * the first messages after a restart don't each load their room from the database. Rooms
+     * cached meanwhile are left as they are.
      *
-     * @return A set of all active room IDs.
+     * @return The number of rooms added to the cache.
      */
-    public Set<String> getAllRoomIds() {
+    public int warmUp() {
+        long generationBeforeLoad;
+        synchronized (this) {
+            generationBeforeLoad = mutationGeneration;
+        }
+        Map<String, Set<String>> memberships = roomDAO.getMembershipsOfRecentRooms(maxCachedRooms);
+        int added = 0;
+        synchronized (this) {
+            if (generationBeforeLoad != mutationGeneration) {
+                log.info("Membership cache changed during warm-up; skipping preload.");
+                return 0;
+            }
+            for (Map.Entry<String, Set<String>> entry : memberships.entrySet()) {
+                if (!rooms.containsKey(entry.getKey())) {
+                    rooms.put(entry.getKey(), new HashSet<>(entry.getValue()));
+                    added++;
+                }
+            }
+        }
+        log.info("Membership cache warmed up with {} rooms.", added);
+        return added;
+    }
+
+    /**
+     * Gets all room IDs currently held in the cache.
+     *
+     * @return A set of cached room IDs.
+     */
+    public synchronized Set<String> getAllRoomIds() {
         return Collections.unmodifiableSet(new HashSet<>(rooms.keySet()));
     }
 
     /**
-     * Removes a room from memory completely.
+     * Removes a room from the cache (e.g. after it was deleted from the database).
      *
      * @param roomId The ID of the room to remove.
-     * @return true if the room existed and was removed, false otherwise.
+     * @return true if the room was cached and has been removed, false otherwise.
      */
-    public boolean removeRoom(String roomId) {
+    public synchronized boolean removeRoom(String roomId) {
+        mutationGeneration++;
+        roomNames.remove(roomId);
         Set<String> removed = rooms.remove(roomId);
+        RoomView view = roomViews.get(roomId);
+        for (String chatid : removed != null ? removed : view != null ? view.getMembers() : Collections.<String>emptyList()) {
+            dropUserView(chatid);
+        }
+        dropRoomView(roomId);
         if (removed != null) {
-            System.out.println("Room '" + roomId + "' completely removed from memory.");
+            log.info("Room '{}' removed from membership cache.", roomId);
             return true;
         }
-        System.err.println("Attempted to remove non-existent room '" + roomId + "' from memory.");
+        log.debug("Room '{}' was not cached; nothing to remove.", roomId);
         return false;
     }
+
+    /**
+     * Gets a room's display name from the metadata cache, loading it from RoomDAO on a miss.
+     *
+     * @param roomId The ID of the room.
+     * @return The room name, or the room ID if the room is unknown.
+     */
+    public String getRoomName(String roomId) {
+        if (roomId == null) return null;
+        synchronized (this) {
+            String cached = roomNames.get(roomId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        String name = roomDAO.getRoomName(roomId);
+        // RoomDAO falls back to the room ID when the room is missing or on error; don't cache that
+        if (name != null && !name.equals(roomId)) {
+            synchronized (this) {
+                roomNames.putIfAbsent(roomId, name);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * The current write generation; read it before a bulk DB read and pass it to
+     * {@link #cacheRoomSummaries} so the result is not installed over a newer write.
+     */
+    public synchronized long getMutationGeneration() {
+        return mutationGeneration;
+    }
+
+    /**
+     * Records room metadata fetched in bulk (e.g. from RoomDAO.getRoomSummariesByUser).
+     * Skipped if anything was written since generationBeforeRead, and names already cached are
+     * kept: a rename that raced with the read must not be overwritten by the old name (here and
+     * in the members' room views).
+     */
+    public synchronized void cacheRoomSummaries(Collection<RoomSummary> summaries, long generationBeforeRead) {
+        if (generationBeforeRead != mutationGeneration) {
+            log.debug("Room cache changed during get_rooms read; not caching {} summaries.", summaries.size());
+            return;
+        }
+        for (RoomSummary summary : summaries) {
+            if (summary.getName() != null) {
+                // A cached name came from a write-through and wins over a (possibly lagging) replica read
+                String cached = roomNames.putIfAbsent(summary.getRoomId(), summary.getName());
+                if (cached == null) {
+                    renameRoomView(summary.getRoomId(), summary.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes through a room name that has already been persisted (rename, or create_room
+     * updating the name of an existing room).
+     */
+    public synchronized void updateRoomName(String roomId, String newName) {
+        mutationGeneration++;
+        roomNames.put(roomId, newName);
+        renameRoomView(roomId, newName);
+        log.info("Room '{}' name set to '{}' in metadata cache.", roomId, newName);
+    }
+
+    /**
+     * The rooms of a user with their names and members, ordered by room ID. Served from the
+     * room views; a user seen for the first time costs one query for their room IDs, a room
+     * not viewed yet is built from the membership and name caches.
+     *
+     * @param chatid The ID of the user.
+     * @return The user's rooms, or an empty list if none are found.
+     */
+    public List<RoomView> getRoomViewsOfUser(String chatid) {
+        if (chatid == null) return Collections.emptyList();
+        String[] roomIds;
+        long generationBeforeLoad;
+        synchronized (this) {
+            roomIds = userRoomIds.get(chatid);
+            generationBeforeLoad = viewGeneration;
+        }
+        if (roomIds != null) {
+            viewHits.increment();
+        } else {
+            viewMisses.increment();
+            roomIds = new TreeSet<>(roomDAO.getRoomsByUser(chatid)).toArray(new String[0]);
+            synchronized (this) {
+                // Nothing cached for a user without rooms: an empty list may as well be a DB error
+                if (roomIds.length > 0 && generationBeforeLoad == viewGeneration) {
+                    userRoomIds.put(chatid, roomIds);
+                }
+            }
+        }
+
+        List<RoomView> views = new ArrayList<>(roomIds.length);
+        boolean stale = false;
+        for (String roomId : roomIds) {
+            RoomView view = getRoomView(roomId);
+            if (view != null && view.hasMember(chatid)) {
+                views.add(view);
+            } else {
+                stale = true; // Room deleted (or user removed) while the room was not cached
+            }
+        }
+        if (stale) {
+            synchronized (this) {
+                userRoomIds.remove(chatid, roomIds);
+            }
+        }
+        return views;
+    }
+
+    private RoomView getRoomView(String roomId) {
+        long generationBeforeLoad;
+        synchronized (this) {
+            RoomView cached = roomViews.get(roomId);
+            if (cached != null) {
+                return cached;
+            }
+            generationBeforeLoad = viewGeneration;
+        }
+        Set<String> members = getUsersInRoom(roomId);
+        if (members.isEmpty()) {
+            return null;
+        }
+        RoomView view = new RoomView(roomId, getRoomName(roomId), members);
+        synchronized (this) {
+            if (generationBeforeLoad == viewGeneration) {
+                roomViews.put(roomId, view);
+            }
+        }
+        return view;
+    }
+
+    private void dropRoomView(String roomId) {
+        viewGeneration++;
+        roomViews.remove(roomId);
+    }
+
+    private void dropUserView(String chatid) {
+        viewGeneration++;
+        userRoomIds.remove(chatid);
+    }
+
+    private void renameRoomView(String roomId, String newName) {
+        RoomView view = roomViews.get(roomId);
+        if (view != null && !newName.equals(view.getName())) {
+            viewGeneration++;
+            roomViews.put(roomId, view.withName(newName));
+        }
+    }
 }
@@ -0,0 +1,101 @@
+package UdpChatServer.manager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import UdpChatServer.model.Constants;
+import UdpChatServer.model.SessionInfo;
+import UdpChatServer.net.UdpSender;
+
+/**
+ * Notify-then-pull delivery for large rooms.
+ *
+ * For rooms with more than {@code pullThreshold} members, the full message isn't pushed to every
+ * member. Instead each online member gets a tiny room_update hint ("room X has new messages up to
+ * seq N") and fetches the content with get_messages + after_seq. Hints are coalesced per
+ * recipient: everything queued within one window (the flush interval) goes out as ONE room_update
+ * holding the highest seq per room.
+ */
+public class RoomUpdateNotifier {
+
+    private static final Logger log = LoggerFactory.getLogger(RoomUpdateNotifier.class);
+    private static final int MAX_ROOMS_PER_PACKET = 200;
+
+    private final ClientSessionManager sessionManager;
+    private final UdpSender udpSender;
+    private final int pullThreshold;
+
+    // recipient chatid -> (roomId -> highest seq). Inner maps are only touched inside compute()/remove().
+    private final ConcurrentHashMap<String, Map<String, Long>> pendingHints = new ConcurrentHashMap<>();
+
+    public RoomUpdateNotifier(ClientSessionManager sessionManager, UdpSender udpSender, int pullThreshold) {
+        this.sessionManager = sessionManager;
+        this.udpSender = udpSender;
+        this.pullThreshold = pullThreshold;
+    }
+
+    /**
+     * Whether a room of this size should use notify-then-pull instead of full push.
+     */
+    public boolean usesPullDelivery(int roomSize) {
+        return pullThreshold > 0 && roomSize > pullThreshold;
+    }
+
+    /**
+     * Queues a hint that {@code roomId} has messages up to {@code seq} for a recipient.
+     */
+    public void queueHint(String recipientChatId, String roomId, long seq) {
+        pendingHints.compute(recipientChatId, (k, rooms) -> {
+            Map<String, Long> hints = rooms != null ? rooms : new HashMap<>();
+            hints.merge(roomId, seq, Math::max);
+            return hints;
+        });
+    }
+
+    /**
+     * Sends every queued hint, one room_update per recipient. Run periodically by the scheduler.
+     */
+    public void flush() {
+        if (pendingHints.isEmpty()) {
+            return;
+        }
+        int recipients = 0;
+        for (String recipientChatId : pendingHints.keySet()) {
+            Map<String, Long> hints = pendingHints.remove(recipientChatId);
+            if (hints == null || hints.isEmpty()) {
+                continue;
+            }
+            SessionInfo session = sessionManager.peekSessionInfo(recipientChatId);
+            if (session == null || session.getKey() == null) {
+                continue; // Went offline; they'll catch up with get_messages after logging in
+            }
+            JsonObject rooms = new JsonObject();
+            for (Map.Entry<String, Long> hint : hints.entrySet()) {
+                if (rooms.size() >= MAX_ROOMS_PER_PACKET) {
+                    sendHint(session, rooms);
+                    rooms = new JsonObject();
+                }
+                rooms.addProperty(hint.getKey(), hint.getValue());
+            }
+            sendHint(session, rooms);
+            recipients++;
+        }
+        log.debug("Room update flush: hints sent to {} recipients.", recipients);
+    }
+
+    private void sendHint(SessionInfo session, JsonObject rooms) {
+        JsonObject data = new JsonObject();
+        data.add(Constants.KEY_ROOMS, rooms);
+        JsonObject messageJson = new JsonObject();
+        messageJson.addProperty(Constants.KEY_ACTION, Constants.ACTION_ROOM_UPDATE);
+        messageJson.add(Constants.KEY_DATA, data);
+        udpSender.initiateServerToClientFlow(Constants.ACTION_ROOM_UPDATE, messageJson,
+                session.getIpAddress(), session.getPort(), session.getKey());
+    }
+}
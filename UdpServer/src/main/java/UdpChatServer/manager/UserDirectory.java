@@ -0,0 +1,209 @@
+package UdpChatServer.manager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.db.UserDAO;
+
+/**
+ * In-memory directory of all registered chatids, loaded once from UserDAO and updated by
+ * registration, so get_users and prefix lookups never query the users table.
+ *
+ * Users are kept in a sorted array (case-insensitive, like the column's collation) that is
+ * replaced on every change; readers use the current array without locking. Every change bumps
+ * the directory version and is kept in a bounded change log, so a client that knows an older
+ * version can be sent only the users added since. Versions start at the load time in
+ * milliseconds, so a version from a previous server run is older than any of this run and
+ * gets the full list.
+ */
+public class UserDirectory {
+
+    private static final Logger log = LoggerFactory.getLogger(UserDirectory.class);
+    private static final Comparator<String> ORDER = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+
+    private final UserDAO userDAO;
+    private final int maxChangeLog;
+
+    private volatile String[] sorted; // null until loaded; replaced, never modified
+    private long version; // guarded by 'this'
+    private final Deque<Change> changeLog = new ArrayDeque<>(); // Oldest first; guarded by 'this'
+
+    public UserDirectory(UserDAO userDAO, int maxChangeLog) {
+        this.userDAO = userDAO;
+        this.maxChangeLog = Math.max(1, maxChangeLog);
+    }
+
+    /**
+     * Records a newly registered user (after it was written to the database).
+     *
+     * @return The directory version that includes the user.
+     */
+    public synchronized long addUser(String chatid) {
+        String[] current = load();
+        int index = Arrays.binarySearch(current, chatid, ORDER);
+        if (index >= 0) {
+            return version; // Already loaded with the directory
+        }
+        int insertAt = -index - 1;
+        String[] updated = new String[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, insertAt);
+        updated[insertAt] = chatid;
+        System.arraycopy(current, insertAt, updated, insertAt + 1, current.length - insertAt);
+        sorted = updated;
+
+        version++;
+        changeLog.addLast(new Change(version, chatid));
+        if (changeLog.size() > maxChangeLog) {
+            changeLog.removeFirst();
+        }
+        log.debug("User '{}' added to directory (version {}).", chatid, version);
+        return version;
+    }
+
+    public boolean contains(String chatid) {
+        return Arrays.binarySearch(loaded(), chatid, ORDER) >= 0;
+    }
+
+    /**
+     * What a client that knows {@code knownVersion} is missing: nothing, the users added since,
+     * or (unknown or too old a version) the full list.
+     */
+    public synchronized Changes changesSince(Long knownVersion) {
+        String[] current = load();
+        if (knownVersion != null && knownVersion == version) {
+            return new Changes(version, Changes.Kind.NOT_MODIFIED, Collections.emptyList());
+        }
+        // A delta needs every change after knownVersion still in the log
+        if (knownVersion != null && knownVersion < version && !changeLog.isEmpty()
+                && changeLog.peekFirst().version <= knownVersion + 1) {
+            List<String> added = new ArrayList<>();
+            for (Change change : changeLog) {
+                if (change.version > knownVersion) {
+                    added.add(change.chatid);
+                }
+            }
+            return new Changes(version, Changes.Kind.DELTA, added);
+        }
+        return new Changes(version, Changes.Kind.FULL, Collections.unmodifiableList(Arrays.asList(current)));
+    }
+
+    /**
+     * Chatids starting with {@code prefix} (case-insensitive), in directory order, after the
+     * cursor {@code afterChatid} (exclusive, may be null). Returns up to {@code limit + 1} ids so
+     * the caller can tell whether another page follows.
+     */
+    public List<String> search(String prefix, String afterChatid, int limit) {
+        String[] current = loaded();
+        int start = lowerBound(current, prefix, String.CASE_INSENSITIVE_ORDER);
+        if (afterChatid != null) {
+            int index = Arrays.binarySearch(current, afterChatid, ORDER);
+            start = Math.max(start, index >= 0 ? index + 1 : -index - 1);
+        }
+        List<String> result = new ArrayList<>(Math.min(limit + 1, 64));
+        for (int i = start; i < current.length && result.size() <= limit; i++) {
+            if (!current[i].regionMatches(true, 0, prefix, 0, prefix.length())) {
+                break; // Past the block of ids sharing the prefix
+            }
+            result.add(current[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Loads the directory now instead of on the first request (startup warm-up).
+     *
+     * @return The number of users loaded.
+     */
+    public int warmUp() {
+        return loaded().length;
+    }
+
+    private String[] loaded() {
+        String[] current = sorted;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            return load();
+        }
+    }
+
+    /**
+     * The current array, loading it from the database on first use. Caller holds the lock.
+     */
+    private String[] load() {
+        if (sorted == null) {
+            List<String> chatIds = userDAO.getAllChatIds();
+            String[] loaded = chatIds.toArray(new String[0]);
+            Arrays.sort(loaded, ORDER);
+            version = System.currentTimeMillis();
+            sorted = loaded;
+            log.info("User directory loaded with {} users (version {}).", loaded.length, version);
+        }
+        return sorted;
+    }
+
+    private static int lowerBound(String[] array, String key, Comparator<String> comparator) {
+        int low = 0;
+        int high = array.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparator.compare(array[mid], key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static final class Change {
+        private final long version;
+        private final String chatid;
+
+        private Change(long version, String chatid) {
+            this.version = version;
+            this.chatid = chatid;
+        }
+    }
+
+    /**
+     * Answer to {@link #changesSince}: the current version and the users to send.
+     */
+    public static final class Changes {
+        public enum Kind { NOT_MODIFIED, DELTA, FULL }
+
+        private final long version;
+        private final Kind kind;
+        private final List<String> users;
+
+        private Changes(long version, Kind kind, List<String> users) {
+            this.version = version;
+            this.kind = kind;
+            this.users = users;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Empty for NOT_MODIFIED, the added users for DELTA, everyone for FULL.
+         */
+        public List<String> getUsers() {
+            return users;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package UdpChatServer.manager;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import UdpChatServer.db.ReadConsistency;
+import UdpChatServer.db.UserDAO;
+import UdpChatServer.util.BloomFilter;
+import UdpChatServer.util.Metrics;
+import UdpChatServer.util.TextFolding;
+
+/**
+ * Bloom filter of every registered chatid, consulted before the user directory or UserDAO:
+ * a chatid the filter has never seen does not exist, which is answered without a lookup
+ * (mistyped chatids in create_room, free chatids at registration). "Might exist" still goes
+ * to the directory or the database.
+ *
+ * Loaded from the primary at startup and updated by registration. Until it is loaded every
+ * chatid might exist. Past its capacity the false-positive rate climbs, so the filter is
+ * rebuilt from the database at twice the size. Chatids are folded (case and accents) before
+ * hashing, so a chatid the users table would match under its collation is never a negative.
+ */
+public class UserExistenceFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(UserExistenceFilter.class);
+
+    private final UserDAO userDAO;
+    private final int minCapacity;
+    private final double falsePositiveRate;
+
+    private volatile BloomFilter filter; // null until loaded
+    private long capacity; // guarded by 'this'
+    private long count; // guarded by 'this'
+
+    private final LongAdder negatives = Metrics.counter("user_filter.negatives");
+    private final LongAdder positives = Metrics.counter("user_filter.positives");
+
+    public UserExistenceFilter(UserDAO userDAO, int minCapacity, double falsePositiveRate) {
+        this.userDAO = userDAO;
+        this.minCapacity = Math.max(1, minCapacity);
+        this.falsePositiveRate = falsePositiveRate;
+        Metrics.gauge("user_filter.bytes", () -> {
+            BloomFilter current = filter;
+            return current != null ? current.byteSize() : 0;
+        });
+    }
+
+    /**
+     * Loads the filter from the users table (startup warm-up).
+     *
+     * @return The number of chatids loaded.
+     */
+    public synchronized long warmUp() {
+        rebuild(0);
+        return count;
+    }
+
+    /**
+     * Records a newly registered user (after it was written to the database).
+     */
+    public synchronized void add(String chatid) {
+        BloomFilter current = filter;
+        if (current == null) {
+            return; // Not loaded yet: the load will read the user from the database
+        }
+        current.put(key(chatid));
+        count++;
+        if (count > capacity) {
+            log.info("User filter holds {} chatids, past its capacity of {}; rebuilding.", count, capacity);
+            rebuild(capacity * 2);
+        }
+    }
+
+    /**
+     * false if the chatid is definitely not registered; true if it might be (or the filter is
+     * not loaded).
+     */
+    public boolean mightExist(String chatid) {
+        BloomFilter current = filter;
+        if (current == null || chatid == null) {
+            return true;
+        }
+        boolean might = current.mightContain(key(chatid));
+        (might ? positives : negatives).increment();
+        return might;
+    }
+
+    /**
+     * Builds a new filter from the database. Caller holds the lock, so registrations wait and
+     * are added to the new filter.
+     */
+    private void rebuild(long minimumCapacity) {
+        List<String> chatIds;
+        try {
+            chatIds = userDAO.getAllChatIds(ReadConsistency.PRIMARY);
+        } catch (RuntimeException e) {
+            log.error("Could not load the user filter; user lookups go to the directory and database. {}", e.getMessage());
+            filter = null; // A stale filter could answer "not registered" for a new user
+            return;
+        }
+        long newCapacity = Math.max(Math.max(minCapacity, minimumCapacity), chatIds.size() * 2L);
+        BloomFilter built = new BloomFilter(newCapacity, falsePositiveRate);
+        for (String chatid : chatIds) {
+            built.put(key(chatid));
+        }
+        capacity = newCapacity;
+        count = chatIds.size();
+        filter = built;
+        log.info("User filter loaded with {} chatids (capacity {}, {} bytes).", count, capacity, built.byteSize());
+    }
+
+    private static String key(String chatid) {
+        return TextFolding.fold(TextFolding.normalize(chatid)).stripTrailing();
+    }
+}
@@ -89,11 +89,63 @@ public final class Constants {
     public static final String ACTION_USER_ROOM_LIST = "user_room_list"; // New response for room list
     public static final String ACTION_RECIEVE_ROOM = "recieve_room";
     public static final String ACTION_RECIEVE_LISTUSER = "recieve_listuser"; // New action to receive room info
+
+    // Presence
+    public static final String ACTION_PRESENCE_UPDATE = "presence_update"; // Server -> Client batched presence delta
+    public static final String KEY_PRESENCE = "presence"; // Map chatid -> presence state
+    public static final String PRESENCE_ONLINE = "online";
+    public static final String PRESENCE_IDLE = "idle";
+    public static final String PRESENCE_OFFLINE = "offline";
+
+    // Notify-then-pull delivery (large rooms)
+    public static final String ACTION_ROOM_UPDATE = "room_update"; // Server -> Client hint: rooms with new messages
+    public static final String KEY_ROOMS = "rooms"; // Map room_id -> latest seq in a room_update
+    public static final String KEY_MESSAGE_ID = "message_id";
+    public static final String KEY_AFTER_ID = "after_id"; // get_messages: only messages with a larger message_id
+
+    // Per-room message sequence numbers
+    public static final String KEY_SEQ = "seq";
+    public static final String KEY_AFTER_SEQ = "after_seq"; // get_messages: only messages with a larger seq
+    public static final String KEY_LIMIT = "limit"; // get_messages + after_seq: page size
+    public static final String KEY_HAS_MORE = "has_more"; // get_messages: more messages follow this page
+
+    // Keyset-paginated history (get_messages)
+    public static final String KEY_BEFORE_ID = "before_id"; // Page backward: messages older than this message_id
+    public static final String KEY_PAGE_SIZE = "page_size";
+    public static final String KEY_DIRECTION = "direction"; // Without a cursor: "backward" (newest page, default) or "forward" (oldest page)
+    public static final String KEY_NEXT_CURSOR = "next_cursor"; // message_id to pass as before_id/after_id for the next page
+    public static final String DIRECTION_BACKWARD = "backward";
+    public static final String DIRECTION_FORWARD = "forward";
+
+    // Incremental login sync
+    public static final String KEY_HIGH_WATER_MARKS = "high_water_marks"; // login: last seq the client has, per room
+    public static final String KEY_UNREAD_COUNT = "unread_count"; // login: messages after the client's high-water mark
+    public static final String KEY_ROOMS_HAS_MORE = "rooms_has_more"; // login/get_rooms: more rooms follow (they didn't fit the datagram)
+    public static final String KEY_ROOMS_CURSOR = "rooms_cursor"; // login/get_rooms: last room id sent; get_rooms continues after it
+
+    // Versioned user directory (get_users)
+    public static final String KEY_USERS_VERSION = "users_version"; // Directory version the client has / the server is at
+    public static final String KEY_NOT_MODIFIED = "not_modified"; // get_users: the client's version is current
+    public static final String KEY_ADDED = "added"; // Users added since the client's version
+    public static final String KEY_PREFIX = "prefix"; // get_users: look up chatids starting with this (case-insensitive)
+    public static final String KEY_AFTER = "after"; // get_users + prefix: chatid cursor, exclusive
+
+    // Phased startup
+    public static final String KEY_RETRY_AFTER_MS = "retry_after_ms"; // "starting" reply: when to retry the request
+
+    // History search
+    public static final String ACTION_SEARCH_MESSAGES = "search_messages"; // Client -> Server: search a room's history
+    public static final String ACTION_SEARCH_RESULTS = "search_results"; // Server -> Client response to search_messages
+    public static final String KEY_QUERY = "query"; // search_messages: words to find (accents and case are ignored)
+    public static final String KEY_RESULTS = "results"; // search_results: matching messages with snippets, newest first
+    public static final String KEY_SNIPPET = "snippet";
+    public static final String KEY_TOTAL_MATCHES = "total_matches"; // search_results: matches in the whole room
     // --- Status Values ---
     public static final String STATUS_SUCCESS = "success";
     public static final String STATUS_FAILURE = "failure";
     public static final String STATUS_ERROR = "error";
     public static final String STATUS_CANCELLED = "cancelled"; // Added status for ACK when confirm is false
+    public static final String STATUS_STARTING = "starting"; // Error reply while the server is still warming up
 
     // --- Error Messages ---
     public static final String ERROR_MSG_INVALID_JSON = "Invalid JSON format or decryption failed."; // Updated message
@@ -111,6 +163,7 @@ public final class Constants {
     public static final String ERROR_MSG_DECRYPTION_FAILED = "Failed to decrypt message with provided session key."; // Added message
     public static final String ERROR_MSG_PENDING_ACTION_NOT_FOUND = "No pending action found for this confirmation/ack.";
     public static final String ERROR_MSG_INVALID_STATE = "Invalid state for current action.";
+    public static final String ERROR_MSG_SERVER_STARTING = "Server is starting. Please retry shortly.";
 
     public static final String MSG_ACTION_SUCCESS = "Action processed successfully.";
     public static final String MSG_ACTION_FAILED = "Action failed to process.";
@@ -132,11 +185,62 @@ public final class Constants {
     public static final String STORAGE_DIR = "server_storage";
     public static final int BUFFER_SIZE = 1024 * 64;
     public static final int DATA_CHUNK_SIZE = 1024 * 32;
+    public static final long FILE_UPLOAD_IDLE_TIMEOUT_MS = 10 * 60 * 1000; // Uploads without a chunk for 10 minutes are dropped
+    public static final long FILE_UPLOAD_EXPIRY_INTERVAL_MS = 60 * 1000; // How often idle uploads are looked for
+    public static final long MAX_UPLOAD_FILE_SIZE = 1024L * 1024 * 1024; // Larger file_send_init requests are rejected (1 GB)
+    public static final int MAX_CONCURRENT_UPLOADS = 64; // Uploads in progress at once; further inits are rejected until one ends
 
     // --- Other ---
     public static final long SESSION_CLEANUP_INTERVAL_MS = 5 * 60 * 1000; // 5 minutes
     public static final long SESSION_MAX_INACTIVE_INTERVAL_MS = 30 * 60 * 1000; // 30 minutes
     public static final long PENDING_MESSAGE_TIMEOUT_MS = 60 * 1000; // 1 minute timeout for pending confirmations/acks
+    public static final long DEFAULT_PRESENCE_FLUSH_INTERVAL_MS = 2 * 1000; // 2 seconds between presence delta batches
+    public static final long DEFAULT_PRESENCE_IDLE_THRESHOLD_MS = 5 * 60 * 1000; // 5 minutes without activity -> idle
+    public static final int DEFAULT_PRESENCE_MAX_ENTRIES_PER_PACKET = 200; // Keeps a presence_update well under the UDP limit
+    public static final int DEFAULT_ROOM_CACHE_MAX_ROOMS = 10000; // Rooms kept in the membership cache before LRU eviction
+    public static final int DEFAULT_ROOM_VIEW_MAX_USERS = 10000; // Users whose room list is kept in memory before LRU eviction
+    public static final int DEFAULT_FANOUT_INLINE_THRESHOLD = 16; // Recipient sets up to this size are delivered on the request thread
+    public static final int DEFAULT_FANOUT_BATCH_SIZE = 64; // Recipients per parallel fanout batch
+    public static final int DEFAULT_DELIVERY_PULL_THRESHOLD = 200; // Rooms with more members get room_update hints instead of full pushes
+    public static final long DEFAULT_DELIVERY_HINT_WINDOW_MS = 500; // Hints to a recipient are coalesced over this window
+    public static final int DEFAULT_MESSAGES_PAGE_LIMIT = 50; // get_messages + after_seq page size when no limit is given
+    public static final int MAX_MESSAGES_PAGE_LIMIT = 200; // Upper bound for a client-supplied limit
+    public static final int MAX_MESSAGES_PAGE_BYTES = 48 * 1024; // Serialized messages per messages_list, keeps it in one datagram
+    public static final int DEFAULT_WRITE_BEHIND_MAX_BATCH_SIZE = 256; // Messages persisted per group commit at most
+    public static final long DEFAULT_WRITE_BEHIND_MAX_LINGER_MS = 5; // Writer waits this long for more messages before committing
+    public static final long DEFAULT_DB_READ_MAX_STALENESS_MS = 2000; // Bounded-staleness reads use the replica while it lags at most this
+    public static final long DEFAULT_DB_READ_LAG_CHECK_INTERVAL_MS = 1000; // How often the replica's lag is measured
+    public static final String MESSAGE_STORE_JDBC = "jdbc"; // message.store: messages table (default)
+    public static final String MESSAGE_STORE_LOG = "log"; // message.store: per-room segmented log files
+    public static final String DEFAULT_MESSAGE_LOG_DIR = "message_log"; // Base directory of the log store
+    public static final long DEFAULT_MESSAGE_LOG_SEGMENT_BYTES = 16L * 1024 * 1024; // A room's active segment is sealed past this size
+    public static final int DEFAULT_MESSAGE_LOG_INDEX_INTERVAL = 32; // Records between two sparse index entries of a segment
+    public static final long DEFAULT_MESSAGE_LOG_COMPACTION_INTERVAL_MS = 10 * 60 * 1000; // How often small sealed segments are merged
+    public static final int DEFAULT_AUTH_THREADS = 2; // Threads hashing/verifying passwords, separate from the request pool
+    public static final int DEFAULT_AUTH_QUEUE_CAPACITY = 256; // Logins/registrations waiting for an auth thread before new ones are rejected
+    public static final int DEFAULT_PBKDF2_ITERATIONS = 210000; // PBKDF2-HMAC-SHA256 work factor; stored hashes with fewer are upgraded on login
+    public static final int DEFAULT_USERS_PAGE_LIMIT = 50; // Default page size of a get_users prefix lookup
+    public static final int MAX_USERS_PAGE_LIMIT = 500; // Upper bound for a client-supplied limit
+    public static final int DEFAULT_USER_DIRECTORY_CHANGE_LOG = 1000; // Directory changes kept to answer get_users with a delta
+    public static final int DEFAULT_USER_FILTER_MIN_CAPACITY = 100000; // Chatids the user filter is sized for at least
+    public static final double DEFAULT_USER_FILTER_FALSE_POSITIVE_RATE = 0.01; // Share of unknown chatids still looked up
+    public static final int DEFAULT_LOGIN_SYNC_MESSAGES_PER_ROOM = 20; // Missed messages included per room in login_success
+    public static final int DEFAULT_RECENT_CACHE_MESSAGES_PER_ROOM = 100; // Recent messages kept per cached room
+    public static final long DEFAULT_RECENT_CACHE_MAX_BYTES = 32L * 1024 * 1024; // Estimated memory budget of the recent message cache
+    public static final long DEFAULT_METRICS_LOG_INTERVAL_MS = 60 * 1000; // How often the metrics snapshot is logged
+    public static final long STARTING_RETRY_AFTER_MS = 1000; // Suggested retry delay in a "starting" reply
+    public static final String DEFAULT_SEARCH_INDEX_DIR = "search_index"; // Directory of the search index snapshot
+    public static final long DEFAULT_SEARCH_SNAPSHOT_INTERVAL_MS = 5 * 60 * 1000; // How often a changed search index is snapshotted
+    public static final int DEFAULT_SEARCH_PAGE_SIZE = 20; // search_messages hits per page when no page_size is given
+    public static final int MAX_SEARCH_PAGE_SIZE = 50; // Upper bound for a client-supplied page_size
+    public static final int MAX_SEARCH_QUERY_LENGTH = 200; // Longer queries are rejected
+    public static final int DEFAULT_RETENTION_MAX_AGE_DAYS = 0; // Messages older than this are archived; 0 keeps them
+    public static final int DEFAULT_RETENTION_MAX_MESSAGES_PER_ROOM = 0; // Messages of a room beyond the newest N are archived; 0 keeps them
+    public static final long DEFAULT_RETENTION_INTERVAL_MS = 60 * 60 * 1000; // How often the retention pass runs
+    public static final int DEFAULT_RETENTION_BATCH_SIZE = 500; // Messages archived and deleted per batch (one short DELETE)
+    public static final long DEFAULT_RETENTION_BATCH_PAUSE_MS = 50; // Pause between batches so foreground queries get the table
+    public static final String DEFAULT_RETENTION_ARCHIVE_DIR = "message_archive"; // Base directory of the compressed archive
+    public static final long DEFAULT_RETENTION_ARCHIVE_SEGMENT_BYTES = 16L * 1024 * 1024; // A room's archive segment is sealed past this size
 
     // Default Bot Constants
     public static final String GEMINI_BOT_CHAT_ID = "gemini_bot";
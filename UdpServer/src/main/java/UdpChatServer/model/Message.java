@@ -11,13 +11,19 @@ public class Message {
     private final String senderChatid;
     private final String content;
     private final Timestamp timestamp;
+    private final long seq; // Per-room sequence number, 0 until the message is saved
 
     public Message(Long messageId, String roomId, String senderChatid, String content, Timestamp timestamp) {
+        this(messageId, roomId, senderChatid, content, timestamp, 0);
+    }
+
+    public Message(Long messageId, String roomId, String senderChatid, String content, Timestamp timestamp, long seq) {
         this.messageId = messageId;
         this.roomId = roomId;
         this.senderChatid = senderChatid;
         this.content = content;
         this.timestamp = timestamp;
+        this.seq = seq;
     }
 
     public Long getMessageId() {
@@ -40,9 +46,13 @@ public class Message {
         return timestamp;
     }
 
+    public long getSeq() {
+        return seq;
+    }
+
     @Override
     public String toString() {
-        return String.format("Message[id=%d, room=%s, sender=%s, time=%s, content=%s]",
-                messageId, roomId, senderChatid, timestamp, content);
+        return String.format("Message[id=%d, room=%s, seq=%d, sender=%s, time=%s, content=%s]",
+                messageId, roomId, seq, senderChatid, timestamp, content);
     }
 }
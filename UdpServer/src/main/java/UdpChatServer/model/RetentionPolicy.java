@@ -0,0 +1,43 @@
+package UdpChatServer.model;
+
+/**
+ * Retention limits of a room: messages older than maxAgeDays or beyond the newest maxMessages
+ * are moved to the archive. A null limit falls back to the configured default; 0 disables it.
+ */
+public class RetentionPolicy {
+    private final Integer maxAgeDays;
+    private final Integer maxMessages;
+
+    public RetentionPolicy(Integer maxAgeDays, Integer maxMessages) {
+        this.maxAgeDays = maxAgeDays;
+        this.maxMessages = maxMessages;
+    }
+
+    public Integer getMaxAgeDays() {
+        return maxAgeDays;
+    }
+
+    public Integer getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * This policy with its unset limits taken from {@code defaults}.
+     */
+    public RetentionPolicy orElse(RetentionPolicy defaults) {
+        return new RetentionPolicy(maxAgeDays != null ? maxAgeDays : defaults.maxAgeDays,
+                maxMessages != null ? maxMessages : defaults.maxMessages);
+    }
+
+    /**
+     * Whether the policy expires anything.
+     */
+    public boolean isEnabled() {
+        return (maxAgeDays != null && maxAgeDays > 0) || (maxMessages != null && maxMessages > 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetentionPolicy[maxAgeDays=%s, maxMessages=%s]", maxAgeDays, maxMessages);
+    }
+}
@@ -0,0 +1,59 @@
+package UdpChatServer.model;
+
+import java.util.Comparator;
+
+/**
+ * Summary of a room as shown in a user's room list: metadata plus member count and
+ * the latest message, fetched for all of a user's rooms in a single query.
+ */
+public class RoomSummary {
+
+    // Java string order (not the database collation), so a rooms_cursor compares the same way every time
+    public static final Comparator<RoomSummary> BY_ROOM_ID = Comparator.comparing(RoomSummary::getRoomId);
+
+    private final String roomId;
+    private final String name;
+    private final String owner;
+    private final int memberCount;
+    private final long lastMessageId; // 0 if the room has no messages
+    private final long lastSeq; // 0 if the room has no messages
+
+    public RoomSummary(String roomId, String name, String owner, int memberCount, long lastMessageId, long lastSeq) {
+        this.roomId = roomId;
+        this.name = name;
+        this.owner = owner;
+        this.memberCount = memberCount;
+        this.lastMessageId = lastMessageId;
+        this.lastSeq = lastSeq;
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    public long getLastMessageId() {
+        return lastMessageId;
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RoomSummary[id=%s, name=%s, owner=%s, members=%d, lastMessageId=%d, lastSeq=%d]",
+                roomId, name, owner, memberCount, lastMessageId, lastSeq);
+    }
+}
@@ -0,0 +1,60 @@
+package UdpChatServer.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A room as listed to its members: id, name and the sorted member chat IDs. Immutable, so one
+ * instance is shared by the room views of all its members.
+ */
+public class RoomView {
+    private final String roomId;
+    private final String name;
+    private final String[] members; // Sorted
+
+    public RoomView(String roomId, String name, Collection<String> members) {
+        this.roomId = roomId;
+        this.name = name;
+        this.members = members.toArray(new String[0]);
+        Arrays.sort(this.members);
+    }
+
+    private RoomView(String roomId, String name, String[] members) {
+        this.roomId = roomId;
+        this.name = name;
+        this.members = members;
+    }
+
+    /**
+     * The same room under another name.
+     */
+    public RoomView withName(String newName) {
+        return new RoomView(roomId, newName, members);
+    }
+
+    public String getRoomId() {
+        return roomId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The member chat IDs in ascending order (read-only).
+     */
+    public List<String> getMembers() {
+        return Collections.unmodifiableList(Arrays.asList(members));
+    }
+
+    public boolean hasMember(String chatid) {
+        return Arrays.binarySearch(members, chatid) >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RoomView[id=%s, name=%s, members=%d]", roomId, name, members.length);
+    }
+}
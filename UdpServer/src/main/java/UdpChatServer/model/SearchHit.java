@@ -0,0 +1,22 @@
+package UdpChatServer.model;
+
+/**
+ * A message matching a history search, with the part of its content around the first match.
+ */
+public class SearchHit {
+    private final Message message;
+    private final String snippet;
+
+    public SearchHit(Message message, String snippet) {
+        this.message = message;
+        this.snippet = snippet;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public String getSnippet() {
+        return snippet;
+    }
+}
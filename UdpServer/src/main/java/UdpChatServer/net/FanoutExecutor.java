@@ -0,0 +1,156 @@
+package UdpChatServer.net;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+import UdpChatServer.model.SessionInfo;
+
+/**
+ * Delivers one message to many recipients off the request thread.
+ *
+ * Recipient sets up to {@code inlineThreshold} are delivered inline on the caller's thread.
+ * Larger sets are split into batches of {@code batchSize} and sent in parallel on a ForkJoinPool.
+ * In both cases the caller doesn't wait for large fanouts, so the sender's ACK isn't delayed.
+ *
+ * Ordering: deliveries that share an ordering key (the room ID) are chained. Message N+1 of a
+ * room starts only after every batch of message N has been sent, so each recipient sees a
+ * room's messages in submission order. Different rooms fan out independently.
+ */
+public class FanoutExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(FanoutExecutor.class);
+
+    private final UdpSender udpSender;
+    private final ForkJoinPool pool;
+    private final int inlineThreshold;
+    private final int batchSize;
+
+    // orderingKey -> completion of the last fanout submitted for that key
+    private final Map<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    public FanoutExecutor(UdpSender udpSender, int threads, int inlineThreshold, int batchSize) {
+        this.udpSender = udpSender;
+        this.inlineThreshold = Math.max(0, inlineThreshold);
+        this.batchSize = Math.max(1, batchSize);
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.pool = new ForkJoinPool(Math.max(1, threads), p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("Fanout-Worker-" + threadCounter.incrementAndGet());
+            return t;
+        }, (t, e) -> log.error("Uncaught error in fanout worker {}: {}", t.getName(), e.getMessage(), e), false);
+        log.info("Fanout executor initialized (threads: {}, inline threshold: {}, batch size: {})",
+                pool.getParallelism(), this.inlineThreshold, this.batchSize);
+    }
+
+    /**
+     * Fans a message out to the given recipients, preserving order per {@code orderingKey}.
+     *
+     * @param orderingKey Deliveries with the same key are sent in submission order (e.g. room ID).
+     * @param action The S2C action of the message.
+     * @param messageJson The message (not modified).
+     * @param recipients Online recipient sessions.
+     */
+    public void submit(String orderingKey, String action, JsonObject messageJson, List<SessionInfo> recipients) {
+        if (recipients == null || recipients.isEmpty()) {
+            return;
+        }
+        // Serialize once on the caller's thread; the template is immutable afterwards
+        FanoutTemplate template = new FanoutTemplate(action, messageJson);
+        List<SessionInfo> snapshot = List.copyOf(recipients);
+        boolean inline = snapshot.size() <= inlineThreshold;
+
+        CompletableFuture<Void> inlineDone = inline ? new CompletableFuture<>() : null;
+
+        CompletableFuture<Void> mine = tails.compute(orderingKey, (key, previous) -> {
+            boolean idle = previous == null || previous.isDone();
+            if (inline && idle) {
+                // Nothing pending for this key: deliver on the caller's thread right after compute()
+                return inlineDone;
+            } else if (idle) {
+                return CompletableFuture.runAsync(() -> deliver(template, snapshot), pool);
+            }
+            // Something is still in flight for this key: chain behind it (even small sets)
+            return previous.handle((r, e) -> null).thenRunAsync(() -> deliver(template, snapshot), pool);
+        });
+
+        if (mine == inlineDone) {
+            try {
+                deliver(template, snapshot);
+            } finally {
+                inlineDone.complete(null);
+            }
+        }
+        mine.whenComplete((r, e) -> tails.remove(orderingKey, mine));
+    }
+
+    private void deliver(FanoutTemplate template, List<SessionInfo> recipients) {
+        try {
+            if (recipients.size() <= batchSize) {
+                sendBatch(template, recipients);
+            } else {
+                pool.invoke(new BatchAction(template, recipients, 0, recipients.size()));
+            }
+        } catch (Exception e) {
+            log.error("Error during fanout of action '{}': {}", template.getAction(), e.getMessage(), e);
+        }
+    }
+
+    private int sendBatch(FanoutTemplate template, List<SessionInfo> batch) {
+        int sent = 0;
+        for (SessionInfo recipient : batch) {
+            if (udpSender.sendFromTemplate(template, recipient.getIpAddress(), recipient.getPort(), recipient.getKey())) {
+                sent++;
+            }
+        }
+        log.debug("Fanout batch of action '{}' sent to {}/{} recipients.", template.getAction(), sent, batch.size());
+        return sent;
+    }
+
+    /**
+     * Splits a recipient range in halves until it fits in one batch.
+     */
+    private class BatchAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FanoutTemplate template;
+        private final List<SessionInfo> recipients;
+        private final int from;
+        private final int to;
+
+        BatchAction(FanoutTemplate template, List<SessionInfo> recipients, int from, int to) {
+            this.template = template;
+            this.recipients = recipients;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= batchSize) {
+                sendBatch(template, recipients.subList(from, to));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new BatchAction(template, recipients, from, mid),
+                      new BatchAction(template, recipients, mid, to));
+        }
+    }
+
+    /**
+     * The pool running parallel fanouts, exposed so the owner can shut it down.
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+}
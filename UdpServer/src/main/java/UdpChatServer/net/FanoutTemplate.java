@@ -0,0 +1,110 @@
+package UdpChatServer.net;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonObject;
+
+import UdpChatServer.crypto.CaesarCipher;
+import UdpChatServer.model.Constants;
+import UdpChatServer.util.JsonHelper;
+
+/**
+ * A message body serialized once for delivery to many recipients.
+ *
+ * The only per-recipient part of a Server -> Client packet is data.transaction_id, which the
+ * S2C flow places last in 'data'. The template serializes the message with a placeholder in
+ * that position and splits around it, so each recipient costs:
+ * <ul>
+ *   <li>encrypting its short transaction ID (the prefix/suffix are pre-encrypted per shift),</li>
+ *   <li>one array copy to assemble the packet,</li>
+ *   <li>adding the transaction ID's letters to a shared frequency baseline.</li>
+ * </ul>
+ * The assembled bytes and frequencies are identical to what
+ * {@link UdpSender#initiateServerToClientFlow} would produce for the same message.
+ */
+public final class FanoutTemplate {
+
+    private static final String TX_PLACEHOLDER = "__fanout_transaction_id__";
+
+    private final String action;
+    private final JsonObject messageJson; // Without transaction_id; read-only once the template is built
+
+    // Wire form (gson, what gets encrypted and sent) split around the placeholder
+    private final String wirePrefix;
+    private final String wireSuffix;
+
+    // Frequencies are counted on JsonObject.toString(), as in initiateServerToClientFlow
+    private final Map<Character, Integer> baselineFrequencies;
+
+    // shift -> { encrypted prefix bytes, encrypted suffix bytes }
+    private final Map<Integer, byte[][]> encryptedPartsByShift = new ConcurrentHashMap<>();
+
+    public FanoutTemplate(String action, JsonObject messageJson) {
+        this.action = action;
+        this.messageJson = messageJson.deepCopy();
+        if (!this.messageJson.has(Constants.KEY_DATA)) {
+            this.messageJson.add(Constants.KEY_DATA, new JsonObject());
+        }
+        this.messageJson.getAsJsonObject(Constants.KEY_DATA).remove(Constants.KEY_TRANSACTION_ID);
+
+        JsonObject withPlaceholder = this.messageJson.deepCopy();
+        withPlaceholder.getAsJsonObject(Constants.KEY_DATA).addProperty(Constants.KEY_TRANSACTION_ID, TX_PLACEHOLDER);
+
+        String wire = JsonHelper.toWireString(withPlaceholder);
+        int wireAt = wire.lastIndexOf(TX_PLACEHOLDER);
+        this.wirePrefix = wire.substring(0, wireAt);
+        this.wireSuffix = wire.substring(wireAt + TX_PLACEHOLDER.length());
+
+        String counted = withPlaceholder.toString();
+        int countedAt = counted.lastIndexOf(TX_PLACEHOLDER);
+        this.baselineFrequencies = CaesarCipher.countLetterFrequencies(
+                counted.substring(0, countedAt) + counted.substring(countedAt + TX_PLACEHOLDER.length()));
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * The message without a transaction ID. Shared by every recipient's PendingMessageInfo.
+     */
+    public JsonObject getMessageJson() {
+        return messageJson;
+    }
+
+    /**
+     * Assembles the encrypted packet for one recipient.
+     *
+     * @param transactionId The recipient's transaction ID (plain ASCII, never needs JSON escaping).
+     * @param transactionKey The recipient's session key; only its length (the shift) matters.
+     */
+    public byte[] encryptFor(String transactionId, String transactionKey) {
+        int shift = transactionKey.length();
+        byte[][] parts = encryptedPartsByShift.computeIfAbsent(shift, s -> new byte[][] {
+                CaesarCipher.encryptWithShift(wirePrefix, s).getBytes(StandardCharsets.UTF_8),
+                CaesarCipher.encryptWithShift(wireSuffix, s).getBytes(StandardCharsets.UTF_8)
+        });
+        byte[] header = CaesarCipher.encryptWithShift(transactionId, shift).getBytes(StandardCharsets.UTF_8);
+
+        byte[] packet = new byte[parts[0].length + header.length + parts[1].length];
+        System.arraycopy(parts[0], 0, packet, 0, parts[0].length);
+        System.arraycopy(header, 0, packet, parts[0].length, header.length);
+        System.arraycopy(parts[1], 0, packet, parts[0].length + header.length, parts[1].length);
+        return packet;
+    }
+
+    /**
+     * Expected letter frequencies of the recipient's decrypted packet: the shared baseline
+     * plus the letters of its transaction ID.
+     */
+    public Map<Character, Integer> frequenciesFor(String transactionId) {
+        Map<Character, Integer> frequencies = new HashMap<>(baselineFrequencies);
+        for (int i = 0; i < transactionId.length(); i++) {
+            frequencies.merge(transactionId.charAt(i), 1, Integer::sum);
+        }
+        return frequencies;
+    }
+}
@@ -5,10 +5,13 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,7 +19,9 @@ import org.slf4j.LoggerFactory;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 
-import UdpChatServer.db.MessageDAO;
+import UdpChatServer.crypto.PasswordHasher;
+import UdpChatServer.db.MessageArchive;
+import UdpChatServer.db.MessageStore;
 import UdpChatServer.db.RoomDAO;
 import UdpChatServer.db.UserDAO;
 import UdpChatServer.handler.CreateRoomHandler;
@@ -25,13 +30,23 @@ import UdpChatServer.handler.LoginHandler;
 import UdpChatServer.handler.RegisterHandler;
 import UdpChatServer.handler.RoomManagementHandler;
 import UdpChatServer.handler.RoomMessageHandler;
+import UdpChatServer.handler.SearchHandler;
 import UdpChatServer.handler.SendMessageHandler;
+import UdpChatServer.handler.UserRoomListHandler;
+import UdpChatServer.manager.AuthService;
 import UdpChatServer.manager.ClientSessionManager;
+import UdpChatServer.manager.MessageSearchIndex;
+import UdpChatServer.manager.PresenceManager;
+import UdpChatServer.manager.RecentMessageCache;
 import UdpChatServer.manager.RoomManager;
+import UdpChatServer.manager.RoomUpdateNotifier;
+import UdpChatServer.manager.UserDirectory;
+import UdpChatServer.manager.UserExistenceFilter;
 import UdpChatServer.model.Constants;
 import UdpChatServer.model.PendingMessageInfo;
 import UdpChatServer.util.JsonHelper;
 import UdpChatServer.util.JsonHelper.DecryptedResult;
+import UdpChatServer.util.Metrics;
 
 public class UdpRequestHandler implements Runnable {
 
@@ -40,14 +55,27 @@ public class UdpRequestHandler implements Runnable {
     private final DatagramSocket socket;
     private final ExecutorService requestThreadPool;
     private final ScheduledExecutorService cleanupExecutor;
+    private final ScheduledExecutorService presenceExecutor; // Presence flushes, kept off the cleanup thread
     private volatile boolean running = true;
+    private volatile boolean ready = false; // Set once startup warm-up finished; until then requests get "starting"
 
     // Managers and DAOs (passed in constructor)
     private final ClientSessionManager sessionManager;
     private final RoomManager roomManager;
     private final UserDAO userDAO;
     private final RoomDAO roomDAO;
-    private final MessageDAO messageDAO;
+    private final MessageStore messageStore;
+    private final RecentMessageCache recentMessageCache;
+    private final UserDirectory userDirectory;
+    private final UserExistenceFilter userExistenceFilter; // Rejects unknown chatids before a lookup
+    private final AuthService authService;
+    private final PresenceManager presenceManager;
+    private final long presenceFlushIntervalMs;
+    private final FanoutExecutor fanoutExecutor;
+    private final RoomUpdateNotifier roomUpdateNotifier;
+    private final long hintWindowMs;
+    private final long metricsLogIntervalMs;
+    private final LongAdder startingReplies = Metrics.counter("startup.starting_replies");
 
     // Handlers (created here)
     private final UdpSender udpSender;
@@ -58,29 +86,69 @@ public class UdpRequestHandler implements Runnable {
     private final RoomMessageHandler roomMessageHandler;
     private final GetUsersHandler getUsersHandler;
     private final RoomManagementHandler roomManagementHandler;
+    private final SearchHandler searchHandler;
+    private final UserRoomListHandler userRoomListHandler;
 
 
     public UdpRequestHandler(int port, ClientSessionManager sessionManager, RoomManager roomManager,
-            UserDAO userDAO, RoomDAO roomDAO, MessageDAO messageDAO) throws SocketException {
+            UserDAO userDAO, RoomDAO roomDAO, MessageStore messageStore, RecentMessageCache recentMessageCache, MessageSearchIndex searchIndex, MessageArchive messageArchive, Properties config) throws SocketException {
         this.socket = new DatagramSocket(port);
         this.sessionManager = sessionManager;
         this.roomManager = roomManager;
         this.userDAO = userDAO;
         this.roomDAO = roomDAO;
-        this.messageDAO = messageDAO;
+        this.messageStore = messageStore;
+        this.recentMessageCache = recentMessageCache;
 
         // Initialize UdpSender with its required dependencies
         this.udpSender = new UdpSender(this.socket, this.sessionManager);
 
-        // Initialize all handlers, passing dependencies (including udpSender and createRoomHandler)
-        this.loginHandler = new LoginHandler(this.userDAO, this.roomDAO, this.messageDAO, this.sessionManager, this.udpSender);
-        this.createRoomHandler = new CreateRoomHandler(this.sessionManager, this.roomManager, this.roomDAO, this.userDAO, this.socket, this.udpSender);
-        this.registerHandler = new RegisterHandler(this.userDAO, this.udpSender, this.sessionManager, this.createRoomHandler);
-        this.sendMessageHandler = new SendMessageHandler(this.sessionManager, this.roomManager, this.messageDAO, this.roomDAO, this.udpSender);
-        this.roomMessageHandler = new RoomMessageHandler(this.sessionManager, this.roomManager, this.roomDAO, this.messageDAO, this.socket, this.udpSender);
-        this.getUsersHandler = new GetUsersHandler(this.sessionManager, this.userDAO, this.udpSender);
-        this.roomManagementHandler = new RoomManagementHandler(this.sessionManager, this.roomManager, this.roomDAO, this.udpSender);
-
+        // Room/user-list fanout: inline for small recipient sets, parallel batches for large ones
+        int fanoutThreads = Integer.parseInt(config.getProperty("fanout.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int fanoutInlineThreshold = Integer.parseInt(config.getProperty("fanout.inlineThreshold",
+                String.valueOf(Constants.DEFAULT_FANOUT_INLINE_THRESHOLD)));
+        int fanoutBatchSize = Integer.parseInt(config.getProperty("fanout.batchSize",
+                String.valueOf(Constants.DEFAULT_FANOUT_BATCH_SIZE)));
+        this.fanoutExecutor = new FanoutExecutor(this.udpSender, fanoutThreads, fanoutInlineThreshold, fanoutBatchSize);
+
+        // Notify-then-pull for rooms above the pull threshold (hints coalesced per hint window)
+        int pullThreshold = Integer.parseInt(config.getProperty("delivery.pullThreshold",
+                String.valueOf(Constants.DEFAULT_DELIVERY_PULL_THRESHOLD)));
+        this.hintWindowMs = Long.parseLong(config.getProperty("delivery.hintWindowMs",
+                String.valueOf(Constants.DEFAULT_DELIVERY_HINT_WINDOW_MS)));
+        this.roomUpdateNotifier = new RoomUpdateNotifier(this.sessionManager, this.udpSender, pullThreshold);
+
+        // Presence tracking (deltas are batched and flushed on the dedicated presence executor)
+        this.presenceFlushIntervalMs = Long.parseLong(config.getProperty("presence.flushIntervalMs",
+                String.valueOf(Constants.DEFAULT_PRESENCE_FLUSH_INTERVAL_MS)));
+        long presenceIdleThresholdMs = Long.parseLong(config.getProperty("presence.idleThresholdMs",
+                String.valueOf(Constants.DEFAULT_PRESENCE_IDLE_THRESHOLD_MS)));
+        int presenceMaxEntries = Integer.parseInt(config.getProperty("presence.maxEntriesPerPacket",
+                String.valueOf(Constants.DEFAULT_PRESENCE_MAX_ENTRIES_PER_PACKET)));
+        this.presenceManager = new PresenceManager(this.sessionManager, this.roomDAO, this.udpSender,
+                presenceIdleThresholdMs, presenceMaxEntries);
+
+        int loginSyncMessagesPerRoom = Integer.parseInt(config.getProperty("login.sync.messagesPerRoom",
+                String.valueOf(Constants.DEFAULT_LOGIN_SYNC_MESSAGES_PER_ROOM)));
+        this.metricsLogIntervalMs = Long.parseLong(config.getProperty("metrics.logIntervalMs",
+                String.valueOf(Constants.DEFAULT_METRICS_LOG_INTERVAL_MS)));
+
+        // User directory (loaded from the database on first use, updated on registration)
+        int userDirectoryChangeLog = Integer.parseInt(config.getProperty("users.directory.changeLogSize",
+                String.valueOf(Constants.DEFAULT_USER_DIRECTORY_CHANGE_LOG)));
+        this.userDirectory = new UserDirectory(this.userDAO, userDirectoryChangeLog);
+        int userFilterMinCapacity = Integer.parseInt(config.getProperty("users.filter.minCapacity",
+                String.valueOf(Constants.DEFAULT_USER_FILTER_MIN_CAPACITY)));
+        double userFilterFalsePositiveRate = Double.parseDouble(config.getProperty("users.filter.falsePositiveRate",
+                String.valueOf(Constants.DEFAULT_USER_FILTER_FALSE_POSITIVE_RATE)));
+        this.userExistenceFilter = new UserExistenceFilter(this.userDAO, userFilterMinCapacity, userFilterFalsePositiveRate);
+
+        // Password hashing runs on its own bounded pool so logins can't starve message processing
+        int authThreads = Integer.parseInt(config.getProperty("auth.threads", String.valueOf(Constants.DEFAULT_AUTH_THREADS)));
+        int authQueueCapacity = Integer.parseInt(config.getProperty("auth.queueCapacity", String.valueOf(Constants.DEFAULT_AUTH_QUEUE_CAPACITY)));
+        int pbkdf2Iterations = Integer.parseInt(config.getProperty("auth.pbkdf2Iterations", String.valueOf(Constants.DEFAULT_PBKDF2_ITERATIONS)));
+        this.authService = new AuthService(this.userDAO, new PasswordHasher(pbkdf2Iterations), authThreads, authQueueCapacity);
 
         // Initialize thread pools
         int poolSize = Runtime.getRuntime().availableProcessors();
@@ -91,6 +159,24 @@ public class UdpRequestHandler implements Runnable {
             t.setName("Server-Cleanup-Thread");
             return t;
         });
+        this.presenceExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = Executors.defaultThreadFactory().newThread(r);
+            t.setDaemon(true);
+            t.setName("Presence-Flush-Thread");
+            return t;
+        });
+
+        // Initialize all handlers, passing dependencies (including udpSender and createRoomHandler)
+        this.loginHandler = new LoginHandler(this.authService, this.roomDAO, this.messageStore, this.recentMessageCache, this.sessionManager, this.udpSender, loginSyncMessagesPerRoom, this.requestThreadPool);
+        this.createRoomHandler = new CreateRoomHandler(this.sessionManager, this.roomManager, this.roomDAO, this.userDAO, this.userExistenceFilter, this.socket, this.udpSender);
+        this.registerHandler = new RegisterHandler(this.userDAO, this.userDirectory, this.userExistenceFilter, this.authService, this.udpSender, this.fanoutExecutor, this.sessionManager, this.createRoomHandler, this.requestThreadPool);
+        this.sendMessageHandler = new SendMessageHandler(this.sessionManager, this.roomManager, this.messageStore, this.fanoutExecutor, this.roomUpdateNotifier, this.requestThreadPool, this.recentMessageCache, searchIndex);
+        this.roomMessageHandler = new RoomMessageHandler(this.sessionManager, this.roomManager, this.roomDAO, this.messageStore, this.recentMessageCache, messageArchive, this.socket, this.udpSender);
+        this.searchHandler = new SearchHandler(this.roomManager, searchIndex, this.udpSender);
+        this.userRoomListHandler = new UserRoomListHandler(this.sessionManager, this.roomManager, this.udpSender);
+        this.getUsersHandler = new GetUsersHandler(this.sessionManager, this.userDirectory, this.presenceManager, this.udpSender);
+        this.roomManagementHandler = new RoomManagementHandler(this.sessionManager, this.roomManager, this.roomDAO, this.recentMessageCache, searchIndex, this.udpSender);
+
         log.info("UDP Request Handler initialized. Listening on port: {}. Request pool size: {}", port, poolSize);
 
         startCleanupTasks();
@@ -174,6 +260,13 @@ public class UdpRequestHandler implements Runnable {
         }
         action = requestJson.get(Constants.KEY_ACTION).getAsString();
 
+        if (!ready) {
+            startingReplies.increment();
+            log.info("Server still starting. Answering '{}' from {}:{} with '{}'.", action, clientAddress.getHostAddress(), clientPort, Constants.STATUS_STARTING);
+            udpSender.sendStartingReply(clientAddress, clientPort, action, transactionKey);
+            return;
+        }
+
         // --- Action Routing ---
         try {
             switch (action) {
@@ -264,21 +357,36 @@ public class UdpRequestHandler implements Runnable {
     private void processConfirmedAction(PendingMessageInfo pendingInfo) {
         String originalAction = pendingInfo.getOriginalAction();
         String transactionId = pendingInfo.getTransactionId();
-        InetAddress clientAddress = pendingInfo.getPartnerAddress();
-        int clientPort = pendingInfo.getPartnerPort();
-        String transactionKey = pendingInfo.getTransactionKey(); // Use the key stored in pending info
 
         log.info("Processing confirmed action '{}' for transaction '{}'", originalAction, transactionId);
+
+        // Actions that wait on another executor (group commit, password hashing) are acked when
+        // they complete, without holding this request thread
+        CompletableFuture<Boolean> asyncResult = switch (originalAction) {
+            case Constants.ACTION_SEND_MESSAGE -> sendMessageHandler.processConfirmedSendMessage(pendingInfo);
+            case Constants.ACTION_LOGIN -> loginHandler.processConfirmedLogin(pendingInfo);
+            case Constants.ACTION_REGISTER -> registerHandler.processConfirmedRegister(pendingInfo);
+            default -> null;
+        };
+        if (asyncResult != null) {
+            asyncResult.whenComplete((success, e) -> {
+                if (e != null) {
+                    log.error("Error executing confirmed action '{}' for transaction '{}': {}", originalAction, transactionId, e.getMessage(), e);
+                }
+                completeConfirmedAction(pendingInfo, e == null && Boolean.TRUE.equals(success));
+            });
+            return;
+        }
+
         boolean actionSuccess = false;
         try {
             // Delegate to the appropriate handler
             actionSuccess = switch (originalAction) {
-                case Constants.ACTION_LOGIN -> loginHandler.processConfirmedLogin(pendingInfo);
-                case Constants.ACTION_REGISTER -> registerHandler.processConfirmedRegister(pendingInfo);
-                case Constants.ACTION_SEND_MESSAGE -> sendMessageHandler.processConfirmedSendMessage(pendingInfo);
                 case Constants.ACTION_CREATE_ROOM -> createRoomHandler.processConfirmedCreateRoom(pendingInfo);
                 case Constants.ACTION_GET_ROOMS -> roomMessageHandler.processConfirmedGetRooms(pendingInfo);
+                case Constants.ACTION_GET_USER_ROOMS -> userRoomListHandler.processConfirmedGetUserRooms(pendingInfo);
                 case Constants.ACTION_GET_MESSAGES -> roomMessageHandler.processConfirmedGetMessages(pendingInfo);
+                case Constants.ACTION_SEARCH_MESSAGES -> searchHandler.processConfirmedSearchMessages(pendingInfo);
                 case Constants.ACTION_GET_USERS -> getUsersHandler.processConfirmedGetUsers(pendingInfo);
                 case Constants.ACTION_GET_ROOM_USERS -> roomMessageHandler.processConfirmedGetRoomUsers(pendingInfo);
                 // Room Management Actions
@@ -296,6 +404,18 @@ public class UdpRequestHandler implements Runnable {
             actionSuccess = false; // Ensure actionSuccess is false on exception
         }
 
+        completeConfirmedAction(pendingInfo, actionSuccess);
+    }
+
+    /**
+     * Sends the ACK for a processed C2S action and removes its pending transaction.
+     */
+    private void completeConfirmedAction(PendingMessageInfo pendingInfo, boolean actionSuccess) {
+        String transactionId = pendingInfo.getTransactionId();
+        InetAddress clientAddress = pendingInfo.getPartnerAddress();
+        int clientPort = pendingInfo.getPartnerPort();
+        String transactionKey = pendingInfo.getTransactionKey(); // Use the key stored in pending info
+
         // Send ACK based on action execution result using the correct key
         udpSender.sendAck(clientAddress, clientPort, transactionId, actionSuccess,
                 actionSuccess ? "Action processed successfully." : "Action processing failed.", transactionKey);
@@ -331,6 +451,31 @@ public class UdpRequestHandler implements Runnable {
     }
 
     // --- Lifecycle Methods ---
+
+    /**
+     * Starts processing requests normally (startup warm-up finished).
+     */
+    public void markReady() {
+        ready = true;
+        log.info("UDP Request Handler is ready.");
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public UserDirectory getUserDirectory() {
+        return userDirectory;
+    }
+
+    public UserExistenceFilter getUserExistenceFilter() {
+        return userExistenceFilter;
+    }
+
+    public AuthService getAuthService() {
+        return authService;
+    }
+
     private void startCleanupTasks() {
         cleanupExecutor.scheduleAtFixedRate(() -> {
             try {
@@ -346,6 +491,33 @@ public class UdpRequestHandler implements Runnable {
         }, Constants.SESSION_CLEANUP_INTERVAL_MS, Constants.SESSION_CLEANUP_INTERVAL_MS, TimeUnit.MILLISECONDS);
         log.info("Scheduled cleanup tasks started (Session Interval: {} ms, Transaction Timeout: {} ms)",
                 Constants.SESSION_CLEANUP_INTERVAL_MS, Constants.PENDING_MESSAGE_TIMEOUT_MS);
+
+        presenceExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                presenceManager.flush();
+            } catch (Exception e) {
+                log.error("Error during scheduled presence flush: {}", e.getMessage(), e);
+            }
+        }, presenceFlushIntervalMs, presenceFlushIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("Scheduled presence flush started (Interval: {} ms)", presenceFlushIntervalMs);
+
+        cleanupExecutor.scheduleAtFixedRate(() -> {
+            try {
+                roomUpdateNotifier.flush();
+            } catch (Exception e) {
+                log.error("Error during scheduled room update flush: {}", e.getMessage(), e);
+            }
+        }, hintWindowMs, hintWindowMs, TimeUnit.MILLISECONDS);
+        log.info("Scheduled room update hint flush started (Window: {} ms)", hintWindowMs);
+
+        cleanupExecutor.scheduleAtFixedRate(() -> {
+            try {
+                log.info("Metrics: {}", Metrics.snapshot());
+            } catch (Exception e) {
+                log.error("Error during scheduled metrics log: {}", e.getMessage(), e);
+            }
+        }, metricsLogIntervalMs, metricsLogIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("Scheduled metrics log started (Interval: {} ms)", metricsLogIntervalMs);
     }
 
     public void stop() {
@@ -353,11 +525,14 @@ public class UdpRequestHandler implements Runnable {
         running = false;
         log.info("Stopping UDP Request Handler...");
         shutdownExecutor(cleanupExecutor, "CleanupExecutor");
+        shutdownExecutor(presenceExecutor, "PresenceExecutor");
         if (socket != null && !socket.isClosed()) {
             log.info("Closing UDP socket...");
             socket.close();
         }
         shutdownExecutor(requestThreadPool, "RequestThreadPool");
+        shutdownExecutor(fanoutExecutor.getPool(), "FanoutPool");
+        shutdownExecutor(authService.getExecutor(), "AuthPool");
         log.info("UDP Request Handler stopped.");
     }
 
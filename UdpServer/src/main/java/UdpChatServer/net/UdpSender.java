@@ -17,6 +17,7 @@ import UdpChatServer.model.Constants;
 import UdpChatServer.model.PendingMessageInfo;
 import UdpChatServer.model.PendingMessageInfo.Direction;
 import UdpChatServer.model.PendingMessageInfo.State; // Keep RoomManager if needed for context in sending? Unlikely.
+import UdpChatServer.model.SessionInfo;
 import UdpChatServer.util.JsonHelper;
 
 public class UdpSender {
@@ -210,6 +211,33 @@ public class UdpSender {
         sessionManager.storePendingTransaction(pendingInfo);
     }
 
+    /**
+     * Sends one recipient's copy of a fanout template and stores its pending transaction.
+     * Equivalent to initiateServerToClientFlow for the template's message; used by FanoutExecutor.
+     */
+    boolean sendFromTemplate(FanoutTemplate template, InetAddress clientAddress, int clientPort, String transactionKey) {
+        String transactionId = sessionManager.generateTransactionId("S2C_" + template.getAction());
+        byte[] packet = template.encryptFor(transactionId, transactionKey);
+        if (!JsonHelper.sendEncryptedBytes(socket, clientAddress, clientPort, packet, template.getAction(), log)) {
+            log.error("Failed to send fanout packet (action: {}, txId: {}) to {}:{}", template.getAction(), transactionId, clientAddress.getHostAddress(), clientPort);
+            return false;
+        }
+
+        PendingMessageInfo pendingInfo = new PendingMessageInfo(
+                transactionId,
+                Direction.SERVER_TO_CLIENT,
+                State.WAITING_FOR_CHAR_COUNT,
+                template.getMessageJson(), // Shared, read-only; only used for the original action
+                null, // The per-recipient plain string is never materialized on the fanout path
+                template.frequenciesFor(transactionId),
+                clientAddress,
+                clientPort,
+                transactionKey
+        );
+        sessionManager.storePendingTransaction(pendingInfo);
+        return true;
+    }
+
     /**
      * Handles incoming CHARACTER_COUNT message from a client (part of Server ->
      * Client flow). Expects transaction_id and letter_frequencies within the
@@ -470,6 +498,20 @@ public class UdpSender {
         JsonHelper.sendPacket(socket, clientAddress, clientPort, errorReply, keyToSendWith, log);
     }
 
+    /**
+     * Tells a client the server is still starting: an error reply with status "starting" and a
+     * suggested retry delay, so the client retries instead of reporting a failure.
+     */
+    public void sendStartingReply(InetAddress clientAddress, int clientPort, String originalAction, String keyToSendWith) {
+        if (Constants.ACTION_ACK.equals(originalAction) || Constants.ACTION_CONFIRM_COUNT.equals(originalAction) || Constants.ACTION_CHARACTER_COUNT.equals(originalAction)) {
+            return;
+        }
+        JsonObject reply = JsonHelper.createErrorReply(originalAction, Constants.ERROR_MSG_SERVER_STARTING);
+        reply.addProperty(Constants.KEY_STATUS, Constants.STATUS_STARTING);
+        reply.addProperty(Constants.KEY_RETRY_AFTER_MS, Constants.STARTING_RETRY_AFTER_MS);
+        JsonHelper.sendPacket(socket, clientAddress, clientPort, reply, keyToSendWith, log);
+    }
+
     // --- Utility Methods ---
     private boolean areFrequenciesEqual(Map<Character, Integer> map1, Map<Character, Integer> map2) {
         if (map1 == null || map2 == null) {
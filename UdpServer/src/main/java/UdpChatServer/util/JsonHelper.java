@@ -190,6 +190,39 @@ public final class JsonHelper {
         }
     }
 
+    /**
+     * Serializes a JSON object exactly as {@link #sendPacket} does before encryption.
+     */
+    public static String toWireString(JsonObject json) {
+        return gson.toJson(json);
+    }
+
+    /**
+     * Sends an already serialized and encrypted payload. Used by the fanout path, which
+     * assembles the encrypted bytes from a pre-encrypted template instead of calling sendPacket.
+     *
+     * @param action The action of the payload, for logging only.
+     * @return true if the packet was sent, false otherwise.
+     */
+    public static boolean sendEncryptedBytes(DatagramSocket socket, InetAddress address, int port, byte[] sendData, String action, Logger log) {
+        if (socket == null || address == null || sendData == null) {
+            log.error("Attempted to send packet with null socket, address, or payload.");
+            return false;
+        }
+        if (sendData.length > Constants.MAX_UDP_PACKET_SIZE) {
+            log.error("Attempted to send UDP packet larger than max size ({} bytes) after encryption to {}:{}", sendData.length, address.getHostAddress(), port);
+            return false;
+        }
+        try {
+            socket.send(new DatagramPacket(sendData, sendData.length, address, port));
+            log.debug("Sent pre-encrypted packet (action: {}) to {}:{}", action, address.getHostAddress(), port);
+            return true;
+        } catch (IOException e) {
+            log.error("IOException sending encrypted UDP packet to {}:{}: {}", address.getHostAddress(), port, e.getMessage(), e);
+            return false;
+        }
+    }
+
     /**
      * Converts a Set<String> to a JsonArray
      *
@@ -0,0 +1,59 @@
+package UdpChatServer.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of named counters and gauges.
+ * Components register what they measure; the server logs a {@link #snapshot()} periodically.
+ */
+public final class Metrics {
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * The counter with this name, created on first use.
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Registers (or replaces) a gauge, read each time a snapshot is taken.
+     */
+    public static void gauge(String name, Supplier<? extends Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Current value of every counter and gauge, sorted by name.
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> values = new TreeMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                values.put(name, gauge.get());
+            } catch (RuntimeException e) {
+                values.put(name, Double.NaN); // A failing gauge shouldn't hide the others
+            }
+        });
+        return values;
+    }
+
+    /**
+     * hits / (hits + misses), or 0 before the first lookup.
+     */
+    public static double ratio(LongAdder hits, LongAdder misses) {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private Metrics() {
+    }
+}
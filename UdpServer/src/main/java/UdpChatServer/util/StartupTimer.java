@@ -0,0 +1,73 @@
+package UdpChatServer.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Times the phases of server startup. Each phase's duration is kept for the startup summary
+ * and exported as a {@code startup.<phase>_ms} gauge.
+ */
+public final class StartupTimer {
+
+    private final long startedAt = System.nanoTime();
+    private long lastCompletedAt = startedAt; // End of the previous sequential phase; guarded by 'this'
+    private final Map<String, Long> phaseMillis = new LinkedHashMap<>(); // guarded by 'this'
+
+    /**
+     * A step of startup that may fail.
+     */
+    @FunctionalInterface
+    public interface Phase {
+        void run() throws Exception;
+    }
+
+    /**
+     * Ends a sequential phase: it took the time since the previous one ended (or since startup).
+     */
+    public synchronized void completed(String name) {
+        long now = System.nanoTime();
+        record(name, lastCompletedAt, now);
+        lastCompletedAt = now;
+    }
+
+    /**
+     * Runs a phase on {@code executor}, in parallel with others; the future fails if the phase does.
+     */
+    public CompletableFuture<Void> runAsync(String name, Phase phase, Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                phase.run();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Startup phase '" + name + "' failed: " + e.getMessage(), e);
+            } finally {
+                record(name, start, System.nanoTime());
+            }
+        }, executor);
+    }
+
+    public long elapsedMillis() {
+        return (System.nanoTime() - startedAt) / 1_000_000;
+    }
+
+    /**
+     * Phase durations in completion order, e.g. "config=2 ms, bind=35 ms, database=640 ms, total=812 ms".
+     */
+    public synchronized String summary() {
+        StringJoiner joiner = new StringJoiner(", ");
+        phaseMillis.forEach((name, millis) -> joiner.add(name + "=" + millis + " ms"));
+        joiner.add("total=" + elapsedMillis() + " ms");
+        return joiner.toString();
+    }
+
+    private synchronized void record(String name, long start, long end) {
+        long millis = (end - start) / 1_000_000;
+        phaseMillis.put(name, millis);
+        Metrics.gauge("startup." + name + "_ms", () -> millis);
+    }
+}
@@ -0,0 +1,112 @@
+package UdpChatServer.util;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Folds text for search: lower case without diacritics, so "Đường", "đuong" and "DUONG" all
+ * match. Vietnamese tone and vowel marks are stripped by decomposing each character and dropping
+ * the combining marks; đ/Đ, which has no decomposition, folds to d.
+ *
+ * Folding keeps one output character per character of the NFC form of the input, so a match
+ * found in the folded text is at the same position in {@link #normalize}d original text.
+ */
+public final class TextFolding {
+
+    private static final int MAX_TOKEN_LENGTH = 64; // Longer runs are cut (URLs, pasted data)
+
+    /**
+     * The NFC form of the text, which positions in {@link #fold} refer to.
+     */
+    public static String normalize(String text) {
+        return Normalizer.normalize(text, Normalizer.Form.NFC);
+    }
+
+    /**
+     * Folds the {@link #normalize}d text character by character. Combining marks that don't
+     * compose with a base character are kept; the tokenizer skips them.
+     */
+    public static String fold(String normalizedText) {
+        char[] folded = new char[normalizedText.length()];
+        for (int i = 0; i < folded.length; i++) {
+            folded[i] = foldChar(normalizedText.charAt(i));
+        }
+        return new String(folded);
+    }
+
+    private static char foldChar(char c) {
+        if (c < 0x80) {
+            return Character.toLowerCase(c);
+        }
+        if (c == 'đ' || c == 'Đ') {
+            return 'd';
+        }
+        if (Character.isSurrogate(c) || isMark(c)) {
+            return c;
+        }
+        String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+        char base = decomposed.charAt(0);
+        return isMark(base) ? c : Character.toLowerCase(base);
+    }
+
+    private static boolean isMark(char c) {
+        int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK || type == Character.ENCLOSING_MARK;
+    }
+
+    /**
+     * The distinct folded words of a text, in order of first appearance.
+     */
+    public static Set<String> tokens(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        forEachToken(fold(normalize(text)), (token, start, end) -> tokens.add(token));
+        return tokens;
+    }
+
+    /**
+     * The folded words of a search query, in order, without repeats.
+     */
+    public static List<String> queryTerms(String query) {
+        return new ArrayList<>(tokens(query));
+    }
+
+    /**
+     * Receives the words of a folded text with their [start, end) positions.
+     */
+    @FunctionalInterface
+    public interface TokenConsumer {
+        void accept(String token, int start, int end);
+    }
+
+    /**
+     * Splits folded text into words: runs of letters and digits. Combining marks inside a word
+     * are skipped without ending it.
+     */
+    public static void forEachToken(String folded, TokenConsumer consumer) {
+        StringBuilder token = new StringBuilder();
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            char c = i < folded.length() ? folded.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+                if (token.length() < MAX_TOKEN_LENGTH) {
+                    token.append(c);
+                }
+            } else if (start >= 0 && isMark(c)) {
+                continue;
+            } else if (start >= 0) {
+                consumer.accept(token.toString(), start, i);
+                token.setLength(0);
+                start = -1;
+            }
+        }
+    }
+
+    private TextFolding() {
+    }
+}
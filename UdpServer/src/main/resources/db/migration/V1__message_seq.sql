@@ -0,0 +1,8 @@
+-- Per-room message sequence numbers (get_messages + after_seq).
+-- Rows that predate the column get seq = message_id, which is unique and increasing per room.
+
+ALTER TABLE messages ADD COLUMN seq BIGINT NOT NULL DEFAULT 0;
+
+UPDATE messages SET seq = message_id WHERE seq = 0;
+
+ALTER TABLE messages ADD UNIQUE KEY uk_messages_room_seq (room_id, seq);
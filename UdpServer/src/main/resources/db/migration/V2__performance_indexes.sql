@@ -0,0 +1,13 @@
+-- Indexes for history, file-list and membership queries.
+
+-- Keyset-paginated history (before_id / after_id)
+CREATE INDEX idx_messages_room_message ON messages (room_id, message_id);
+
+-- History by time (from_time)
+CREATE INDEX idx_messages_room_timestamp ON messages (room_id, timestamp);
+
+-- File list and lookup of a room's file by path
+CREATE INDEX idx_files_room_path ON files (room_id, file_path);
+
+-- Rooms of a user (the primary key leads with room_id)
+CREATE INDEX idx_room_participants_chatid ON room_participants (chatid);
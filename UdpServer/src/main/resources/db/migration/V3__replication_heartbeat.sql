@@ -0,0 +1,9 @@
+-- Heartbeat row for measuring read replica lag (db.read.url).
+-- The server writes the current time here on the primary and reads it back from the replica.
+
+CREATE TABLE IF NOT EXISTS replication_heartbeat (
+    id INT PRIMARY KEY,
+    beat BIGINT NOT NULL
+);
+
+INSERT IGNORE INTO replication_heartbeat (id, beat) VALUES (1, 0);
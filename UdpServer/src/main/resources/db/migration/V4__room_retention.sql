@@ -0,0 +1,9 @@
+-- Per-room retention overrides (retention.* in config.properties holds the defaults).
+-- NULL uses the default, 0 keeps messages regardless of that limit.
+
+CREATE TABLE IF NOT EXISTS room_retention (
+    room_id VARCHAR(100) PRIMARY KEY,
+    max_age_days INT NULL,
+    max_messages INT NULL,
+    FOREIGN KEY (room_id) REFERENCES rooms(room_id) ON DELETE CASCADE
+);
@@ -1,3 +1,6 @@
+-- Baseline schema, run once on an empty database.
+-- Later schema changes are versioned scripts in db/migration, applied at startup.
+
 CREATE DATABASE IF NOT EXISTS udp_chat_db CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci;
 
 USE udp_chat_db;
@@ -0,0 +1,186 @@
+package UdpChatServer.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import UdpChatServer.model.Message;
+
+class LogSegmentTest {
+
+    private static final String ROOM = "room";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoverTruncatesTornTail() throws IOException {
+        LogSegment segment = writeSegment(1, 5);
+        long validSize = segment.size();
+        // A crash mid-append: the header and half the payload of the next record made it to disk
+        ByteBuffer torn = LogSegment.encode(message(6));
+        torn.limit(torn.limit() / 2);
+        appendRaw(segment.file(), torn);
+
+        LogSegment.Recovery recovery = LogSegment.recover(segment.file(), 1, 1, 2);
+
+        assertTrue(recovery.truncated);
+        assertFalse(recovery.duplicate);
+        assertEquals(5, recovery.segment.count());
+        assertEquals(5, recovery.segment.lastSeq());
+        assertEquals(validSize, Files.size(segment.file()));
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), seqs(recovery.segment));
+    }
+
+    @Test
+    void recoverStopsAtCorruptRecord() throws IOException {
+        LogSegment segment = writeSegment(1, 5);
+        long corruptAt = offsetOfRecord(segment, 3) + LogSegment.HEADER_BYTES + 20; // Inside record 3's payload
+        try (FileChannel ch = FileChannel.open(segment.file(), StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[] {(byte) 0xAB}), corruptAt);
+        }
+
+        LogSegment.Recovery recovery = LogSegment.recover(segment.file(), 1, 1, 2);
+
+        assertTrue(recovery.truncated);
+        assertEquals(List.of(1L, 2L), seqs(recovery.segment));
+    }
+
+    @Test
+    void recoverDropsFileWithoutValidRecords() throws IOException {
+        Path file = dir.resolve(LogSegment.fileName(1));
+        Files.write(file, new byte[] {0, 0, 0, 9, 1, 2});
+
+        LogSegment.Recovery recovery = LogSegment.recover(file, 1, 1, 2);
+
+        assertNull(recovery.segment);
+        assertTrue(recovery.truncated);
+    }
+
+    @Test
+    void recoverReportsSegmentAlreadyMergedByCompaction() throws IOException {
+        LogSegment segment = writeSegment(1, 5);
+
+        LogSegment.Recovery recovery = LogSegment.recover(segment.file(), 1, 6, 2);
+
+        assertTrue(recovery.duplicate);
+        assertNull(recovery.segment);
+    }
+
+    @Test
+    void recoveredSegmentIsSealedAndMapped() throws IOException {
+        LogSegment segment = writeSegment(1, 5);
+
+        LogSegment recovered = LogSegment.recover(segment.file(), 1, 1, 2).segment;
+        Files.delete(segment.file());
+
+        assertTrue(recovered.isSealed());
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), seqs(recovered)); // Read from the mapping made at recovery
+    }
+
+    @Test
+    void activeSegmentReadsFollowCommitsUntilSealed() throws IOException {
+        LogSegment segment = LogSegment.create(dir, 1, 2);
+        for (long seq = 1; seq <= 6; seq++) {
+            Message message = message(seq);
+            segment.append(message, LogSegment.encode(message));
+            if (seq % 3 == 0) {
+                segment.publish();
+                assertEquals(seqRange(seq), seqs(segment)); // Each commit's records are visible to the next read
+            }
+        }
+        Message unpublished = message(7);
+        segment.append(unpublished, LogSegment.encode(unpublished));
+        assertEquals(seqRange(6), seqs(segment));
+
+        segment.rollback();
+        segment.seal();
+        Files.delete(segment.file());
+
+        assertEquals(seqRange(6), seqs(segment)); // Served from the mapping made at seal
+        long second = offsetOfRecord(segment, 2);
+        long third = offsetOfRecord(segment, 3);
+        assertEquals(2, LogSegment.decode(ROOM, segment.read(second, third)).getSeq());
+    }
+
+    @Test
+    void retiredSegmentIsDeletedWhenLastReaderReleases() throws IOException {
+        LogSegment segment = writeSegment(1, 3);
+        segment.seal();
+        assertTrue(segment.retain());
+
+        segment.retire(true);
+
+        assertTrue(Files.exists(segment.file()));
+        assertEquals(List.of(1L, 2L, 3L), seqs(segment));
+        segment.release();
+        assertFalse(Files.exists(segment.file()));
+        assertFalse(segment.retain());
+    }
+
+    private LogSegment writeSegment(long firstSeq, int messages) throws IOException {
+        LogSegment segment = LogSegment.create(dir, firstSeq, 2);
+        for (long seq = firstSeq; seq < firstSeq + messages; seq++) {
+            Message message = message(seq);
+            segment.append(message, LogSegment.encode(message));
+        }
+        segment.sync();
+        segment.publish();
+        segment.closeChannel();
+        return segment;
+    }
+
+    private static Message message(long seq) {
+        return new Message(100 + seq, ROOM, "alice", "message number " + seq, new Timestamp(1_700_000_000_000L + seq), seq);
+    }
+
+    private static void appendRaw(Path file, ByteBuffer bytes) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (bytes.hasRemaining()) {
+                ch.write(bytes);
+            }
+        }
+    }
+
+    private static long offsetOfRecord(LogSegment segment, long seq) throws IOException {
+        ByteBuffer buf = segment.view();
+        while (buf.hasRemaining()) {
+            int start = buf.position();
+            if (LogSegment.decode(ROOM, buf).getSeq() == seq) {
+                return start;
+            }
+        }
+        throw new AssertionError("No record with seq " + seq);
+    }
+
+    private static List<Long> seqRange(long last) {
+        List<Long> seqs = new ArrayList<>();
+        for (long seq = 1; seq <= last; seq++) {
+            seqs.add(seq);
+        }
+        return seqs;
+    }
+
+    private static List<Long> seqs(LogSegment segment) throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        ByteBuffer buf = segment.view();
+        while (buf.hasRemaining()) {
+            seqs.add(LogSegment.decode(ROOM, buf).getSeq());
+        }
+        return seqs;
+    }
+}
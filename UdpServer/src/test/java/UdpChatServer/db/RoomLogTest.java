@@ -0,0 +1,263 @@
+package UdpChatServer.db;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import UdpChatServer.model.Message;
+
+class RoomLogTest {
+
+    private static final String ROOM = "room";
+    private static final long SEGMENT_BYTES = 64 * 1024;
+    private static final int INDEX_INTERVAL = 4;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void openRecoversTornTailOfActiveSegment() throws IOException {
+        RoomLog room = RoomLog.create(ROOM, dir, SEGMENT_BYTES, INDEX_INTERVAL);
+        append(room, 1, 10);
+        room.close();
+        Path active = segmentFiles().get(0);
+        long validSize = Files.size(active);
+        try (FileChannel ch = FileChannel.open(active, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.wrap(new byte[] {0, 0, 1, 0, 7, 7, 7, 7, 1, 2, 3})); // Header of a record that never finished
+        }
+
+        RoomLog reopened = RoomLog.open(ROOM, dir, SEGMENT_BYTES, INDEX_INTERVAL);
+
+        assertEquals(10, reopened.lastSeq());
+        assertEquals(validSize, Files.size(active));
+        assertEquals(seqRange(1, 10), readAll(reopened));
+        append(reopened, 11, 1); // Appends continue after the recovered records
+        assertEquals(seqRange(1, 11), readAll(reopened));
+    }
+
+    @Test
+    void openDeletesSegmentsAfterATruncatedOne() throws IOException {
+        writeSmallSegments(3, 5);
+        List<Path> files = segmentFiles();
+        try (FileChannel ch = FileChannel.open(files.get(1), StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+
+        RoomLog reopened = RoomLog.open(ROOM, dir, SEGMENT_BYTES, INDEX_INTERVAL);
+
+        assertEquals(9, reopened.lastSeq()); // The last record of the second segment was torn
+        assertEquals(seqRange(1, 9), readAll(reopened));
+        assertFalse(Files.exists(files.get(2)));
+    }
+
+    @Test
+    void compactMergesSmallSealedSegments() throws IOException {
+        writeSmallSegments(8, 5);
+        RoomLog room = RoomLog.open(ROOM, dir, SEGMENT_BYTES, INDEX_INTERVAL);
+        assertEquals(8, room.segmentCount());
+
+        assertEquals(7, room.compact());
+
+        assertEquals(1, room.segmentCount());
+        assertEquals(1, segmentFiles().size());
+        assertEquals(seqRange(1, 40), readAll(room));
+        assertEquals(seqRange(31, 40), readBackward(room, 10));
+        append(room, 41, 2);
+        assertEquals(seqRange(1, 42), readAll(room));
+
+        room.close();
+        RoomLog reopened = RoomLog.open(ROOM, dir, SEGMENT_BYTES, INDEX_INTERVAL);
+        assertEquals(seqRange(1, 42), readAll(reopened));
+    }
+
+    @Test
+    void compactDefersDeletingFilesPinnedByAReader() throws IOException {
+        writeSmallSegments(4, 5);
+        RoomLog room = RoomLog.open(ROOM, dir, SEGMENT_BYTES, INDEX_INTERVAL);
+        List<Path> before = segmentFiles();
+        List<LogSegment> pinned = room.acquireSegments();
+
+        room.compact();
+
+        for (Path file : before) {
+            assertTrue(Files.exists(file), file + " deleted while a reader held it");
+        }
+        List<Long> seqs = new ArrayList<>();
+        for (LogSegment segment : pinned) {
+            ByteBuffer buf = segment.view();
+            while (buf.hasRemaining()) {
+                seqs.add(LogSegment.decode(ROOM, buf).getSeq());
+            }
+        }
+        assertEquals(seqRange(1, 20), seqs);
+
+        RoomLog.release(pinned);
+        assertEquals(List.of(before.get(0)), segmentFiles());
+        assertEquals(seqRange(1, 20), readAll(room));
+    }
+
+    @Test
+    void readsRunningDuringCompactionSeeEveryMessage() throws Exception {
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            for (int round = 0; round < 20; round++) {
+                Path roomDir = dir.resolve("round-" + round);
+                writeSmallSegments(roomDir, 10, 20);
+                RoomLog room = RoomLog.open(ROOM, roomDir, SEGMENT_BYTES, INDEX_INTERVAL);
+                AtomicBoolean compacted = new AtomicBoolean();
+                List<Future<Integer>> scans = new ArrayList<>();
+                for (int r = 0; r < 4; r++) {
+                    boolean backward = r % 2 == 1;
+                    scans.add(readers.submit(() -> {
+                        int passes = 0;
+                        do {
+                            // Every pass must see all 200 messages, whichever segment list it pinned
+                            if (backward) {
+                                assertEquals(seqRange(1, 200), readBackward(room, Integer.MAX_VALUE));
+                            } else {
+                                assertEquals(seqRange(1, 200), readAll(room));
+                            }
+                            passes++;
+                        } while (!compacted.get());
+                        return passes;
+                    }));
+                }
+
+                assertEquals(9, room.compact());
+                compacted.set(true);
+
+                for (Future<Integer> scan : scans) {
+                    assertTrue(scan.get(30, TimeUnit.SECONDS) > 0);
+                }
+                assertEquals(1, segmentFiles(roomDir).size());
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    @Test
+    void readsRunningDuringCommitsSeeAConsistentPrefix() throws Exception {
+        RoomLog room = RoomLog.create(ROOM, dir, 16 * 1024, INDEX_INTERVAL); // Rolls a few segments along the way
+        int batches = 400;
+        int perBatch = 7;
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService readers = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<Integer>> scans = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                int mode = r;
+                scans.add(readers.submit(() -> {
+                    int passes = 0;
+                    while (!done.get()) {
+                        List<Long> seqs = new ArrayList<>();
+                        if (mode == 0) {
+                            seqs = readAll(room);
+                        } else if (mode == 1) {
+                            seqs = readBackward(room, Integer.MAX_VALUE);
+                        } else {
+                            List<Long> afterId = seqs;
+                            room.scanAfterId(1000, message -> afterId.add(message.getSeq()));
+                        }
+                        // Whatever was published so far, from seq 1 on without gaps
+                        assertEquals(seqRange(1, seqs.size()), seqs);
+                        passes++;
+                    }
+                    return passes;
+                }));
+            }
+
+            for (int b = 0; b < batches; b++) {
+                append(room, 1 + (long) b * perBatch, perBatch);
+            }
+            done.set(true);
+
+            for (Future<Integer> scan : scans) {
+                assertTrue(scan.get(30, TimeUnit.SECONDS) > 0);
+            }
+        } finally {
+            done.set(true);
+            readers.shutdownNow();
+        }
+        assertEquals(seqRange(1, batches * perBatch), readAll(room));
+        assertTrue(room.segmentCount() > 1);
+    }
+
+    /**
+     * Leaves {@code segments} sealed segments of {@code perSegment} messages each: every reopen
+     * seals the previous active segment, as after a restart.
+     */
+    private void writeSmallSegments(int segments, int perSegment) throws IOException {
+        writeSmallSegments(dir, segments, perSegment);
+    }
+
+    private static void writeSmallSegments(Path roomDir, int segments, int perSegment) throws IOException {
+        long seq = 1;
+        for (int s = 0; s < segments; s++) {
+            RoomLog room = RoomLog.open(ROOM, roomDir, SEGMENT_BYTES, INDEX_INTERVAL);
+            append(room, seq, perSegment);
+            room.close();
+            seq += perSegment;
+        }
+    }
+
+    private static void append(RoomLog room, long firstSeq, int count) throws IOException {
+        for (long seq = firstSeq; seq < firstSeq + count; seq++) {
+            Message saved = room.append(new Message(null, ROOM, "alice", "message number " + seq, new Timestamp(1_700_000_000_000L + seq)), 1000 + seq);
+            assertEquals(seq, saved.getSeq());
+        }
+        room.commit(true);
+    }
+
+    private static List<Long> readAll(RoomLog room) throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        room.scanAfterSeq(0, message -> seqs.add(message.getSeq()));
+        return seqs;
+    }
+
+    private static List<Long> readBackward(RoomLog room, int limit) throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        room.scanBackward(null, message -> {
+            seqs.add(0, message.getSeq());
+            return seqs.size() < limit;
+        });
+        return seqs;
+    }
+
+    private static List<Long> seqRange(long from, long to) {
+        List<Long> seqs = new ArrayList<>();
+        for (long seq = from; seq <= to; seq++) {
+            seqs.add(seq);
+        }
+        return seqs;
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        return segmentFiles(dir);
+    }
+
+    private static List<Path> segmentFiles(Path roomDir) throws IOException {
+        try (Stream<Path> files = Files.list(roomDir)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(LogSegment.SUFFIX)).sorted().toList();
+        }
+    }
+}